@@ -14,6 +14,7 @@ import com.limelight.nvstream.http.NvHTTP;
 import com.limelight.preferences.PreferenceConfiguration;
 import com.limelight.ui.AdapterFragment;
 import com.limelight.ui.AdapterFragmentCallbacks;
+import com.limelight.utils.AppListDiff;
 import com.limelight.utils.CacheHelper;
 import com.limelight.utils.Dialog;
 import com.limelight.utils.ServerHelper;
@@ -353,6 +354,9 @@ public class AppView extends Activity implements AdapterFragmentCallbacks {
                                 if (poller != null) {
                                     poller.pollNow();
                                 }
+                                if (managerBinder != null) {
+                                    managerBinder.expeditePolling();
+                                }
                             }
                         });
                     }
@@ -409,69 +413,28 @@ public class AppView extends Activity implements AdapterFragmentCallbacks {
         AppView.this.runOnUiThread(new Runnable() {
             @Override
             public void run() {
-                boolean updated = false;
-
-                // First handle app updates and additions
-                for (NvApp app : appList) {
-                    boolean foundExistingApp = false;
-
-                    // Try to update an existing app in the list first
-                    for (int i = 0; i < appGridAdapter.getCount(); i++) {
-                        AppObject existingApp = (AppObject) appGridAdapter.getItem(i);
-                        if (existingApp.app.getAppId() == app.getAppId()) {
-                            // Found the app; update its properties
-                            if (existingApp.app.getIsRunning() != app.getIsRunning()) {
-                                existingApp.app.setIsRunning(app.getIsRunning());
-                                updated = true;
-                            }
-                            if (!existingApp.app.getAppName().equals(app.getAppName())) {
-                                existingApp.app.setAppName(app.getAppName());
-                                updated = true;
-                            }
-
-                            foundExistingApp = true;
-                            break;
-                        }
-                    }
-
-                    if (!foundExistingApp) {
-                        // This app must be new
-                        appGridAdapter.addApp(new AppObject(app));
-                        updated = true;
-                    }
+                // Only touch the apps that were added, removed or changed
+                AppListDiff diff = AppListDiff.compute(appGridAdapter.getApps(), appList);
+                if (diff.isEmpty()) {
+                    return;
                 }
 
-                // Next handle app removals
-                int i = 0;
-                while (i < appGridAdapter.getCount()) {
-                    boolean foundExistingApp = false;
-                    AppObject existingApp = (AppObject) appGridAdapter.getItem(i);
-
-                    // Check if this app is in the latest list
-                    for (NvApp app : appList) {
-                        if (existingApp.app.getAppId() == app.getAppId()) {
-                            foundExistingApp = true;
-                            break;
-                        }
-                    }
-
-                    // This app was removed in the latest app list
-                    if (!foundExistingApp) {
-                        appGridAdapter.removeApp(existingApp);
-                        updated = true;
-
-                        // Check this same index again because the item at i+1 is now at i after
-                        // the removal
-                        continue;
-                    }
+                LimeLog.info("App list update: "+diff);
 
-                    // Move on to the next item
-                    i++;
+                for (NvApp app : diff.removed) {
+                    appGridAdapter.removeApp(appGridAdapter.getApp(app.getAppId()));
                 }
-
-                if (updated) {
-                    appGridAdapter.notifyDataSetChanged();
+                for (NvApp app : diff.changed) {
+                    appGridAdapter.updateApp(app);
                 }
+                for (NvApp app : diff.added) {
+                    appGridAdapter.addApp(new AppObject(app));
+                }
+
+                // Warm the disk cache for the new apps in one batch
+                appGridAdapter.prefetchBoxArt(diff.added);
+
+                appGridAdapter.notifyDataSetChanged();
             }
         });
     }
@@ -3,6 +3,7 @@ package com.limelight;
 
 import com.limelight.binding.PlatformBinding;
 import com.limelight.binding.input.ControllerHandler;
+import com.limelight.binding.input.InputStats;
 import com.limelight.binding.input.KeyboardTranslator;
 import com.limelight.binding.input.capture.InputCaptureManager;
 import com.limelight.binding.input.capture.InputCaptureProvider;
@@ -56,9 +57,18 @@ import android.view.View.OnTouchListener;
 import android.view.Window;
 import android.view.WindowManager;
 import android.widget.FrameLayout;
+import android.widget.TextView;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.Locale;
 
 
@@ -79,9 +89,13 @@ public class Game extends Activity implements SurfaceHolder.Callback,
 
     private static final int THREE_FINGER_TAP_THRESHOLD = 300;
 
+    private static final String INPUT_STATS_FILE_PREFIX = "input-latency-";
+    private static final int MAX_INPUT_STATS_FILES = 20;
+
     private ControllerHandler controllerHandler;
     private VirtualController virtualController;
     private KeyboardTranslator keybTranslator;
+    private final InputStats inputStats = new InputStats();
 
     private PreferenceConfiguration prefConfig;
 
@@ -96,6 +110,8 @@ public class Game extends Activity implements SurfaceHolder.Callback,
     private boolean grabbedInput = true;
     private boolean grabComboDown = false;
     private StreamView streamView;
+    private TextView performanceOverlayView;
+    private final Handler performanceOverlayHandler = new Handler();
 
     private EnhancedDecoderRenderer decoderRenderer;
 
@@ -179,6 +195,8 @@ public class Game extends Activity implements SurfaceHolder.Callback,
         streamView.setOnGenericMotionListener(this);
         streamView.setOnTouchListener(this);
 
+        performanceOverlayView = (TextView) findViewById(R.id.performanceOverlay);
+
         // Warn the user if they're on a metered connection
         checkDataConnection();
 
@@ -202,7 +220,7 @@ public class Game extends Activity implements SurfaceHolder.Callback,
         // Initialize the MediaCodec helper before creating the decoder
         MediaCodecHelper.initializeWithContext(this);
 
-        decoderRenderer = new MediaCodecDecoderRenderer(prefConfig.videoFormat);
+        decoderRenderer = new MediaCodecDecoderRenderer(prefConfig);
 
         // Display a message to the user if H.265 was forced on but we still didn't find a decoder
         if (prefConfig.videoFormat == PreferenceConfiguration.FORCE_H265_ON && !decoderRenderer.isHevcSupported()) {
@@ -241,7 +259,7 @@ public class Game extends Activity implements SurfaceHolder.Callback,
         // Initialize the connection
         conn = new NvConnection(host, uniqueId, Game.this, config, PlatformBinding.getCryptoProvider(this));
         keybTranslator = new KeyboardTranslator(conn);
-        controllerHandler = new ControllerHandler(this, conn, this, prefConfig.multiController, prefConfig.deadzonePercentage);
+        controllerHandler = new ControllerHandler(this, conn, this, prefConfig.multiController, prefConfig.deadzonePercentage, prefConfig.stickResampling, inputStats);
 
         InputManager inputManager = (InputManager) getSystemService(Context.INPUT_SERVICE);
         inputManager.registerInputDeviceListener(controllerHandler, null);
@@ -262,13 +280,13 @@ public class Game extends Activity implements SurfaceHolder.Callback,
             getWindow().setSustainedPerformanceMode(true);
         }
 
-        inputCaptureProvider = InputCaptureManager.getInputCaptureProvider(this, this);
+        inputCaptureProvider = InputCaptureManager.getInputCaptureProvider(this, this, prefConfig.fps, inputStats);
 
         if (prefConfig.onscreenController) {
             // create virtual onscreen controller
             virtualController = new VirtualController(conn,
                     (FrameLayout)findViewById(R.id.surfaceView).getParent(),
-                    this);
+                    this, inputStats);
             virtualController.refreshLayout();
         }
 
@@ -401,6 +419,15 @@ public class Game extends Activity implements SurfaceHolder.Callback,
             }
     };
 
+    private final Runnable updatePerformanceOverlay = new Runnable() {
+        @Override
+        public void run() {
+            performanceOverlayView.setText(decoderRenderer.getVideoStats().formatLastWindow() +
+                    inputStats.formatLastWindow());
+            performanceOverlayHandler.postDelayed(this, 1000);
+        }
+    };
+
     private void hideSystemUi(int delay) {
         Handler h = getWindow().getDecorView().getHandler();
         if (h != null) {
@@ -419,6 +446,8 @@ public class Game extends Activity implements SurfaceHolder.Callback,
         if (controllerHandler != null) {
             InputManager inputManager = (InputManager) getSystemService(Context.INPUT_SERVICE);
             inputManager.unregisterInputDeviceListener(controllerHandler);
+
+            controllerHandler.stop();
         }
 
         wifiLock.release();
@@ -434,6 +463,10 @@ public class Game extends Activity implements SurfaceHolder.Callback,
             displayedFailureDialog = true;
             stopConnection();
 
+            LimeLog.info(decoderRenderer.getVideoStats().dumpSession());
+            LimeLog.info(inputStats.dumpSession());
+            exportInputStats();
+
             int averageEndToEndLat = decoderRenderer.getAverageEndToEndLatency();
             int averageDecoderLat = decoderRenderer.getAverageDecoderLatency();
             String message = null;
@@ -465,6 +498,78 @@ public class Game extends Activity implements SurfaceHolder.Callback,
         finish();
     }
 
+    // Saves this session's input latency so it can be compared with other sessions.
+    // Only done with the performance overlay on, since that's who reads these.
+    private void exportInputStats() {
+        if (!prefConfig.enablePerfOverlay) {
+            return;
+        }
+
+        // App-specific external storage needs no permission from KitKat on. Older
+        // versions would need WRITE_EXTERNAL_STORAGE, so use internal storage there.
+        final File dir = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT ?
+                getExternalFilesDir("stats") : new File(getFilesDir(), "stats");
+        if (dir == null) {
+            return;
+        }
+
+        // Take the snapshot now, but leave the disk to a background thread
+        final StringWriter csv = new StringWriter();
+        try {
+            inputStats.exportSession(csv);
+        } catch (IOException e) {
+            // Can't happen with a StringWriter
+            return;
+        }
+
+        final String fileName = INPUT_STATS_FILE_PREFIX +
+                new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date()) + ".csv";
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                if (!dir.isDirectory() && !dir.mkdirs()) {
+                    LimeLog.warning("Failed to create "+dir.getPath());
+                    return;
+                }
+
+                File file = new File(dir, fileName);
+                try {
+                    FileWriter writer = new FileWriter(file);
+                    try {
+                        writer.write(csv.toString());
+                    } finally {
+                        writer.close();
+                    }
+                    LimeLog.info("Input stats saved to "+file.getPath());
+                } catch (IOException e) {
+                    LimeLog.warning("Failed to save input stats: "+e.getMessage());
+                }
+
+                pruneInputStats(dir);
+            }
+        }).start();
+    }
+
+    // Deletes all but the newest saved sessions. The names sort by date.
+    private static void pruneInputStats(File dir) {
+        String[] names = dir.list();
+        if (names == null) {
+            return;
+        }
+
+        ArrayList<String> sessions = new ArrayList<>();
+        for (String name : names) {
+            if (name.startsWith(INPUT_STATS_FILE_PREFIX)) {
+                sessions.add(name);
+            }
+        }
+        Collections.sort(sessions);
+
+        for (int i = 0; i < sessions.size() - MAX_INPUT_STATS_FILES; i++) {
+            new File(dir, sessions.get(i)).delete();
+        }
+    }
+
     private final Runnable toggleGrab = new Runnable() {
         @Override
         public void run() {
@@ -586,6 +691,7 @@ public class Game extends Activity implements SurfaceHolder.Callback,
 
             keybTranslator.sendKeyDown(translated,
                     getModifierState(event));
+            inputStats.inputSent(InputStats.SOURCE_KEYBOARD, event.getEventTime());
         }
 
         return true;
@@ -618,6 +724,7 @@ public class Game extends Activity implements SurfaceHolder.Callback,
 
             keybTranslator.sendKeyUp(translated,
                     getModifierState(event));
+            inputStats.inputSent(InputStats.SOURCE_KEYBOARD, event.getEventTime());
         }
 
         return true;
@@ -660,11 +767,13 @@ public class Game extends Activity implements SurfaceHolder.Callback,
                             event.getToolType(0) == MotionEvent.TOOL_TYPE_MOUSE))
             {
                 int changedButtons = event.getButtonState() ^ lastButtonState;
+                boolean sent = false;
 
                 if (event.getActionMasked() == MotionEvent.ACTION_SCROLL) {
                     // Send the vertical scroll packet
                     byte vScrollClicks = (byte) event.getAxisValue(MotionEvent.AXIS_VSCROLL);
                     conn.sendMouseScroll(vScrollClicks);
+                    sent = true;
                 }
 
                 if ((changedButtons & MotionEvent.BUTTON_PRIMARY) != 0) {
@@ -674,6 +783,7 @@ public class Game extends Activity implements SurfaceHolder.Callback,
                     else {
                         conn.sendMouseButtonUp(MouseButtonPacket.BUTTON_LEFT);
                     }
+                    sent = true;
                 }
 
                 if ((changedButtons & MotionEvent.BUTTON_SECONDARY) != 0) {
@@ -683,6 +793,7 @@ public class Game extends Activity implements SurfaceHolder.Callback,
                     else {
                         conn.sendMouseButtonUp(MouseButtonPacket.BUTTON_RIGHT);
                     }
+                    sent = true;
                 }
 
                 if ((changedButtons & MotionEvent.BUTTON_TERTIARY) != 0) {
@@ -692,6 +803,7 @@ public class Game extends Activity implements SurfaceHolder.Callback,
                     else {
                         conn.sendMouseButtonUp(MouseButtonPacket.BUTTON_MIDDLE);
                     }
+                    sent = true;
                 }
 
                 // Get relative axis values if we can
@@ -699,6 +811,7 @@ public class Game extends Activity implements SurfaceHolder.Callback,
                     // Send the deltas straight from the motion event
                     conn.sendMouseMove((short) inputCaptureProvider.getRelativeAxisX(event),
                             (short) inputCaptureProvider.getRelativeAxisY(event));
+                    sent = true;
 
                     // We have to also update the position Android thinks the cursor is at
                     // in order to avoid jumping when we stop moving or click.
@@ -708,14 +821,19 @@ public class Game extends Activity implements SurfaceHolder.Callback,
                 else {
                     // First process the history
                     for (int i = 0; i < event.getHistorySize(); i++) {
-                        updateMousePosition((int)event.getHistoricalX(i), (int)event.getHistoricalY(i));
+                        sent |= updateMousePosition((int)event.getHistoricalX(i), (int)event.getHistoricalY(i));
                     }
 
                     // Now process the current values
-                    updateMousePosition((int)event.getX(), (int)event.getY());
+                    sent |= updateMousePosition((int)event.getX(), (int)event.getY());
                 }
 
                 lastButtonState = event.getButtonState();
+
+                // Only count events that actually reached the host
+                if (sent) {
+                    inputStats.inputSent(InputStats.SOURCE_MOUSE, event.getEventTime());
+                }
             }
             // This case is for touch-based input devices
             else
@@ -751,6 +869,8 @@ public class Game extends Activity implements SurfaceHolder.Callback,
                     return false;
                 }
 
+                boolean sent = false;
+
                 switch (event.getActionMasked())
                 {
                 case MotionEvent.ACTION_POINTER_DOWN:
@@ -767,7 +887,7 @@ public class Game extends Activity implements SurfaceHolder.Callback,
                             return true;
                         }
                     }
-                    context.touchUpEvent(eventX, eventY);
+                    sent = context.touchUpEvent(eventX, eventY);
                     if (actionIndex == 0 && event.getPointerCount() > 1 && !context.isCancelled()) {
                         // The original secondary touch now becomes primary
                         context.touchDownEvent((int)event.getX(1), (int)event.getY(1));
@@ -782,7 +902,7 @@ public class Game extends Activity implements SurfaceHolder.Callback,
                         for (TouchContext aTouchContextMap : touchContextMap) {
                             if (aTouchContextMap.getActionIndex() < event.getPointerCount())
                             {
-                                aTouchContextMap.touchMoveEvent(
+                                sent |= aTouchContextMap.touchMoveEvent(
                                         (int)event.getHistoricalX(aTouchContextMap.getActionIndex(), i),
                                         (int)event.getHistoricalY(aTouchContextMap.getActionIndex(), i));
                             }
@@ -793,7 +913,7 @@ public class Game extends Activity implements SurfaceHolder.Callback,
                     for (TouchContext aTouchContextMap : touchContextMap) {
                         if (aTouchContextMap.getActionIndex() < event.getPointerCount())
                         {
-                            aTouchContextMap.touchMoveEvent(
+                            sent |= aTouchContextMap.touchMoveEvent(
                                     (int)event.getX(aTouchContextMap.getActionIndex()),
                                     (int)event.getY(aTouchContextMap.getActionIndex()));
                         }
@@ -802,6 +922,11 @@ public class Game extends Activity implements SurfaceHolder.Callback,
                 default:
                     return false;
                 }
+
+                // Touches that only start a tap or drag don't send anything yet
+                if (sent) {
+                    inputStats.inputSent(InputStats.SOURCE_TOUCH, event.getEventTime());
+                }
             }
 
             // Handled a known source
@@ -824,7 +949,10 @@ public class Game extends Activity implements SurfaceHolder.Callback,
 
     }
 
-    private void updateMousePosition(int eventX, int eventY) {
+    // Returns true if a mouse move was sent
+    private boolean updateMousePosition(int eventX, int eventY) {
+        boolean sent = false;
+
         // Send a mouse move if we already have a mouse location
         // and the mouse coordinates change
         if (lastMouseX != Integer.MIN_VALUE &&
@@ -840,11 +968,13 @@ public class Game extends Activity implements SurfaceHolder.Callback,
             deltaY = (int)Math.round((double)deltaY * (REFERENCE_VERT_RES / (double)streamView.getHeight()));
 
             conn.sendMouseMove((short)deltaX, (short)deltaY);
+            sent = true;
         }
 
         // Update pointer location for delta calculation next time
         lastMouseX = eventX;
         lastMouseY = eventY;
+        return sent;
     }
 
     @Override
@@ -875,6 +1005,8 @@ public class Game extends Activity implements SurfaceHolder.Callback,
             conn.stop();
         }
 
+        performanceOverlayHandler.removeCallbacks(updatePerformanceOverlay);
+
         // Enable cursor visibility again
         inputCaptureProvider.disableCapture();
 
@@ -926,6 +1058,11 @@ public class Game extends Activity implements SurfaceHolder.Callback,
                 // dismissing the spinner seems to be undone
                 // when the spinner gets displayed.
                 inputCaptureProvider.enableCapture();
+
+                if (prefConfig.enablePerfOverlay) {
+                    performanceOverlayView.setVisibility(View.VISIBLE);
+                    performanceOverlayHandler.post(updatePerformanceOverlay);
+                }
             }
         });
 
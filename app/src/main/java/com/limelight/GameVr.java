@@ -26,6 +26,7 @@ import android.widget.CheckBox;
 import android.widget.CompoundButton;
 import android.widget.LinearLayout;
 import android.widget.SeekBar;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import com.limelight.binding.PlatformBinding;
@@ -56,6 +57,7 @@ public class GameVr extends Activity implements TextureView.SurfaceTextureListen
     private boolean connecting = false;
     private boolean connected = false;
     private TextureView textureView;
+    private final Handler performanceOverlayHandler = new Handler();
     private EnhancedDecoderRenderer decoderRenderer;
     private VideoTextureRenderer renderer;
     private WifiManager.WifiLock wifiLock;
@@ -125,7 +127,7 @@ public class GameVr extends Activity implements TextureView.SurfaceTextureListen
         }
 
         MediaCodecHelper.initializeWithContext(this);
-        decoderRenderer = new MediaCodecDecoderRenderer(prefConfig.videoFormat);
+        decoderRenderer = new MediaCodecDecoderRenderer(prefConfig);
 
         if (prefConfig.videoFormat == PreferenceConfiguration.FORCE_H265_ON && !decoderRenderer.isHevcSupported()) {
             Toast.makeText(this, "No H.265 decoder found.\nFalling back to H.264.", Toast.LENGTH_LONG).show();
@@ -348,6 +350,8 @@ public class GameVr extends Activity implements TextureView.SurfaceTextureListen
             displayedFailureDialog = true;
             stopConnection();
 
+            LimeLog.info(decoderRenderer.getVideoStats().dumpSession());
+
             int averageEndToEndLat = decoderRenderer.getAverageEndToEndLatency();
             int averageDecoderLat = decoderRenderer.getAverageDecoderLatency();
             String message = "";
@@ -380,8 +384,23 @@ public class GameVr extends Activity implements TextureView.SurfaceTextureListen
             connecting = connected = false;
             conn.stop();
         }
+
+        performanceOverlayHandler.removeCallbacks(updatePerformanceOverlay);
     }
 
+    private final Runnable updatePerformanceOverlay = new Runnable() {
+        @Override
+        public void run() {
+            String stats = decoderRenderer.getVideoStats().formatLastWindow();
+            if (renderer != null && !renderer.getGpuTimeSummary().isEmpty()) {
+                stats += "\n" + renderer.getGpuTimeSummary();
+            }
+            ((TextView)findViewById(R.id.performanceOverlayLeft)).setText(stats);
+            ((TextView)findViewById(R.id.performanceOverlayRight)).setText(stats);
+            performanceOverlayHandler.postDelayed(this, 1000);
+        }
+    };
+
     @Override
     public void stageFailed(Stage stage) {
         if (spinner != null) {
@@ -419,6 +438,16 @@ public class GameVr extends Activity implements TextureView.SurfaceTextureListen
         connecting = false;
         connected = true;
 
+        if (prefConfig.enablePerfOverlay) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    findViewById(R.id.performanceOverlay).setVisibility(View.VISIBLE);
+                    performanceOverlayHandler.post(updatePerformanceOverlay);
+                }
+            });
+        }
+
         hideSystemUi(1000);
     }
 
@@ -455,6 +484,10 @@ public class GameVr extends Activity implements TextureView.SurfaceTextureListen
 
             renderer = new VideoTextureRenderer(this, textureView.getSurfaceTexture(), surfaceWidth, surfaceHeight, this);
             renderer.setVideoSize(prefConfig.width, prefConfig.height);
+            renderer.setRenderMode(prefConfig.vrRenderMode == PreferenceConfiguration.VR_RENDER_MODE_VSYNC ?
+                    VideoTextureRenderer.RENDER_MODE_VSYNC : VideoTextureRenderer.RENDER_MODE_ON_FRAME);
+            renderer.setTargetRefreshRate(prefConfig.vrRefreshRate);
+            renderer.setRenderScale(prefConfig.vrRenderScale / 100.0f);
 
             renderer.setZoomFactor(sharedpreferences.getFloat("ZOOM_FACTOR", 50));
             renderer.setDistortionFactor(sharedpreferences.getFloat("DISTORTION_FACTOR", 81));
@@ -71,9 +71,6 @@ public class PcView extends Activity implements AdapterFragmentCallbacks {
 
                     // Start updates
                     startComputerUpdates();
-
-                    // Force a keypair to be generated early to avoid discovery delays
-                    new AndroidCryptoProvider(PcView.this).getClientCertificate();
                 }
             }.start();
         }
@@ -149,6 +146,9 @@ public class PcView extends Activity implements AdapterFragmentCallbacks {
             getResources().updateConfiguration(config, getResources().getDisplayMetrics());
         }
 
+        // Load or generate our key pair early so the first poll doesn't wait for it
+        AndroidCryptoProvider.prepareKeyMaterialAsync(this);
+
         // Bind to the computer manager service
         bindService(new Intent(PcView.this, ComputerManagerService.class), serviceConnection,
                 Service.BIND_AUTO_CREATE);
@@ -615,6 +615,12 @@ public class PcView extends Activity implements AdapterFragmentCallbacks {
             public void onItemClick(AdapterView<?> arg0, View arg1, int pos,
                                     long id) {
                 ComputerObject computer = (ComputerObject) pcGridAdapter.getItem(pos);
+
+                // Make sure we're showing the PC's current state
+                if (managerBinder != null) {
+                    managerBinder.expeditePolling();
+                }
+
                 if (computer.details.reachability == ComputerDetails.Reachability.UNKNOWN ||
                     computer.details.reachability == ComputerDetails.Reachability.OFFLINE) {
                     // Open the context menu if a PC is offline or refreshing
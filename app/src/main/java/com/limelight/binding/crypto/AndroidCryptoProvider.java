@@ -48,16 +48,25 @@ public class AndroidCryptoProvider implements LimelightCryptoProvider {
     private final File certFile;
     private final File keyFile;
 
-    private X509Certificate cert;
-    private RSAPrivateKey key;
-    private byte[] pemCertBytes;
+    // The parsed certificate and key, shared by every provider in the process.
+    // It's never modified after it's published, so reads don't need the lock.
+    private static class KeyMaterial {
+        final X509Certificate cert;
+        final RSAPrivateKey key;
+        final byte[] pemCertBytes;
+
+        KeyMaterial(X509Certificate cert, RSAPrivateKey key, byte[] pemCertBytes) {
+            this.cert = cert;
+            this.key = key;
+            this.pemCertBytes = pemCertBytes;
+        }
+    }
 
-    private static final Object globalCryptoLock = new Object();
+    private static volatile KeyMaterial keyMaterial;
 
-    static {
-        // Install the Bouncy Castle provider
-        Security.addProvider(new BouncyCastleProvider());
-    }
+    // Guards loading and generating the key material and installing the provider
+    private static final Object globalCryptoLock = new Object();
+    private static boolean providerInstalled;
 
     public AndroidCryptoProvider(Context c) {
         String dataPath = c.getFilesDir().getAbsolutePath();
@@ -66,6 +75,34 @@ public class AndroidCryptoProvider implements LimelightCryptoProvider {
         keyFile = new File(dataPath + File.separator + "client.key");
     }
 
+    // Loads or generates the key material on a background thread so the first
+    // request that needs it doesn't have to wait. Generating a key pair can take
+    // several seconds on old devices.
+    public static void prepareKeyMaterialAsync(Context c) {
+        if (keyMaterial != null) {
+            return;
+        }
+
+        final AndroidCryptoProvider provider = new AndroidCryptoProvider(c.getApplicationContext());
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                provider.getKeyMaterial();
+            }
+        };
+        t.setName("Key material loader");
+        t.start();
+    }
+
+    private static void installProvider() {
+        // Installing Bouncy Castle is slow, so only do it once we need it.
+        // Must be called with globalCryptoLock held.
+        if (!providerInstalled) {
+            Security.addProvider(new BouncyCastleProvider());
+            providerInstalled = true;
+        }
+    }
+
     private byte[] loadFileToBytes(File f) {
         if (!f.exists()) {
             return null;
@@ -85,41 +122,39 @@ public class AndroidCryptoProvider implements LimelightCryptoProvider {
         }
     }
 
-    private boolean loadCertKeyPair() {
+    private KeyMaterial loadCertKeyPair() {
         byte[] certBytes = loadFileToBytes(certFile);
         byte[] keyBytes = loadFileToBytes(keyFile);
 
         // If either file was missing, we definitely can't succeed
         if (certBytes == null || keyBytes == null) {
             LimeLog.info("Missing cert or key; need to generate a new one");
-            return false;
+            return null;
         }
 
         try {
             CertificateFactory certFactory = CertificateFactory.getInstance("X.509", "BC");
-            cert = (X509Certificate) certFactory.generateCertificate(new ByteArrayInputStream(certBytes));
-            pemCertBytes = certBytes;
+            X509Certificate cert = (X509Certificate) certFactory.generateCertificate(new ByteArrayInputStream(certBytes));
             KeyFactory keyFactory = KeyFactory.getInstance("RSA", "BC");
-            key = (RSAPrivateKey) keyFactory.generatePrivate(new PKCS8EncodedKeySpec(keyBytes));
+            RSAPrivateKey key = (RSAPrivateKey) keyFactory.generatePrivate(new PKCS8EncodedKeySpec(keyBytes));
+            return new KeyMaterial(cert, key, certBytes);
         } catch (CertificateException e) {
             // May happen if the cert is corrupt
             LimeLog.warning("Corrupted certificate");
-            return false;
+            return null;
         } catch (NoSuchAlgorithmException e) {
             // Should never happen
             e.printStackTrace();
-            return false;
+            return null;
         } catch (InvalidKeySpecException e) {
             // May happen if the key is corrupt
             LimeLog.warning("Corrupted key");
-            return false;
+            return null;
         } catch (NoSuchProviderException e) {
             // Should never happen
             e.printStackTrace();
-            return false;
+            return null;
         }
-
-        return true;
     }
 
     @SuppressLint("TrulyRandom")
@@ -159,6 +194,8 @@ public class AndroidCryptoProvider implements LimelightCryptoProvider {
         X509v3CertificateBuilder certBuilder = new X509v3CertificateBuilder(name, serial, now, expirationDate, Locale.ENGLISH, name,
             SubjectPublicKeyInfo.getInstance(keyPair.getPublic().getEncoded()));
 
+        X509Certificate cert;
+        RSAPrivateKey key;
         try {
             ContentSigner sigGen = new JcaContentSignerBuilder("SHA1withRSA").setProvider(BouncyCastleProvider.PROVIDER_NAME).build(keyPair.getPrivate());
             cert = new JcaX509CertificateConverter().setProvider(BouncyCastleProvider.PROVIDER_NAME).getCertificate(certBuilder.build(sigGen));
@@ -172,12 +209,12 @@ public class AndroidCryptoProvider implements LimelightCryptoProvider {
         LimeLog.info("Generated a new key pair");
 
         // Save the resulting pair
-        saveCertKeyPair();
+        saveCertKeyPair(cert, key);
 
         return true;
     }
 
-    private void saveCertKeyPair() {
+    private void saveCertKeyPair(X509Certificate cert, RSAPrivateKey key) {
         try {
             FileOutputStream certOut = new FileOutputStream(certFile);
             FileOutputStream keyOut = new FileOutputStream(keyFile);
@@ -212,68 +249,62 @@ public class AndroidCryptoProvider implements LimelightCryptoProvider {
         }
     }
 
-    public X509Certificate getClientCertificate() {
+    private KeyMaterial getKeyMaterial() {
+        // Fast path once the key material has been published
+        KeyMaterial material = keyMaterial;
+        if (material != null) {
+            return material;
+        }
+
         // Use a lock here to ensure only one guy will be generating or loading
         // the certificate and key at a time
         synchronized (globalCryptoLock) {
-            // Return a loaded cert if we have one
-            if (cert != null) {
-                return cert;
+            if (keyMaterial != null) {
+                return keyMaterial;
             }
 
-            // No loaded cert yet, let's see if we have one on disk
-            if (loadCertKeyPair()) {
-                // Got one
-                return cert;
+            long startTime = System.currentTimeMillis();
+            installProvider();
+
+            // See if we have a pair on disk
+            material = loadCertKeyPair();
+            boolean generated = false;
+            if (material == null) {
+                // Try to generate a new key pair
+                if (!generateCertKeyPair()) {
+                    // Failed
+                    return null;
+                }
+
+                // Load the generated pair
+                material = loadCertKeyPair();
+                if (material == null) {
+                    return null;
+                }
+                generated = true;
             }
 
-            // Try to generate a new key pair
-            if (!generateCertKeyPair()) {
-                // Failed
-                return null;
-            }
+            LimeLog.info("Client key material " + (generated ? "generated" : "loaded") +
+                    " in " + (System.currentTimeMillis() - startTime) + " ms");
 
-            // Load the generated pair
-            loadCertKeyPair();
-            return cert;
+            keyMaterial = material;
+            return material;
         }
     }
 
-    public RSAPrivateKey getClientPrivateKey() {
-        // Use a lock here to ensure only one guy will be generating or loading
-        // the certificate and key at a time
-        synchronized (globalCryptoLock) {
-            // Return a loaded key if we have one
-            if (key != null) {
-                return key;
-            }
-
-            // No loaded key yet, let's see if we have one on disk
-            if (loadCertKeyPair()) {
-                // Got one
-                return key;
-            }
-
-            // Try to generate a new key pair
-            if (!generateCertKeyPair()) {
-                // Failed
-                return null;
-            }
+    public X509Certificate getClientCertificate() {
+        KeyMaterial material = getKeyMaterial();
+        return material != null ? material.cert : null;
+    }
 
-            // Load the generated pair
-            loadCertKeyPair();
-            return key;
-        }
+    public RSAPrivateKey getClientPrivateKey() {
+        KeyMaterial material = getKeyMaterial();
+        return material != null ? material.key : null;
     }
 
     public byte[] getPemEncodedClientCertificate() {
-        synchronized (globalCryptoLock) {
-            // Call our helper function to do the cert loading/generation for us
-            getClientCertificate();
-
-            // Return a cached value if we have it
-            return pemCertBytes;
-        }
+        KeyMaterial material = getKeyMaterial();
+        return material != null ? material.pemCertBytes : null;
     }
 
     @Override
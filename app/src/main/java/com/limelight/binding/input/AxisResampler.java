@@ -0,0 +1,236 @@
+package com.limelight.binding.input;
+
+// Turns the axis samples a controller reported, each with its own timestamp, into
+// the values we send to the host. Android batches joystick samples into one
+// MotionEvent and delivers them late, so using only the newest sample loses the
+// motion in between and still arrives behind the real stick.
+//
+// MODE_NEWEST uses the newest sample only.
+// MODE_PREDICT extrapolates the newest sample to the current time using the stick's
+// recent velocity, looking no further ahead than the latency budget.
+// MODE_ALIGNED replays every sample with its original spacing after a constant delay.
+// The delay follows how late batches arrive and never exceeds the latency budget.
+//
+// The first continuousAxes axes are continuous (sticks and triggers) and may be
+// extrapolated. The rest (hats) are discrete and never are. Times are in
+// milliseconds on the clock of the sample timestamps. This has no Android
+// dependencies so it can be driven by recorded traces on a plain JVM. All methods
+// may be called from any thread.
+public class AxisResampler {
+    public static final int MODE_NEWEST = 0;
+    public static final int MODE_PREDICT = 1;
+    public static final int MODE_ALIGNED = 2;
+
+    private static final int MAX_SAMPLES = 64;
+
+    // Samples older than this don't count towards the velocity
+    private static final long VELOCITY_WINDOW_MS = 20;
+
+    private final int mode;
+    private final int axisCount;
+    private final int continuousAxes;
+    private final long maxAddedLatencyMs;
+
+    // Ring buffer of samples indexed by sequence number
+    private final long[] times = new long[MAX_SAMPLES];
+    private final long[] dueTimes = new long[MAX_SAMPLES];
+    private final float[][] values;
+    private long firstSeq;
+    private long nextSeq;
+
+    // The first sample that hasn't been output yet
+    private long pendingSeq;
+    // The first sample that hasn't been given a due time yet
+    private long unscheduledSeq;
+
+    private long lastOutputTimeMs;
+
+    private long alignDelayMs;
+    private long lastDueMs = Long.MIN_VALUE;
+
+    private long samplesIn;
+    private long samplesDropped;
+    private long outputs;
+    private long totalAddedLatencyMs;
+
+    public AxisResampler(int mode, int axisCount, int continuousAxes, long maxAddedLatencyMs) {
+        this.mode = mode;
+        this.axisCount = axisCount;
+        this.continuousAxes = continuousAxes;
+        this.maxAddedLatencyMs = maxAddedLatencyMs;
+        this.values = new float[MAX_SAMPLES][axisCount];
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    // Adds a sample. Samples must be added oldest first.
+    public synchronized void addSample(long timeMs, float[] sample) {
+        if (nextSeq != firstSeq) {
+            // Keep time moving forward even if the timestamps don't
+            timeMs = Math.max(timeMs, times[(int) ((nextSeq - 1) % MAX_SAMPLES)]);
+        }
+
+        if (nextSeq - firstSeq == MAX_SAMPLES) {
+            // Full, so drop the oldest
+            if (pendingSeq == firstSeq) {
+                pendingSeq++;
+                samplesDropped++;
+            }
+            if (unscheduledSeq == firstSeq) {
+                unscheduledSeq++;
+            }
+            firstSeq++;
+        }
+
+        int index = (int) (nextSeq % MAX_SAMPLES);
+        times[index] = timeMs;
+        System.arraycopy(sample, 0, values[index], 0, axisCount);
+        nextSeq++;
+        samplesIn++;
+    }
+
+    // Fills out with the values to send now and returns true, or returns false if
+    // nothing is due
+    public synchronized boolean poll(long nowMs, float[] out) {
+        if (pendingSeq == nextSeq) {
+            return false;
+        }
+
+        int newest = (int) ((nextSeq - 1) % MAX_SAMPLES);
+        switch (mode) {
+            case MODE_PREDICT:
+                System.arraycopy(values[newest], 0, out, 0, axisCount);
+                extrapolate(nowMs, out);
+                lastOutputTimeMs = times[newest];
+                markOutput(nextSeq, nowMs);
+                return true;
+
+            case MODE_ALIGNED:
+                scheduleNewSamples(nowMs);
+
+                // Send the newest sample that's due. Older due samples would only be
+                // overwritten by it before the host sees them.
+                long dueSeq = -1;
+                for (long seq = pendingSeq; seq < nextSeq; seq++) {
+                    if (dueTimes[(int) (seq % MAX_SAMPLES)] > nowMs) {
+                        break;
+                    }
+                    dueSeq = seq;
+                }
+                if (dueSeq < 0) {
+                    return false;
+                }
+
+                System.arraycopy(values[(int) (dueSeq % MAX_SAMPLES)], 0, out, 0, axisCount);
+                lastOutputTimeMs = times[(int) (dueSeq % MAX_SAMPLES)];
+                markOutput(dueSeq + 1, nowMs);
+                return true;
+
+            case MODE_NEWEST:
+            default:
+                System.arraycopy(values[newest], 0, out, 0, axisCount);
+                lastOutputTimeMs = times[newest];
+                markOutput(nextSeq, nowMs);
+                return true;
+        }
+    }
+
+    // Returns the time of the sample the last poll() output was based on
+    public synchronized long getLastOutputTimeMs() {
+        return lastOutputTimeMs;
+    }
+
+    // Returns how long until poll() has something to output, 0 if it does now,
+    // or -1 if nothing is waiting
+    public synchronized long getTimeUntilNextMs(long nowMs) {
+        if (pendingSeq == nextSeq) {
+            return -1;
+        }
+        else if (mode != MODE_ALIGNED) {
+            return 0;
+        }
+
+        scheduleNewSamples(nowMs);
+        return Math.max(dueTimes[(int) (pendingSeq % MAX_SAMPLES)] - nowMs, 0);
+    }
+
+    private void markOutput(long endSeq, long nowMs) {
+        // Latency added by us, on top of what the samples had when they arrived
+        long addedMs = mode == MODE_ALIGNED ?
+                Math.max(nowMs - dueTimes[(int) ((endSeq - 1) % MAX_SAMPLES)], 0) + alignDelayMs : 0;
+
+        totalAddedLatencyMs += addedMs;
+        outputs++;
+        pendingSeq = endSeq;
+    }
+
+    private void scheduleNewSamples(long nowMs) {
+        if (unscheduledSeq == nextSeq) {
+            return;
+        }
+
+        // Delay everything by as much as the oldest new sample is already late, so
+        // the batch plays back with its original spacing. Shrink the delay slowly
+        // when batches arrive on time so jitter doesn't reorder playback.
+        long lateness = nowMs - times[(int) (unscheduledSeq % MAX_SAMPLES)];
+        alignDelayMs = Math.min(maxAddedLatencyMs, Math.max(lateness, alignDelayMs - 1));
+
+        for (long seq = unscheduledSeq; seq < nextSeq; seq++) {
+            int index = (int) (seq % MAX_SAMPLES);
+            dueTimes[index] = Math.max(times[index] + alignDelayMs, lastDueMs);
+            lastDueMs = dueTimes[index];
+        }
+        unscheduledSeq = nextSeq;
+    }
+
+    private void extrapolate(long nowMs, float[] out) {
+        int newest = (int) ((nextSeq - 1) % MAX_SAMPLES);
+        long newestTime = times[newest];
+        long horizonMs = Math.min(Math.max(nowMs - newestTime, 0), maxAddedLatencyMs);
+        if (horizonMs == 0) {
+            return;
+        }
+
+        // Least squares slope over the recent samples
+        int count = 0;
+        double sumT = 0, sumTT = 0;
+        for (long seq = nextSeq - 1; seq >= firstSeq; seq--) {
+            long t = times[(int) (seq % MAX_SAMPLES)] - newestTime;
+            if (t < -VELOCITY_WINDOW_MS) {
+                break;
+            }
+            count++;
+            sumT += t;
+            sumTT += (double) t * t;
+        }
+
+        double denominator = count * sumTT - sumT * sumT;
+        if (count < 2 || denominator <= 0) {
+            // Not enough history to know the velocity
+            return;
+        }
+
+        for (int axis = 0; axis < continuousAxes; axis++) {
+            double sumV = 0, sumTV = 0;
+            for (long seq = nextSeq - 1; seq >= nextSeq - count; seq--) {
+                int index = (int) (seq % MAX_SAMPLES);
+                long t = times[index] - newestTime;
+                sumV += values[index][axis];
+                sumTV += t * values[index][axis];
+            }
+
+            double slope = (count * sumTV - sumT * sumV) / denominator;
+            float predicted = (float) (out[axis] + slope * horizonMs);
+            out[axis] = Math.max(-1.0f, Math.min(1.0f, predicted));
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return samplesIn + " axis samples sent as " + outputs + " updates, " +
+                samplesDropped + " dropped, added latency " +
+                (outputs != 0 ? totalAddedLatencyMs / outputs : 0) + " ms average";
+    }
+}
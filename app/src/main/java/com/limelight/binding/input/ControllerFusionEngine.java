@@ -0,0 +1,292 @@
+package com.limelight.binding.input;
+
+// Fuses the state of every input source mapped to the same controller number
+// into one controller packet. Some controllers show up as several devices (for
+// example the buttons on one and the sticks on another), so the host must see
+// their combined state.
+//
+// Only controllers whose sources changed are fused again, and a packet identical
+// to the last one sent for that controller is dropped. Button changes go out right
+// away. Stick and trigger changes are sent at most once per batch tick, so a
+// controller reporting every millisecond doesn't flood the host.
+//
+// Times are in milliseconds on any monotonic clock. This has no Android
+// dependencies so it can be driven by recorded traces on a plain JVM. All
+// methods may be called from any thread.
+//
+// When a packet is sent, the event time of the oldest update it carries is
+// reported to InputStats under the source that made that update.
+public class ControllerFusionEngine {
+    // The protocol supports this many controllers
+    public static final int MAX_CONTROLLERS = 4;
+
+    public interface Sink {
+        void sendControllerInput(short controllerNumber, short inputMap,
+                                 byte leftTrigger, byte rightTrigger,
+                                 short leftStickX, short leftStickY,
+                                 short rightStickX, short rightStickY);
+    }
+
+    // The state one input source contributes to its controller
+    public static class Source {
+        private final short controllerNumber;
+        private final int statsSource;
+        private boolean attached;
+
+        private short inputMap;
+        private byte leftTrigger;
+        private byte rightTrigger;
+        private short leftStickX;
+        private short leftStickY;
+        private short rightStickX;
+        private short rightStickY;
+
+        private Source(short controllerNumber, int statsSource) {
+            this.controllerNumber = controllerNumber;
+            this.statsSource = statsSource;
+        }
+
+        public short getControllerNumber() {
+            return controllerNumber;
+        }
+    }
+
+    private static class ControllerState {
+        Source[] sources = new Source[0];
+        boolean dirty;
+
+        // The oldest update not sent yet, or -1
+        long pendingEventTimeMs = -1;
+        int pendingStatsSource;
+
+        // The packet last sent for this controller
+        boolean sentOnce;
+        long lastSendMs;
+        short inputMap;
+        byte leftTrigger;
+        byte rightTrigger;
+        short leftStickX;
+        short leftStickY;
+        short rightStickX;
+        short rightStickY;
+    }
+
+    private final Sink sink;
+    private final long batchTickMs;
+    private final InputStats inputStats;
+    private final ControllerState[] controllers = new ControllerState[MAX_CONTROLLERS];
+
+    private long updates;
+    private long packetsSent;
+    private long packetsSuppressed;
+    private long packetsDeferred;
+
+    public ControllerFusionEngine(Sink sink, long batchTickMs, InputStats inputStats) {
+        this.sink = sink;
+        this.batchTickMs = batchTickMs;
+        this.inputStats = inputStats;
+
+        for (int i = 0; i < controllers.length; i++) {
+            controllers[i] = new ControllerState();
+        }
+    }
+
+    private ControllerState getController(short controllerNumber) {
+        if (controllerNumber < 0 || controllerNumber >= MAX_CONTROLLERS) {
+            throw new IllegalArgumentException("Invalid controller number: "+controllerNumber);
+        }
+        return controllers[controllerNumber];
+    }
+
+    // Adds a source whose state will be fused into the given controller. statsSource
+    // is the InputStats source its latency is reported under.
+    public synchronized Source attach(short controllerNumber, int statsSource) {
+        ControllerState controller = getController(controllerNumber);
+        Source source = new Source(controllerNumber, statsSource);
+
+        Source[] sources = new Source[controller.sources.length + 1];
+        System.arraycopy(controller.sources, 0, sources, 0, controller.sources.length);
+        sources[controller.sources.length] = source;
+        controller.sources = sources;
+
+        source.attached = true;
+        return source;
+    }
+
+    // Removes a source and immediately sends its controller's state without it,
+    // so anything it was holding down is released on the host
+    public synchronized void detach(Source source, long nowMs) {
+        if (!source.attached) {
+            return;
+        }
+
+        ControllerState controller = getController(source.controllerNumber);
+        Source[] sources = new Source[controller.sources.length - 1];
+        int j = 0;
+        for (Source other : controller.sources) {
+            if (other != source) {
+                sources[j++] = other;
+            }
+        }
+        controller.sources = sources;
+        source.attached = false;
+
+        controller.dirty = true;
+        send(source.controllerNumber, controller, nowMs, true);
+    }
+
+    // Records a source's new state caused by an input event at eventTimeMs. Returns how
+    // long until deferred changes must be sent by calling flush(), or -1 if nothing is waiting.
+    public synchronized long update(Source source, short inputMap,
+                                    byte leftTrigger, byte rightTrigger,
+                                    short leftStickX, short leftStickY,
+                                    short rightStickX, short rightStickY,
+                                    long eventTimeMs, long nowMs) {
+        if (!source.attached) {
+            return getTimeUntilFlushMs(nowMs);
+        }
+
+        updates++;
+
+        if (source.inputMap != inputMap ||
+                source.leftTrigger != leftTrigger || source.rightTrigger != rightTrigger ||
+                source.leftStickX != leftStickX || source.leftStickY != leftStickY ||
+                source.rightStickX != rightStickX || source.rightStickY != rightStickY) {
+            source.inputMap = inputMap;
+            source.leftTrigger = leftTrigger;
+            source.rightTrigger = rightTrigger;
+            source.leftStickX = leftStickX;
+            source.leftStickY = leftStickY;
+            source.rightStickX = rightStickX;
+            source.rightStickY = rightStickY;
+
+            ControllerState controller = getController(source.controllerNumber);
+            if (controller.pendingEventTimeMs < 0) {
+                controller.pendingEventTimeMs = eventTimeMs;
+                controller.pendingStatsSource = source.statsSource;
+            }
+            controller.dirty = true;
+            send(source.controllerNumber, controller, nowMs, false);
+        }
+        else {
+            packetsSuppressed++;
+        }
+
+        return getTimeUntilFlushMs(nowMs);
+    }
+
+    // Returns how long until deferred changes must be sent, 0 if they're due now,
+    // or -1 if nothing is waiting
+    public synchronized long getTimeUntilFlushMs(long nowMs) {
+        long delay = -1;
+        for (ControllerState controller : controllers) {
+            if (controller.dirty) {
+                long controllerDelay = Math.max(controller.lastSendMs + batchTickMs - nowMs, 0);
+                if (delay < 0 || controllerDelay < delay) {
+                    delay = controllerDelay;
+                }
+            }
+        }
+        return delay;
+    }
+
+    // Sends deferred changes that are due. Returns the same as getTimeUntilFlushMs().
+    public synchronized long flush(long nowMs) {
+        for (short i = 0; i < controllers.length; i++) {
+            if (controllers[i].dirty) {
+                send(i, controllers[i], nowMs, false);
+            }
+        }
+        return getTimeUntilFlushMs(nowMs);
+    }
+
+    // Sends every deferred change right away
+    public synchronized void flushAll(long nowMs) {
+        for (short i = 0; i < controllers.length; i++) {
+            if (controllers[i].dirty) {
+                send(i, controllers[i], nowMs, true);
+            }
+        }
+    }
+
+    private static byte maxTrigger(byte a, byte b) {
+        // Triggers are unsigned
+        return (a & 0xFF) >= (b & 0xFF) ? a : b;
+    }
+
+    private static short maxByMagnitude(short a, short b) {
+        return Math.abs(a) >= Math.abs(b) ? a : b;
+    }
+
+    private void send(short controllerNumber, ControllerState controller, long nowMs, boolean force) {
+        short inputMap = 0;
+        byte leftTrigger = 0;
+        byte rightTrigger = 0;
+        short leftStickX = 0;
+        short leftStickY = 0;
+        short rightStickX = 0;
+        short rightStickY = 0;
+
+        for (Source source : controller.sources) {
+            inputMap |= source.inputMap;
+            leftTrigger = maxTrigger(leftTrigger, source.leftTrigger);
+            rightTrigger = maxTrigger(rightTrigger, source.rightTrigger);
+            leftStickX = maxByMagnitude(leftStickX, source.leftStickX);
+            leftStickY = maxByMagnitude(leftStickY, source.leftStickY);
+            rightStickX = maxByMagnitude(rightStickX, source.rightStickX);
+            rightStickY = maxByMagnitude(rightStickY, source.rightStickY);
+        }
+
+        if (controller.sentOnce &&
+                controller.inputMap == inputMap &&
+                controller.leftTrigger == leftTrigger && controller.rightTrigger == rightTrigger &&
+                controller.leftStickX == leftStickX && controller.leftStickY == leftStickY &&
+                controller.rightStickX == rightStickX && controller.rightStickY == rightStickY) {
+            // The fused state didn't change, for example because another source
+            // is holding the stick further out
+            controller.dirty = false;
+            controller.pendingEventTimeMs = -1;
+            packetsSuppressed++;
+            return;
+        }
+
+        // Button changes can't wait, but analog changes are held until the next tick
+        if (!force && controller.sentOnce && controller.inputMap == inputMap &&
+                nowMs - controller.lastSendMs < batchTickMs) {
+            packetsDeferred++;
+            return;
+        }
+
+        sink.sendControllerInput(controllerNumber, inputMap,
+                leftTrigger, rightTrigger,
+                leftStickX, leftStickY,
+                rightStickX, rightStickY);
+
+        if (inputStats != null && controller.pendingEventTimeMs >= 0) {
+            inputStats.inputSent(controller.pendingStatsSource, controller.pendingEventTimeMs);
+        }
+        controller.pendingEventTimeMs = -1;
+
+        controller.sentOnce = true;
+        controller.lastSendMs = nowMs;
+        controller.inputMap = inputMap;
+        controller.leftTrigger = leftTrigger;
+        controller.rightTrigger = rightTrigger;
+        controller.leftStickX = leftStickX;
+        controller.leftStickY = leftStickY;
+        controller.rightStickX = rightStickX;
+        controller.rightStickY = rightStickY;
+        controller.dirty = false;
+        packetsSent++;
+    }
+
+    public synchronized long getPacketsSent() {
+        return packetsSent;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return updates + " controller updates sent as " + packetsSent + " packets, " +
+                packetsSuppressed + " unchanged, " + packetsDeferred + " deferred to the next tick";
+    }
+}
@@ -2,6 +2,8 @@ package com.limelight.binding.input;
 
 import android.content.Context;
 import android.hardware.input.InputManager;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.SystemClock;
 import android.util.SparseArray;
 import android.view.InputDevice;
@@ -17,8 +19,10 @@ import com.limelight.nvstream.input.MouseButtonPacket;
 import com.limelight.ui.GameGestures;
 import com.limelight.utils.Vector2d;
 
+import java.util.Arrays;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ControllerHandler implements InputManager.InputDeviceListener, UsbDriverListener {
 
@@ -34,6 +38,25 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
     private static final int EMULATED_SPECIAL_UP_DELAY_MS = 100;
     private static final int EMULATED_SELECT_UP_DELAY_MS = 30;
 
+    // Stick and trigger changes are sent at most this often per controller
+    private static final int CONTROLLER_BATCH_TICK_MS = 4;
+
+    // Axis resampling never delays or predicts further than this
+    private static final int MAX_RESAMPLE_LATENCY_MS = 8;
+
+    // Order of the axes in a resampler sample. Sticks and triggers come first
+    // because only those are continuous.
+    private static final int RESAMPLE_LS_X = 0;
+    private static final int RESAMPLE_LS_Y = 1;
+    private static final int RESAMPLE_RS_X = 2;
+    private static final int RESAMPLE_RS_Y = 3;
+    private static final int RESAMPLE_LT = 4;
+    private static final int RESAMPLE_RT = 5;
+    private static final int RESAMPLE_HAT_X = 6;
+    private static final int RESAMPLE_HAT_Y = 7;
+    private static final int RESAMPLE_AXIS_COUNT = 8;
+    private static final int RESAMPLE_CONTINUOUS_AXES = 6;
+
     private final Vector2d inputVector = new Vector2d();
 
     private final SparseArray<InputDeviceContext> inputDeviceContexts = new SparseArray<>();
@@ -47,13 +70,38 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
     private boolean hasGameController;
 
     private final boolean multiControllerEnabled;
+    private final int stickResampling;
     private short currentControllers;
 
-    public ControllerHandler(Context activityContext, NvConnection conn, GameGestures gestures, boolean multiControllerEnabled, int deadzonePercentage) {
+    private final ControllerFusionEngine fusionEngine;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicBoolean fusionFlushPending = new AtomicBoolean();
+    private final Runnable fusionFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            fusionFlushPending.set(false);
+            scheduleFusionFlush(fusionEngine.flush(SystemClock.uptimeMillis()));
+        }
+    };
+
+    public ControllerHandler(Context activityContext, NvConnection conn, GameGestures gestures, boolean multiControllerEnabled, int deadzonePercentage, int stickResampling, InputStats inputStats) {
         this.activityContext = activityContext;
         this.conn = conn;
         this.gestures = gestures;
         this.multiControllerEnabled = multiControllerEnabled;
+        this.stickResampling = stickResampling;
+        this.fusionEngine = new ControllerFusionEngine(new ControllerFusionEngine.Sink() {
+            @Override
+            public void sendControllerInput(short controllerNumber, short inputMap,
+                                            byte leftTrigger, byte rightTrigger,
+                                            short leftStickX, short leftStickY,
+                                            short rightStickX, short rightStickY) {
+                conn.sendControllerInput(controllerNumber, inputMap,
+                        leftTrigger, rightTrigger,
+                        leftStickX, leftStickY,
+                        rightStickX, rightStickY);
+            }
+        }, CONTROLLER_BATCH_TICK_MS, inputStats);
 
         // HACK: For now we're hardcoding a 10% deadzone. Some deadzone
         // is required for controller batching support to work.
@@ -91,6 +139,40 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
         defaultContext.rightTriggerAxis = MotionEvent.AXIS_GAS;
         defaultContext.controllerNumber = (short) 0;
         defaultContext.assignedControllerNumber = true;
+        defaultContext.fusionSource = fusionEngine.attach(defaultContext.controllerNumber, InputStats.SOURCE_GAMEPAD);
+        initializeAxisResampler(defaultContext);
+    }
+
+    public void stop() {
+        mainHandler.removeCallbacks(fusionFlushRunnable);
+        fusionEngine.flushAll(SystemClock.uptimeMillis());
+        LimeLog.info("Controller input: "+fusionEngine);
+    }
+
+    private void initializeAxisResampler(final GenericControllerContext context) {
+        if (stickResampling == AxisResampler.MODE_NEWEST) {
+            // Using the newest sample needs no resampler
+            return;
+        }
+
+        context.axisResampler = new AxisResampler(stickResampling,
+                RESAMPLE_AXIS_COUNT, RESAMPLE_CONTINUOUS_AXES, MAX_RESAMPLE_LATENCY_MS);
+        context.axisResampleRunnable = new Runnable() {
+            @Override
+            public void run() {
+                // USB contexts are also updated from the driver's thread
+                synchronized (context) {
+                    drainAxisResampler(context);
+                }
+            }
+        };
+    }
+
+    private void releaseAxisResampler(GenericControllerContext context) {
+        if (context.axisResampler != null) {
+            mainHandler.removeCallbacks(context.axisResampleRunnable);
+            LimeLog.info("Axis resampling: "+context.axisResampler);
+        }
     }
 
     private static InputDevice.MotionRange getMotionRangeForJoystickAxis(InputDevice dev, int axis) {
@@ -116,6 +198,7 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
         InputDeviceContext context = inputDeviceContexts.get(deviceId);
         if (context != null) {
             LimeLog.info("Removed controller: "+context.name+" ("+deviceId+")");
+            releaseAxisResampler(context);
             releaseControllerNumber(context);
             inputDeviceContexts.remove(deviceId);
         }
@@ -129,12 +212,10 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
     }
 
     private void releaseControllerNumber(GenericControllerContext context) {
-        // If this device sent data as a gamepad, zero the values before removing
+        // If this device sent data as a gamepad, send its controller's state
+        // without it so nothing is left held down
         if (context.assignedControllerNumber) {
-            conn.sendControllerInput(context.controllerNumber, (short) 0,
-                    (byte) 0, (byte) 0,
-                    (short) 0, (short) 0,
-                    (short) 0, (short) 0);
+            fusionEngine.detach(context.fusionSource, SystemClock.uptimeMillis());
         }
 
         // If we reserved a controller number, remove that reservation
@@ -203,6 +284,8 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
 
         LimeLog.info("Assigned as controller "+context.controllerNumber);
         context.assignedControllerNumber = true;
+        context.fusionSource = fusionEngine.attach(context.controllerNumber,
+                context instanceof UsbDeviceContext ? InputStats.SOURCE_USB_GAMEPAD : InputStats.SOURCE_GAMEPAD);
     }
 
     private UsbDeviceContext createUsbDeviceContextForDevice(int deviceId) {
@@ -214,6 +297,8 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
         context.rightStickDeadzoneRadius = (float) stickDeadzone;
         context.triggerDeadzone = 0.13f;
 
+        initializeAxisResampler(context);
+
         return context;
     }
 
@@ -412,6 +497,8 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
         LimeLog.info("Analog stick deadzone: "+context.leftStickDeadzoneRadius+" "+context.rightStickDeadzoneRadius);
         LimeLog.info("Trigger deadzone: "+context.triggerDeadzone);
 
+        initializeAxisResampler(context);
+
         return context;
     }
 
@@ -434,83 +521,21 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
         return context;
     }
 
-    private byte maxByMagnitude(byte a, byte b) {
-        int absA = Math.abs(a);
-        int absB = Math.abs(b);
-        if (absA > absB) {
-            return a;
-        }
-        else {
-            return b;
-        }
-    }
-
-    private short maxByMagnitude(short a, short b) {
-        int absA = Math.abs(a);
-        int absB = Math.abs(b);
-        if (absA > absB) {
-            return a;
-        }
-        else {
-            return b;
+    private void scheduleFusionFlush(long delayMs) {
+        if (delayMs >= 0 && fusionFlushPending.compareAndSet(false, true)) {
+            mainHandler.postDelayed(fusionFlushRunnable, delayMs);
         }
     }
 
     private void sendControllerInputPacket(GenericControllerContext originalContext) {
         assignControllerNumberIfNeeded(originalContext);
 
-        // Take the context's controller number and fuse all inputs with the same number
         short controllerNumber = originalContext.controllerNumber;
-        short inputMap = 0;
-        byte leftTrigger = 0;
-        byte rightTrigger = 0;
-        short leftStickX = 0;
-        short leftStickY = 0;
-        short rightStickX = 0;
-        short rightStickY = 0;
-
-        // In order to properly handle controllers that are split into multiple devices,
-        // we must aggregate all controllers with the same controller number into a single
-        // device before we send it.
-        for (int i = 0; i < inputDeviceContexts.size(); i++) {
-            GenericControllerContext context = inputDeviceContexts.valueAt(i);
-            if (context.assignedControllerNumber &&
-                    context.controllerNumber == controllerNumber &&
-                    context.mouseEmulationActive == originalContext.mouseEmulationActive) {
-                inputMap |= context.inputMap;
-                leftTrigger |= maxByMagnitude(leftTrigger, context.leftTrigger);
-                rightTrigger |= maxByMagnitude(rightTrigger, context.rightTrigger);
-                leftStickX |= maxByMagnitude(leftStickX, context.leftStickX);
-                leftStickY |= maxByMagnitude(leftStickY, context.leftStickY);
-                rightStickX |= maxByMagnitude(rightStickX, context.rightStickX);
-                rightStickY |= maxByMagnitude(rightStickY, context.rightStickY);
-            }
-        }
-        for (int i = 0; i < usbDeviceContexts.size(); i++) {
-            GenericControllerContext context = usbDeviceContexts.valueAt(i);
-            if (context.assignedControllerNumber &&
-                    context.controllerNumber == controllerNumber &&
-                    context.mouseEmulationActive == originalContext.mouseEmulationActive) {
-                inputMap |= context.inputMap;
-                leftTrigger |= maxByMagnitude(leftTrigger, context.leftTrigger);
-                rightTrigger |= maxByMagnitude(rightTrigger, context.rightTrigger);
-                leftStickX |= maxByMagnitude(leftStickX, context.leftStickX);
-                leftStickY |= maxByMagnitude(leftStickY, context.leftStickY);
-                rightStickX |= maxByMagnitude(rightStickX, context.rightStickX);
-                rightStickY |= maxByMagnitude(rightStickY, context.rightStickY);
-            }
-        }
-        if (defaultContext.controllerNumber == controllerNumber) {
-            inputMap |= defaultContext.inputMap;
-            leftTrigger |= maxByMagnitude(leftTrigger, defaultContext.leftTrigger);
-            rightTrigger |= maxByMagnitude(rightTrigger, defaultContext.rightTrigger);
-            leftStickX |= maxByMagnitude(leftStickX, defaultContext.leftStickX);
-            leftStickY |= maxByMagnitude(leftStickY, defaultContext.leftStickY);
-            rightStickX |= maxByMagnitude(rightStickX, defaultContext.rightStickX);
-            rightStickY |= maxByMagnitude(rightStickY, defaultContext.rightStickY);
-        }
+        long now = SystemClock.uptimeMillis();
 
         if (originalContext.mouseEmulationActive) {
+            // Combine the buttons of every device on this controller that is emulating a mouse
+            short inputMap = getMouseEmulationInputMap(controllerNumber);
             int changedMask = inputMap ^  originalContext.mouseEmulationLastInputMap;
 
             boolean aDown = (inputMap & ControllerPacket.A_FLAG) != 0;
@@ -535,15 +560,40 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
                 }
             }
 
-            conn.sendControllerInput(controllerNumber,
-                    (short)0, (byte)0, (byte)0, (short)0, (short)0, (short)0, (short)0);
+            // While emulating a mouse, this device doesn't act as a gamepad
+            scheduleFusionFlush(fusionEngine.update(originalContext.fusionSource,
+                    (short)0, (byte)0, (byte)0, (short)0, (short)0, (short)0, (short)0,
+                    originalContext.lastEventTimeMs, now));
         }
         else {
-            conn.sendControllerInput(controllerNumber, inputMap,
-                    leftTrigger, rightTrigger,
-                    leftStickX, leftStickY,
-                    rightStickX, rightStickY);
+            // The engine fuses this with the other devices on the same controller
+            // number and only sends if the result changed
+            scheduleFusionFlush(fusionEngine.update(originalContext.fusionSource,
+                    originalContext.inputMap,
+                    originalContext.leftTrigger, originalContext.rightTrigger,
+                    originalContext.leftStickX, originalContext.leftStickY,
+                    originalContext.rightStickX, originalContext.rightStickY,
+                    originalContext.lastEventTimeMs, now));
+        }
+    }
+
+    private short getMouseEmulationInputMap(short controllerNumber) {
+        short inputMap = 0;
+        for (int i = 0; i < inputDeviceContexts.size(); i++) {
+            GenericControllerContext context = inputDeviceContexts.valueAt(i);
+            if (context.assignedControllerNumber && context.mouseEmulationActive &&
+                    context.controllerNumber == controllerNumber) {
+                inputMap |= context.inputMap;
+            }
+        }
+        for (int i = 0; i < usbDeviceContexts.size(); i++) {
+            GenericControllerContext context = usbDeviceContexts.valueAt(i);
+            if (context.assignedControllerNumber && context.mouseEmulationActive &&
+                    context.controllerNumber == controllerNumber) {
+                inputMap |= context.inputMap;
+            }
         }
+        return inputMap;
     }
 
     // Return a valid keycode, 0 to consume, or -1 to not consume the event
@@ -769,34 +819,95 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
         sendControllerInputPacket(context);
     }
 
-    public boolean handleMotionEvent(MotionEvent event) {
-        InputDeviceContext context = getContextForDevice(event.getDevice());
-        float lsX = 0, lsY = 0, rsX = 0, rsY = 0, rt = 0, lt = 0, hatX = 0, hatY = 0;
-
-        // We purposefully ignore the historical values in the motion event as it makes
-        // the controller feel sluggish for some users.
+    // Reads the axes of a historical sample, or the current one if pos is -1
+    private static void readAxes(InputDeviceContext context, MotionEvent event, int pos, float[] axes) {
+        Arrays.fill(axes, 0);
 
         if (context.leftStickXAxis != -1 && context.leftStickYAxis != -1) {
-            lsX = event.getAxisValue(context.leftStickXAxis);
-            lsY = event.getAxisValue(context.leftStickYAxis);
+            axes[RESAMPLE_LS_X] = getAxisValue(event, context.leftStickXAxis, pos);
+            axes[RESAMPLE_LS_Y] = getAxisValue(event, context.leftStickYAxis, pos);
         }
 
         if (context.rightStickXAxis != -1 && context.rightStickYAxis != -1) {
-            rsX = event.getAxisValue(context.rightStickXAxis);
-            rsY = event.getAxisValue(context.rightStickYAxis);
+            axes[RESAMPLE_RS_X] = getAxisValue(event, context.rightStickXAxis, pos);
+            axes[RESAMPLE_RS_Y] = getAxisValue(event, context.rightStickYAxis, pos);
         }
 
         if (context.leftTriggerAxis != -1 && context.rightTriggerAxis != -1) {
-            lt = event.getAxisValue(context.leftTriggerAxis);
-            rt = event.getAxisValue(context.rightTriggerAxis);
+            axes[RESAMPLE_LT] = getAxisValue(event, context.leftTriggerAxis, pos);
+            axes[RESAMPLE_RT] = getAxisValue(event, context.rightTriggerAxis, pos);
         }
 
         if (context.hatXAxis != -1 && context.hatYAxis != -1) {
-            hatX = event.getAxisValue(MotionEvent.AXIS_HAT_X);
-            hatY = event.getAxisValue(MotionEvent.AXIS_HAT_Y);
+            axes[RESAMPLE_HAT_X] = getAxisValue(event, MotionEvent.AXIS_HAT_X, pos);
+            axes[RESAMPLE_HAT_Y] = getAxisValue(event, MotionEvent.AXIS_HAT_Y, pos);
+        }
+    }
+
+    private static float getAxisValue(MotionEvent event, int axis, int pos) {
+        return pos < 0 ? event.getAxisValue(axis) : event.getHistoricalAxisValue(axis, pos);
+    }
+
+    // Sends the resampler's output if any is due and schedules the next one.
+    // Returns true if a packet was sent.
+    private boolean drainAxisResampler(GenericControllerContext context) {
+        long now = SystemClock.uptimeMillis();
+        float[] axes = context.resampledAxes;
+        boolean sent = false;
+
+        if (context.axisResampler.poll(now, axes)) {
+            context.lastEventTimeMs = context.axisResampler.getLastOutputTimeMs();
+            if (context instanceof InputDeviceContext) {
+                handleAxisSet((InputDeviceContext) context,
+                        axes[RESAMPLE_LS_X], axes[RESAMPLE_LS_Y],
+                        axes[RESAMPLE_RS_X], axes[RESAMPLE_RS_Y],
+                        axes[RESAMPLE_LT], axes[RESAMPLE_RT],
+                        axes[RESAMPLE_HAT_X], axes[RESAMPLE_HAT_Y]);
+            }
+            else {
+                handleUsbAxisSet((UsbDeviceContext) context,
+                        axes[RESAMPLE_LS_X], axes[RESAMPLE_LS_Y],
+                        axes[RESAMPLE_RS_X], axes[RESAMPLE_RS_Y],
+                        axes[RESAMPLE_LT], axes[RESAMPLE_RT]);
+            }
+            sent = true;
+        }
+
+        long delay = context.axisResampler.getTimeUntilNextMs(now);
+        if (delay >= 0) {
+            mainHandler.removeCallbacks(context.axisResampleRunnable);
+            mainHandler.postDelayed(context.axisResampleRunnable, delay);
+        }
+
+        return sent;
+    }
+
+    public boolean handleMotionEvent(MotionEvent event) {
+        InputDeviceContext context = getContextForDevice(event.getDevice());
+        float[] axes = context.axisSample;
+
+        if (context.axisResampler == null) {
+            // By default we purposefully ignore the historical values in the motion event
+            // as it makes the controller feel sluggish for some users.
+            readAxes(context, event, -1, axes);
+            context.lastEventTimeMs = event.getEventTime();
+            handleAxisSet(context,
+                    axes[RESAMPLE_LS_X], axes[RESAMPLE_LS_Y],
+                    axes[RESAMPLE_RS_X], axes[RESAMPLE_RS_Y],
+                    axes[RESAMPLE_LT], axes[RESAMPLE_RT],
+                    axes[RESAMPLE_HAT_X], axes[RESAMPLE_HAT_Y]);
+            return true;
         }
 
-        handleAxisSet(context, lsX, lsY, rsX, rsY, lt, rt, hatX, hatY);
+        // Give the resampler every sample batched into this event, oldest first
+        for (int i = 0; i < event.getHistorySize(); i++) {
+            readAxes(context, event, i, axes);
+            context.axisResampler.addSample(event.getHistoricalEventTime(i), axes);
+        }
+        readAxes(context, event, -1, axes);
+        context.axisResampler.addSample(event.getEventTime(), axes);
+
+        drainAxisResampler(context);
 
         return true;
     }
@@ -843,6 +954,7 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
 
     public boolean handleButtonUp(KeyEvent event) {
         InputDeviceContext context = getContextForDevice(event.getDevice());
+        context.lastEventTimeMs = event.getEventTime();
 
         int keyCode = handleRemapping(context, event);
         if (keyCode == 0) {
@@ -966,6 +1078,7 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
 
     public boolean handleButtonDown(KeyEvent event) {
         InputDeviceContext context = getContextForDevice(event.getDevice());
+        context.lastEventTimeMs = event.getEventTime();
 
         int keyCode = handleRemapping(context, event);
         if (keyCode == 0) {
@@ -1065,13 +1178,9 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
         return true;
     }
 
-    @Override
-    public void reportControllerState(int controllerId, short buttonFlags,
-                                      float leftStickX, float leftStickY,
-                                      float rightStickX, float rightStickY,
-                                      float leftTrigger, float rightTrigger) {
-        UsbDeviceContext context = usbDeviceContexts.get(controllerId);
-
+    private void handleUsbAxisSet(UsbDeviceContext context, float leftStickX, float leftStickY,
+                                  float rightStickX, float rightStickY,
+                                  float leftTrigger, float rightTrigger) {
         Vector2d leftStickVector = populateCachedVector(leftStickX, leftStickY);
 
         handleDeadZone(leftStickVector, context.leftStickDeadzoneRadius);
@@ -1096,16 +1205,50 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
         context.leftTrigger = (byte)(leftTrigger * 0xFF);
         context.rightTrigger = (byte)(rightTrigger * 0xFF);
 
-        context.inputMap = buttonFlags;
-
         sendControllerInputPacket(context);
     }
 
+    @Override
+    public void reportControllerState(int controllerId, long receiveTimeMs, short buttonFlags,
+                                      float leftStickX, float leftStickY,
+                                      float rightStickX, float rightStickY,
+                                      float leftTrigger, float rightTrigger) {
+        UsbDeviceContext context = usbDeviceContexts.get(controllerId);
+
+        synchronized (context) {
+            context.inputMap = buttonFlags;
+            context.lastEventTimeMs = receiveTimeMs;
+
+            if (context.axisResampler == null) {
+                handleUsbAxisSet(context, leftStickX, leftStickY, rightStickX, rightStickY,
+                        leftTrigger, rightTrigger);
+                return;
+            }
+
+            float[] axes = context.axisSample;
+            axes[RESAMPLE_LS_X] = leftStickX;
+            axes[RESAMPLE_LS_Y] = leftStickY;
+            axes[RESAMPLE_RS_X] = rightStickX;
+            axes[RESAMPLE_RS_Y] = rightStickY;
+            axes[RESAMPLE_LT] = leftTrigger;
+            axes[RESAMPLE_RT] = rightTrigger;
+            axes[RESAMPLE_HAT_X] = 0;
+            axes[RESAMPLE_HAT_Y] = 0;
+            context.axisResampler.addSample(receiveTimeMs, axes);
+
+            if (!drainAxisResampler(context)) {
+                // Button changes can't wait for delayed stick samples
+                sendControllerInputPacket(context);
+            }
+        }
+    }
+
     @Override
     public void deviceRemoved(int controllerId) {
         UsbDeviceContext context = usbDeviceContexts.get(controllerId);
         if (context != null) {
             LimeLog.info("Removed controller: "+controllerId);
+            releaseAxisResampler(context);
             releaseControllerNumber(context);
             usbDeviceContexts.remove(controllerId);
         }
@@ -1127,6 +1270,12 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
         public boolean assignedControllerNumber;
         public boolean reservedControllerNumber;
         public short controllerNumber;
+        public ControllerFusionEngine.Source fusionSource;
+
+        public AxisResampler axisResampler;
+        public Runnable axisResampleRunnable;
+        public final float[] axisSample = new float[RESAMPLE_AXIS_COUNT];
+        public final float[] resampledAxes = new float[RESAMPLE_AXIS_COUNT];
 
         public short inputMap = 0x0000;
         public byte leftTrigger = 0x00;
@@ -1139,6 +1288,9 @@ public class ControllerHandler implements InputManager.InputDeviceListener, UsbD
         public boolean mouseEmulationActive;
         public Timer mouseEmulationTimer;
         public short mouseEmulationLastInputMap;
+
+        // When the input behind the current state happened, for InputStats
+        public long lastEventTimeMs;
     }
 
     class InputDeviceContext extends GenericControllerContext {
@@ -0,0 +1,144 @@
+package com.limelight.binding.input;
+
+import com.limelight.binding.video.LatencyHistogram;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Per-source input latency tracking. Each input source reports the time the OS
+// stamped on an event when the packet it caused is handed to NvConnection. The
+// time in between goes into a histogram for the current second and one for the
+// whole session, per source.
+//
+// Event times are on the CLOCK_MONOTONIC clock, which is what System.nanoTime()
+// and SystemClock.uptimeMillis() use on Android. Sources with millisecond event
+// times are only accurate to a millisecond. Any thread can report.
+public class InputStats {
+    public static final int SOURCE_KEYBOARD = 0;
+    public static final int SOURCE_MOUSE = 1;
+    public static final int SOURCE_TOUCH = 2;
+    public static final int SOURCE_GAMEPAD = 3;
+    public static final int SOURCE_USB_GAMEPAD = 4;
+    public static final int SOURCE_EVDEV = 5;
+    public static final int SOURCE_VIRTUAL_CONTROLLER = 6;
+    public static final int SOURCE_COUNT = 7;
+
+    private static final String[] SOURCE_NAMES = {
+            "Keyboard",
+            "Mouse",
+            "Touch",
+            "Gamepad",
+            "USB gamepad",
+            "Evdev",
+            "On-screen"
+    };
+
+    private static final long WINDOW_US = 1000000;
+
+    private final LatencyHistogram[] sessionHistograms = new LatencyHistogram[SOURCE_COUNT];
+    private final AtomicReferenceArray<LatencyHistogram> currentWindow = new AtomicReferenceArray<>(SOURCE_COUNT);
+    private final AtomicReferenceArray<LatencyHistogram> lastWindow = new AtomicReferenceArray<>(SOURCE_COUNT);
+    private final AtomicLong windowStartUs = new AtomicLong(getTimeUs());
+
+    public InputStats() {
+        for (int i = 0; i < SOURCE_COUNT; i++) {
+            sessionHistograms[i] = new LatencyHistogram();
+            currentWindow.set(i, new LatencyHistogram());
+            lastWindow.set(i, new LatencyHistogram());
+        }
+    }
+
+    public static long getTimeUs() {
+        return System.nanoTime() / 1000;
+    }
+
+    // eventTimeMs is an Android event time, like MotionEvent.getEventTime()
+    public void inputSent(int source, long eventTimeMs) {
+        inputSentUs(source, eventTimeMs * 1000);
+    }
+
+    public void inputSentUs(int source, long eventTimeUs) {
+        long nowUs = getTimeUs();
+        long latencyUs = nowUs - eventTimeUs;
+
+        sessionHistograms[source].record(latencyUs);
+        currentWindow.get(source).record(latencyUs);
+
+        maybeRollWindow(nowUs);
+    }
+
+    private void maybeRollWindow(long nowUs) {
+        long start = windowStartUs.get();
+        if (nowUs - start < WINDOW_US || !windowStartUs.compareAndSet(start, nowUs)) {
+            return;
+        }
+
+        for (int i = 0; i < SOURCE_COUNT; i++) {
+            lastWindow.set(i, currentWindow.getAndSet(i, new LatencyHistogram()));
+        }
+    }
+
+    public LatencyHistogram getSessionHistogram(int source) {
+        return sessionHistograms[source];
+    }
+
+    private static String formatMs(long us) {
+        return String.format(Locale.US, "%6.1f", us / 1000.0);
+    }
+
+    // Only sources that reported anything are listed
+    private static String formatTable(LatencyHistogram[] histograms) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < SOURCE_COUNT; i++) {
+            LatencyHistogram h = histograms[i];
+            if (h.getCount() == 0) {
+                continue;
+            }
+
+            if (sb.length() == 0) {
+                sb.append(String.format(Locale.US, "%-13s %6s %6s %6s %6s %6s\n",
+                        "Input (ms)", "p50", "p95", "p99", "max", "count"));
+            }
+            sb.append(String.format(Locale.US, "%-13s", SOURCE_NAMES[i]));
+            sb.append(' ').append(formatMs(h.getPercentileUs(50)));
+            sb.append(' ').append(formatMs(h.getPercentileUs(95)));
+            sb.append(' ').append(formatMs(h.getPercentileUs(99)));
+            sb.append(' ').append(formatMs(h.getMaxUs()));
+            sb.append(String.format(Locale.US, " %6d", h.getCount()));
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    // Short summary of the last complete second for the on-screen overlay
+    public String formatLastWindow() {
+        // Roll over even if no input arrived, so an idle source doesn't stay on screen
+        maybeRollWindow(getTimeUs());
+
+        LatencyHistogram[] histograms = new LatencyHistogram[SOURCE_COUNT];
+        for (int i = 0; i < SOURCE_COUNT; i++) {
+            histograms[i] = lastWindow.get(i);
+        }
+        return formatTable(histograms);
+    }
+
+    // Full report for the whole session
+    public String dumpSession() {
+        return "Input stats:\n"+formatTable(sessionHistograms);
+    }
+
+    // Writes the session's percentiles as CSV so sessions can be compared later
+    public void exportSession(Writer writer) throws IOException {
+        writer.write("source,count,p50_ms,p95_ms,p99_ms,max_ms\n");
+        for (int i = 0; i < SOURCE_COUNT; i++) {
+            LatencyHistogram h = sessionHistograms[i];
+            writer.write(String.format(Locale.US, "%s,%d,%.1f,%.1f,%.1f,%.1f\n",
+                    SOURCE_NAMES[i], h.getCount(),
+                    h.getPercentileUs(50) / 1000.0, h.getPercentileUs(95) / 1000.0,
+                    h.getPercentileUs(99) / 1000.0, h.getMaxUs() / 1000.0));
+        }
+    }
+}
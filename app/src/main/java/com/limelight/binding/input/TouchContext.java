@@ -92,10 +92,11 @@ public class TouchContext {
         return true;
     }
 
-    public void touchUpEvent(int eventX, int eventY)
+    // Returns true if a packet was sent
+    public boolean touchUpEvent(int eventX, int eventY)
     {
         if (cancelled) {
-            return;
+            return false;
         }
 
         // Cancel the drag timer
@@ -121,6 +122,11 @@ public class TouchContext {
             // Raise the mouse button
             conn.sendMouseButtonUp(buttonIndex);
         }
+        else {
+            return false;
+        }
+
+        return true;
     }
 
     private synchronized void startDragTimer() {
@@ -179,8 +185,11 @@ public class TouchContext {
         }
     }
 
+    // Returns true if a packet was sent
     public boolean touchMoveEvent(int eventX, int eventY)
     {
+        boolean sent = false;
+
         if (eventX != lastTouchX || eventY != lastTouchY)
         {
             // We only send moves and drags for the primary touch point
@@ -213,6 +222,7 @@ public class TouchContext {
                 }
 
                 conn.sendMouseMove((short)deltaX, (short)deltaY);
+                sent = true;
             }
             else {
                 lastTouchX = eventX;
@@ -220,7 +230,7 @@ public class TouchContext {
             }
         }
 
-        return true;
+        return sent;
     }
 
     public void cancelTouch() {
@@ -3,11 +3,12 @@ package com.limelight.binding.input.capture;
 import android.app.Activity;
 
 import com.limelight.LimeLog;
+import com.limelight.binding.input.InputStats;
 import com.limelight.binding.input.evdev.EvdevCaptureProvider;
 import com.limelight.binding.input.evdev.EvdevListener;
 
 public class InputCaptureManager {
-    public static InputCaptureProvider getInputCaptureProvider(Activity activity, EvdevListener rootListener) {
+    public static InputCaptureProvider getInputCaptureProvider(Activity activity, EvdevListener rootListener, int fps, InputStats inputStats) {
         // Shield capture is preferred because it can capture when the cursor is over
         // the system UI. Android N native capture can only capture over views owned
         // by the application.
@@ -17,7 +18,7 @@ public class InputCaptureManager {
         }
         else if (EvdevCaptureProvider.isCaptureProviderSupported()) {
             LimeLog.info("Using Evdev mouse capture");
-            return new EvdevCaptureProvider(activity, rootListener);
+            return new EvdevCaptureProvider(activity, rootListener, fps, inputStats);
         }
         else if (AndroidCaptureProvider.isCaptureProviderSupported()) {
             LimeLog.info("Using Android N+ native mouse capture");
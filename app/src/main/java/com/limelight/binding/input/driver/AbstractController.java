@@ -24,8 +24,9 @@ public abstract class AbstractController {
         }
     }
 
-    protected void reportInput() {
-        listener.reportControllerState(deviceId, buttonFlags, leftStickX, leftStickY,
+    // receiveTimeMs is when the packet arrived, on the SystemClock.uptimeMillis() clock
+    protected void reportInput(long receiveTimeMs) {
+        listener.reportControllerState(deviceId, receiveTimeMs, buttonFlags, leftStickX, leftStickY,
                 rightStickX, rightStickY, leftTrigger, rightTrigger);
     }
 
@@ -7,16 +7,14 @@ import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbInterface;
 
 import com.limelight.LimeLog;
-import com.limelight.binding.video.MediaCodecHelper;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 
 public abstract class AbstractXboxController extends AbstractController {
     protected final UsbDevice device;
     protected final UsbDeviceConnection connection;
 
-    private Thread inputThread;
+    private UsbInputPipeline inputPipeline;
     private boolean stopped;
 
     protected UsbEndpoint inEndpt, outEndpt;
@@ -27,51 +25,6 @@ public abstract class AbstractXboxController extends AbstractController {
         this.connection = connection;
     }
 
-    private Thread createInputThread() {
-        return new Thread() {
-            public void run() {
-                while (!isInterrupted() && !stopped) {
-                    byte[] buffer = new byte[64];
-
-                    int res;
-
-                    //
-                    // There's no way that I can tell to determine if a device has failed
-                    // or if the timeout has simply expired. We'll check how long the transfer
-                    // took to fail and assume the device failed if it happened before the timeout
-                    // expired.
-                    //
-
-                    do {
-                        // Read the next input state packet
-                        long lastMillis = MediaCodecHelper.getMonotonicMillis();
-                        res = connection.bulkTransfer(inEndpt, buffer, buffer.length, 3000);
-
-                        // If we get a zero length response, treat it as an error
-                        if (res == 0) {
-                            res = -1;
-                        }
-
-                        if (res == -1 && MediaCodecHelper.getMonotonicMillis() - lastMillis < 1000) {
-                            LimeLog.warning("Detected device I/O error");
-                            AbstractXboxController.this.stop();
-                            break;
-                        }
-                    } while (res == -1 && !isInterrupted() && !stopped);
-
-                    if (res == -1 || stopped) {
-                        break;
-                    }
-
-                    if (handleRead(ByteBuffer.wrap(buffer, 0, res).order(ByteOrder.LITTLE_ENDIAN))) {
-                        // Report input if handleRead() returns true
-                        reportInput();
-                    }
-                }
-            }
-        };
-    }
-
     public boolean start() {
         // Force claim all interfaces
         for (int i = 0; i < device.getInterfaceCount(); i++) {
@@ -115,8 +68,24 @@ public abstract class AbstractXboxController extends AbstractController {
         }
 
         // Start listening for controller input
-        inputThread = createInputThread();
-        inputThread.start();
+        inputPipeline = new UsbInputPipeline(connection, inEndpt, new UsbInputPipeline.Callback() {
+            @Override
+            public void onPacket(ByteBuffer packet, long receiveTimeMs) {
+                if (handleRead(packet)) {
+                    // Report input if handleRead() returns true
+                    reportInput(receiveTimeMs);
+                }
+            }
+
+            @Override
+            public void onError() {
+                LimeLog.warning("Detected device I/O error");
+                AbstractXboxController.this.stop();
+            }
+        });
+        if (!inputPipeline.start()) {
+            return false;
+        }
 
         // Now report we're added
         notifyDeviceAdded();
@@ -131,10 +100,10 @@ public abstract class AbstractXboxController extends AbstractController {
 
         stopped = true;
 
-        // Stop the input thread
-        if (inputThread != null) {
-            inputThread.interrupt();
-            inputThread = null;
+        // Stop receiving input
+        if (inputPipeline != null) {
+            inputPipeline.stop();
+            inputPipeline = null;
         }
 
         // Report the device removed
@@ -1,7 +1,7 @@
 package com.limelight.binding.input.driver;
 
 public interface UsbDriverListener {
-    void reportControllerState(int controllerId, short buttonFlags,
+    void reportControllerState(int controllerId, long receiveTimeMs, short buttonFlags,
                                float leftStickX, float leftStickY,
                                float rightStickX, float rightStickY,
                                float leftTrigger, float rightTrigger);
@@ -34,10 +34,10 @@ public class UsbDriverService extends Service implements UsbDriverListener {
     private int nextDeviceId;
 
     @Override
-    public void reportControllerState(int controllerId, short buttonFlags, float leftStickX, float leftStickY, float rightStickX, float rightStickY, float leftTrigger, float rightTrigger) {
+    public void reportControllerState(int controllerId, long receiveTimeMs, short buttonFlags, float leftStickX, float leftStickY, float rightStickX, float rightStickY, float leftTrigger, float rightTrigger) {
         // Call through to the client's listener
         if (listener != null) {
-            listener.reportControllerState(controllerId, buttonFlags, leftStickX, leftStickY, rightStickX, rightStickY, leftTrigger, rightTrigger);
+            listener.reportControllerState(controllerId, receiveTimeMs, buttonFlags, leftStickX, leftStickY, rightStickX, rightStickY, leftTrigger, rightTrigger);
         }
     }
 
@@ -0,0 +1,154 @@
+package com.limelight.binding.input.driver;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbRequest;
+import android.os.SystemClock;
+
+import com.limelight.LimeLog;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// Reads input packets from a controller's IN endpoint by keeping several
+// UsbRequests queued at once. While one completed packet is being handled, the
+// next ones are already being received. Each request owns a direct buffer that's
+// allocated once, so receiving packets doesn't allocate.
+//
+// A transfer only completes when the device sends something or fails, so we
+// don't need timeouts or to guess whether a failure was really a timeout.
+// Any controller driver can use this by handing it its IN endpoint.
+public class UsbInputPipeline {
+    private static final int QUEUE_DEPTH = 4;
+
+    public interface Callback {
+        // Called on the pipeline's thread for each packet. The buffer is little
+        // endian, holds only the packet, and is only valid during the call.
+        void onPacket(ByteBuffer packet, long receiveTimeMs);
+
+        // Called on the pipeline's thread if the device stops responding
+        void onError();
+    }
+
+    private final UsbDeviceConnection connection;
+    private final UsbEndpoint endpoint;
+    private final Callback callback;
+    private final UsbRequest[] requests = new UsbRequest[QUEUE_DEPTH];
+
+    private Thread thread;
+    private volatile boolean stopped;
+
+    private long packets;
+    private long emptyPackets;
+
+    public UsbInputPipeline(UsbDeviceConnection connection, UsbEndpoint endpoint, Callback callback) {
+        this.connection = connection;
+        this.endpoint = endpoint;
+        this.callback = callback;
+    }
+
+    public boolean start() {
+        int packetSize = endpoint.getMaxPacketSize();
+        for (int i = 0; i < QUEUE_DEPTH; i++) {
+            UsbRequest request = new UsbRequest();
+            if (!request.initialize(connection, endpoint)) {
+                LimeLog.warning("Failed to initialize USB request");
+                closeRequests();
+                return false;
+            }
+            request.setClientData(ByteBuffer.allocateDirect(packetSize).order(ByteOrder.LITTLE_ENDIAN));
+            requests[i] = request;
+
+            if (!queue(request)) {
+                LimeLog.warning("Failed to queue USB request");
+                closeRequests();
+                return false;
+            }
+        }
+
+        thread = new Thread() {
+            @Override
+            public void run() {
+                receivePackets();
+            }
+        };
+        thread.setName("USB input - "+endpoint.getAddress());
+        thread.start();
+        return true;
+    }
+
+    private boolean queue(UsbRequest request) {
+        ByteBuffer buffer = (ByteBuffer) request.getClientData();
+        buffer.clear();
+        return request.queue(buffer, buffer.capacity());
+    }
+
+    private void receivePackets() {
+        while (!stopped) {
+            // This returns any of our requests once it completes
+            UsbRequest request = connection.requestWait();
+            if (stopped) {
+                break;
+            }
+            else if (request == null) {
+                LimeLog.warning("USB input request failed");
+                callback.onError();
+                break;
+            }
+
+            long receiveTimeMs = SystemClock.uptimeMillis();
+
+            // On completion the position is the number of bytes received
+            ByteBuffer buffer = (ByteBuffer) request.getClientData();
+            buffer.flip();
+
+            if (buffer.hasRemaining()) {
+                packets++;
+                callback.onPacket(buffer, receiveTimeMs);
+            }
+            else {
+                emptyPackets++;
+            }
+
+            if (!stopped && !queue(request)) {
+                LimeLog.warning("Failed to queue USB request");
+                callback.onError();
+                break;
+            }
+        }
+
+        LimeLog.info("USB input: "+packets+" packets, "+emptyPackets+" empty");
+        closeRequests();
+    }
+
+    private void closeRequests() {
+        synchronized (requests) {
+            for (int i = 0; i < QUEUE_DEPTH; i++) {
+                if (requests[i] != null) {
+                    // Requests may still be queued
+                    requests[i].cancel();
+                    requests[i].close();
+                    requests[i] = null;
+                }
+            }
+        }
+    }
+
+    // Stops receiving. Call this before closing the connection.
+    public void stop() {
+        if (stopped) {
+            return;
+        }
+
+        stopped = true;
+
+        // Cancelling completes the requests, which wakes the thread
+        synchronized (requests) {
+            for (UsbRequest request : requests) {
+                if (request != null) {
+                    request.cancel();
+                }
+            }
+        }
+    }
+}
@@ -5,43 +5,45 @@ import android.widget.Toast;
 
 import com.limelight.LimeLog;
 import com.limelight.LimelightBuildProps;
+import com.limelight.binding.input.InputStats;
 import com.limelight.binding.input.capture.InputCaptureProvider;
 
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
 public class EvdevCaptureProvider extends InputCaptureProvider {
 
     private final EvdevListener listener;
     private final String libraryPath;
+    private final MouseMotionAggregator motionAggregator;
+    private final InputStats inputStats;
 
-    private boolean shutdown = false;
-    private InputStream evdevIn;
-    private OutputStream evdevOut;
+    private volatile boolean shutdown = false;
     private Process su;
-    private ServerSocket servSock;
-    private Socket evdevSock;
+    private ServerSocketChannel servSock;
+    private volatile SocketChannel evdevSock;
     private Activity activity;
     private boolean started = false;
 
     private static final byte UNGRAB_REQUEST = 1;
     private static final byte REGRAB_REQUEST = 2;
 
+    // Coalesced motion is never held longer than this, even at low frame rates
+    private static final long MAX_MOTION_LATENCY_US = 8000;
+
     private final Thread handlerThread = new Thread() {
         @Override
         public void run() {
-            int deltaX = 0;
-            int deltaY = 0;
-            byte deltaScroll = 0;
-
             // Bind a local listening socket for evdevreader to connect to
             try {
-                servSock = new ServerSocket(0, 1);
+                servSock = ServerSocketChannel.open();
+                servSock.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 1);
             } catch (IOException e) {
                 e.printStackTrace();
                 return;
@@ -62,7 +64,7 @@ public class EvdevCaptureProvider extends InputCaptureProvider {
             // Start evdevreader
             DataOutputStream suOut = new DataOutputStream(su.getOutputStream());
             try {
-                suOut.writeChars(libraryPath+File.separatorChar+"libevdev_reader.so "+servSock.getLocalPort()+"\n");
+                suOut.writeChars(libraryPath+File.separatorChar+"libevdev_reader.so "+servSock.socket().getLocalPort()+"\n");
             } catch (IOException e) {
                 reportDeviceNotRooted();
                 e.printStackTrace();
@@ -70,102 +72,161 @@ public class EvdevCaptureProvider extends InputCaptureProvider {
             }
 
             // Wait for evdevreader's connection
-            LimeLog.info("Waiting for EvdevReader connection to port "+servSock.getLocalPort());
+            LimeLog.info("Waiting for EvdevReader connection to port "+servSock.socket().getLocalPort());
+            EvdevReader reader;
             try {
                 evdevSock = servSock.accept();
-                evdevIn = evdevSock.getInputStream();
-                evdevOut = evdevSock.getOutputStream();
+                reader = new EvdevReader(evdevSock);
+                reader.readHello();
             } catch (IOException e) {
                 e.printStackTrace();
                 return;
             }
-            LimeLog.info("EvdevReader connected from port "+evdevSock.getPort());
+            LimeLog.info("EvdevReader connected from port "+evdevSock.socket().getPort());
 
             while (!isInterrupted() && !shutdown) {
-                EvdevEvent event;
+                // Wait no longer than the time until pending motion is due
+                long flushDelayUs = motionAggregator.getTimeUntilFlushUs(getTimeUs());
+                long timeoutMs = flushDelayUs < 0 ? -1 : (flushDelayUs + 999) / 1000;
+
+                int eventCount;
                 try {
-                    event = EvdevReader.read(evdevIn);
+                    eventCount = reader.readFrame(timeoutMs);
                 } catch (IOException e) {
-                    event = null;
-                }
-                if (event == null) {
                     break;
                 }
 
-                switch (event.type) {
-                    case EvdevEvent.EV_SYN:
-                        if (deltaX != 0 || deltaY != 0) {
-                            listener.mouseMove(deltaX, deltaY);
-                            deltaX = deltaY = 0;
-                        }
-                        if (deltaScroll != 0) {
-                            listener.mouseScroll(deltaScroll);
-                            deltaScroll = 0;
-                        }
-                        break;
-
-                    case EvdevEvent.EV_REL:
-                        switch (event.code) {
-                            case EvdevEvent.REL_X:
-                                deltaX = event.value;
-                                break;
-                            case EvdevEvent.REL_Y:
-                                deltaY = event.value;
-                                break;
-                            case EvdevEvent.REL_WHEEL:
-                                deltaScroll = (byte) event.value;
-                                break;
-                        }
-                        break;
-
-                    case EvdevEvent.EV_KEY:
-                        switch (event.code) {
-                            case EvdevEvent.BTN_LEFT:
-                                listener.mouseButtonEvent(EvdevListener.BUTTON_LEFT,
-                                        event.value != 0);
-                                break;
-                            case EvdevEvent.BTN_MIDDLE:
-                                listener.mouseButtonEvent(EvdevListener.BUTTON_MIDDLE,
-                                        event.value != 0);
-                                break;
-                            case EvdevEvent.BTN_RIGHT:
-                                listener.mouseButtonEvent(EvdevListener.BUTTON_RIGHT,
-                                        event.value != 0);
-                                break;
-
-                            case EvdevEvent.BTN_SIDE:
-                            case EvdevEvent.BTN_EXTRA:
-                            case EvdevEvent.BTN_FORWARD:
-                            case EvdevEvent.BTN_BACK:
-                            case EvdevEvent.BTN_TASK:
-                                // Other unhandled mouse buttons
-                                break;
-
-                            default:
-                                // We got some unrecognized button. This means
-                                // someone is trying to use the other device in this
-                                // "combination" input device. We'll try to handle
-                                // it via keyboard, but we're not going to disconnect
-                                // if we can't
-                                short keyCode = EvdevTranslator.translateEvdevKeyCode(event.code);
-                                if (keyCode != 0) {
-                                    listener.keyboardEvent(event.value != 0, keyCode);
-                                }
-                                break;
-                        }
-                        break;
-
-                    case EvdevEvent.EV_MSC:
-                        break;
+                for (int i = 0; i < eventCount; i++) {
+                    handleEvent(reader.getType(i), reader.getCode(i), reader.getValue(i),
+                            reader.getTimestampUs(i));
                 }
+
+                if (motionAggregator.getTimeUntilFlushUs(getTimeUs()) == 0) {
+                    motionAggregator.flush(getTimeUs());
+                }
+            }
+
+            reader.close();
+            LimeLog.info("Evdev mouse: "+motionAggregator);
+        }
+
+        private int deltaX = 0;
+        private int deltaY = 0;
+        private byte deltaScroll = 0;
+
+        private void handleEvent(short type, short code, int value, long timestampUs) {
+            switch (type) {
+                case EvdevEvent.EV_SYN:
+                    // Hand the whole report to the aggregator which decides when to send
+                    motionAggregator.addReport(deltaX, deltaY, deltaScroll, timestampUs, getTimeUs());
+                    deltaX = deltaY = 0;
+                    deltaScroll = 0;
+                    break;
+
+                case EvdevEvent.EV_REL:
+                    switch (code) {
+                        case EvdevEvent.REL_X:
+                            deltaX += value;
+                            break;
+                        case EvdevEvent.REL_Y:
+                            deltaY += value;
+                            break;
+                        case EvdevEvent.REL_WHEEL:
+                            deltaScroll += (byte) value;
+                            break;
+                    }
+                    break;
+
+                case EvdevEvent.EV_KEY:
+                    // Motion from before this press must reach the host first
+                    motionAggregator.flush(getTimeUs());
+
+                    switch (code) {
+                        case EvdevEvent.BTN_LEFT:
+                            listener.mouseButtonEvent(EvdevListener.BUTTON_LEFT,
+                                    value != 0);
+                            inputStats.inputSentUs(InputStats.SOURCE_EVDEV, timestampUs);
+                            break;
+                        case EvdevEvent.BTN_MIDDLE:
+                            listener.mouseButtonEvent(EvdevListener.BUTTON_MIDDLE,
+                                    value != 0);
+                            inputStats.inputSentUs(InputStats.SOURCE_EVDEV, timestampUs);
+                            break;
+                        case EvdevEvent.BTN_RIGHT:
+                            listener.mouseButtonEvent(EvdevListener.BUTTON_RIGHT,
+                                    value != 0);
+                            inputStats.inputSentUs(InputStats.SOURCE_EVDEV, timestampUs);
+                            break;
+
+                        case EvdevEvent.BTN_SIDE:
+                        case EvdevEvent.BTN_EXTRA:
+                        case EvdevEvent.BTN_FORWARD:
+                        case EvdevEvent.BTN_BACK:
+                        case EvdevEvent.BTN_TASK:
+                            // Other unhandled mouse buttons
+                            break;
+
+                        default:
+                            // We got some unrecognized button. This means
+                            // someone is trying to use the other device in this
+                            // "combination" input device. We'll try to handle
+                            // it via keyboard, but we're not going to disconnect
+                            // if we can't
+                            short keyCode = EvdevTranslator.translateEvdevKeyCode(code);
+                            if (keyCode != 0) {
+                                listener.keyboardEvent(value != 0, keyCode);
+                                inputStats.inputSentUs(InputStats.SOURCE_EVDEV, timestampUs);
+                            }
+                            break;
+                    }
+                    break;
+
+                case EvdevEvent.EV_MSC:
+                    break;
             }
         }
     };
 
-    public EvdevCaptureProvider(Activity activity, EvdevListener listener) {
+    public EvdevCaptureProvider(Activity activity, final EvdevListener listener, int fps, final InputStats inputStats) {
         this.listener = listener;
         this.activity = activity;
+        this.inputStats = inputStats;
         this.libraryPath = activity.getApplicationInfo().nativeLibraryDir;
+
+        // Send motion at most once per video frame since the host can't show it any faster
+        long frameIntervalUs = 1000000 / Math.max(fps, 1);
+        this.motionAggregator = new MouseMotionAggregator(new MouseMotionAggregator.Sink() {
+            @Override
+            public void sendMotion(int deltaX, int deltaY, long timestampUs) {
+                listener.mouseMove(deltaX, deltaY);
+                inputStats.inputSentUs(InputStats.SOURCE_EVDEV, timestampUs);
+            }
+
+            @Override
+            public void sendScroll(byte amount, long timestampUs) {
+                listener.mouseScroll(amount);
+                inputStats.inputSentUs(InputStats.SOURCE_EVDEV, timestampUs);
+            }
+        }, frameIntervalUs, Math.min(frameIntervalUs, MAX_MOTION_LATENCY_US));
+    }
+
+    // evdev_reader sets its devices to CLOCK_MONOTONIC which is what nanoTime() uses
+    private static long getTimeUs() {
+        return System.nanoTime() / 1000;
+    }
+
+    private void sendRequest(byte request) {
+        SocketChannel sock = evdevSock;
+        if (shutdown || sock == null) {
+            return;
+        }
+
+        // The socket is non-blocking but a single byte always fits in the send buffer
+        try {
+            sock.write(ByteBuffer.wrap(new byte[] {request}));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
     public static boolean isCaptureProviderSupported() {
@@ -191,24 +252,14 @@ public class EvdevCaptureProvider extends InputCaptureProvider {
         }
         else {
             // Send a request to regrab if we're already capturing
-            if (!shutdown && evdevOut != null) {
-                try {
-                    evdevOut.write(REGRAB_REQUEST);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
+            sendRequest(REGRAB_REQUEST);
         }
     }
 
     @Override
     public void disableCapture() {
-        if (started && !shutdown && evdevOut != null) {
-            try {
-                evdevOut.write(UNGRAB_REQUEST);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        if (started) {
+            sendRequest(UNGRAB_REQUEST);
         }
     }
 
@@ -241,22 +292,6 @@ public class EvdevCaptureProvider extends InputCaptureProvider {
             }
         }
 
-        if (evdevIn != null) {
-            try {
-                evdevIn.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-
-        if (evdevOut != null) {
-            try {
-                evdevOut.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-
         if (su != null) {
             su.destroy();
         }
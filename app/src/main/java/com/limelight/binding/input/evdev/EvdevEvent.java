@@ -1,9 +1,8 @@
 package com.limelight.binding.input.evdev;
 
+// Evdev event constants. Events themselves are read into EvdevReader's
+// arrays rather than objects.
 public class EvdevEvent {
-    public static final int EVDEV_MIN_EVENT_SIZE = 16;
-    public static final int EVDEV_MAX_EVENT_SIZE = 24;
-
     /* Event types */
     public static final short EV_SYN = 0x00;
     public static final short EV_KEY = 0x01;
@@ -24,14 +23,4 @@ public class EvdevEvent {
     public static final short BTN_FORWARD = 0x115;
     public static final short BTN_BACK = 0x116;
     public static final short BTN_TASK = 0x117;
-
-    public final short type;
-    public final short code;
-    public final int value;
-
-    public EvdevEvent(short type, short code, int value) {
-        this.type = type;
-        this.code = code;
-        this.value = value;
-    }
 }
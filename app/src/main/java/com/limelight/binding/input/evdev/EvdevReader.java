@@ -1,58 +1,149 @@
 package com.limelight.binding.input.evdev;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
 
-import com.limelight.LimeLog;
-
+// Reads frames in the v2 protocol written by evdev_reader. Each frame holds
+// every event one device reported up to its EV_SYN. The frame is read into a
+// reused direct buffer and unpacked into reused primitive arrays, so reading
+// doesn't allocate. Reads can time out between frames so the caller can do
+// timed work like flushing coalesced mouse motion.
 public class EvdevReader {
-    private static void readAll(InputStream in, ByteBuffer bb) throws IOException {
-        byte[] buf = bb.array();
-        int ret;
-        int offset = 0;
-
-        while (offset < buf.length) {
-            ret = in.read(buf, offset, buf.length-offset);
-            if (ret <= 0) {
-                throw new IOException("Read failed: "+ret);
+    private static final int PROTOCOL_MAGIC = 0x32445645; // 'EVD2'
+    private static final int PROTOCOL_VERSION = 2;
+
+    // This must match MAX_FRAME_EVENTS in evdev_reader.c
+    public static final int MAX_FRAME_EVENTS = 64;
+
+    // int64 timestamp in microseconds, uint16 type, uint16 code, int32 value
+    private static final int EVENT_SIZE = 16;
+
+    private final SocketChannel channel;
+    private final Selector selector;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_FRAME_EVENTS * EVENT_SIZE)
+            .order(ByteOrder.nativeOrder());
+
+    // The events of the last frame read
+    private final long[] timestamps = new long[MAX_FRAME_EVENTS];
+    private final short[] types = new short[MAX_FRAME_EVENTS];
+    private final short[] codes = new short[MAX_FRAME_EVENTS];
+    private final int[] values = new int[MAX_FRAME_EVENTS];
+    private int eventCount;
+
+    public EvdevReader(SocketChannel channel) throws IOException {
+        this.channel = channel;
+        this.selector = Selector.open();
+
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    // Returns false if nothing arrived within the timeout. Once the first byte has
+    // arrived, this waits for the rest. A negative timeout waits forever.
+    private boolean readFully(int length, long timeoutMs) throws IOException {
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            int ret = channel.read(buffer);
+            if (ret < 0) {
+                throw new IOException("Connection closed");
+            }
+            else if (ret > 0) {
+                continue;
+            }
+
+            int ready;
+            if (buffer.position() == 0 && timeoutMs == 0) {
+                ready = selector.selectNow();
+            }
+            else if (buffer.position() == 0 && timeoutMs > 0) {
+                ready = selector.select(timeoutMs);
+            }
+            else {
+                ready = selector.select();
+            }
+            selector.selectedKeys().clear();
+
+            if (Thread.currentThread().isInterrupted()) {
+                throw new IOException("Interrupted");
+            }
+            else if (ready == 0 && buffer.position() == 0 && timeoutMs >= 0) {
+                return false;
             }
+        }
+        buffer.flip();
+        return true;
+    }
+
+    // Checks that the other end speaks our protocol version
+    public void readHello() throws IOException {
+        readFully(8, -1);
 
-            offset += ret;
+        int magic = buffer.getInt();
+        int version = buffer.getInt();
+        if (magic != PROTOCOL_MAGIC || version != PROTOCOL_VERSION) {
+            throw new IOException("Unsupported evdev protocol: "+Integer.toHexString(magic)+" v"+version);
         }
     }
 
-    // Takes a byte buffer to use to read the output into.
-    // This buffer MUST be in native byte order and at least
-    // EVDEV_MAX_EVENT_SIZE bytes long.
-    public static EvdevEvent read(InputStream input) throws IOException {
-        ByteBuffer bb;
-        int packetLength;
+    // Blocks until the next frame arrives and returns the number of events in it
+    public int readFrame() throws IOException {
+        return readFrame(-1);
+    }
 
-        // Read the packet length
-        bb = ByteBuffer.allocate(4).order(ByteOrder.nativeOrder());
-        readAll(input, bb);
-        packetLength = bb.getInt();
+    // Returns the number of events in the next frame or 0 if no frame started
+    // arriving within the timeout
+    public int readFrame(long timeoutMs) throws IOException {
+        if (!readFully(4, timeoutMs)) {
+            eventCount = 0;
+            return 0;
+        }
 
-        if (packetLength < EvdevEvent.EVDEV_MIN_EVENT_SIZE) {
-            LimeLog.warning("Short read: "+packetLength);
-            return null;
+        int count = buffer.getInt();
+        if (count <= 0 || count > MAX_FRAME_EVENTS) {
+            throw new IOException("Invalid frame size: "+count);
         }
 
-        // Read the rest of the packet
-        bb = ByteBuffer.allocate(packetLength).order(ByteOrder.nativeOrder());
-        readAll(input, bb);
-
-        // Throw away the time stamp
-        if (packetLength == EvdevEvent.EVDEV_MAX_EVENT_SIZE) {
-            bb.getLong();
-            bb.getLong();
-        } else {
-            bb.getInt();
-            bb.getInt();
+        readFully(count * EVENT_SIZE, -1);
+        for (int i = 0; i < count; i++) {
+            timestamps[i] = buffer.getLong();
+            types[i] = buffer.getShort();
+            codes[i] = buffer.getShort();
+            values[i] = buffer.getInt();
         }
 
-        return new EvdevEvent(bb.getShort(), bb.getShort(), bb.getInt());
+        eventCount = count;
+        return count;
+    }
+
+    public void close() {
+        try {
+            selector.close();
+        } catch (IOException ignored) {}
+    }
+
+    public int getEventCount() {
+        return eventCount;
+    }
+
+    // Kernel timestamp of the event in microseconds
+    public long getTimestampUs(int index) {
+        return timestamps[index];
+    }
+
+    public short getType(int index) {
+        return types[index];
+    }
+
+    public short getCode(int index) {
+        return codes[index];
+    }
+
+    public int getValue(int index) {
+        return values[index];
     }
 }
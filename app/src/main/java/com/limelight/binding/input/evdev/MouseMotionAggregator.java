@@ -0,0 +1,122 @@
+package com.limelight.binding.input.evdev;
+
+// Sums relative mouse motion and scrolling across evdev reports and sends the
+// totals at a steady cadence instead of once per report. A 1000 Hz mouse would
+// otherwise send far more packets than the host can use per video frame.
+//
+// Motion is sent when the flush interval has passed since the last send or when
+// the oldest pending motion is older than the latency bound, judged by the kernel
+// timestamps. An idle mouse's first movement goes out right away.
+//
+// Times are in microseconds on the same clock as the kernel timestamps. This
+// has no Android dependencies so it can be driven by recorded traces on a plain JVM.
+// The sink is given the timestamp of the oldest report in each send.
+public class MouseMotionAggregator {
+
+    public interface Sink {
+        void sendMotion(int deltaX, int deltaY, long timestampUs);
+        void sendScroll(byte amount, long timestampUs);
+    }
+
+    private final Sink sink;
+    private final long flushIntervalUs;
+    private final long maxLatencyUs;
+
+    private int pendingX;
+    private int pendingY;
+    private int pendingScroll;
+    private boolean pending;
+    private long oldestPendingUs;
+    private long lastSendUs = Long.MIN_VALUE / 2;
+
+    private long reports;
+    private long sends;
+    private long totalLatencyUs;
+    private long maxObservedLatencyUs;
+
+    public MouseMotionAggregator(Sink sink, long flushIntervalUs, long maxLatencyUs) {
+        this.sink = sink;
+        this.flushIntervalUs = flushIntervalUs;
+        this.maxLatencyUs = maxLatencyUs;
+    }
+
+    private static boolean fitsInShort(int value) {
+        return value >= Short.MIN_VALUE && value <= Short.MAX_VALUE;
+    }
+
+    // Adds one report's worth of motion and scrolling, then sends if it's due
+    public void addReport(int deltaX, int deltaY, int scroll, long timestampUs, long nowUs) {
+        if (deltaX == 0 && deltaY == 0 && scroll == 0) {
+            return;
+        }
+
+        reports++;
+
+        // The motion packet only holds 16 bits per axis and the scroll packet 8 bits
+        if (pending && (!fitsInShort(pendingX + deltaX) || !fitsInShort(pendingY + deltaY) ||
+                pendingScroll + scroll > Byte.MAX_VALUE || pendingScroll + scroll < Byte.MIN_VALUE)) {
+            flush(nowUs);
+        }
+
+        if (!pending) {
+            pending = true;
+            oldestPendingUs = timestampUs;
+        }
+        pendingX += deltaX;
+        pendingY += deltaY;
+        pendingScroll += scroll;
+
+        if (getTimeUntilFlushUs(nowUs) == 0) {
+            flush(nowUs);
+        }
+    }
+
+    // Returns how long until pending motion must be sent, 0 if it's due now,
+    // or -1 if there's nothing pending
+    public long getTimeUntilFlushUs(long nowUs) {
+        if (!pending) {
+            return -1;
+        }
+
+        long deadline = Math.min(lastSendUs + flushIntervalUs, oldestPendingUs + maxLatencyUs);
+        return Math.max(deadline - nowUs, 0);
+    }
+
+    // Sends anything pending right away. This must be called before sending a
+    // button or key event so the host sees them in order.
+    public void flush(long nowUs) {
+        if (!pending) {
+            return;
+        }
+
+        if (pendingX != 0 || pendingY != 0) {
+            sink.sendMotion(pendingX, pendingY, oldestPendingUs);
+        }
+        if (pendingScroll != 0) {
+            sink.sendScroll((byte) pendingScroll, oldestPendingUs);
+        }
+
+        long latencyUs = Math.max(nowUs - oldestPendingUs, 0);
+        totalLatencyUs += latencyUs;
+        maxObservedLatencyUs = Math.max(maxObservedLatencyUs, latencyUs);
+        sends++;
+
+        pendingX = pendingY = pendingScroll = 0;
+        pending = false;
+        lastSendUs = nowUs;
+    }
+
+    public long getReportCount() {
+        return reports;
+    }
+
+    public long getSendCount() {
+        return sends;
+    }
+
+    @Override
+    public String toString() {
+        return reports + " reports sent as " + sends + " packets, input to send latency " +
+                (sends != 0 ? totalLatencyUs / sends : 0) + " us average, " + maxObservedLatencyUs + " us max";
+    }
+}
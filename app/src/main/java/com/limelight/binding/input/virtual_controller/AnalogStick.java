@@ -126,6 +126,15 @@ public class AnalogStick extends VirtualControllerElement {
     private STICK_STATE stick_state = STICK_STATE.NO_MOVEMENT;
     private CLICK_STATE click_state = CLICK_STATE.SINGLE;
 
+    /**
+     * what the view currently shows, to only redraw what a touch changed
+     */
+    private int drawn_stick_x = 0;
+    private int drawn_stick_y = 0;
+    private STICK_STATE drawn_stick_state = STICK_STATE.NO_MOVEMENT;
+    private CLICK_STATE drawn_click_state = CLICK_STATE.SINGLE;
+    private boolean drawn_pressed = false;
+
     private List<AnalogStickListener> listeners = new ArrayList<>();
     private long timeLastClick = 0;
 
@@ -176,7 +185,9 @@ public class AnalogStick extends VirtualControllerElement {
     }
 
     private void notifyOnMovement(float x, float y) {
-        _DBG("movement x: " + x + " movement y: " + y);
+        if (_PRINT_DEBUG_INFORMATION) {
+            _DBG("movement x: " + x + " movement y: " + y);
+        }
         // notify listeners
         for (AnalogStickListener listener : listeners) {
             listener.onMovement(x, y);
@@ -280,6 +291,31 @@ public class AnalogStick extends VirtualControllerElement {
         }
     }
 
+    private void invalidateChanges() {
+        int stick_x = (int) position_stick_x;
+        int stick_y = (int) position_stick_y;
+
+        if (drawn_pressed != isPressed() || drawn_click_state != click_state ||
+                drawn_stick_state != stick_state) {
+            // colors or the stick's resting place changed, redraw everything
+            invalidate();
+        } else if (stick_state != STICK_STATE.NO_MOVEMENT &&
+                (stick_x != drawn_stick_x || stick_y != drawn_stick_y)) {
+            // only the stick moved, redraw where it was and where it is now
+            int margin = (int) radius_analog_stick + getDefaultStrokeWidth() + 1;
+            invalidate(Math.min(stick_x, drawn_stick_x) - margin,
+                    Math.min(stick_y, drawn_stick_y) - margin,
+                    Math.max(stick_x, drawn_stick_x) + margin,
+                    Math.max(stick_y, drawn_stick_y) + margin);
+        }
+
+        drawn_stick_x = stick_x;
+        drawn_stick_y = stick_y;
+        drawn_stick_state = stick_state;
+        drawn_click_state = click_state;
+        drawn_pressed = isPressed();
+    }
+
     @Override
     public boolean onElementTouchEvent(MotionEvent event) {
         // save last click state
@@ -341,8 +377,8 @@ public class AnalogStick extends VirtualControllerElement {
             // not longer pressed reset analog stick
             notifyOnMovement(0, 0);
         }
-        // refresh view
-        invalidate();
+        // refresh the parts of the view that changed
+        invalidateChanges();
         // accept the touch event
         return true;
     }
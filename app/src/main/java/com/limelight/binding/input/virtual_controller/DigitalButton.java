@@ -55,6 +55,7 @@ public class DigitalButton extends VirtualControllerElement {
     private List<DigitalButtonListener> listeners = new ArrayList<>();
     private String text = "";
     private int icon = -1;
+    private Drawable iconDrawable = null;
     private long timerLongClickTimeout = 3000;
     private Timer timerLongClick = null;
     private TimerLongClickTimerTask longClickTimerTask = null;
@@ -136,6 +137,8 @@ public class DigitalButton extends VirtualControllerElement {
 
     public void setIcon(int id) {
         this.icon = id;
+        // load it once instead of on every draw
+        this.iconDrawable = getResources().getDrawable(id);
         invalidate();
     }
 
@@ -154,9 +157,8 @@ public class DigitalButton extends VirtualControllerElement {
                 getWidth() - paint.getStrokeWidth(), getHeight() - paint.getStrokeWidth(), paint);
 
         if (icon != -1) {
-            Drawable d = getResources().getDrawable(icon);
-            d.setBounds(5, 5, getWidth() - 5, getHeight() - 5);
-            d.draw(canvas);
+            iconDrawable.setBounds(5, 5, getWidth() - 5, getHeight() - 5);
+            iconDrawable.draw(canvas);
         } else {
             paint.setStyle(Paint.Style.FILL_AND_STROKE);
             paint.setStrokeWidth(getDefaultStrokeWidth()/2);
@@ -149,7 +149,9 @@ public class DigitalPad extends VirtualControllerElement {
     }
 
     private void newDirectionCallback(int direction) {
-        _DBG("direction: " + direction);
+        if (_PRINT_DEBUG_INFORMATION) {
+            _DBG("direction: " + direction);
+        }
 
         // notify listeners
         for (DigitalPadListener listener : listeners) {
@@ -157,6 +159,17 @@ public class DigitalPad extends VirtualControllerElement {
         }
     }
 
+    private void setDirection(int newDirection) {
+        // most move events stay within the same direction, so don't notify or redraw for them
+        if (newDirection == direction) {
+            return;
+        }
+
+        direction = newDirection;
+        newDirectionCallback(direction);
+        invalidate();
+    }
+
     @Override
     public boolean onElementTouchEvent(MotionEvent event) {
         // get masked (not specific to a pointer) action
@@ -164,31 +177,28 @@ public class DigitalPad extends VirtualControllerElement {
             case MotionEvent.ACTION_DOWN:
             case MotionEvent.ACTION_POINTER_DOWN:
             case MotionEvent.ACTION_MOVE: {
-                direction = 0;
+                int newDirection = 0;
 
                 if (event.getX() < getPercent(getWidth(), 33)) {
-                    direction |= DIGITAL_PAD_DIRECTION_LEFT;
+                    newDirection |= DIGITAL_PAD_DIRECTION_LEFT;
                 }
                 if (event.getX() > getPercent(getWidth(), 66)) {
-                    direction |= DIGITAL_PAD_DIRECTION_RIGHT;
+                    newDirection |= DIGITAL_PAD_DIRECTION_RIGHT;
                 }
                 if (event.getY() > getPercent(getHeight(), 66)) {
-                    direction |= DIGITAL_PAD_DIRECTION_DOWN;
+                    newDirection |= DIGITAL_PAD_DIRECTION_DOWN;
                 }
                 if (event.getY() < getPercent(getHeight(), 33)) {
-                    direction |= DIGITAL_PAD_DIRECTION_UP;
+                    newDirection |= DIGITAL_PAD_DIRECTION_UP;
                 }
-                newDirectionCallback(direction);
-                invalidate();
+                setDirection(newDirection);
 
                 return true;
             }
             case MotionEvent.ACTION_CANCEL:
             case MotionEvent.ACTION_UP:
             case MotionEvent.ACTION_POINTER_UP: {
-                direction = 0;
-                newDirectionCallback(direction);
-                invalidate();
+                setDirection(DIGITAL_PAD_DIRECTION_NO_DIRECTION);
 
                 return true;
             }
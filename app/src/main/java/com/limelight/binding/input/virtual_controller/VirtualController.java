@@ -6,6 +6,7 @@ package com.limelight.binding.input.virtual_controller;
 
 import android.content.Context;
 import android.util.DisplayMetrics;
+import android.view.Choreographer;
 import android.view.View;
 import android.widget.Button;
 import android.widget.FrameLayout;
@@ -13,6 +14,7 @@ import android.widget.RelativeLayout;
 import android.widget.Toast;
 
 import com.limelight.R;
+import com.limelight.binding.input.InputStats;
 import com.limelight.nvstream.NvConnection;
 
 import java.util.ArrayList;
@@ -37,6 +39,7 @@ public class VirtualController {
     private static final boolean _PRINT_DEBUG_INFORMATION = false;
 
     private NvConnection connection = null;
+    private InputStats inputStats = null;
     private Context context = null;
 
     private FrameLayout frame_layout = null;
@@ -45,18 +48,48 @@ public class VirtualController {
     ControllerMode currentMode = ControllerMode.Active;
     ControllerInputContext inputContext = new ControllerInputContext();
 
+    // What we last sent to the host
+    private final ControllerInputContext sentContext = new ControllerInputContext();
+    private boolean sentOnce = false;
+
     private RelativeLayout.LayoutParams layoutParamsButtonConfigure = null;
     private Button buttonConfigure = null;
 
     private List<VirtualControllerElement> elements = new ArrayList<>();
 
-    public VirtualController(final NvConnection conn, FrameLayout layout, final Context context) {
+    // Time of the touch event being handled, and of the oldest change not sent yet
+    private long inputEventTimeMs = -1;
+    private long pendingEventTimeMs = -1;
+
+    // Stick movement is sent at most once per display frame. The elements report
+    // every touch sample and the host can't show them any faster.
+    private final Choreographer choreographer;
+    private boolean framePending = false;
+    private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            synchronized (VirtualController.this) {
+                framePending = false;
+                sendControllerInputPacket();
+            }
+        }
+    };
+
+    public VirtualController(final NvConnection conn, FrameLayout layout, final Context context, InputStats inputStats) {
         this.connection = conn;
+        this.inputStats = inputStats;
         this.frame_layout = layout;
         this.context = context;
 
+        // Must be created on the UI thread, but callbacks can be posted from any thread
+        this.choreographer = Choreographer.getInstance();
+
         relative_layout = new RelativeLayout(context);
 
+        // Composite the whole overlay as one layer over the video. Only elements
+        // that changed are redrawn into it.
+        relative_layout.setLayerType(View.LAYER_TYPE_HARDWARE, null);
+
         frame_layout.addView(relative_layout);
 
         buttonConfigure = new Button(context);
@@ -131,19 +164,47 @@ public class VirtualController {
         return inputContext;
     }
 
-    public void sendControllerInputContext() {
-        sendControllerInputPacket();
+    // Called by elements before handling a touch so the packets it causes can be
+    // attributed to it
+    void setInputEventTime(long eventTimeMs) {
+        inputEventTimeMs = eventTimeMs;
+    }
+
+    public synchronized void sendControllerInputContext() {
+        if (pendingEventTimeMs < 0) {
+            pendingEventTimeMs = inputEventTimeMs;
+        }
+        // Each touch is only attributed once, so a later send without a new
+        // touch doesn't reuse its time
+        inputEventTimeMs = -1;
+
+        if (!sentOnce || inputContext.inputMap != sentContext.inputMap ||
+                inputContext.leftTrigger != sentContext.leftTrigger ||
+                inputContext.rightTrigger != sentContext.rightTrigger) {
+            // Button changes can't wait for the next frame. This also sends any
+            // stick movement waiting for it.
+            sendControllerInputPacket();
+        }
+        else if (!framePending) {
+            framePending = true;
+            choreographer.postFrameCallback(frameCallback);
+        }
     }
 
     private void sendControllerInputPacket() {
-        try {
-            _DBG("INPUT_MAP + " + inputContext.inputMap);
-            _DBG("LEFT_TRIGGER " + inputContext.leftTrigger);
-            _DBG("RIGHT_TRIGGER " + inputContext.rightTrigger);
-            _DBG("LEFT STICK X: " + inputContext.leftStickX + " Y: " + inputContext.leftStickY);
-            _DBG("RIGHT STICK X: " + inputContext.rightStickX + " Y: " + inputContext.rightStickY);
-            _DBG("RIGHT STICK X: " + inputContext.rightStickX + " Y: " + inputContext.rightStickY);
+        if (sentOnce && inputContext.inputMap == sentContext.inputMap &&
+                inputContext.leftTrigger == sentContext.leftTrigger &&
+                inputContext.rightTrigger == sentContext.rightTrigger &&
+                inputContext.leftStickX == sentContext.leftStickX &&
+                inputContext.leftStickY == sentContext.leftStickY &&
+                inputContext.rightStickX == sentContext.rightStickX &&
+                inputContext.rightStickY == sentContext.rightStickY) {
+            // Nothing changed since the last packet
+            pendingEventTimeMs = -1;
+            return;
+        }
 
+        try {
             if (connection != null) {
                 connection.sendControllerInput(
                         inputContext.inputMap,
@@ -154,6 +215,20 @@ public class VirtualController {
                         inputContext.rightStickX,
                         inputContext.rightStickY
                 );
+
+                if (pendingEventTimeMs >= 0) {
+                    inputStats.inputSent(InputStats.SOURCE_VIRTUAL_CONTROLLER, pendingEventTimeMs);
+                    pendingEventTimeMs = -1;
+                }
+
+                sentOnce = true;
+                sentContext.inputMap = inputContext.inputMap;
+                sentContext.leftTrigger = inputContext.leftTrigger;
+                sentContext.rightTrigger = inputContext.rightTrigger;
+                sentContext.leftStickX = inputContext.leftStickX;
+                sentContext.leftStickY = inputContext.leftStickY;
+                sentContext.rightStickX = inputContext.rightStickX;
+                sentContext.rightStickY = inputContext.rightStickY;
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -15,7 +15,8 @@ import android.view.View;
 import android.widget.RelativeLayout;
 
 public abstract class VirtualControllerElement extends View {
-    protected static boolean _PRINT_DEBUG_INFORMATION = false;
+    // Constant so debug string building is compiled out of the touch paths
+    protected static final boolean _PRINT_DEBUG_INFORMATION = false;
 
     protected VirtualController virtualController;
 
@@ -202,6 +203,7 @@ public abstract class VirtualControllerElement extends View {
     @Override
     public boolean onTouchEvent(MotionEvent event) {
         if (virtualController.getControllerMode() == VirtualController.ControllerMode.Active) {
+            virtualController.setInputEventTime(event.getEventTime());
             return onElementTouchEvent(event);
         }
 
@@ -0,0 +1,172 @@
+package com.limelight.binding.video;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// This class pairs decode units coming from the receive thread with input buffers
+// handed to us by the codec's callback thread. Neither side takes a lock or blocks.
+// It doesn't know anything about MediaCodec so it can be driven by a fake codec
+// on a plain JVM.
+public class AsyncDecodePipeline<T> {
+
+    public interface Codec<T> {
+        // Called when a unit has been paired with an input buffer. The codec
+        // is responsible for filling and queuing the buffer. The enqueue time
+        // is the System.nanoTime() at which submitUnit() was called. If this
+        // throws, the unit must not have been freed. It's discarded and the
+        // pipeline stops.
+        void submitInput(int inputBufferIndex, T unit, long unitEnqueueTimeNs);
+
+        // Called when a decoded frame is ready to be released to the surface
+        void renderOutput(int outputBufferIndex, long presentationTimeUs);
+
+        // Called for units that were never submitted when the pipeline stops
+        void discardUnit(T unit);
+    }
+
+    private final Codec<T> codec;
+
+    private final ConcurrentLinkedQueue<Integer> freeInputBuffers = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<PendingUnit<T>> pendingUnits = new ConcurrentLinkedQueue<>();
+
+    // Only one thread may pair units and buffers at a time. Whoever loses the race
+    // leaves its work in the queues for the current drainer to pick up.
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    private volatile boolean stopped;
+
+    private final AtomicLong unitsSubmitted = new AtomicLong();
+    private final AtomicLong framesRendered = new AtomicLong();
+    private final AtomicLong totalInputWaitNs = new AtomicLong();
+
+    public AsyncDecodePipeline(Codec<T> codec) {
+        this.codec = codec;
+    }
+
+    public void submitUnit(T unit) {
+        if (stopped) {
+            codec.discardUnit(unit);
+            return;
+        }
+
+        PendingUnit<T> pending = new PendingUnit<>(unit, System.nanoTime());
+        pendingUnits.add(pending);
+
+        // stop() may have emptied the queue between our check and the add. Whoever
+        // removes the unit from the queue is the one that discards it.
+        if (stopped) {
+            if (pendingUnits.remove(pending)) {
+                codec.discardUnit(unit);
+            }
+            return;
+        }
+
+        drain();
+    }
+
+    public void onInputBufferAvailable(int inputBufferIndex) {
+        if (stopped) {
+            return;
+        }
+
+        freeInputBuffers.add(inputBufferIndex);
+        drain();
+    }
+
+    public void onOutputBufferAvailable(int outputBufferIndex, long presentationTimeUs) {
+        if (stopped) {
+            return;
+        }
+
+        codec.renderOutput(outputBufferIndex, presentationTimeUs);
+        framesRendered.incrementAndGet();
+    }
+
+    private void drain() {
+        for (;;) {
+            if (!draining.compareAndSet(false, true)) {
+                // Someone else is draining and will see our addition
+                return;
+            }
+
+            try {
+                while (!stopped && !pendingUnits.isEmpty() && !freeInputBuffers.isEmpty()) {
+                    PendingUnit<T> pending = pendingUnits.poll();
+                    Integer inputBufferIndex = freeInputBuffers.poll();
+
+                    totalInputWaitNs.addAndGet(System.nanoTime() - pending.enqueueTimeNs);
+                    try {
+                        codec.submitInput(inputBufferIndex, pending.unit, pending.enqueueTimeNs);
+                    } catch (RuntimeException e) {
+                        // The codec is failing, usually because it's being torn down.
+                        // Its buffers can't be trusted anymore, so stop pairing and
+                        // return every unit we hold.
+                        stopped = true;
+                        codec.discardUnit(pending.unit);
+                        discardPendingUnits();
+                        throw e;
+                    }
+                    unitsSubmitted.incrementAndGet();
+                }
+            } finally {
+                draining.set(false);
+            }
+
+            // Another thread may have added work after our last check but
+            // before we released the flag, so look once more before leaving.
+            if (stopped || pendingUnits.isEmpty() || freeInputBuffers.isEmpty()) {
+                return;
+            }
+        }
+    }
+
+    public void stop() {
+        stopped = true;
+
+        // Wait for any in-progress drain to finish before returning the units
+        while (!draining.compareAndSet(false, true)) {
+            Thread.yield();
+        }
+
+        discardPendingUnits();
+    }
+
+    // Must be called with the draining flag held
+    private void discardPendingUnits() {
+        PendingUnit<T> pending;
+        while ((pending = pendingUnits.poll()) != null) {
+            codec.discardUnit(pending.unit);
+        }
+        freeInputBuffers.clear();
+    }
+
+    public int getPendingUnitCount() {
+        return pendingUnits.size();
+    }
+
+    public long getUnitsSubmitted() {
+        return unitsSubmitted.get();
+    }
+
+    public long getFramesRendered() {
+        return framesRendered.get();
+    }
+
+    public long getAverageInputWaitUs() {
+        long submitted = unitsSubmitted.get();
+        if (submitted == 0) {
+            return 0;
+        }
+        return totalInputWaitNs.get() / submitted / 1000;
+    }
+
+    private static class PendingUnit<T> {
+        final T unit;
+        final long enqueueTimeNs;
+
+        PendingUnit(T unit, long enqueueTimeNs) {
+            this.unit = unit;
+            this.enqueueTimeNs = enqueueTimeNs;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.limelight.binding.video;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.view.Choreographer;
+
+// Tracks display vsync using Choreographer frame callbacks on a dedicated looper
+// thread. Choreographer timestamps use the System.nanoTime() timebase.
+public class ChoreographerVsyncClock implements FramePacer.VsyncClock, Choreographer.FrameCallback {
+    private final HandlerThread vsyncThread;
+    private final VsyncPeriodEstimator estimator = new VsyncPeriodEstimator();
+    private Choreographer choreographer;
+    private volatile boolean stopped;
+
+    private volatile long lastVsyncNs;
+    private volatile long vsyncPeriodNs;
+
+    public ChoreographerVsyncClock() {
+        vsyncThread = new HandlerThread("Video - Vsync", Process.THREAD_PRIORITY_DISPLAY);
+        vsyncThread.start();
+
+        // Choreographer must be created on the thread that will receive the callbacks
+        new Handler(vsyncThread.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                choreographer = Choreographer.getInstance();
+                choreographer.postFrameCallback(ChoreographerVsyncClock.this);
+            }
+        });
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        vsyncPeriodNs = estimator.onVsync(frameTimeNanos);
+        lastVsyncNs = frameTimeNanos;
+
+        if (!stopped) {
+            choreographer.postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public long getLastVsyncNs() {
+        return lastVsyncNs;
+    }
+
+    @Override
+    public long getVsyncPeriodNs() {
+        return vsyncPeriodNs;
+    }
+
+    public void stop() {
+        stopped = true;
+        vsyncThread.quit();
+    }
+}
@@ -0,0 +1,42 @@
+package com.limelight.binding.video;
+
+import java.nio.ByteBuffer;
+
+import com.limelight.nvstream.av.ByteBufferDescriptor;
+import com.limelight.nvstream.av.DecodeUnit;
+
+// Copies a decode unit's descriptor chain into a codec input buffer. Descriptors
+// that are adjacent in the same backing array are merged so each contiguous run
+// is written with a single bulk put() instead of one put() per descriptor.
+public class DecodeUnitWriter {
+
+    private DecodeUnitWriter() {}
+
+    // Returns the number of bytes written to the buffer
+    public static int writeDecodeUnit(DecodeUnit decodeUnit, ByteBuffer buf) {
+        return writeDescriptorChain(decodeUnit.getBufferHead(), buf);
+    }
+
+    public static int writeDescriptorChain(ByteBufferDescriptor head, ByteBuffer buf) {
+        int written = 0;
+
+        ByteBufferDescriptor desc = head;
+        while (desc != null) {
+            byte[] runData = desc.data;
+            int runOffset = desc.offset;
+            int runLength = desc.length;
+
+            // Extend the run while the next descriptor picks up where this one ends
+            desc = desc.nextDescriptor;
+            while (desc != null && desc.data == runData && desc.offset == runOffset + runLength) {
+                runLength += desc.length;
+                desc = desc.nextDescriptor;
+            }
+
+            buf.put(runData, runOffset, runLength);
+            written += runLength;
+        }
+
+        return written;
+    }
+}
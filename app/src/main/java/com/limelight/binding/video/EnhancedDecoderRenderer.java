@@ -5,4 +5,5 @@ import com.limelight.nvstream.av.video.VideoDecoderRenderer;
 public abstract class EnhancedDecoderRenderer extends VideoDecoderRenderer {
     public abstract boolean isHevcSupported();
     public abstract boolean isAvcSupported();
+    public abstract VideoStats getVideoStats();
 }
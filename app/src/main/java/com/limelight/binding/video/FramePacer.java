@@ -0,0 +1,204 @@
+package com.limelight.binding.video;
+
+// Decides when each decoded frame is presented. The renderer hands us every output
+// buffer it dequeues, then calls flush() once it has drained the decoder. We release
+// the buffers we don't want and schedule the rest against the display's vsync.
+//
+// Like AsyncDecodePipeline, this doesn't know anything about MediaCodec or the
+// Android display stack, so it can be driven by synthetic frame traces on a plain JVM.
+public class FramePacer {
+    // Render the newest frame immediately (the original behavior)
+    public static final int POLICY_LOWEST_LATENCY = 0;
+    // Render the newest frame at the next vsync
+    public static final int POLICY_VSYNC = 1;
+    // Keep up to one frame queued behind the next vsync to absorb arrival jitter
+    public static final int POLICY_BALANCED = 2;
+
+    public interface VsyncClock {
+        // The current time on the same timebase as the vsync timestamps
+        long nanoTime();
+
+        // Timestamp of the most recent vsync, or 0 if no vsync has been seen yet
+        long getLastVsyncNs();
+
+        // Time between vsyncs, or 0 if unknown
+        long getVsyncPeriodNs();
+    }
+
+    public interface Output {
+        // Release a buffer to the surface. A render time of -1 means as soon as possible.
+        void renderFrame(int outputBufferIndex, long renderTimeNs);
+
+        // Release a buffer without rendering it
+        void discardFrame(int outputBufferIndex);
+    }
+
+    private static final int MAX_HELD_FRAMES = 8;
+
+    private final int policy;
+    private final int streamFrameRate;
+    private final VsyncClock clock;
+    private final Output output;
+    private final VideoStats stats;
+
+    // Frames dequeued since the last flush(), oldest first
+    private final int[] heldIndex = new int[MAX_HELD_FRAMES];
+    private final long[] heldPtsUs = new long[MAX_HELD_FRAMES];
+    private int heldCount;
+
+    // The vsync the last presented frame is expected to show up on
+    private long lastTargetVsyncNs;
+
+    private long framesPresented;
+    private long framesDropped;
+    private long framesDuplicated;
+
+    // The clock may be null for POLICY_LOWEST_LATENCY, which then skips vsync accounting
+    public FramePacer(int policy, int streamFrameRate, VsyncClock clock, Output output, VideoStats stats) {
+        this.policy = policy;
+        this.streamFrameRate = streamFrameRate;
+        this.clock = clock;
+        this.output = output;
+        this.stats = stats;
+    }
+
+    public void frameDecoded(int outputBufferIndex, long presentationTimeUs) {
+        if (heldCount == MAX_HELD_FRAMES) {
+            // Something is badly behind. Make room by dropping the oldest frame.
+            dropHeldFrames(1);
+        }
+
+        heldIndex[heldCount] = outputBufferIndex;
+        heldPtsUs[heldCount] = presentationTimeUs;
+        heldCount++;
+    }
+
+    public void flush() {
+        if (heldCount == 0) {
+            return;
+        }
+
+        // Balanced pacing can use the newest two frames. Everything else only wants the newest.
+        int keep = policy == POLICY_BALANCED ? 2 : 1;
+        if (heldCount > keep) {
+            dropHeldFrames(heldCount - keep);
+        }
+
+        for (int i = 0; i < heldCount; i++) {
+            presentFrame(heldIndex[i], heldPtsUs[i]);
+        }
+        heldCount = 0;
+    }
+
+    private void dropHeldFrames(int count) {
+        for (int i = 0; i < count; i++) {
+            output.discardFrame(heldIndex[i]);
+            frameDropped();
+        }
+
+        System.arraycopy(heldIndex, count, heldIndex, 0, heldCount - count);
+        System.arraycopy(heldPtsUs, count, heldPtsUs, 0, heldCount - count);
+        heldCount -= count;
+    }
+
+    private void frameDropped() {
+        framesDropped++;
+        if (stats != null) {
+            stats.frameDropped();
+        }
+    }
+
+    private void presentFrame(int outputBufferIndex, long presentationTimeUs) {
+        if (clock == null) {
+            // Lowest latency pacing doesn't need a vsync clock
+            output.renderFrame(outputBufferIndex, -1);
+            frameRendered(presentationTimeUs, System.nanoTime());
+            return;
+        }
+
+        long nowNs = clock.nanoTime();
+        long lastVsyncNs = clock.getLastVsyncNs();
+        long periodNs = clock.getVsyncPeriodNs();
+
+        if (lastVsyncNs == 0 || periodNs <= 0) {
+            // No vsync information yet, so there's nothing to pace against
+            output.renderFrame(outputBufferIndex, -1);
+            frameRendered(presentationTimeUs, nowNs);
+            return;
+        }
+
+        // Find the first vsync that we can still make. The clock's last vsync
+        // may be a few periods stale if its thread was descheduled.
+        long vsyncsSinceLast = (nowNs - lastVsyncNs) / periodNs + 1;
+        long nextVsyncNs = lastVsyncNs + vsyncsSinceLast * periodNs;
+
+        // How many vsyncs the previous frame is scheduled ahead of the next one.
+        // Negative values mean it was shown before the next vsync.
+        long lastAheadOfNext = lastTargetVsyncNs == 0 ? -1 :
+                Math.round((double) (lastTargetVsyncNs - nextVsyncNs) / periodNs);
+
+        int queueDepth = policy == POLICY_BALANCED ? 1 : 0;
+        long targetVsyncNs;
+        if (lastAheadOfNext < 0) {
+            targetVsyncNs = nextVsyncNs;
+
+            // A stream slower than the display is expected to show each frame for
+            // several vsyncs. Anything beyond that means the last frame was repeated.
+            long expectedVsyncs = streamFrameRate <= 0 ? 1 :
+                    Math.max(1, Math.round(1000000000.0 / streamFrameRate / periodNs));
+            if (lastTargetVsyncNs != 0 && -lastAheadOfNext > expectedVsyncs) {
+                framesDuplicated(-lastAheadOfNext - expectedVsyncs);
+            }
+        }
+        else if (lastAheadOfNext + 1 <= queueDepth) {
+            // There's still room in the queue behind the last frame
+            targetVsyncNs = lastTargetVsyncNs + periodNs;
+        }
+        else {
+            // The queue is full. This frame will replace the last one on screen.
+            targetVsyncNs = lastTargetVsyncNs;
+            frameDropped();
+        }
+
+        lastTargetVsyncNs = targetVsyncNs;
+
+        if (policy == POLICY_LOWEST_LATENCY) {
+            // We only use the vsync estimate for accounting
+            output.renderFrame(outputBufferIndex, -1);
+        }
+        else {
+            output.renderFrame(outputBufferIndex, targetVsyncNs);
+        }
+        frameRendered(presentationTimeUs, nowNs);
+    }
+
+    private void framesDuplicated(long count) {
+        framesDuplicated += count;
+        if (stats != null) {
+            stats.framesDuplicated(count);
+        }
+    }
+
+    private void frameRendered(long presentationTimeUs, long nowNs) {
+        framesPresented++;
+        if (stats != null) {
+            stats.frameRendered(presentationTimeUs, nowNs / 1000);
+        }
+    }
+
+    public int getPolicy() {
+        return policy;
+    }
+
+    public long getFramesPresented() {
+        return framesPresented;
+    }
+
+    public long getFramesDropped() {
+        return framesDropped;
+    }
+
+    public long getFramesDuplicated() {
+        return framesDuplicated;
+    }
+}
@@ -0,0 +1,99 @@
+package com.limelight.binding.video;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// A fixed-size log-linear histogram of microsecond latencies. Each power of two is split
+// into 8 buckets, so percentiles are accurate to within 12.5% all the way up to ~16 seconds.
+// Anything longer goes in the last bucket.
+// Recording is a single atomic increment, so any thread can record without locking.
+public class LatencyHistogram {
+    private static final int SUB_BUCKETS = 8;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int BUCKET_COUNT = 176;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong maxUs = new AtomicLong();
+
+    static int bucketForValue(long valueUs) {
+        if (valueUs < SUB_BUCKETS) {
+            return (int) Math.max(valueUs, 0);
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(valueUs);
+        int subBucket = (int) (valueUs >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return Math.min((exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket, BUCKET_COUNT - 1);
+    }
+
+    static long bucketUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1L) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    public void record(long valueUs) {
+        if (valueUs < 0) {
+            // Clock skew between stages, count it as zero
+            valueUs = 0;
+        }
+
+        buckets.incrementAndGet(bucketForValue(valueUs));
+        count.incrementAndGet();
+
+        long currentMax;
+        while (valueUs > (currentMax = maxUs.get())) {
+            if (maxUs.compareAndSet(currentMax, valueUs)) {
+                break;
+            }
+        }
+    }
+
+    // Clears the histogram so it can be reused. Values recorded while this runs may be
+    // partly kept, so only call it when nothing else is recording.
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        maxUs.set(0);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMaxUs() {
+        return maxUs.get();
+    }
+
+    // Returns the upper bound of the bucket containing the given percentile (0-100)
+    public long getPercentileUs(double percentile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+
+        long target = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += buckets.get(i);
+            if (seen >= target) {
+                if (i == BUCKET_COUNT - 1) {
+                    // The overflow bucket has no meaningful bound
+                    return maxUs.get();
+                }
+
+                // The bucket bound can overshoot the largest value we actually saw
+                return Math.min(bucketUpperBound(i), maxUs.get());
+            }
+        }
+
+        // Counts were updated while we were reading
+        return maxUs.get();
+    }
+}
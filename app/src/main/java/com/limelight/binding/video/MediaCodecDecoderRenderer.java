@@ -1,13 +1,10 @@
 package com.limelight.binding.video;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Locale;
 import java.util.concurrent.locks.LockSupport;
 
-import org.jcodec.codecs.h264.H264Utils;
-import org.jcodec.codecs.h264.io.model.SeqParameterSet;
-import org.jcodec.codecs.h264.io.model.VUIParameters;
-
 import com.limelight.LimeLog;
 import com.limelight.nvstream.av.ByteBufferDescriptor;
 import com.limelight.nvstream.av.DecodeUnit;
@@ -20,7 +17,11 @@ import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.media.MediaCodec.BufferInfo;
 import android.media.MediaCodec.CodecException;
+import android.annotation.TargetApi;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.view.Surface;
 import android.view.SurfaceHolder;
 
@@ -36,13 +37,18 @@ public class MediaCodecDecoderRenderer extends EnhancedDecoderRenderer {
     private Thread rendererThread;
     private boolean needsSpsBitstreamFixup, isExynos4;
     private VideoDepacketizer depacketizer;
-    private boolean adaptivePlayback, directSubmit;
+    private boolean adaptivePlayback, directSubmit, asyncMode;
     private boolean constrainedHighProfile;
     private int initialWidth, initialHeight;
     private VideoFormat videoFormat;
 
+    // Used in asynchronous mode
+    private HandlerThread callbackThread;
+    private AsyncDecodePipeline<DecodeUnit> asyncPipeline;
+
     private boolean needsBaselineSpsHack;
-    private SeqParameterSet savedSps;
+    private byte[] savedSpsNalu;
+    private final SpsRewriter spsRewriter = new SpsRewriter();
 
     private long lastTimestampUs;
     private long totalTimeMs;
@@ -54,6 +60,13 @@ public class MediaCodecDecoderRenderer extends EnhancedDecoderRenderer {
     private int numVpsIn;
     private int numIframeIn;
 
+    private final VideoStats videoStats = new VideoStats();
+
+    private int framePacingPolicy;
+    private int redrawRate;
+    private ChoreographerVsyncClock vsyncClock;
+    private FramePacer framePacer;
+
     private MediaCodecInfo findAvcDecoder() {
         MediaCodecInfo decoder = MediaCodecHelper.findProbableSafeDecoder("video/avc", MediaCodecInfo.CodecProfileLevel.AVCProfileHigh);
         if (decoder == null) {
@@ -90,7 +103,7 @@ public class MediaCodecDecoderRenderer extends EnhancedDecoderRenderer {
         return decoderInfo;
     }
 
-    public MediaCodecDecoderRenderer(int videoFormat) {
+    public MediaCodecDecoderRenderer(PreferenceConfiguration prefs) {
         //dumpDecoders();
 
         MediaCodecInfo avcDecoder = findAvcDecoder();
@@ -102,7 +115,7 @@ public class MediaCodecDecoderRenderer extends EnhancedDecoderRenderer {
             LimeLog.warning("No AVC decoder found");
         }
 
-        MediaCodecInfo hevcDecoder = findHevcDecoder(videoFormat);
+        MediaCodecInfo hevcDecoder = findHevcDecoder(prefs.videoFormat);
         if (hevcDecoder != null) {
             hevcDecoderName = hevcDecoder.getName();
             LimeLog.info("Selected HEVC decoder: "+hevcDecoderName);
@@ -120,10 +133,52 @@ public class MediaCodecDecoderRenderer extends EnhancedDecoderRenderer {
             directSubmit = MediaCodecHelper.decoderCanDirectSubmit(avcDecoderName);
             adaptivePlayback = MediaCodecHelper.decoderSupportsAdaptivePlayback(avcDecoderName);
 
-            if (directSubmit) {
+            switch (prefs.decoderMode) {
+                case PreferenceConfiguration.DECODER_MODE_LEGACY:
+                    directSubmit = false;
+                    break;
+                case PreferenceConfiguration.DECODER_MODE_DIRECT_SUBMIT:
+                    // Decoders that aren't known to handle it keep the default mode
+                    if (!directSubmit) {
+                        LimeLog.warning("Decoder "+avcDecoderName+" can't use direct submit. Using the default mode.");
+                    }
+                    break;
+                case PreferenceConfiguration.DECODER_MODE_ASYNC:
+                    asyncMode = MediaCodecHelper.decoderCanUseAsyncMode(avcDecoderName);
+                    if (!asyncMode) {
+                        LimeLog.info("Decoder "+avcDecoderName+" can't use asynchronous mode");
+                    }
+                    break;
+                default:
+                    break;
+            }
+
+            if (asyncMode) {
+                LimeLog.info("Decoder "+avcDecoderName+" will use asynchronous callbacks");
+            }
+            else if (directSubmit) {
                 LimeLog.info("Decoder "+avcDecoderName+" will use direct submit");
             }
         }
+
+        switch (prefs.framePacing) {
+            case PreferenceConfiguration.FRAME_PACING_VSYNC:
+                framePacingPolicy = FramePacer.POLICY_VSYNC;
+                break;
+            case PreferenceConfiguration.FRAME_PACING_BALANCED:
+                framePacingPolicy = FramePacer.POLICY_BALANCED;
+                break;
+            default:
+                framePacingPolicy = FramePacer.POLICY_LOWEST_LATENCY;
+                break;
+        }
+
+        // Timed buffer release is only available on Lollipop and later
+        if (framePacingPolicy != FramePacer.POLICY_LOWEST_LATENCY &&
+                Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            LimeLog.info("Frame pacing requires Android 5.0; using lowest latency");
+            framePacingPolicy = FramePacer.POLICY_LOWEST_LATENCY;
+        }
     }
 
     @Override
@@ -141,6 +196,7 @@ public class MediaCodecDecoderRenderer extends EnhancedDecoderRenderer {
         this.initialWidth = width;
         this.initialHeight = height;
         this.videoFormat = format;
+        this.redrawRate = redrawRate;
 
         String mimeType;
         String selectedDecoderName;
@@ -171,6 +227,26 @@ public class MediaCodecDecoderRenderer extends EnhancedDecoderRenderer {
             if (isExynos4) {
                 LimeLog.info("Decoder "+selectedDecoderName+" is on Exynos 4");
             }
+
+            // Some decoders rely on H264 level to decide how many buffers are needed
+            // Since we only need one frame buffered, we'll set the level as low as we can
+            // for known resolution combinations
+            if (width == 1280 && height == 720) {
+                // Max 5 buffered frames at 1280x720x60
+                spsRewriter.setH264LevelIdc(32);
+            }
+            else if (width == 1920 && height == 1080) {
+                // Max 4 buffered frames at 1920x1080x64
+                spsRewriter.setH264LevelIdc(42);
+            }
+            else {
+                // Leave the profile alone (currently 5.0)
+                spsRewriter.setH264LevelIdc(-1);
+            }
+
+            spsRewriter.setBitstreamRestrictions(needsSpsBitstreamFixup || isExynos4);
+            spsRewriter.setBaselineProfileHack(needsBaselineSpsHack);
+            spsRewriter.setConstrainedHighProfile(constrainedHighProfile);
         }
         else if (videoFormat == VideoFormat.H265) {
             mimeType = "video/hevc";
@@ -180,6 +256,11 @@ public class MediaCodecDecoderRenderer extends EnhancedDecoderRenderer {
                 LimeLog.severe("No available HEVC decoder!");
                 return false;
             }
+
+            spsRewriter.setHevcLowLatencyDpb(MediaCodecHelper.decoderNeedsHevcSpsFixup(selectedDecoderName));
+            if (spsRewriter.isHevcLowLatencyDpb()) {
+                LimeLog.info("Decoder "+selectedDecoderName+" needs HEVC VPS/SPS fixup");
+            }
         }
         else {
             // Unknown format
@@ -211,6 +292,11 @@ public class MediaCodecDecoderRenderer extends EnhancedDecoderRenderer {
             surface = (Surface)renderTarget;
         }
 
+        // The callback must be registered before the codec is configured
+        if (asyncMode) {
+            setupAsyncPipeline();
+        }
+
         videoDecoder.configure(videoFormat, surface, null, 0);
         videoDecoder.setVideoScalingMode(MediaCodec.VIDEO_SCALING_MODE_SCALE_TO_FIT);
 
@@ -245,6 +331,72 @@ public class MediaCodecDecoderRenderer extends EnhancedDecoderRenderer {
         }
     }
 
+    @TargetApi(Build.VERSION_CODES.M)
+    private void setupAsyncPipeline() {
+        asyncPipeline = new AsyncDecodePipeline<>(new AsyncDecodePipeline.Codec<DecodeUnit>() {
+            @Override
+            public void submitInput(int inputBufferIndex, DecodeUnit unit, long unitEnqueueTimeNs) {
+                // The unit was paired with this buffer just now
+                submitDecodeUnit(unit, inputBufferIndex, unitEnqueueTimeNs / 1000, VideoStats.getTimeUs());
+            }
+
+            @Override
+            public void renderOutput(int outputBufferIndex, long presentationTimeUs) {
+                // Callbacks arrive one buffer at a time, so each one is its own batch
+                framePacer.frameDecoded(outputBufferIndex, presentationTimeUs);
+                framePacer.flush();
+
+                // Add delta time to the totals (excluding probable outliers)
+                long delta = MediaCodecHelper.getMonotonicMillis() - (presentationTimeUs / 1000);
+                if (delta >= 0 && delta < 1000) {
+                    decoderTimeMs += delta;
+                    totalTimeMs += delta;
+                }
+            }
+
+            @Override
+            public void discardUnit(DecodeUnit unit) {
+                depacketizer.freeDecodeUnit(unit);
+            }
+        });
+
+        // Callbacks are delivered on this thread instead of the main looper
+        callbackThread = new HandlerThread("Video - Renderer (MediaCodec callbacks)",
+                Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        callbackThread.start();
+
+        videoDecoder.setCallback(new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(MediaCodec codec, int index) {
+                try {
+                    asyncPipeline.onInputBufferAvailable(index);
+                } catch (Exception e) {
+                    handleDecoderException(e, null, 0);
+                }
+            }
+
+            @Override
+            public void onOutputBufferAvailable(MediaCodec codec, int index, BufferInfo info) {
+                try {
+                    asyncPipeline.onOutputBufferAvailable(index, info.presentationTimeUs);
+                } catch (Exception e) {
+                    handleDecoderException(e, null, 0);
+                }
+            }
+
+            @Override
+            public void onError(MediaCodec codec, CodecException e) {
+                handleDecoderException(e, null, 0);
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                LimeLog.info("Output format changed");
+                LimeLog.info("New output Format: " + format);
+            }
+        }, new Handler(callbackThread.getLooper()));
+    }
+
     private void startDirectSubmitRendererThread()
     {
         rendererThread = new Thread() {
@@ -257,18 +409,16 @@ public class MediaCodecDecoderRenderer extends EnhancedDecoderRenderer {
                         int outIndex = videoDecoder.dequeueOutputBuffer(info, 50000);
                         if (outIndex >= 0) {
                             long presentationTimeUs = info.presentationTimeUs;
-                            int lastIndex = outIndex;
+                            framePacer.frameDecoded(outIndex, presentationTimeUs);
 
-                            // Get the last output buffer in the queue
+                            // Hand every output buffer in the queue to the pacer
                             while ((outIndex = videoDecoder.dequeueOutputBuffer(info, 0)) >= 0) {
-                                videoDecoder.releaseOutputBuffer(lastIndex, false);
-
-                                lastIndex = outIndex;
                                 presentationTimeUs = info.presentationTimeUs;
+                                framePacer.frameDecoded(outIndex, presentationTimeUs);
                             }
 
-                            // Render the last buffer
-                            videoDecoder.releaseOutputBuffer(lastIndex, true);
+                            // Render or drop them according to the pacing policy
+                            framePacer.flush();
 
                             // Add delta time to the totals (excluding probable outliers)
                             long delta = MediaCodecHelper.getMonotonicMillis() - (presentationTimeUs / 1000);
@@ -328,6 +478,7 @@ public class MediaCodecDecoderRenderer extends EnhancedDecoderRenderer {
                 DecodeUnit du = null;
                 int inputIndex = -1;
                 long lastDuDequeueTime = 0;
+                long duDequeueTimeUs = 0, inputAcquireTimeUs = 0;
                 while (!isInterrupted())
                 {
                     // In order to get as much data to the decoder as early as possible,
@@ -336,9 +487,11 @@ public class MediaCodecDecoderRenderer extends EnhancedDecoderRenderer {
                         try {
                             for (int i = 0; i < 5; i++) {
                                 inputIndex = dequeueInputBuffer(false, false);
+                                inputAcquireTimeUs = VideoStats.getTimeUs();
                                 du = depacketizer.pollNextDecodeUnit();
                                 if (du != null) {
                                     lastDuDequeueTime = MediaCodecHelper.getMonotonicMillis();
+                                    duDequeueTimeUs = VideoStats.getTimeUs();
                                     notifyDuReceived(du);
                                 }
 
@@ -347,7 +500,7 @@ public class MediaCodecDecoderRenderer extends EnhancedDecoderRenderer {
                                     break;
                                 }
 
-                                submitDecodeUnit(du, inputIndex);
+                                submitDecodeUnit(du, inputIndex, duDequeueTimeUs, inputAcquireTimeUs);
 
                                 du = null;
                                 inputIndex = -1;
@@ -370,6 +523,7 @@ public class MediaCodecDecoderRenderer extends EnhancedDecoderRenderer {
                             // wait a full 3 ms for an input buffer. Otherwise
                             // just see if we can get one immediately.
                             inputIndex = dequeueInputBuffer(du != null, false);
+                            inputAcquireTimeUs = VideoStats.getTimeUs();
                         } catch (Exception e) {
                             inputIndex = -1;
                             handleDecoderException(e, null, 0);
@@ -381,6 +535,7 @@ public class MediaCodecDecoderRenderer extends EnhancedDecoderRenderer {
                         du = depacketizer.pollNextDecodeUnit();
                         if (du != null) {
                             lastDuDequeueTime = MediaCodecHelper.getMonotonicMillis();
+                            duDequeueTimeUs = VideoStats.getTimeUs();
                             notifyDuReceived(du);
                         }
                     }
@@ -393,7 +548,7 @@ public class MediaCodecDecoderRenderer extends EnhancedDecoderRenderer {
                             LimeLog.warning("Receiving an input buffer took too long: "+(submissionTime - lastDuDequeueTime)+" ms");
                         }
 
-                        submitDecodeUnit(du, inputIndex);
+                        submitDecodeUnit(du, inputIndex, duDequeueTimeUs, inputAcquireTimeUs);
 
                         // DU and input buffer have both been consumed
                         du = null;
@@ -406,17 +561,16 @@ public class MediaCodecDecoderRenderer extends EnhancedDecoderRenderer {
 
                         if (outIndex >= 0) {
                             long presentationTimeUs = info.presentationTimeUs;
-                            int lastIndex = outIndex;
+                            framePacer.frameDecoded(outIndex, presentationTimeUs);
 
-                            // Get the last output buffer in the queue
+                            // Hand every output buffer in the queue to the pacer
                             while ((outIndex = videoDecoder.dequeueOutputBuffer(info, 0)) >= 0) {
-                                videoDecoder.releaseOutputBuffer(lastIndex, false);
-                                lastIndex = outIndex;
                                 presentationTimeUs = info.presentationTimeUs;
+                                framePacer.frameDecoded(outIndex, presentationTimeUs);
                             }
 
-                            // Render the last buffer
-                            videoDecoder.releaseOutputBuffer(lastIndex, true);
+                            // Render or drop them according to the pacing policy
+                            framePacer.flush();
 
                             // Add delta time to the totals (excluding probable outliers)
                             long delta = MediaCodecHelper.getMonotonicMillis()-(presentationTimeUs/1000);
@@ -457,6 +611,28 @@ public class MediaCodecDecoderRenderer extends EnhancedDecoderRenderer {
     public boolean start(VideoDepacketizer depacketizer) {
         this.depacketizer = depacketizer;
 
+        // The pacer must exist before the decoder can produce output. Only the
+        // vsync-timed policies need a Choreographer thread.
+        if (framePacingPolicy != FramePacer.POLICY_LOWEST_LATENCY) {
+            vsyncClock = new ChoreographerVsyncClock();
+        }
+        framePacer = new FramePacer(framePacingPolicy, redrawRate, vsyncClock, new FramePacer.Output() {
+            @Override
+            public void renderFrame(int outputBufferIndex, long renderTimeNs) {
+                if (renderTimeNs < 0) {
+                    videoDecoder.releaseOutputBuffer(outputBufferIndex, true);
+                }
+                else {
+                    releaseOutputBufferAtTime(outputBufferIndex, renderTimeNs);
+                }
+            }
+
+            @Override
+            public void discardFrame(int outputBufferIndex) {
+                videoDecoder.releaseOutputBuffer(outputBufferIndex, false);
+            }
+        }, videoStats);
+
         // Start the decoder
         videoDecoder.start();
 
@@ -464,7 +640,10 @@ public class MediaCodecDecoderRenderer extends EnhancedDecoderRenderer {
             legacyInputBuffers = videoDecoder.getInputBuffers();
         }
 
-        if (directSubmit) {
+        if (asyncMode) {
+            // The codec callbacks drive the pipeline, so no renderer thread is needed
+        }
+        else if (directSubmit) {
             startDirectSubmitRendererThread();
         }
         else {
@@ -484,6 +663,15 @@ public class MediaCodecDecoderRenderer extends EnhancedDecoderRenderer {
             } catch (InterruptedException ignored) { }
         }
 
+        if (asyncPipeline != null) {
+            // Return any decode units that never got an input buffer
+            asyncPipeline.stop();
+        }
+
+        if (vsyncClock != null) {
+            vsyncClock.stop();
+        }
+
         // We could stop the decoder here, but it seems to cause some problems
         // so we'll just let release take care of it.
     }
@@ -493,6 +681,15 @@ public class MediaCodecDecoderRenderer extends EnhancedDecoderRenderer {
         if (videoDecoder != null) {
             videoDecoder.release();
         }
+
+        if (callbackThread != null) {
+            callbackThread.quit();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void releaseOutputBufferAtTime(int outputBufferIndex, long renderTimeNs) {
+        videoDecoder.releaseOutputBuffer(outputBufferIndex, renderTimeNs);
     }
 
     private void queueInputBuffer(int inputBufferIndex, int offset, int length, long timestampUs, int codecFlags) {
@@ -535,25 +732,9 @@ public class MediaCodecDecoderRenderer extends EnhancedDecoderRenderer {
         return buf;
     }
 
-    private void doProfileSpecificSpsPatching(SeqParameterSet sps) {
-        // Some devices benefit from setting constraint flags 4 & 5 to make this Constrained
-        // High Profile which allows the decoder to assume there will be no B-frames and
-        // reduce delay and buffering accordingly. Some devices (Marvell, Exynos 4) don't
-        // like it so we only set them on devices that are confirmed to benefit from it.
-        if (sps.profile_idc == 100 && constrainedHighProfile) {
-            LimeLog.info("Setting constraint set flags for constrained high profile");
-            sps.constraint_set_4_flag = true;
-            sps.constraint_set_5_flag = true;
-        }
-        else {
-            // Force the constraints unset otherwise (some may be set by default)
-            sps.constraint_set_4_flag = false;
-            sps.constraint_set_5_flag = false;
-        }
-    }
-
     @SuppressWarnings("deprecation")
-    private void submitDecodeUnit(DecodeUnit decodeUnit, int inputBufferIndex) {
+    private void submitDecodeUnit(DecodeUnit decodeUnit, int inputBufferIndex,
+                                  long dequeueTimeUs, long inputAcquireTimeUs) {
         long timestampUs = System.nanoTime() / 1000;
         if (timestampUs <= lastTimestampUs) {
             // We can't submit multiple buffers with the same timestamp
@@ -583,98 +764,12 @@ public class MediaCodecDecoderRenderer extends EnhancedDecoderRenderer {
             if (header.data[header.offset+4] == 0x67) {
                 numSpsIn++;
 
-                ByteBuffer spsBuf = ByteBuffer.wrap(header.data);
-
-                // Skip to the start of the NALU data
-                spsBuf.position(header.offset+5);
-
-                // The H264Utils.readSPS function safely handles
-                // Annex B NALUs (including NALUs with escape sequences)
-                SeqParameterSet sps = H264Utils.readSPS(spsBuf);
-
-                // Some decoders rely on H264 level to decide how many buffers are needed
-                // Since we only need one frame buffered, we'll set the level as low as we can
-                // for known resolution combinations
-                if (initialWidth == 1280 && initialHeight == 720) {
-                    // Max 5 buffered frames at 1280x720x60
-                    LimeLog.info("Patching level_idc to 32");
-                    sps.level_idc = 32;
-                }
-                else if (initialWidth == 1920 && initialHeight == 1080) {
-                    // Max 4 buffered frames at 1920x1080x64
-                    LimeLog.info("Patching level_idc to 42");
-                    sps.level_idc = 42;
-                }
-                else {
-                    // Leave the profile alone (currently 5.0)
-                }
-
-                // TI OMAP4 requires a reference frame count of 1 to decode successfully. Exynos 4
-                // also requires this fixup.
-                //
-                // I'm doing this fixup for all devices because I haven't seen any devices that
-                // this causes issues for. At worst, it seems to do nothing and at best it fixes
-                // issues with video lag, hangs, and crashes.
-                LimeLog.info("Patching num_ref_frames in SPS");
-                sps.num_ref_frames = 1;
-
-                // GFE 2.5.11 changed the SPS to add additional extensions
-                // Some devices don't like these so we remove them here.
-                sps.vuiParams.video_signal_type_present_flag = false;
-                sps.vuiParams.colour_description_present_flag = false;
-                sps.vuiParams.chroma_loc_info_present_flag = false;
-
-                if (needsSpsBitstreamFixup || isExynos4) {
-                    // The SPS that comes in the current H264 bytestream doesn't set bitstream_restriction_flag
-                    // or max_dec_frame_buffering which increases decoding latency on Tegra.
-
-                    // GFE 2.5.11 started sending bitstream restrictions
-                    if (sps.vuiParams.bitstreamRestriction == null) {
-                        LimeLog.info("Adding bitstream restrictions");
-                        sps.vuiParams.bitstreamRestriction = new VUIParameters.BitstreamRestriction();
-                        sps.vuiParams.bitstreamRestriction.motion_vectors_over_pic_boundaries_flag = true;
-                        sps.vuiParams.bitstreamRestriction.log2_max_mv_length_horizontal = 16;
-                        sps.vuiParams.bitstreamRestriction.log2_max_mv_length_vertical = 16;
-                        sps.vuiParams.bitstreamRestriction.num_reorder_frames = 0;
-                    }
-                    else {
-                        LimeLog.info("Patching bitstream restrictions");
-                    }
-
-                    // Some devices throw errors if max_dec_frame_buffering < num_ref_frames
-                    sps.vuiParams.bitstreamRestriction.max_dec_frame_buffering = sps.num_ref_frames;
-
-                    // These values are the defaults for the fields, but they are more aggressive
-                    // than what GFE sends in 2.5.11, but it doesn't seem to cause picture problems.
-                    sps.vuiParams.bitstreamRestriction.max_bytes_per_pic_denom = 2;
-                    sps.vuiParams.bitstreamRestriction.max_bits_per_mb_denom = 1;
-
-                    // log2_max_mv_length_horizontal and log2_max_mv_length_vertical are set to more
-                    // conservative values by GFE 2.5.11. We'll let those values stand.
-                }
-                else {
-                    // Devices that didn't/couldn't get bitstream restrictions before GFE 2.5.11
-                    // will continue to not receive them now
-                    sps.vuiParams.bitstreamRestriction = null;
-                }
-
-                // If we need to hack this SPS to say we're baseline, do so now
+                // Keep the original SPS so we can replay it once the baseline hack is off
                 if (needsBaselineSpsHack) {
-                    LimeLog.info("Hacking SPS to baseline");
-                    sps.profile_idc = 66;
-                    savedSps = sps;
+                    savedSpsNalu = Arrays.copyOfRange(header.data, header.offset, header.offset + header.length);
                 }
 
-                // Patch the SPS constraint flags
-                doProfileSpecificSpsPatching(sps);
-
-                // Write the annex B header
-                buf.put(header.data, header.offset, 5);
-
-                // The H264Utils.writeSPS function safely handles
-                // Annex B NALUs (including NALUs with escape sequences)
-                ByteBuffer escapedNalu = H264Utils.writeSPS(sps, header.length);
-                buf.put(escapedNalu);
+                buf.put(spsRewriter.rewriteH264Sps(header.data, header.offset, header.length));
 
                 queueInputBuffer(inputBufferIndex,
                         0, buf.position(),
@@ -690,6 +785,7 @@ public class MediaCodecDecoderRenderer extends EnhancedDecoderRenderer {
                 if (needsBaselineSpsHack) {
                     LimeLog.info("Saw PPS; disabling SPS hack");
                     needsBaselineSpsHack = false;
+                    spsRewriter.setBaselineProfileHack(false);
 
                     // Give the decoder the SPS again with the proper profile now
                     needsSpsReplay = true;
@@ -697,9 +793,21 @@ public class MediaCodecDecoderRenderer extends EnhancedDecoderRenderer {
             }
             else if (header.data[header.offset+4] == 0x40) {
                 numVpsIn++;
+
+                if (spsRewriter.isHevcLowLatencyDpb()) {
+                    buf.put(spsRewriter.rewriteHevcVps(header.data, header.offset, header.length));
+                    submitPatchedParameterSet(decodeUnit, buf, inputBufferIndex, timestampUs, codecFlags);
+                    return;
+                }
             }
             else if (header.data[header.offset+4] == 0x42) {
                 numSpsIn++;
+
+                if (spsRewriter.isHevcLowLatencyDpb()) {
+                    buf.put(spsRewriter.rewriteHevcSps(header.data, header.offset, header.length));
+                    submitPatchedParameterSet(decodeUnit, buf, inputBufferIndex, timestampUs, codecFlags);
+                    return;
+                }
             }
             else if (header.data[header.offset+4] == 0x44) {
                 numPpsIn++;
@@ -707,42 +815,48 @@ public class MediaCodecDecoderRenderer extends EnhancedDecoderRenderer {
         }
 
         // Copy data from our buffer list into the input buffer
-        for (ByteBufferDescriptor desc = decodeUnit.getBufferHead();
-             desc != null; desc = desc.nextDescriptor) {
-            buf.put(desc.data, desc.offset, desc.length);
-        }
+        DecodeUnitWriter.writeDecodeUnit(decodeUnit, buf);
 
         queueInputBuffer(inputBufferIndex,
                 0, decodeUnit.getDataLength(),
                 timestampUs, codecFlags);
 
-        depacketizer.freeDecodeUnit(decodeUnit);
+        // Parameter sets never come out of the decoder, so only track frames
+        if ((decodeUnitFlags & DecodeUnit.DU_FLAG_CODEC_CONFIG) == 0) {
+            videoStats.frameQueued(timestampUs, decodeUnit.getReceiveTimestamp(),
+                    dequeueTimeUs, inputAcquireTimeUs, VideoStats.getTimeUs());
+        }
 
         if (needsSpsReplay) {
             replaySps();
         }
+
+        // Freed last so the unit is still ours if anything above throws
+        depacketizer.freeDecodeUnit(decodeUnit);
     }
 
-    private void replaySps() {
-        int inputIndex = dequeueInputBuffer(true, true);
-        ByteBuffer inputBuffer = getEmptyInputBuffer(inputIndex);
+    // Writes any NALUs following the patched parameter set and queues the buffer
+    private void submitPatchedParameterSet(DecodeUnit decodeUnit, ByteBuffer buf, int inputBufferIndex,
+                                           long timestampUs, int codecFlags) {
+        DecodeUnitWriter.writeDescriptorChain(decodeUnit.getBufferHead().nextDescriptor, buf);
 
-        // Write the Annex B header
-        inputBuffer.put(new byte[]{0x00, 0x00, 0x00, 0x01, 0x67});
+        queueInputBuffer(inputBufferIndex,
+                0, buf.position(),
+                timestampUs, codecFlags);
 
-        // Switch the H264 profile back to high
-        savedSps.profile_idc = 100;
+        depacketizer.freeDecodeUnit(decodeUnit);
+    }
 
-        // Patch the SPS constraint flags
-        doProfileSpecificSpsPatching(savedSps);
+    private void replaySps() {
+        int inputIndex = dequeueInputBuffer(true, true);
+        ByteBuffer inputBuffer = getEmptyInputBuffer(inputIndex);
 
-        // The H264Utils.writeSPS function safely handles
-        // Annex B NALUs (including NALUs with escape sequences)
-        ByteBuffer escapedNalu = H264Utils.writeSPS(savedSps, 128);
-        inputBuffer.put(escapedNalu);
+        // Rewrite the original SPS now that the baseline hack is disabled,
+        // which switches the H264 profile back to high
+        inputBuffer.put(spsRewriter.rewriteH264Sps(savedSpsNalu, 0, savedSpsNalu.length));
 
         // No need for the SPS anymore
-        savedSps = null;
+        savedSpsNalu = null;
 
         // Queue the new SPS
         queueInputBuffer(inputIndex,
@@ -760,7 +874,7 @@ public class MediaCodecDecoderRenderer extends EnhancedDecoderRenderer {
         caps |= adaptivePlayback ?
                 VideoDecoderRenderer.CAPABILITY_ADAPTIVE_RESOLUTION : 0;
 
-        caps |= directSubmit ?
+        caps |= (directSubmit || asyncMode) ?
                 VideoDecoderRenderer.CAPABILITY_DIRECT_SUBMIT : 0;
 
         return caps;
@@ -782,6 +896,11 @@ public class MediaCodecDecoderRenderer extends EnhancedDecoderRenderer {
         return (int)(totalTimeMs / totalFrames);
     }
 
+    @Override
+    public VideoStats getVideoStats() {
+        return videoStats;
+    }
+
     private void notifyDuReceived(DecodeUnit du) {
         long currentTime = MediaCodecHelper.getMonotonicMillis();
         long delta = currentTime-du.getReceiveTimestamp();
@@ -794,9 +913,16 @@ public class MediaCodecDecoderRenderer extends EnhancedDecoderRenderer {
     @Override
     public void directSubmitDecodeUnit(DecodeUnit du) {
         int inputIndex;
+        long dequeueTimeUs = VideoStats.getTimeUs();
 
         notifyDuReceived(du);
 
+        if (asyncPipeline != null) {
+            // The unit will be submitted once the codec gives us an input buffer
+            asyncPipeline.submitUnit(du);
+            return;
+        }
+
         for (;;) {
             try {
                 inputIndex = dequeueInputBuffer(true, true);
@@ -807,7 +933,7 @@ public class MediaCodecDecoderRenderer extends EnhancedDecoderRenderer {
         }
 
         if (inputIndex >= 0) {
-            submitDecodeUnit(du, inputIndex);
+            submitDecodeUnit(du, inputIndex, dequeueTimeUs, VideoStats.getTimeUs());
         }
     }
 
@@ -838,10 +964,13 @@ public class MediaCodecDecoderRenderer extends EnhancedDecoderRenderer {
             str += "AVC Decoder: "+renderer.avcDecoderName+"\n";
             str += "HEVC Decoder: "+renderer.hevcDecoderName+"\n";
             str += "Initial video dimensions: "+renderer.initialWidth+"x"+renderer.initialHeight+"\n";
+            str += "SPS rewrites: "+renderer.spsRewriter.getFastPathRewrites()+" fast, "+
+                    renderer.spsRewriter.getSlowPathRewrites()+" slow, "+renderer.spsRewriter.getCacheHits()+" cached\n";
             str += "In stats: "+renderer.numVpsIn+", "+renderer.numSpsIn+", "+renderer.numPpsIn+", "+renderer.numIframeIn+"\n";
             str += "Total frames: "+renderer.totalFrames+"\n";
             str += "Average end-to-end client latency: "+getAverageEndToEndLatency()+"ms\n";
             str += "Average hardware decoder latency: "+getAverageDecoderLatency()+"ms\n";
+            str += renderer.videoStats.dumpSession();
 
             if (currentBuffer != null) {
                 str += "Current buffer: ";
@@ -854,6 +983,13 @@ public class MediaCodecDecoderRenderer extends EnhancedDecoderRenderer {
             }
 
             str += "Is Exynos 4: "+renderer.isExynos4+"\n";
+            str += "Async mode: "+renderer.asyncMode+"\n";
+            if (renderer.framePacer != null) {
+                str += "Frame pacing: policy "+renderer.framePacer.getPolicy()+", "+
+                        renderer.framePacer.getFramesPresented()+" presented, "+
+                        renderer.framePacer.getFramesDropped()+" dropped, "+
+                        renderer.framePacer.getFramesDuplicated()+" duplicated\n";
+            }
 
             str += "/proc/cpuinfo:\n";
             try {
@@ -32,6 +32,7 @@ public class MediaCodecHelper {
     private static final List<String> directSubmitPrefixes;
 	private static final List<String> constrainedHighProfilePrefixes;
 	private static final List<String> whitelistedHevcDecoders;
+	private static final List<String> hevcSpsFixupDecoderPrefixes;
 
     static {
         directSubmitPrefixes = new LinkedList<>();
@@ -108,6 +109,16 @@ public class MediaCodecHelper {
 		// during initialization to avoid SoCs with broken HEVC decoders.
 	}
 
+	static {
+		hevcSpsFixupDecoderPrefixes = new LinkedList<>();
+
+		// These decoders size their output queue from sps_max_dec_pic_buffering
+		// and the level limits, so they buffer several frames unless we shrink the DPB
+		hevcSpsFixupDecoderPrefixes.add("omx.nvidia");
+		hevcSpsFixupDecoderPrefixes.add("omx.qcom");
+		hevcSpsFixupDecoderPrefixes.add("omx.exynos");
+	}
+
 	public static void initializeWithContext(Context context) {
 		ActivityManager activityManager =
 				(ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
@@ -190,6 +201,17 @@ public class MediaCodecHelper {
         return isDecoderInList(baselineProfileHackPrefixes, decoderName);
     }
 
+	public static boolean decoderNeedsHevcSpsFixup(String decoderName) {
+		return isDecoderInList(hevcSpsFixupDecoderPrefixes, decoderName);
+	}
+
+    public static boolean decoderCanUseAsyncMode(String decoderName) {
+        // We need setCallback() with a Handler which was added in Marshmallow. The baseline
+        // SPS hack needs to synchronously replay the SPS, so it can't run in async mode.
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M &&
+                !decoderNeedsBaselineSpsHack(decoderName);
+    }
+
 	public static boolean decoderIsWhitelistedForHevc(String decoderName) {
 		// TODO: Shield Tablet K1/LTE?
 		//
@@ -0,0 +1,79 @@
+package com.limelight.binding.video;
+
+import java.util.Arrays;
+
+// Remembers the patched output for the last few SPS NALUs we've seen. GFE sends an
+// identical SPS with every IDR frame, so after the first one we can skip parsing and
+// rewriting it entirely. Entries are keyed by a hash of the incoming bytes and then
+// compared in full, so a hash collision can never return the wrong SPS.
+public class SpsCache {
+    private static final int MAX_ENTRIES = 4;
+
+    private final Entry[] entries = new Entry[MAX_ENTRIES];
+    private int nextSlot;
+
+    private int hits, misses;
+
+    private static int hashRange(byte[] data, int offset, int length) {
+        int hash = 1;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + data[i];
+        }
+        return hash;
+    }
+
+    private static boolean rangeEquals(byte[] a, byte[] data, int offset, int length) {
+        if (a.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (a[i] != data[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public byte[] get(byte[] data, int offset, int length) {
+        int hash = hashRange(data, offset, length);
+        for (Entry entry : entries) {
+            if (entry != null && entry.hash == hash && rangeEquals(entry.input, data, offset, length)) {
+                hits++;
+                return entry.output;
+            }
+        }
+
+        misses++;
+        return null;
+    }
+
+    public void put(byte[] data, int offset, int length, byte[] output) {
+        Entry entry = new Entry();
+        entry.hash = hashRange(data, offset, length);
+        entry.input = Arrays.copyOfRange(data, offset, offset + length);
+        entry.output = output;
+
+        // Replace the oldest entry once we're full
+        entries[nextSlot] = entry;
+        nextSlot = (nextSlot + 1) % MAX_ENTRIES;
+    }
+
+    public void clear() {
+        Arrays.fill(entries, null);
+        nextSlot = 0;
+    }
+
+    public int getHits() {
+        return hits;
+    }
+
+    public int getMisses() {
+        return misses;
+    }
+
+    private static class Entry {
+        int hash;
+        byte[] input;
+        byte[] output;
+    }
+}
@@ -0,0 +1,717 @@
+package com.limelight.binding.video;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.jcodec.codecs.h264.H264Utils;
+import org.jcodec.codecs.h264.io.model.SeqParameterSet;
+import org.jcodec.codecs.h264.io.model.VUIParameters;
+
+import com.limelight.LimeLog;
+
+// Patches the H.264 SPS and HEVC VPS/SPS NALUs that GFE sends so decoders buffer as
+// little as possible. Fields are rewritten while streaming the bits from the input NALU
+// to the output, so no parameter set objects are built on the fast path. H.264 SPSs that
+// the fast path can't handle fall back to a full parse and rewrite through jcodec.
+//
+// Input and output NALUs include the 4 byte Annex B start code and the NAL header.
+// Results are memoized, so repeated parameter sets (one per IDR frame) cost a lookup.
+public class SpsRewriter {
+    private static final int H264_NAL_HEADER_LENGTH = 5;
+    private static final int HEVC_NAL_HEADER_LENGTH = 6;
+
+    // H.264 options
+    private int levelIdc = -1;
+    private boolean bitstreamRestrictions;
+    private boolean baselineProfileHack;
+    private boolean constrainedHighProfile;
+
+    // HEVC options
+    private boolean hevcLowLatencyDpb;
+
+    private final SpsCache cache = new SpsCache();
+
+    private int fastPathRewrites, slowPathRewrites, hevcPassThroughs;
+    private boolean loggedHevcFailure;
+
+    // -1 leaves the level alone
+    public void setH264LevelIdc(int levelIdc) {
+        if (this.levelIdc != levelIdc) {
+            this.levelIdc = levelIdc;
+            cache.clear();
+        }
+    }
+
+    public void setBitstreamRestrictions(boolean bitstreamRestrictions) {
+        if (this.bitstreamRestrictions != bitstreamRestrictions) {
+            this.bitstreamRestrictions = bitstreamRestrictions;
+            cache.clear();
+        }
+    }
+
+    public void setBaselineProfileHack(boolean baselineProfileHack) {
+        if (this.baselineProfileHack != baselineProfileHack) {
+            this.baselineProfileHack = baselineProfileHack;
+            cache.clear();
+        }
+    }
+
+    public void setConstrainedHighProfile(boolean constrainedHighProfile) {
+        if (this.constrainedHighProfile != constrainedHighProfile) {
+            this.constrainedHighProfile = constrainedHighProfile;
+            cache.clear();
+        }
+    }
+
+    public void setHevcLowLatencyDpb(boolean hevcLowLatencyDpb) {
+        if (this.hevcLowLatencyDpb != hevcLowLatencyDpb) {
+            this.hevcLowLatencyDpb = hevcLowLatencyDpb;
+            cache.clear();
+        }
+    }
+
+    public boolean isHevcLowLatencyDpb() {
+        return hevcLowLatencyDpb;
+    }
+
+    public byte[] rewriteH264Sps(byte[] data, int offset, int length) {
+        byte[] patched = cache.get(data, offset, length);
+        if (patched != null) {
+            return patched;
+        }
+
+        try {
+            patched = rewriteH264SpsFastPath(data, offset, length);
+            fastPathRewrites++;
+        } catch (RuntimeException e) {
+            LimeLog.warning("Falling back to slow SPS rewrite: "+e);
+            patched = rewriteH264SpsSlowPath(data, offset, length);
+            slowPathRewrites++;
+        }
+
+        cache.put(data, offset, length, patched);
+        return patched;
+    }
+
+    public byte[] rewriteHevcVps(byte[] data, int offset, int length) {
+        byte[] patched = cache.get(data, offset, length);
+        if (patched != null) {
+            return patched;
+        }
+
+        try {
+            patched = patchHevcVps(data, offset, length);
+            fastPathRewrites++;
+        } catch (RuntimeException e) {
+            patched = passThroughHevc("VPS", data, offset, length, e);
+        }
+
+        cache.put(data, offset, length, patched);
+        return patched;
+    }
+
+    public byte[] rewriteHevcSps(byte[] data, int offset, int length) {
+        byte[] patched = cache.get(data, offset, length);
+        if (patched != null) {
+            return patched;
+        }
+
+        try {
+            patched = patchHevcSps(data, offset, length);
+            fastPathRewrites++;
+        } catch (RuntimeException e) {
+            patched = passThroughHevc("SPS", data, offset, length, e);
+        }
+
+        cache.put(data, offset, length, patched);
+        return patched;
+    }
+
+    // There's no slow path for HEVC, so a parameter set we can't parse goes to the
+    // decoder unmodified like it did before we patched them
+    private byte[] passThroughHevc(String type, byte[] data, int offset, int length, RuntimeException e) {
+        if (!loggedHevcFailure) {
+            LimeLog.warning("Unable to patch HEVC "+type+", passing it through: "+e);
+            loggedHevcFailure = true;
+        }
+        hevcPassThroughs++;
+        return Arrays.copyOfRange(data, offset, offset + length);
+    }
+
+    private byte[] patchHevcVps(byte[] data, int offset, int length) {
+        BitReader reader = new BitReader(unescape(data, offset + HEVC_NAL_HEADER_LENGTH, length - HEVC_NAL_HEADER_LENGTH));
+        BitWriter writer = new BitWriter(length);
+
+        writer.copyBits(reader, 4); // vps_video_parameter_set_id
+        writer.copyBits(reader, 2); // vps_base_layer_internal_flag, vps_base_layer_available_flag
+        writer.copyBits(reader, 6); // vps_max_layers_minus1
+        int maxSubLayersMinus1 = writer.copyBits(reader, 3);
+        writer.copyBits(reader, 1); // vps_temporal_id_nesting_flag
+        writer.copyBits(reader, 16); // vps_reserved_0xffff_16bits
+        copyHevcProfileTierLevel(reader, writer, maxSubLayersMinus1);
+        patchHevcSubLayerOrdering(reader, writer, maxSubLayersMinus1);
+        writer.copyRemainingPayload(reader);
+
+        return buildNalu(data, offset, HEVC_NAL_HEADER_LENGTH, writer);
+    }
+
+    private byte[] patchHevcSps(byte[] data, int offset, int length) {
+        BitReader reader = new BitReader(unescape(data, offset + HEVC_NAL_HEADER_LENGTH, length - HEVC_NAL_HEADER_LENGTH));
+        BitWriter writer = new BitWriter(length);
+
+        writer.copyBits(reader, 4); // sps_video_parameter_set_id
+        int maxSubLayersMinus1 = writer.copyBits(reader, 3);
+        writer.copyBits(reader, 1); // sps_temporal_id_nesting_flag
+        copyHevcProfileTierLevel(reader, writer, maxSubLayersMinus1);
+        writer.copyUE(reader); // sps_seq_parameter_set_id
+        if (writer.copyUE(reader) == 3) { // chroma_format_idc
+            writer.copyBits(reader, 1); // separate_colour_plane_flag
+        }
+        writer.copyUE(reader); // pic_width_in_luma_samples
+        writer.copyUE(reader); // pic_height_in_luma_samples
+        if (writer.copyBits(reader, 1) != 0) { // conformance_window_flag
+            for (int i = 0; i < 4; i++) {
+                writer.copyUE(reader);
+            }
+        }
+        writer.copyUE(reader); // bit_depth_luma_minus8
+        writer.copyUE(reader); // bit_depth_chroma_minus8
+        writer.copyUE(reader); // log2_max_pic_order_cnt_lsb_minus4
+        patchHevcSubLayerOrdering(reader, writer, maxSubLayersMinus1);
+        writer.copyRemainingPayload(reader);
+
+        return buildNalu(data, offset, HEVC_NAL_HEADER_LENGTH, writer);
+    }
+
+    public int getCacheHits() {
+        return cache.getHits();
+    }
+
+    public int getFastPathRewrites() {
+        return fastPathRewrites;
+    }
+
+    public int getSlowPathRewrites() {
+        return slowPathRewrites;
+    }
+
+    public int getHevcPassThroughs() {
+        return hevcPassThroughs;
+    }
+
+    private static boolean isH264HighProfile(int profileIdc) {
+        switch (profileIdc) {
+            case 100: case 110: case 122: case 244: case 44:
+            case 83: case 86: case 118: case 128: case 138:
+            case 139: case 134: case 135:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    byte[] rewriteH264SpsFastPath(byte[] data, int offset, int length) {
+        BitReader reader = new BitReader(unescape(data, offset + H264_NAL_HEADER_LENGTH, length - H264_NAL_HEADER_LENGTH));
+        BitWriter writer = new BitWriter(length + 8);
+
+        int profileIdc = reader.readBits(8);
+        int newProfileIdc = baselineProfileHack ? 66 : profileIdc;
+        writer.writeBits(newProfileIdc, 8);
+
+        // Keep constraint_set0-3, then set or clear constraint_set4/5 for constrained high
+        // profile. The reserved bits are always written as zero.
+        int constraintFlags = reader.readBits(8) & 0xF0;
+        if (newProfileIdc == 100 && constrainedHighProfile) {
+            constraintFlags |= 0x0C;
+        }
+        writer.writeBits(constraintFlags, 8);
+
+        int oldLevelIdc = reader.readBits(8);
+        writer.writeBits(levelIdc >= 0 ? levelIdc : oldLevelIdc, 8);
+
+        writer.copyUE(reader); // seq_parameter_set_id
+
+        if (isH264HighProfile(profileIdc)) {
+            // A baseline SPS can't carry these, so they're dropped when we
+            // pretend to be baseline.
+            BitWriter highWriter = isH264HighProfile(newProfileIdc) ? writer : new BitWriter(16);
+
+            int chromaFormatIdc = highWriter.copyUE(reader);
+            if (chromaFormatIdc == 3) {
+                highWriter.copyBits(reader, 1); // separate_colour_plane_flag
+            }
+            highWriter.copyUE(reader); // bit_depth_luma_minus8
+            highWriter.copyUE(reader); // bit_depth_chroma_minus8
+            highWriter.copyBits(reader, 1); // qpprime_y_zero_transform_bypass_flag
+            if (highWriter.copyBits(reader, 1) != 0) { // seq_scaling_matrix_present_flag
+                int lists = chromaFormatIdc != 3 ? 8 : 12;
+                for (int i = 0; i < lists; i++) {
+                    if (highWriter.copyBits(reader, 1) != 0) {
+                        copyH264ScalingList(reader, highWriter, i < 6 ? 16 : 64);
+                    }
+                }
+            }
+        }
+
+        writer.copyUE(reader); // log2_max_frame_num_minus4
+        int picOrderCntType = writer.copyUE(reader);
+        if (picOrderCntType == 0) {
+            writer.copyUE(reader); // log2_max_pic_order_cnt_lsb_minus4
+        }
+        else if (picOrderCntType == 1) {
+            writer.copyBits(reader, 1); // delta_pic_order_always_zero_flag
+            writer.copySE(reader); // offset_for_non_ref_pic
+            writer.copySE(reader); // offset_for_top_to_bottom_field
+            int cycleLength = writer.copyUE(reader);
+            for (int i = 0; i < cycleLength; i++) {
+                writer.copySE(reader); // offset_for_ref_frame
+            }
+        }
+
+        // See rewriteH264SpsSlowPath() for why we always use 1 reference frame
+        reader.readUE();
+        writer.writeUE(1);
+
+        writer.copyBits(reader, 1); // gaps_in_frame_num_value_allowed_flag
+        writer.copyUE(reader); // pic_width_in_mbs_minus1
+        writer.copyUE(reader); // pic_height_in_map_units_minus1
+        if (writer.copyBits(reader, 1) == 0) { // frame_mbs_only_flag
+            writer.copyBits(reader, 1); // mb_adaptive_frame_field_flag
+        }
+        writer.copyBits(reader, 1); // direct_8x8_inference_flag
+        if (writer.copyBits(reader, 1) != 0) { // frame_cropping_flag
+            for (int i = 0; i < 4; i++) {
+                writer.copyUE(reader);
+            }
+        }
+
+        if (reader.readBits(1) == 0) {
+            // The jcodec path requires a VUI, so we do too
+            throw new IllegalArgumentException("SPS has no VUI");
+        }
+        writer.writeBits(1, 1);
+
+        if (writer.copyBits(reader, 1) != 0) { // aspect_ratio_info_present_flag
+            if (writer.copyBits(reader, 8) == 255) { // aspect_ratio_idc == Extended_SAR
+                writer.copyBits(reader, 16); // sar_width
+                writer.copyBits(reader, 16); // sar_height
+            }
+        }
+        if (writer.copyBits(reader, 1) != 0) { // overscan_info_present_flag
+            writer.copyBits(reader, 1); // overscan_appropriate_flag
+        }
+
+        // Strip video_signal_type and chroma_loc_info
+        writer.writeBits(0, 1);
+        if (reader.readBits(1) != 0) {
+            reader.readBits(4); // video_format, video_full_range_flag
+            if (reader.readBits(1) != 0) {
+                reader.readBits(24); // colour_primaries, transfer_characteristics, matrix_coefficients
+            }
+        }
+        writer.writeBits(0, 1);
+        if (reader.readBits(1) != 0) {
+            reader.readUE();
+            reader.readUE();
+        }
+
+        if (writer.copyBits(reader, 1) != 0) { // timing_info_present_flag
+            writer.copyBits(reader, 32); // num_units_in_tick
+            writer.copyBits(reader, 32); // time_scale
+            writer.copyBits(reader, 1); // fixed_frame_rate_flag
+        }
+        boolean nalHrd = writer.copyBits(reader, 1) != 0;
+        if (nalHrd) {
+            copyH264HrdParameters(reader, writer);
+        }
+        boolean vclHrd = writer.copyBits(reader, 1) != 0;
+        if (vclHrd) {
+            copyH264HrdParameters(reader, writer);
+        }
+        if (nalHrd || vclHrd) {
+            writer.copyBits(reader, 1); // low_delay_hrd_flag
+        }
+        writer.copyBits(reader, 1); // pic_struct_present_flag
+
+        if (bitstreamRestrictions) {
+            int motionVectorsOverPicBoundaries = 1;
+            int log2MaxMvLengthHorizontal = 16;
+            int log2MaxMvLengthVertical = 16;
+            int numReorderFrames = 0;
+
+            // Keep what GFE sent except for the buffering fields
+            if (reader.readBits(1) != 0) {
+                motionVectorsOverPicBoundaries = reader.readBits(1);
+                reader.readUE(); // max_bytes_per_pic_denom
+                reader.readUE(); // max_bits_per_mb_denom
+                log2MaxMvLengthHorizontal = reader.readUE();
+                log2MaxMvLengthVertical = reader.readUE();
+                numReorderFrames = reader.readUE();
+                reader.readUE(); // max_dec_frame_buffering
+            }
+
+            writer.writeBits(1, 1);
+            writer.writeBits(motionVectorsOverPicBoundaries, 1);
+            writer.writeUE(2); // max_bytes_per_pic_denom
+            writer.writeUE(1); // max_bits_per_mb_denom
+            writer.writeUE(log2MaxMvLengthHorizontal);
+            writer.writeUE(log2MaxMvLengthVertical);
+            writer.writeUE(numReorderFrames);
+            writer.writeUE(1); // max_dec_frame_buffering = num_ref_frames
+        }
+        else {
+            writer.writeBits(0, 1);
+        }
+
+        writer.writeTrailingBits();
+
+        return buildNalu(data, offset, H264_NAL_HEADER_LENGTH, writer);
+    }
+
+    byte[] rewriteH264SpsSlowPath(byte[] data, int offset, int length) {
+        ByteBuffer spsBuf = ByteBuffer.wrap(data);
+
+        // Skip to the start of the NALU data
+        spsBuf.position(offset + H264_NAL_HEADER_LENGTH);
+
+        // The H264Utils.readSPS function safely handles
+        // Annex B NALUs (including NALUs with escape sequences)
+        SeqParameterSet sps = H264Utils.readSPS(spsBuf);
+
+        // Some decoders rely on H264 level to decide how many buffers are needed
+        // Since we only need one frame buffered, we'll set the level as low as we can
+        // for known resolution combinations
+        if (levelIdc >= 0) {
+            LimeLog.info("Patching level_idc to "+levelIdc);
+            sps.level_idc = levelIdc;
+        }
+
+        // TI OMAP4 requires a reference frame count of 1 to decode successfully. Exynos 4
+        // also requires this fixup.
+        //
+        // I'm doing this fixup for all devices because I haven't seen any devices that
+        // this causes issues for. At worst, it seems to do nothing and at best it fixes
+        // issues with video lag, hangs, and crashes.
+        LimeLog.info("Patching num_ref_frames in SPS");
+        sps.num_ref_frames = 1;
+
+        // GFE 2.5.11 changed the SPS to add additional extensions
+        // Some devices don't like these so we remove them here.
+        sps.vuiParams.video_signal_type_present_flag = false;
+        sps.vuiParams.colour_description_present_flag = false;
+        sps.vuiParams.chroma_loc_info_present_flag = false;
+
+        if (bitstreamRestrictions) {
+            // The SPS that comes in the current H264 bytestream doesn't set bitstream_restriction_flag
+            // or max_dec_frame_buffering which increases decoding latency on Tegra.
+
+            // GFE 2.5.11 started sending bitstream restrictions
+            if (sps.vuiParams.bitstreamRestriction == null) {
+                LimeLog.info("Adding bitstream restrictions");
+                sps.vuiParams.bitstreamRestriction = new VUIParameters.BitstreamRestriction();
+                sps.vuiParams.bitstreamRestriction.motion_vectors_over_pic_boundaries_flag = true;
+                sps.vuiParams.bitstreamRestriction.log2_max_mv_length_horizontal = 16;
+                sps.vuiParams.bitstreamRestriction.log2_max_mv_length_vertical = 16;
+                sps.vuiParams.bitstreamRestriction.num_reorder_frames = 0;
+            }
+            else {
+                LimeLog.info("Patching bitstream restrictions");
+            }
+
+            // Some devices throw errors if max_dec_frame_buffering < num_ref_frames
+            sps.vuiParams.bitstreamRestriction.max_dec_frame_buffering = sps.num_ref_frames;
+
+            // These values are the defaults for the fields, but they are more aggressive
+            // than what GFE sends in 2.5.11, but it doesn't seem to cause picture problems.
+            sps.vuiParams.bitstreamRestriction.max_bytes_per_pic_denom = 2;
+            sps.vuiParams.bitstreamRestriction.max_bits_per_mb_denom = 1;
+
+            // log2_max_mv_length_horizontal and log2_max_mv_length_vertical are set to more
+            // conservative values by GFE 2.5.11. We'll let those values stand.
+        }
+        else {
+            // Devices that didn't/couldn't get bitstream restrictions before GFE 2.5.11
+            // will continue to not receive them now
+            sps.vuiParams.bitstreamRestriction = null;
+        }
+
+        // If we need to hack this SPS to say we're baseline, do so now
+        if (baselineProfileHack) {
+            LimeLog.info("Hacking SPS to baseline");
+            sps.profile_idc = 66;
+        }
+
+        // Some devices benefit from setting constraint flags 4 & 5 to make this Constrained
+        // High Profile which allows the decoder to assume there will be no B-frames and
+        // reduce delay and buffering accordingly. Some devices (Marvell, Exynos 4) don't
+        // like it so we only set them on devices that are confirmed to benefit from it.
+        if (sps.profile_idc == 100 && constrainedHighProfile) {
+            LimeLog.info("Setting constraint set flags for constrained high profile");
+            sps.constraint_set_4_flag = true;
+            sps.constraint_set_5_flag = true;
+        }
+        else {
+            // Force the constraints unset otherwise (some may be set by default)
+            sps.constraint_set_4_flag = false;
+            sps.constraint_set_5_flag = false;
+        }
+
+        // The H264Utils.writeSPS function safely handles
+        // Annex B NALUs (including NALUs with escape sequences)
+        ByteBuffer escapedNalu = H264Utils.writeSPS(sps, length);
+
+        // Prepend the annex B header
+        byte[] patchedSps = new byte[H264_NAL_HEADER_LENGTH + escapedNalu.remaining()];
+        System.arraycopy(data, offset, patchedSps, 0, H264_NAL_HEADER_LENGTH);
+        escapedNalu.get(patchedSps, H264_NAL_HEADER_LENGTH, escapedNalu.remaining());
+        return patchedSps;
+    }
+
+    private static void copyH264ScalingList(BitReader reader, BitWriter writer, int size) {
+        int lastScale = 8;
+        int nextScale = 8;
+        for (int j = 0; j < size; j++) {
+            if (nextScale != 0) {
+                int deltaScale = writer.copySE(reader);
+                nextScale = (lastScale + deltaScale + 256) % 256;
+            }
+            lastScale = (nextScale == 0) ? lastScale : nextScale;
+        }
+    }
+
+    private static void copyH264HrdParameters(BitReader reader, BitWriter writer) {
+        int cpbCntMinus1 = writer.copyUE(reader);
+        writer.copyBits(reader, 4); // bit_rate_scale
+        writer.copyBits(reader, 4); // cpb_size_scale
+        for (int i = 0; i <= cpbCntMinus1; i++) {
+            writer.copyUE(reader); // bit_rate_value_minus1
+            writer.copyUE(reader); // cpb_size_value_minus1
+            writer.copyBits(reader, 1); // cbr_flag
+        }
+        // initial_cpb_removal_delay_length_minus1, cpb_removal_delay_length_minus1,
+        // dpb_output_delay_length_minus1, time_offset_length
+        writer.copyBits(reader, 20);
+    }
+
+    private static void copyHevcProfileTierLevel(BitReader reader, BitWriter writer, int maxSubLayersMinus1) {
+        // general_profile_space through general_inbld_flag plus general_level_idc
+        writer.copyBits(reader, 88);
+        writer.copyBits(reader, 8);
+
+        boolean[] subLayerProfilePresent = new boolean[maxSubLayersMinus1];
+        boolean[] subLayerLevelPresent = new boolean[maxSubLayersMinus1];
+        for (int i = 0; i < maxSubLayersMinus1; i++) {
+            subLayerProfilePresent[i] = writer.copyBits(reader, 1) != 0;
+            subLayerLevelPresent[i] = writer.copyBits(reader, 1) != 0;
+        }
+        if (maxSubLayersMinus1 > 0) {
+            for (int i = maxSubLayersMinus1; i < 8; i++) {
+                writer.copyBits(reader, 2); // reserved_zero_2bits
+            }
+        }
+        for (int i = 0; i < maxSubLayersMinus1; i++) {
+            if (subLayerProfilePresent[i]) {
+                writer.copyBits(reader, 88);
+            }
+            if (subLayerLevelPresent[i]) {
+                writer.copyBits(reader, 8);
+            }
+        }
+    }
+
+    private void patchHevcSubLayerOrdering(BitReader reader, BitWriter writer, int maxSubLayersMinus1) {
+        boolean orderingInfoPresent = writer.copyBits(reader, 1) != 0;
+        for (int i = orderingInfoPresent ? 0 : maxSubLayersMinus1; i <= maxSubLayersMinus1; i++) {
+            int maxDecPicBufferingMinus1 = reader.readUE();
+            int maxNumReorderPics = reader.readUE();
+            int maxLatencyIncreasePlus1 = reader.readUE();
+
+            if (hevcLowLatencyDpb) {
+                // GFE only references the previous frame, so the decoder only needs room
+                // for that and the current picture. Without this, some decoders size their
+                // output queue from the level limits and hold many frames.
+                maxDecPicBufferingMinus1 = Math.min(maxDecPicBufferingMinus1, 1);
+                maxNumReorderPics = 0;
+                maxLatencyIncreasePlus1 = 0;
+            }
+
+            writer.writeUE(maxDecPicBufferingMinus1);
+            writer.writeUE(maxNumReorderPics);
+            writer.writeUE(maxLatencyIncreasePlus1);
+        }
+    }
+
+    // Removes emulation prevention bytes
+    private static byte[] unescape(byte[] data, int offset, int length) {
+        byte[] rbsp = new byte[length];
+        int out = 0;
+        int zeros = 0;
+        for (int i = offset; i < offset + length; i++) {
+            byte b = data[i];
+            if (zeros >= 2 && b == 0x03) {
+                zeros = 0;
+                continue;
+            }
+            zeros = (b == 0) ? zeros + 1 : 0;
+            rbsp[out++] = b;
+        }
+        return Arrays.copyOf(rbsp, out);
+    }
+
+    // Copies the NAL header and appends the escaped payload
+    private static byte[] buildNalu(byte[] data, int offset, int headerLength, BitWriter writer) {
+        byte[] rbsp = writer.toByteArray();
+        byte[] nalu = new byte[headerLength + rbsp.length + rbsp.length / 2];
+        System.arraycopy(data, offset, nalu, 0, headerLength);
+
+        int out = headerLength;
+        int zeros = 0;
+        for (byte b : rbsp) {
+            if (zeros >= 2 && (b & 0xFF) <= 3) {
+                nalu[out++] = 0x03;
+                zeros = 0;
+            }
+            nalu[out++] = b;
+            zeros = (b == 0) ? zeros + 1 : 0;
+        }
+
+        return Arrays.copyOf(nalu, out);
+    }
+
+    private static class BitReader {
+        private final byte[] data;
+        private final int payloadBits;
+        private int bitPos;
+
+        BitReader(byte[] data) {
+            this.data = data;
+
+            // Find the rbsp_stop_one_bit so we know where the payload ends
+            int last = data.length - 1;
+            while (last >= 0 && data[last] == 0) {
+                last--;
+            }
+            if (last < 0) {
+                throw new IllegalArgumentException("Empty RBSP");
+            }
+            this.payloadBits = last * 8 + 7 - Integer.numberOfTrailingZeros(data[last] & 0xFF);
+        }
+
+        int readBits(int count) {
+            if (bitPos + count > payloadBits) {
+                throw new IllegalArgumentException("Read past end of RBSP");
+            }
+
+            int value = 0;
+            for (int i = 0; i < count; i++) {
+                int bit = (data[bitPos >> 3] >> (7 - (bitPos & 7))) & 1;
+                value = (value << 1) | bit;
+                bitPos++;
+            }
+            return value;
+        }
+
+        int readUE() {
+            int leadingZeros = 0;
+            while (readBits(1) == 0) {
+                leadingZeros++;
+                if (leadingZeros > 31) {
+                    throw new IllegalArgumentException("Invalid Exp-Golomb code");
+                }
+            }
+            if (leadingZeros == 0) {
+                return 0;
+            }
+            return (int) ((1L << leadingZeros) - 1 + (readBits(leadingZeros) & 0xFFFFFFFFL));
+        }
+
+        int readSE() {
+            int codeNum = readUE();
+            return (codeNum & 1) != 0 ? (codeNum + 1) / 2 : -(codeNum / 2);
+        }
+
+        int remainingPayloadBits() {
+            return payloadBits - bitPos;
+        }
+    }
+
+    private static class BitWriter {
+        private byte[] data;
+        private int bitPos;
+
+        BitWriter(int initialCapacity) {
+            data = new byte[Math.max(initialCapacity, 16)];
+        }
+
+        void writeBits(int value, int count) {
+            if (((bitPos + count + 7) >> 3) > data.length) {
+                data = Arrays.copyOf(data, data.length * 2 + ((count + 7) >> 3));
+            }
+
+            for (int i = count - 1; i >= 0; i--) {
+                if (((value >>> i) & 1) != 0) {
+                    data[bitPos >> 3] |= (byte) (0x80 >> (bitPos & 7));
+                }
+                bitPos++;
+            }
+        }
+
+        void writeUE(int value) {
+            long codeNum = (value & 0xFFFFFFFFL) + 1;
+            int bits = 64 - Long.numberOfLeadingZeros(codeNum);
+            writeBits(0, bits - 1);
+            if (bits > 32) {
+                writeBits(1, 1);
+                writeBits((int) codeNum, 32);
+            }
+            else {
+                writeBits((int) codeNum, bits);
+            }
+        }
+
+        void writeSE(int value) {
+            writeUE(value > 0 ? 2 * value - 1 : -2 * value);
+        }
+
+        // Returns the value that was copied
+        int copyBits(BitReader reader, int count) {
+            int value = 0;
+            while (count > 0) {
+                int chunk = Math.min(count, 32);
+                value = reader.readBits(chunk);
+                writeBits(value, chunk);
+                count -= chunk;
+            }
+            return value;
+        }
+
+        int copyUE(BitReader reader) {
+            int value = reader.readUE();
+            writeUE(value);
+            return value;
+        }
+
+        int copySE(BitReader reader) {
+            int value = reader.readSE();
+            writeSE(value);
+            return value;
+        }
+
+        // Copies everything up to the input's stop bit and terminates our own payload
+        void copyRemainingPayload(BitReader reader) {
+            copyBits(reader, reader.remainingPayloadBits());
+            writeTrailingBits();
+        }
+
+        void writeTrailingBits() {
+            writeBits(1, 1);
+            if ((bitPos & 7) != 0) {
+                writeBits(0, 8 - (bitPos & 7));
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(data, (bitPos + 7) >> 3);
+        }
+    }
+}
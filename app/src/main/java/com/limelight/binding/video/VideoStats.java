@@ -0,0 +1,197 @@
+package com.limelight.binding.video;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Per-frame latency tracking for the video pipeline. Each frame is stamped when it's
+// received, dequeued from the depacketizer, paired with an input buffer, queued to the
+// decoder and released to the display. The time spent in each stage goes into a histogram
+// for the current second and one for the whole session.
+//
+// frameQueued() must be called from a single thread at a time, as must frameRendered()
+// and frameDropped(). The two sides may run concurrently. Readers can be on any thread.
+public class VideoStats {
+    public static final int STAGE_DEPACKETIZER_QUEUE = 0;
+    public static final int STAGE_INPUT_BUFFER_WAIT = 1;
+    public static final int STAGE_SUBMIT = 2;
+    public static final int STAGE_DECODE = 3;
+    public static final int STAGE_END_TO_END = 4;
+    public static final int STAGE_COUNT = 5;
+
+    private static final String[] STAGE_NAMES = {
+            "Depacketizer",
+            "Input buffer",
+            "Submit",
+            "Decode",
+            "End-to-end"
+    };
+
+    private static final long WINDOW_US = 1000000;
+
+    // Frames still inside the decoder, keyed by presentation timestamp
+    private static final int RING_SIZE = 128;
+    private final AtomicLongArray ringPts = new AtomicLongArray(RING_SIZE);
+    private final long[] ringReceiveUs = new long[RING_SIZE];
+    private final long[] ringQueueUs = new long[RING_SIZE];
+    private int ringWrite;
+    private int ringRead;
+
+    private final LatencyHistogram[] sessionHistograms = new LatencyHistogram[STAGE_COUNT];
+    private final AtomicReferenceArray<LatencyHistogram> currentWindow = new AtomicReferenceArray<>(STAGE_COUNT);
+    private final AtomicReferenceArray<LatencyHistogram> lastWindow = new AtomicReferenceArray<>(STAGE_COUNT);
+    private final AtomicLong windowStartUs = new AtomicLong(getTimeUs());
+
+    private final AtomicLong framesRendered = new AtomicLong();
+    private final AtomicLong framesDropped = new AtomicLong();
+    private final AtomicLong framesDuplicated = new AtomicLong();
+    private volatile long lastWindowRendered, lastWindowDropped, lastWindowDuplicated;
+    private long windowRenderedBase, windowDroppedBase, windowDuplicatedBase;
+
+    public VideoStats() {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            sessionHistograms[i] = new LatencyHistogram();
+            currentWindow.set(i, new LatencyHistogram());
+            lastWindow.set(i, new LatencyHistogram());
+        }
+    }
+
+    public static long getTimeUs() {
+        return System.nanoTime() / 1000;
+    }
+
+    private void record(int stage, long valueUs) {
+        sessionHistograms[stage].record(valueUs);
+        currentWindow.get(stage).record(valueUs);
+    }
+
+    private void maybeRollWindow(long nowUs) {
+        long start = windowStartUs.get();
+        if (nowUs - start < WINDOW_US || !windowStartUs.compareAndSet(start, nowUs)) {
+            return;
+        }
+
+        // We won the race to roll this window. A record() racing with us may land
+        // in the old window, which only skews that window by a sample.
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            lastWindow.set(i, currentWindow.getAndSet(i, new LatencyHistogram()));
+        }
+
+        long rendered = framesRendered.get();
+        long dropped = framesDropped.get();
+        long duplicated = framesDuplicated.get();
+        lastWindowRendered = rendered - windowRenderedBase;
+        lastWindowDropped = dropped - windowDroppedBase;
+        lastWindowDuplicated = duplicated - windowDuplicatedBase;
+        windowRenderedBase = rendered;
+        windowDroppedBase = dropped;
+        windowDuplicatedBase = duplicated;
+    }
+
+    // receiveTimeMs is the DecodeUnit receive timestamp. The other times come from getTimeUs().
+    public void frameQueued(long presentationTimeUs, long receiveTimeMs, long dequeueTimeUs,
+                            long inputAcquireTimeUs, long queueTimeUs) {
+        long receiveTimeUs = receiveTimeMs * 1000;
+
+        // The input buffer may have been acquired before the frame was dequeued,
+        // in which case the frame didn't wait at all.
+        long inputReadyUs = Math.max(inputAcquireTimeUs, dequeueTimeUs);
+
+        record(STAGE_DEPACKETIZER_QUEUE, dequeueTimeUs - receiveTimeUs);
+        record(STAGE_INPUT_BUFFER_WAIT, inputReadyUs - dequeueTimeUs);
+        record(STAGE_SUBMIT, queueTimeUs - inputReadyUs);
+
+        int slot = ringWrite;
+        ringWrite = (ringWrite + 1) & (RING_SIZE - 1);
+        ringReceiveUs[slot] = receiveTimeUs;
+        ringQueueUs[slot] = queueTimeUs;
+        ringPts.lazySet(slot, presentationTimeUs);
+
+        maybeRollWindow(queueTimeUs);
+    }
+
+    public void frameRendered(long presentationTimeUs, long renderTimeUs) {
+        framesRendered.incrementAndGet();
+
+        // Output comes back in order, so the frame is usually at or just after the cursor
+        for (int i = 0; i < RING_SIZE; i++) {
+            int slot = (ringRead + i) & (RING_SIZE - 1);
+            if (ringPts.get(slot) == presentationTimeUs) {
+                record(STAGE_DECODE, renderTimeUs - ringQueueUs[slot]);
+                record(STAGE_END_TO_END, renderTimeUs - ringReceiveUs[slot]);
+                ringRead = (slot + 1) & (RING_SIZE - 1);
+                break;
+            }
+        }
+
+        maybeRollWindow(renderTimeUs);
+    }
+
+    public void frameDropped() {
+        framesDropped.incrementAndGet();
+    }
+
+    // Called when the display showed the previous frame again for lack of a new one
+    public void framesDuplicated(long count) {
+        framesDuplicated.addAndGet(count);
+    }
+
+    public long getFramesRendered() {
+        return framesRendered.get();
+    }
+
+    public long getFramesDropped() {
+        return framesDropped.get();
+    }
+
+    public long getFramesDuplicated() {
+        return framesDuplicated.get();
+    }
+
+    public LatencyHistogram getSessionHistogram(int stage) {
+        return sessionHistograms[stage];
+    }
+
+    public LatencyHistogram getLastWindowHistogram(int stage) {
+        return lastWindow.get(stage);
+    }
+
+    private static String formatMs(long us) {
+        return String.format(Locale.US, "%6.1f", us / 1000.0);
+    }
+
+    private static String formatTable(LatencyHistogram[] histograms) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "%-13s %6s %6s %6s %6s\n", "Stage (ms)", "p50", "p95", "p99", "max"));
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            LatencyHistogram h = histograms[i];
+            sb.append(String.format(Locale.US, "%-13s", STAGE_NAMES[i]));
+            sb.append(' ').append(formatMs(h.getPercentileUs(50)));
+            sb.append(' ').append(formatMs(h.getPercentileUs(95)));
+            sb.append(' ').append(formatMs(h.getPercentileUs(99)));
+            sb.append(' ').append(formatMs(h.getMaxUs()));
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    // Short summary of the last complete second for the on-screen overlay
+    public String formatLastWindow() {
+        LatencyHistogram[] histograms = new LatencyHistogram[STAGE_COUNT];
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            histograms[i] = lastWindow.get(i);
+        }
+
+        return "Frames: "+lastWindowRendered+" rendered, "+lastWindowDropped+" dropped, "+
+                lastWindowDuplicated+" duplicated\n"+
+                formatTable(histograms);
+    }
+
+    // Full report for the whole session
+    public String dumpSession() {
+        return "Video stats: "+framesRendered.get()+" frames rendered, "+
+                framesDropped.get()+" dropped, "+framesDuplicated.get()+" duplicated\n"+
+                formatTable(sessionHistograms);
+    }
+}
@@ -0,0 +1,67 @@
+package com.limelight.binding.video;
+
+// Estimates the display's vsync period from the timestamps of vsync callbacks. Small
+// differences from the current estimate are smoothed in as jitter. Intervals far from
+// it are usually missed callbacks, but if enough of them in a row agree with each other,
+// the refresh rate has changed (60 to 30 Hz, 90 to 60 Hz, etc) and we switch to it.
+//
+// This isn't thread-safe. ChoreographerVsyncClock only calls it from its vsync thread.
+class VsyncPeriodEstimator {
+    // Ignore gaps longer than this entirely (the thread was descheduled)
+    private static final long MAX_PERIOD_NS = 50000000;
+
+    // How many consecutive intervals must agree on a new period before we switch to it
+    static final int SWITCH_SAMPLES = 8;
+
+    private long lastVsyncNs;
+    private long periodNs;
+
+    // Intervals that didn't fit the current period but agree with each other so far
+    private long candidateSumNs;
+    private int candidateSamples;
+
+    // Returns the updated period estimate, or 0 if there isn't one yet
+    long onVsync(long frameTimeNs) {
+        long last = lastVsyncNs;
+        lastVsyncNs = frameTimeNs;
+        if (last == 0) {
+            return periodNs;
+        }
+
+        long delta = frameTimeNs - last;
+        if (delta <= 0 || delta >= MAX_PERIOD_NS) {
+            return periodNs;
+        }
+
+        if (periodNs == 0) {
+            periodNs = delta;
+        }
+        else if (delta > periodNs * 3 / 4 && delta < periodNs * 3 / 2) {
+            // Smooth out jitter in the callback timestamps
+            periodNs += (delta - periodNs) / 16;
+            candidateSamples = 0;
+        }
+        else {
+            // A gap of more than one period means we missed callbacks, so don't count it
+            // unless it keeps happening at the same interval
+            long candidateNs = candidateSamples > 0 ? candidateSumNs / candidateSamples : 0;
+            if (candidateSamples == 0 || Math.abs(delta - candidateNs) > candidateNs / 8) {
+                candidateSumNs = 0;
+                candidateSamples = 0;
+            }
+
+            candidateSumNs += delta;
+            candidateSamples++;
+            if (candidateSamples >= SWITCH_SAMPLES) {
+                periodNs = candidateSumNs / candidateSamples;
+                candidateSamples = 0;
+            }
+        }
+
+        return periodNs;
+    }
+
+    long getPeriodNs() {
+        return periodNs;
+    }
+}
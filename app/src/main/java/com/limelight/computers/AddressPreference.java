@@ -0,0 +1,141 @@
+package com.limelight.computers;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+// Remembers how well each address of a host has worked so the next poll can
+// try the best one first. This also holds any extra addresses the host has been
+// found at, like the one mDNS reported or the one the user typed in.
+public class AddressPreference {
+    private static final int MAX_EXTRA_ADDRESSES = 4;
+    private static final int MAX_TRACKED_ADDRESSES = 8;
+
+    // Weight of the newest sample in the average latency
+    private static final double LATENCY_SMOOTHING = 0.25;
+
+    private static class AddressStats {
+        int successes;
+        int consecutiveFailures;
+        double averageLatencyMs;
+    }
+
+    // Guarded by this
+    private final LinkedHashSet<InetAddress> extraAddresses = new LinkedHashSet<>();
+    private final LinkedHashMap<InetAddress, AddressStats> stats =
+            new LinkedHashMap<InetAddress, AddressStats>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<InetAddress, AddressStats> eldest) {
+                    return size() > MAX_TRACKED_ADDRESSES;
+                }
+            };
+
+    public synchronized void addExtraAddress(InetAddress addr) {
+        // Move it to the end as the newest
+        extraAddresses.remove(addr);
+        extraAddresses.add(addr);
+
+        if (extraAddresses.size() > MAX_EXTRA_ADDRESSES) {
+            extraAddresses.remove(extraAddresses.iterator().next());
+        }
+    }
+
+    public synchronized void recordSuccess(InetAddress addr, long latencyMs) {
+        AddressStats addrStats = stats.get(addr);
+        if (addrStats == null) {
+            addrStats = new AddressStats();
+            addrStats.averageLatencyMs = latencyMs;
+            stats.put(addr, addrStats);
+        }
+        else {
+            addrStats.averageLatencyMs += (latencyMs - addrStats.averageLatencyMs) * LATENCY_SMOOTHING;
+        }
+
+        addrStats.successes++;
+        addrStats.consecutiveFailures = 0;
+    }
+
+    public synchronized void recordFailure(InetAddress addr) {
+        AddressStats addrStats = stats.get(addr);
+        if (addrStats == null) {
+            addrStats = new AddressStats();
+            stats.put(addr, addrStats);
+        }
+
+        addrStats.consecutiveFailures++;
+    }
+
+    // Returns true if the last attempt to use this address failed
+    public synchronized boolean isFailing(InetAddress addr) {
+        AddressStats addrStats = stats.get(addr);
+        return addrStats != null && addrStats.consecutiveFailures > 0;
+    }
+
+    // Returns the given addresses followed by the extra addresses if requested, without
+    // duplicates and in order of preference. Addresses that have worked come first, fastest
+    // first. Addresses we know nothing about keep their order. Addresses that are failing
+    // go last.
+    public synchronized List<InetAddress> getCandidates(boolean includeExtra, InetAddress... addrs) {
+        LinkedHashSet<InetAddress> unique = new LinkedHashSet<>();
+        for (InetAddress addr : addrs) {
+            if (addr != null) {
+                unique.add(addr);
+            }
+        }
+        if (includeExtra) {
+            unique.addAll(extraAddresses);
+        }
+
+        // Snapshot the stats so the sort doesn't disturb the access order
+        final LinkedHashMap<InetAddress, AddressStats> candidateStats = new LinkedHashMap<>();
+        for (Map.Entry<InetAddress, AddressStats> entry : stats.entrySet()) {
+            if (unique.contains(entry.getKey())) {
+                candidateStats.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        // The sort is stable so ties keep the order they were given in
+        ArrayList<InetAddress> candidates = new ArrayList<>(unique);
+        Collections.sort(candidates, new Comparator<InetAddress>() {
+            @Override
+            public int compare(InetAddress lhs, InetAddress rhs) {
+                int lhsRank = rank(candidateStats.get(lhs));
+                int rhsRank = rank(candidateStats.get(rhs));
+                if (lhsRank != rhsRank) {
+                    return lhsRank - rhsRank;
+                }
+
+                AddressStats lhsStats = candidateStats.get(lhs);
+                AddressStats rhsStats = candidateStats.get(rhs);
+                if (lhsRank == 0) {
+                    return Double.compare(lhsStats.averageLatencyMs, rhsStats.averageLatencyMs);
+                }
+                else if (lhsRank == 2) {
+                    return lhsStats.consecutiveFailures - rhsStats.consecutiveFailures;
+                }
+                return 0;
+            }
+        });
+
+        return candidates;
+    }
+
+    // 0 = working, 1 = unknown, 2 = failing
+    private static int rank(AddressStats addrStats) {
+        if (addrStats == null) {
+            return 1;
+        }
+        else if (addrStats.consecutiveFailures > 0) {
+            return 2;
+        }
+        else if (addrStats.successes > 0) {
+            return 0;
+        }
+        return 1;
+    }
+}
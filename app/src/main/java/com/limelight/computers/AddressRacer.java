@@ -0,0 +1,233 @@
+package com.limelight.computers;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+// Probes several addresses of the same host in the style of happy eyeballs. The
+// most preferred address is tried first, and each following address is started
+// if nothing has answered after the stagger delay or as soon as an earlier one
+// fails. The first address to be verified wins and the rest are cancelled,
+// unless a favored address is given and is still able to answer in time.
+//
+// This doesn't know anything about NvHTTP so it can be driven by a fake verifier
+// on a plain JVM.
+public class AddressRacer {
+
+    public interface Verifier<T> {
+        // Returns null if the address doesn't reach the host we want
+        T verify(InetAddress addr) throws InterruptedException;
+    }
+
+    public static class Result<T> {
+        public final InetAddress address;
+        public final T value;
+        public final long elapsedMs;
+
+        private Result(InetAddress address, T value, long elapsedMs) {
+            this.address = address;
+            this.value = value;
+            this.elapsedMs = elapsedMs;
+        }
+    }
+
+    private final ExecutorService executor;
+    private final long staggerMs;
+
+    public AddressRacer(ExecutorService executor, long staggerMs) {
+        this.executor = executor;
+        this.staggerMs = staggerMs;
+    }
+
+    // Candidates should be in order of preference. Successes and failures are recorded
+    // in the preferences if they're given. Returns null if no address could be verified.
+    public <T> Result<T> race(List<InetAddress> candidates, Verifier<T> verifier,
+                              AddressPreference preference) throws InterruptedException {
+        return race(candidates, verifier, preference, null);
+    }
+
+    // Like race(), but if another candidate wins before the favored address has answered,
+    // the favored address still gets up to the stagger delay to be verified and take over.
+    // Without this, a faster answer from a remote address would keep the local address
+    // from ever being tried, since it would never build up any history.
+    //
+    // The winner is returned right away if the favored address already failed in this
+    // race or failed last time. In the latter case, the favored address is still probed
+    // in the background so it's waited for again once it works.
+    public <T> Result<T> race(List<InetAddress> candidates, final Verifier<T> verifier,
+                              AddressPreference preference, InetAddress favored) throws InterruptedException {
+        ExecutorCompletionService<Result<T>> completionService = new ExecutorCompletionService<>(executor);
+        ArrayList<Future<Result<T>>> futures = new ArrayList<>(candidates.size());
+        int next = 0;
+        int outstanding = 0;
+        boolean favoredFailed = false;
+
+        try {
+            for (;;) {
+                // Start the next candidate
+                if (next < candidates.size()) {
+                    if (!submit(completionService, futures, candidates.get(next++), verifier)) {
+                        // We're shutting down
+                        return null;
+                    }
+                    outstanding++;
+                }
+
+                if (outstanding == 0) {
+                    return null;
+                }
+
+                // Wait for an answer, or just the stagger delay if there are more to start
+                Future<Result<T>> completed = next < candidates.size() ?
+                        completionService.poll(staggerMs, TimeUnit.MILLISECONDS) :
+                        completionService.take();
+
+                while (completed != null) {
+                    outstanding--;
+
+                    Result<T> result = getResult(completed);
+                    if (result != null && result.value != null) {
+                        if (preference != null) {
+                            preference.recordSuccess(result.address, result.elapsedMs);
+                        }
+
+                        if (favored == null || favoredFailed || favored.equals(result.address) ||
+                                !candidates.contains(favored)) {
+                            return result;
+                        }
+
+                        boolean favoredStarted = candidates.indexOf(favored) < next;
+                        if (!favoredStarted) {
+                            if (preference != null && preference.isFailing(favored)) {
+                                // Don't make every poll wait for it, but find out if it's back
+                                probeInBackground(favored, verifier, preference);
+                                return result;
+                            }
+                            else if (!submit(completionService, futures, favored, verifier)) {
+                                return result;
+                            }
+                        }
+                        return waitForFavored(completionService, favored, result, preference);
+                    }
+                    else if (result != null) {
+                        if (preference != null) {
+                            preference.recordFailure(result.address);
+                        }
+                        if (result.address.equals(favored)) {
+                            favoredFailed = true;
+                        }
+                    }
+
+                    // That one failed, so see if another finished too. If not, we'll
+                    // start the next candidate right away.
+                    completed = completionService.poll();
+                }
+            }
+        } finally {
+            // Stop anything still in progress
+            for (Future<Result<T>> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    // Returns the favored address's result if it's verified within the stagger delay,
+    // otherwise the result we already have. Not answering in time counts as a failure.
+    private <T> Result<T> waitForFavored(ExecutorCompletionService<Result<T>> completionService,
+                                         InetAddress favored, Result<T> winner,
+                                         AddressPreference preference) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + staggerMs;
+        long remaining;
+        while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+            Future<Result<T>> completed = completionService.poll(remaining, TimeUnit.MILLISECONDS);
+            if (completed == null) {
+                break;
+            }
+
+            Result<T> result = getResult(completed);
+            if (result == null) {
+                continue;
+            }
+            else if (result.value == null) {
+                if (preference != null) {
+                    preference.recordFailure(result.address);
+                }
+                if (favored.equals(result.address)) {
+                    return winner;
+                }
+            }
+            else {
+                if (preference != null) {
+                    preference.recordSuccess(result.address, result.elapsedMs);
+                }
+                if (favored.equals(result.address)) {
+                    return result;
+                }
+            }
+        }
+
+        // It didn't answer in time
+        if (preference != null) {
+            preference.recordFailure(favored);
+        }
+        return winner;
+    }
+
+    // Verifies an address without waiting for it, just to record how it did
+    private <T> void probeInBackground(final InetAddress addr, final Verifier<T> verifier,
+                                       final AddressPreference preference) {
+        try {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    long startTime = System.currentTimeMillis();
+                    try {
+                        if (verifier.verify(addr) != null) {
+                            preference.recordSuccess(addr, System.currentTimeMillis() - startTime);
+                        }
+                        else {
+                            preference.recordFailure(addr);
+                        }
+                    } catch (InterruptedException ignored) {
+                        // We're shutting down
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ignored) {
+            // We're shutting down
+        }
+    }
+
+    private <T> boolean submit(ExecutorCompletionService<Result<T>> completionService,
+                               ArrayList<Future<Result<T>>> futures, final InetAddress addr,
+                               final Verifier<T> verifier) {
+        try {
+            futures.add(completionService.submit(new Callable<Result<T>>() {
+                @Override
+                public Result<T> call() throws Exception {
+                    long startTime = System.currentTimeMillis();
+                    T value = verifier.verify(addr);
+                    return new Result<>(addr, value, System.currentTimeMillis() - startTime);
+                }
+            }));
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    private static <T> Result<T> getResult(Future<Result<T>> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+}
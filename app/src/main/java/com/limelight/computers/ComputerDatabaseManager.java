@@ -1,169 +1,127 @@
 package com.limelight.computers;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Locale;
 import java.util.UUID;
 
 import com.limelight.LimeLog;
 import com.limelight.nvstream.http.ComputerDetails;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 
 public class ComputerDatabaseManager {
+    private static final String COMPUTER_SNAPSHOT_NAME = "computers.snapshot";
+
+    // The SQLite database we used to keep computers in. It's only read once to
+    // migrate its contents into the snapshot.
     private static final String COMPUTER_DB_NAME = "computers.db";
     private static final String COMPUTER_TABLE_NAME = "Computers";
-    private static final String COMPUTER_NAME_COLUMN_NAME = "ComputerName";
-    private static final String COMPUTER_UUID_COLUMN_NAME = "UUID";
-    private static final String LOCAL_IP_COLUMN_NAME = "LocalIp";
-    private static final String REMOTE_IP_COLUMN_NAME = "RemoteIp";
-    private static final String MAC_COLUMN_NAME = "Mac";
 
-    private SQLiteDatabase computerDb;
+    private final ComputerStore store;
 
     public ComputerDatabaseManager(Context c) {
-        try {
-            // Create or open an existing DB
-            computerDb = c.openOrCreateDatabase(COMPUTER_DB_NAME, 0, null);
-        } catch (SQLiteException e) {
-            // Delete the DB and try again
-            c.deleteDatabase(COMPUTER_DB_NAME);
-            computerDb = c.openOrCreateDatabase(COMPUTER_DB_NAME, 0, null);
+        store = new ComputerStore(new File(c.getFilesDir(), COMPUTER_SNAPSHOT_NAME));
+        if (!store.load() && c.getDatabasePath(COMPUTER_DB_NAME).exists()) {
+            migrateFromDatabase(c);
         }
-        initializeDb();
     }
 
+    // Writes any pending changes to disk before returning
     public void close() {
-        computerDb.close();
-    }
-
-    private void initializeDb() {
-        // Create tables if they aren't already there
-        computerDb.execSQL(String.format((Locale)null, "CREATE TABLE IF NOT EXISTS %s(%s TEXT PRIMARY KEY," +
-                " %s TEXT NOT NULL, %s TEXT NOT NULL, %s TEXT NOT NULL, %s TEXT NOT NULL)",
-                COMPUTER_TABLE_NAME,
-                COMPUTER_NAME_COLUMN_NAME, COMPUTER_UUID_COLUMN_NAME, LOCAL_IP_COLUMN_NAME,
-                REMOTE_IP_COLUMN_NAME, MAC_COLUMN_NAME));
-    }
-
-    public void deleteComputer(String name) {
-        computerDb.delete(COMPUTER_TABLE_NAME, COMPUTER_NAME_COLUMN_NAME+"=?", new String[]{name});
-    }
-
-    public boolean updateComputer(ComputerDetails details) {
-        ContentValues values = new ContentValues();
-        values.put(COMPUTER_NAME_COLUMN_NAME, details.name);
-        values.put(COMPUTER_UUID_COLUMN_NAME, details.uuid.toString());
-        values.put(LOCAL_IP_COLUMN_NAME, details.localIp.getAddress());
-        values.put(REMOTE_IP_COLUMN_NAME, details.remoteIp.getAddress());
-        values.put(MAC_COLUMN_NAME, details.macAddress);
-        return -1 != computerDb.insertWithOnConflict(COMPUTER_TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        store.close();
     }
 
-    public List<ComputerDetails> getAllComputers() {
-        Cursor c = computerDb.rawQuery("SELECT * FROM "+COMPUTER_TABLE_NAME, null);
-        LinkedList<ComputerDetails> computerList = new LinkedList<>();
-        while (c.moveToNext()) {
-            ComputerDetails details = new ComputerDetails();
-
-            details.name = c.getString(0);
-
-            String uuidStr = c.getString(1);
-            try {
-                details.uuid = UUID.fromString(uuidStr);
-            } catch (IllegalArgumentException e) {
-                // We'll delete this entry
-                LimeLog.severe("DB: Corrupted UUID for "+details.name);
-            }
-
-            try {
-                details.localIp = InetAddress.getByAddress(c.getBlob(2));
-            } catch (UnknownHostException e) {
-                // We'll delete this entry
-                LimeLog.severe("DB: Corrupted local IP for "+details.name);
-            }
-
-            try {
-                details.remoteIp = InetAddress.getByAddress(c.getBlob(3));
-            } catch (UnknownHostException e) {
-                // We'll delete this entry
-                LimeLog.severe("DB: Corrupted remote IP for "+details.name);
-            }
-
-            details.macAddress = c.getString(4);
-
-            // This signifies we don't have dynamic state (like pair state)
-            details.state = ComputerDetails.State.UNKNOWN;
-            details.reachability = ComputerDetails.Reachability.UNKNOWN;
+    private void migrateFromDatabase(Context c) {
+        SQLiteDatabase computerDb;
+        try {
+            computerDb = c.openOrCreateDatabase(COMPUTER_DB_NAME, 0, null);
+        } catch (SQLiteException e) {
+            // Nothing we can salvage
+            c.deleteDatabase(COMPUTER_DB_NAME);
+            return;
+        }
 
-            // If a field is corrupt or missing, skip the database entry
-            if (details.uuid == null || details.localIp == null || details.remoteIp == null ||
-                    details.macAddress == null) {
-                continue;
+        int migrated = 0;
+        try {
+            Cursor cursor = computerDb.rawQuery("SELECT * FROM "+COMPUTER_TABLE_NAME, null);
+            while (cursor.moveToNext()) {
+                ComputerDetails details = readComputer(cursor);
+                if (details != null && store.updateComputer(details)) {
+                    migrated++;
+                }
             }
-
-
-            computerList.add(details);
+            cursor.close();
+        } catch (SQLiteException e) {
+            LimeLog.severe("DB: Unable to read old computer database: "+e.getMessage());
+        } finally {
+            computerDb.close();
         }
 
-        c.close();
-
-        return computerList;
+        // Only drop the old database once the snapshot is safely on disk
+        try {
+            store.flush();
+            c.deleteDatabase(COMPUTER_DB_NAME);
+            LimeLog.info("DB: Migrated "+migrated+" computers from "+COMPUTER_DB_NAME);
+        } catch (IOException e) {
+            LimeLog.severe("DB: Failed to write migrated computers: "+e.getMessage());
+        }
     }
 
-    public ComputerDetails getComputerByName(String name) {
-        Cursor c = computerDb.query(COMPUTER_TABLE_NAME, null, COMPUTER_NAME_COLUMN_NAME+"=?", new String[]{name}, null, null, null);
+    // Returns null if the row is corrupt or missing a field
+    private static ComputerDetails readComputer(Cursor c) {
         ComputerDetails details = new ComputerDetails();
-        if (!c.moveToFirst()) {
-            // No matching computer
-            c.close();
-            return null;
-        }
 
         details.name = c.getString(0);
 
         String uuidStr = c.getString(1);
         try {
             details.uuid = UUID.fromString(uuidStr);
-        } catch (IllegalArgumentException e) {
-            // We'll delete this entry
+        } catch (IllegalArgumentException | NullPointerException e) {
             LimeLog.severe("DB: Corrupted UUID for "+details.name);
         }
 
         try {
             details.localIp = InetAddress.getByAddress(c.getBlob(2));
         } catch (UnknownHostException e) {
-            // We'll delete this entry
             LimeLog.severe("DB: Corrupted local IP for "+details.name);
         }
 
         try {
             details.remoteIp = InetAddress.getByAddress(c.getBlob(3));
         } catch (UnknownHostException e) {
-            // We'll delete this entry
             LimeLog.severe("DB: Corrupted remote IP for "+details.name);
         }
 
         details.macAddress = c.getString(4);
 
-        c.close();
-
-        details.state = ComputerDetails.State.UNKNOWN;
-        details.reachability = ComputerDetails.Reachability.UNKNOWN;
-
-        // If a field is corrupt or missing, delete the database entry
-        if (details.uuid == null || details.localIp == null || details.remoteIp == null ||
-                details.macAddress == null) {
-            deleteComputer(details.name);
+        if (details.name == null || details.uuid == null || details.localIp == null ||
+                details.remoteIp == null || details.macAddress == null) {
             return null;
         }
 
         return details;
     }
+
+    public void deleteComputer(String name) {
+        store.deleteComputer(name);
+    }
+
+    // The change is written to disk in the background
+    public boolean updateComputer(ComputerDetails details) {
+        return store.updateComputer(details);
+    }
+
+    public List<ComputerDetails> getAllComputers() {
+        return store.getAllComputers();
+    }
+
+    public ComputerDetails getComputerByName(String name) {
+        return store.getComputerByName(name);
+    }
 }
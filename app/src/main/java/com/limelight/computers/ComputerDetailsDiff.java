@@ -0,0 +1,83 @@
+package com.limelight.computers;
+
+import com.limelight.nvstream.http.ComputerDetails;
+
+// Compares the parts of ComputerDetails that a serverinfo poll can change and
+// that the database or the UI care about. The raw app list isn't included since
+// it's maintained by the app list poller.
+public class ComputerDetailsDiff {
+    public static final int STATE = 0x01;
+    public static final int REACHABILITY = 0x02;
+    public static final int PAIR_STATE = 0x04;
+    public static final int RUNNING_GAME = 0x08;
+    public static final int ADDRESSES = 0x10;
+    public static final int MAC_ADDRESS = 0x20;
+    public static final int IDENTITY = 0x40;
+
+    // Returns a mask of the fields that differ, or 0 if nothing we track changed
+    public static int diff(ComputerDetails before, ComputerDetails after) {
+        int changes = 0;
+
+        if (before.state != after.state) {
+            changes |= STATE;
+        }
+        if (before.reachability != after.reachability) {
+            changes |= REACHABILITY;
+        }
+        if (before.pairState != after.pairState) {
+            changes |= PAIR_STATE;
+        }
+        if (before.runningGameId != after.runningGameId) {
+            changes |= RUNNING_GAME;
+        }
+        if (!equals(before.localIp, after.localIp) || !equals(before.remoteIp, after.remoteIp)) {
+            changes |= ADDRESSES;
+        }
+        if (!equals(before.macAddress, after.macAddress)) {
+            changes |= MAC_ADDRESS;
+        }
+        if (!equals(before.name, after.name) || !equals(before.uuid, after.uuid)) {
+            changes |= IDENTITY;
+        }
+
+        return changes;
+    }
+
+    // Maps the outcome of one serverinfo poll to the PollScheduler result. A failed poll
+    // counts as offline even while the host is still reported online, so it doesn't
+    // push the host to the slow polling period before it's declared offline.
+    public static int getPollResult(boolean polled, ComputerDetails before, ComputerDetails after) {
+        if (!polled || after.state != ComputerDetails.State.ONLINE) {
+            return PollScheduler.PollTask.POLL_OFFLINE;
+        }
+
+        // Keep polling quickly for a while after something changes
+        return diff(before, after) != 0 ? PollScheduler.PollTask.POLL_CHANGED : PollScheduler.PollTask.POLL_UNCHANGED;
+    }
+
+    public static String toString(int changes) {
+        StringBuilder sb = new StringBuilder();
+        appendIfSet(sb, changes, STATE, "state");
+        appendIfSet(sb, changes, REACHABILITY, "reachability");
+        appendIfSet(sb, changes, PAIR_STATE, "pair state");
+        appendIfSet(sb, changes, RUNNING_GAME, "running game");
+        appendIfSet(sb, changes, ADDRESSES, "addresses");
+        appendIfSet(sb, changes, MAC_ADDRESS, "MAC address");
+        appendIfSet(sb, changes, IDENTITY, "identity");
+        return sb.length() == 0 ? "none" : sb.toString();
+    }
+
+    private static void appendIfSet(StringBuilder sb, int changes, int field, String name) {
+        if ((changes & field) != 0) {
+            if (sb.length() != 0) {
+                sb.append(", ");
+            }
+            sb.append(name);
+        }
+    }
+
+    // Objects.equals() needs API 19
+    private static boolean equals(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
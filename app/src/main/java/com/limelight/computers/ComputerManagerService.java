@@ -4,21 +4,23 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.StringReader;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
-import java.net.Socket;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.limelight.LimeLog;
-import com.limelight.binding.PlatformBinding;
 import com.limelight.discovery.DiscoveryService;
 import com.limelight.nvstream.http.ComputerDetails;
 import com.limelight.nvstream.http.NvApp;
 import com.limelight.nvstream.http.NvHTTP;
 import com.limelight.nvstream.mdns.MdnsComputer;
 import com.limelight.nvstream.mdns.MdnsDiscoveryListener;
+import com.limelight.utils.AppListDiff;
 import com.limelight.utils.CacheHelper;
 
 import android.app.Service;
@@ -32,10 +34,15 @@ import org.xmlpull.v1.XmlPullParserException;
 
 public class ComputerManagerService extends Service {
     private static final int SERVERINFO_POLLING_PERIOD_MS = 1500;
+    private static final int STABLE_POLLING_PERIOD_MS = 5000;
+    private static final int STABLE_POLL_THRESHOLD = 10;
+    private static final int OFFLINE_MAX_POLLING_PERIOD_MS = 30000;
+    private static final int POLLING_THREADS = 3;
     private static final int APPLIST_POLLING_PERIOD_MS = 30000;
     private static final int APPLIST_FAILED_POLLING_RETRY_MS = 2000;
     private static final int MDNS_QUERY_PERIOD_MS = 1000;
     private static final int FAST_POLL_TIMEOUT = 500;
+    private static final int ADDRESS_RACE_STAGGER_MS = 250;
     private static final int OFFLINE_POLL_TRIES = 5;
     private static final int EMPTY_LIST_THRESHOLD = 3;
 
@@ -48,7 +55,14 @@ public class ComputerManagerService extends Service {
     private final LinkedList<PollingTuple> pollingTuples = new LinkedList<>();
     private ComputerManagerListener listener = null;
     private final AtomicInteger activePolls = new AtomicInteger(0);
+    private final AtomicLong totalPolls = new AtomicLong(0);
+    private final AtomicLong suppressedDbWrites = new AtomicLong(0);
+    private final AtomicLong suppressedNotifications = new AtomicLong(0);
     private boolean pollingActive = false;
+    private PollScheduler pollScheduler;
+    private ExecutorService probeExecutor;
+    private AddressRacer addressRacer;
+    private long pollingStartTime;
 
     private DiscoveryService.DiscoveryBinder discoveryBinder;
     private final ServiceConnection discoveryServiceConnection = new ServiceConnection() {
@@ -71,16 +85,21 @@ public class ComputerManagerService extends Service {
     };
 
     // Returns true if the details object was modified
-    private boolean runPoll(ComputerDetails details, boolean newPc, int offlineCount) throws InterruptedException {
+    private boolean runPoll(ComputerDetails details, AddressPreference addresses,
+                            boolean newPc, int offlineCount) throws InterruptedException {
         if (!getLocalDatabaseReference()) {
             return false;
         }
 
         activePolls.incrementAndGet();
+        totalPolls.incrementAndGet();
+
+        // Remember what we had so we can tell if anything changed
+        ComputerDetails oldDetails = new ComputerDetails(details);
 
         // Poll the machine
         try {
-            if (!pollComputer(details)) {
+            if (!pollComputer(details, addresses)) {
                 if (!newPc && offlineCount < OFFLINE_POLL_TRIES) {
                     // Return without calling the listener
                     releaseLocalDatabaseReference();
@@ -97,6 +116,23 @@ public class ComputerManagerService extends Service {
             activePolls.decrementAndGet();
         }
 
+        int changes = ComputerDetailsDiff.diff(oldDetails, details);
+        if (!newPc && changes == 0) {
+            // Nothing to write or report
+            if (details.state == ComputerDetails.State.ONLINE) {
+                suppressedDbWrites.incrementAndGet();
+            }
+            if (listener != null) {
+                suppressedNotifications.incrementAndGet();
+            }
+
+            releaseLocalDatabaseReference();
+            return true;
+        }
+        else if (!newPc) {
+            LimeLog.info(details.name + " changed: " + ComputerDetailsDiff.toString(changes));
+        }
+
         // If it's online, update our persistent state
         if (details.state == ComputerDetails.State.ONLINE) {
             if (!newPc) {
@@ -121,41 +157,48 @@ public class ComputerManagerService extends Service {
         return true;
     }
 
-    private Thread createPollingThread(final PollingTuple tuple) {
-        Thread t = new Thread() {
+    private PollScheduler.Handle schedulePolling(final PollingTuple tuple) {
+        return pollScheduler.schedule(new PollScheduler.PollTask() {
+            private int offlineCount = 0;
+            private boolean reportedOnline = false;
+
             @Override
-            public void run() {
-
-                int offlineCount = 0;
-                while (!isInterrupted() && pollingActive) {
-                    try {
-                        // Only allow one request to the machine at a time
-                        synchronized (tuple.networkLock) {
-                            // Check if this poll has modified the details
-                            if (!runPoll(tuple.computer, false, offlineCount)) {
-                                LimeLog.warning(tuple.computer.name + " is offline (try " + offlineCount + ")");
-                                offlineCount++;
-                            } else {
-                                offlineCount = 0;
-                            }
-                        }
+            public int poll() throws InterruptedException {
+                if (!pollingActive) {
+                    return POLL_OFFLINE;
+                }
 
-                        // Wait until the next polling interval
-                        Thread.sleep(SERVERINFO_POLLING_PERIOD_MS);
-                    } catch (InterruptedException e) {
-                        break;
+                ComputerDetails oldDetails = new ComputerDetails(tuple.computer);
+
+                // Only allow one request to the machine at a time
+                boolean polled;
+                synchronized (tuple.networkLock) {
+                    // Check if this poll has modified the details
+                    polled = runPoll(tuple.computer, tuple.addresses, false, offlineCount);
+                    if (!polled) {
+                        LimeLog.warning(tuple.computer.name + " is offline (try " + offlineCount + ")");
+                        offlineCount++;
+                    } else {
+                        offlineCount = 0;
                     }
                 }
+
+                int result = ComputerDetailsDiff.getPollResult(polled, oldDetails, tuple.computer);
+                if (result != POLL_OFFLINE && !reportedOnline) {
+                    reportedOnline = true;
+                    LimeLog.info(tuple.computer.name + " online after " +
+                            (System.currentTimeMillis() - pollingStartTime) + " ms");
+                }
+                return result;
             }
-        };
-        t.setName("Polling thread for " + tuple.computer.localIp.getHostAddress());
-        return t;
+        });
     }
 
     public class ComputerManagerBinder extends Binder {
         public void startPolling(ComputerManagerListener listener) {
             // Polling is active
             pollingActive = true;
+            pollingStartTime = System.currentTimeMillis();
 
             // Set the listener
             ComputerManagerService.this.listener = listener;
@@ -165,13 +208,12 @@ public class ComputerManagerService extends Service {
 
             synchronized (pollingTuples) {
                 for (PollingTuple tuple : pollingTuples) {
-                    // This polling thread might already be there
-                    if (tuple.thread == null) {
+                    // This host might already be polling
+                    if (tuple.poller == null) {
                         // Report this computer initially
                         listener.notifyComputerUpdated(tuple.computer);
 
-                        tuple.thread = createPollingThread(tuple);
-                        tuple.thread.start();
+                        tuple.poller = schedulePolling(tuple);
                     }
                 }
             }
@@ -205,6 +247,18 @@ public class ComputerManagerService extends Service {
             ComputerManagerService.this.removeComputer(name);
         }
 
+        // Poll every host now and keep polling quickly for a while. Call this when
+        // the user interacts with a PC so they see its current state.
+        public void expeditePolling() {
+            synchronized (pollingTuples) {
+                for (PollingTuple tuple : pollingTuples) {
+                    if (tuple.poller != null) {
+                        tuple.poller.expedite();
+                    }
+                }
+            }
+        }
+
         public void stopPolling() {
             // Just call the unbind handler to cleanup
             ComputerManagerService.this.onUnbind(null);
@@ -238,14 +292,19 @@ public class ComputerManagerService extends Service {
             discoveryBinder.stopDiscovery();
         }
 
+        LimeLog.info("Polling stats: " + totalPolls.get() + " polls, " +
+                suppressedDbWrites.get() + " database writes and " +
+                suppressedNotifications.get() + " notifications skipped because nothing changed");
+        LimeLog.info(NvHttpPool.getStats());
+
         // Stop polling
         pollingActive = false;
         synchronized (pollingTuples) {
             for (PollingTuple tuple : pollingTuples) {
-                if (tuple.thread != null) {
-                    // Interrupt and remove the thread
-                    tuple.thread.interrupt();
-                    tuple.thread = null;
+                if (tuple.poller != null) {
+                    // Cancel polling, interrupting any poll in progress
+                    tuple.poller.cancel();
+                    tuple.poller = null;
                 }
             }
         }
@@ -277,7 +336,7 @@ public class ComputerManagerService extends Service {
         };
     }
 
-    private void addTuple(ComputerDetails details) {
+    private void addTuple(ComputerDetails details, InetAddress addedAddr) {
         synchronized (pollingTuples) {
             for (PollingTuple tuple : pollingTuples) {
                 // Check if this is the same computer
@@ -287,10 +346,14 @@ public class ComputerManagerService extends Service {
                     tuple.computer.localIp = details.localIp;
                     tuple.computer.remoteIp = details.remoteIp;
 
-                    // Start a polling thread if polling is active
-                    if (pollingActive && tuple.thread == null) {
-                        tuple.thread = createPollingThread(tuple);
-                        tuple.thread.start();
+                    // Keep racing the address it was found at too
+                    if (addedAddr != null) {
+                        tuple.addresses.addExtraAddress(addedAddr);
+                    }
+
+                    // Start polling if polling is active
+                    if (pollingActive && tuple.poller == null) {
+                        tuple.poller = schedulePolling(tuple);
                     }
 
                     // Found an entry so we're done
@@ -300,12 +363,12 @@ public class ComputerManagerService extends Service {
 
             // If we got here, we didn't find an entry
             PollingTuple tuple = new PollingTuple(details, null);
-            if (pollingActive) {
-                tuple.thread = createPollingThread(tuple);
+            if (addedAddr != null) {
+                tuple.addresses.addExtraAddress(addedAddr);
             }
             pollingTuples.add(tuple);
-            if (tuple.thread != null) {
-                tuple.thread.start();
+            if (pollingActive) {
+                tuple.poller = schedulePolling(tuple);
             }
         }
     }
@@ -318,7 +381,7 @@ public class ComputerManagerService extends Service {
 
         // Block while we try to fill the details
         try {
-            runPoll(fakeDetails, true, 0);
+            runPoll(fakeDetails, new AddressPreference(), true, 0);
         } catch (InterruptedException e) {
             return false;
         }
@@ -327,8 +390,8 @@ public class ComputerManagerService extends Service {
         if (fakeDetails.state == ComputerDetails.State.ONLINE) {
             LimeLog.info("New PC ("+fakeDetails.name+") is UUID "+fakeDetails.uuid);
 
-            // Start a polling thread for this machine
-            addTuple(fakeDetails);
+            // Start polling this machine
+            addTuple(fakeDetails, addr);
             return true;
         }
         else {
@@ -348,9 +411,9 @@ public class ComputerManagerService extends Service {
             // Remove the computer from the computer list
             for (PollingTuple tuple : pollingTuples) {
                 if (tuple.computer.name.equals(name)) {
-                    if (tuple.thread != null) {
-                        // Interrupt the thread on this entry
-                        tuple.thread.interrupt();
+                    if (tuple.poller != null) {
+                        // Stop polling this entry
+                        tuple.poller.cancel();
                     }
                     pollingTuples.remove(tuple);
                     break;
@@ -376,15 +439,14 @@ public class ComputerManagerService extends Service {
         }
     }
 
-    private ComputerDetails tryPollIp(ComputerDetails details, InetAddress ipAddr) {
+    private ComputerDetails tryPollIp(ComputerDetails details, InetAddress ipAddr) throws InterruptedException {
         // Fast poll this address first to determine if we can connect at the TCP layer
         if (!fastPollIp(ipAddr)) {
             return null;
         }
 
         try {
-            NvHTTP http = new NvHTTP(ipAddr, idManager.getUniqueId(),
-                    null, PlatformBinding.getCryptoProvider(ComputerManagerService.this));
+            NvHTTP http = NvHttpPool.get(ComputerManagerService.this, ipAddr, idManager.getUniqueId());
 
             ComputerDetails newDetails = http.getComputerDetails();
 
@@ -404,120 +466,38 @@ public class ComputerManagerService extends Service {
 
     // Just try to establish a TCP connection to speculatively detect a running
     // GFE server
-    private boolean fastPollIp(InetAddress addr) {
-        Socket s = new Socket();
-        try {
-            s.connect(new InetSocketAddress(addr, NvHTTP.HTTPS_PORT), FAST_POLL_TIMEOUT);
-            s.close();
-            return true;
-        } catch (IOException e) {
-            return false;
-        }
+    private boolean fastPollIp(InetAddress addr) throws InterruptedException {
+        return FastPoller.connectFirst(new InetAddress[] {addr}, NvHTTP.HTTPS_PORT, FAST_POLL_TIMEOUT) == 0;
     }
 
-    private void startFastPollThread(final InetAddress addr, final boolean[] info) {
-        Thread t = new Thread() {
-            @Override
-            public void run() {
-                boolean pollRes = fastPollIp(addr);
-
-                synchronized (info) {
-                    info[0] = true; // Done
-                    info[1] = pollRes; // Polling result
-
-                    info.notify();
-                }
-            }
-        };
-        t.setName("Fast Poll - "+addr.getHostAddress());
-        t.start();
-    }
-
-    private ComputerDetails.Reachability fastPollPc(final InetAddress local, final InetAddress remote) throws InterruptedException {
-        final boolean[] remoteInfo = new boolean[2];
-        final boolean[] localInfo = new boolean[2];
-
-        startFastPollThread(local, localInfo);
-        startFastPollThread(remote, remoteInfo);
-
-        // Check local first
-        synchronized (localInfo) {
-            while (!localInfo[0]) {
-                localInfo.wait(500);
-            }
-
-            if (localInfo[1]) {
-                return ComputerDetails.Reachability.LOCAL;
-            }
-        }
-
-        // Now remote
-        synchronized (remoteInfo) {
-            while (!remoteInfo[0]) {
-                remoteInfo.wait(500);
-            }
-
-            if (remoteInfo[1]) {
-                return ComputerDetails.Reachability.REMOTE;
-            }
+    // Races every address we know for this PC and returns the first one that answers
+    // with the PC we expect. The extra addresses are the ones it was discovered or
+    // added at, which may not be either of the addresses it reports. The local address
+    // is favored so a LAN host doesn't stay on its remote address just because that
+    // answered first once.
+    private ReachabilityTuple pollForReachability(final ComputerDetails details, AddressPreference addresses,
+                                                  boolean includeExtra) throws InterruptedException {
+        List<InetAddress> candidates = addresses.getCandidates(includeExtra, details.localIp, details.remoteIp);
+
+        AddressRacer.Result<ComputerDetails> result = addressRacer.race(candidates,
+                new AddressRacer.Verifier<ComputerDetails>() {
+                    @Override
+                    public ComputerDetails verify(InetAddress addr) throws InterruptedException {
+                        return tryPollIp(details, addr);
+                    }
+                }, addresses, details.localIp);
+        if (result == null) {
+            LimeLog.info("No address of "+details.name+" responded "+candidates);
+            return null;
         }
 
-        return ComputerDetails.Reachability.OFFLINE;
-    }
+        LimeLog.info("Reached "+details.name+" at "+result.address+" in "+result.elapsedMs+" ms");
 
-    private ReachabilityTuple pollForReachability(ComputerDetails details) throws InterruptedException {
-        ComputerDetails polledDetails;
-        ComputerDetails.Reachability reachability;
+        ComputerDetails polledDetails = result.value;
+        InetAddress reachableAddr = result.address;
 
         // If the local address is routable across the Internet,
         // always consider this PC remote to be conservative
-        if (details.localIp.equals(details.remoteIp)) {
-            reachability = ComputerDetails.Reachability.REMOTE;
-        }
-        else {
-            // Do a TCP-level connection to the HTTP server to see if it's listening
-            LimeLog.info("Starting fast poll for "+details.name+" ("+details.localIp+", "+details.remoteIp+")");
-            reachability = fastPollPc(details.localIp, details.remoteIp);
-            LimeLog.info("Fast poll for "+details.name+" returned "+reachability.toString());
-
-            // If no connection could be established to either IP address, there's nothing we can do
-            if (reachability == ComputerDetails.Reachability.OFFLINE) {
-                return null;
-            }
-        }
-
-        boolean localFirst = (reachability == ComputerDetails.Reachability.LOCAL);
-
-        if (localFirst) {
-            polledDetails = tryPollIp(details, details.localIp);
-        }
-        else {
-            polledDetails = tryPollIp(details, details.remoteIp);
-        }
-
-        InetAddress reachableAddr = null;
-        if (polledDetails == null && !details.localIp.equals(details.remoteIp)) {
-            // Failed, so let's try the fallback
-            if (!localFirst) {
-                polledDetails = tryPollIp(details, details.localIp);
-            }
-            else {
-                polledDetails = tryPollIp(details, details.remoteIp);
-            }
-
-            if (polledDetails != null) {
-                // The fallback poll worked
-                reachableAddr = !localFirst ? details.localIp : details.remoteIp;
-            }
-        }
-        else if (polledDetails != null) {
-            reachableAddr = localFirst ? details.localIp : details.remoteIp;
-        }
-
-        if (reachableAddr == null) {
-            return null;
-        }
-
         if (polledDetails.remoteIp.equals(reachableAddr)) {
             polledDetails.reachability = ComputerDetails.Reachability.REMOTE;
         }
@@ -531,8 +511,8 @@ public class ComputerManagerService extends Service {
         return new ReachabilityTuple(polledDetails, reachableAddr);
     }
 
-    private boolean pollComputer(ComputerDetails details) throws InterruptedException {
-        ReachabilityTuple initialReachTuple = pollForReachability(details);
+    private boolean pollComputer(ComputerDetails details, AddressPreference addresses) throws InterruptedException {
+        ReachabilityTuple initialReachTuple = pollForReachability(details, addresses, true);
         if (initialReachTuple == null) {
             return false;
         }
@@ -540,7 +520,7 @@ public class ComputerManagerService extends Service {
         if (initialReachTuple.computer.reachability == ComputerDetails.Reachability.UNKNOWN) {
             // Neither IP address reported in the serverinfo response was the one we used.
             // Poll again to see if we can contact this machine on either of its reported addresses.
-            ReachabilityTuple confirmationReachTuple = pollForReachability(initialReachTuple.computer);
+            ReachabilityTuple confirmationReachTuple = pollForReachability(initialReachTuple.computer, addresses, false);
             if (confirmationReachTuple == null) {
                 // Neither of those seem to work, so we'll hold onto the address that did work
                 initialReachTuple.computer.localIp = initialReachTuple.reachableAddress;
@@ -577,6 +557,24 @@ public class ComputerManagerService extends Service {
         // Lookup or generate this device's UID
         idManager = new IdentityManager(this);
 
+        // Every host is polled on this pool. Hosts that haven't changed in a while are
+        // polled less often, and once a host has been reported offline, we back off further.
+        pollScheduler = new PollScheduler(POLLING_THREADS,
+                SERVERINFO_POLLING_PERIOD_MS, STABLE_POLLING_PERIOD_MS, STABLE_POLL_THRESHOLD,
+                OFFLINE_MAX_POLLING_PERIOD_MS, OFFLINE_POLL_TRIES);
+
+        // Each address of a host is verified on its own thread so they can race
+        final AtomicInteger probeThreadCount = new AtomicInteger();
+        probeExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                t.setName("Address probe " + probeThreadCount.incrementAndGet());
+                return t;
+            }
+        });
+        addressRacer = new AddressRacer(probeExecutor, ADDRESS_RACE_STAGGER_MS);
+
         // Initialize the DB
         dbManager = new ComputerDatabaseManager(this);
         dbRefCount.set(1);
@@ -588,7 +586,7 @@ public class ComputerManagerService extends Service {
 
         for (ComputerDetails computer : dbManager.getAllComputers()) {
             // Add tuples for each computer
-            addTuple(computer);
+            addTuple(computer, null);
         }
 
         releaseLocalDatabaseReference();
@@ -602,6 +600,8 @@ public class ComputerManagerService extends Service {
         }
 
         // FIXME: Should await termination here but we have timeout issues in HttpURLConnection
+        pollScheduler.shutdown();
+        probeExecutor.shutdownNow();
 
         // Remove the initial DB reference
         releaseLocalDatabaseReference();
@@ -618,6 +618,10 @@ public class ComputerManagerService extends Service {
         private final Object pollEvent = new Object();
         private boolean receivedAppList = false;
 
+        // Hash of the last app list we parsed and cached
+        private long lastAppListHash;
+        private boolean haveAppListHash = false;
+
         public ApplistPoller(ComputerDetails computer) {
             this.computer = computer;
         }
@@ -665,6 +669,17 @@ public class ComputerManagerService extends Service {
                 @Override
                 public void run() {
                     int emptyAppListResponses = 0;
+
+                    // Start from what's in the cache so an unchanged list isn't written again
+                    if (computer.uuid != null) {
+                        try {
+                            String cachedAppList = CacheHelper.readInputStreamToString(
+                                    CacheHelper.openCacheFileForInput(getCacheDir(), "applist", computer.uuid.toString()));
+                            lastAppListHash = AppListDiff.hashRawAppList(cachedAppList);
+                            haveAppListHash = true;
+                        } catch (IOException ignored) {}
+                    }
+
                     do {
                         InetAddress selectedAddr;
 
@@ -688,8 +703,8 @@ public class ComputerManagerService extends Service {
                             selectedAddr = computer.remoteIp;
                         }
 
-                        NvHTTP http = new NvHTTP(selectedAddr, idManager.getUniqueId(),
-                                null, PlatformBinding.getCryptoProvider(ComputerManagerService.this));
+                        NvHTTP http = NvHttpPool.get(ComputerManagerService.this, selectedAddr,
+                                idManager.getUniqueId());
 
                         PollingTuple tuple = getPollingTuple(computer);
 
@@ -708,6 +723,19 @@ public class ComputerManagerService extends Service {
                                 appList = http.getAppListRaw();
                             }
 
+                            if (appList != null && haveAppListHash &&
+                                    AppListDiff.hashRawAppList(appList) == lastAppListHash) {
+                                // Same as last time, so there's nothing to parse or cache. We still
+                                // notify since listeners use this to refresh the running game.
+                                computer.rawAppList = appList;
+                                receivedAppList = true;
+
+                                if (listener != null && thread != null) {
+                                    listener.notifyComputerUpdated(computer);
+                                }
+                                continue;
+                            }
+
                             List<NvApp> list = NvHTTP.getAppListByReader(new StringReader(appList));
                             if (list.isEmpty()) {
                                 LimeLog.warning("Empty app list received from "+computer.uuid);
@@ -738,6 +766,9 @@ public class ComputerManagerService extends Service {
                                     emptyAppListResponses = 0;
                                 }
 
+                                lastAppListHash = AppListDiff.hashRawAppList(appList);
+                                haveAppListHash = true;
+
                                 // Update the computer
                                 computer.rawAppList = appList;
                                 receivedAppList = true;
@@ -775,13 +806,14 @@ public class ComputerManagerService extends Service {
 }
 
 class PollingTuple {
-    public Thread thread;
+    public PollScheduler.Handle poller;
     public final ComputerDetails computer;
     public final Object networkLock;
+    public final AddressPreference addresses = new AddressPreference();
 
-    public PollingTuple(ComputerDetails computer, Thread thread) {
+    public PollingTuple(ComputerDetails computer, PollScheduler.Handle poller) {
         this.computer = computer;
-        this.thread = thread;
+        this.poller = poller;
         this.networkLock = new Object();
     }
 }
@@ -0,0 +1,306 @@
+package com.limelight.computers;
+
+import com.limelight.LimeLog;
+import com.limelight.nvstream.http.ComputerDetails;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+// Keeps every saved computer in memory, indexed by UUID and by name, so lookups
+// never touch the disk. Changes are written back as a single snapshot file by a
+// background thread. Bursts of changes are coalesced into one write.
+//
+// This has no Android dependencies so it can be exercised on a plain JVM.
+public class ComputerStore {
+    private static final int SNAPSHOT_MAGIC = 0x4D4C4353; // 'MLCS'
+    private static final int SNAPSHOT_VERSION = 1;
+
+    // How long to wait for more changes before writing the snapshot
+    private static final long WRITE_DELAY_MS = 500;
+
+    private final File snapshotFile;
+    private final ScheduledExecutorService writer;
+
+    // Guarded by this. Entries only hold the persistent fields.
+    private final LinkedHashMap<UUID, ComputerDetails> computersByUuid = new LinkedHashMap<>();
+    private final HashMap<String, UUID> uuidsByName = new HashMap<>();
+    private long generation;
+    private long writtenGeneration;
+    private boolean writeScheduled;
+    private boolean closed;
+
+    private long updatesRequested;
+    private long snapshotsWritten;
+
+    // Serializes snapshot writes from the writer thread and flush()
+    private final Object writeLock = new Object();
+
+    public ComputerStore(File snapshotFile) {
+        this.snapshotFile = snapshotFile;
+        this.writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                t.setName("Computer DB writer");
+                return t;
+            }
+        });
+    }
+
+    // Loads the snapshot if there is one. Returns false if there was no usable snapshot.
+    public synchronized boolean load() {
+        if (!snapshotFile.exists()) {
+            return false;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)));
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException("Unrecognized snapshot header");
+            }
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                ComputerDetails details = new ComputerDetails();
+                details.name = in.readUTF();
+                details.uuid = new UUID(in.readLong(), in.readLong());
+                details.localIp = readAddress(in);
+                details.remoteIp = readAddress(in);
+                details.macAddress = in.readUTF();
+                put(details);
+            }
+
+            writtenGeneration = generation;
+            return true;
+        } catch (IOException e) {
+            // Start over like we used to with a corrupt database
+            LimeLog.severe("DB: Discarding corrupted computer snapshot: "+e.getMessage());
+            computersByUuid.clear();
+            uuidsByName.clear();
+            snapshotFile.delete();
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    private static InetAddress readAddress(DataInputStream in) throws IOException {
+        byte[] addr = new byte[in.readUnsignedByte()];
+        in.readFully(addr);
+        return InetAddress.getByAddress(addr);
+    }
+
+    private static void writeAddress(DataOutputStream out, InetAddress addr) throws IOException {
+        byte[] bytes = addr.getAddress();
+        out.writeByte(bytes.length);
+        out.write(bytes);
+    }
+
+    // Copies only the fields we persist. Dynamic state is reported as unknown.
+    private static ComputerDetails copyPersistentFields(ComputerDetails details) {
+        ComputerDetails copy = new ComputerDetails();
+        copy.name = details.name;
+        copy.uuid = details.uuid;
+        copy.localIp = details.localIp;
+        copy.remoteIp = details.remoteIp;
+        copy.macAddress = details.macAddress;
+        copy.state = ComputerDetails.State.UNKNOWN;
+        copy.reachability = ComputerDetails.Reachability.UNKNOWN;
+        return copy;
+    }
+
+    private static boolean samePersistentFields(ComputerDetails a, ComputerDetails b) {
+        return a.name.equals(b.name) && a.uuid.equals(b.uuid) && a.localIp.equals(b.localIp) &&
+                a.remoteIp.equals(b.remoteIp) && a.macAddress.equals(b.macAddress);
+    }
+
+    // Must be called with this held
+    private void put(ComputerDetails details) {
+        // Names are unique like the old table's primary key, so a new PC with
+        // an existing name replaces the old one
+        UUID sameName = uuidsByName.get(details.name);
+        if (sameName != null && !sameName.equals(details.uuid)) {
+            computersByUuid.remove(sameName);
+        }
+
+        ComputerDetails old = computersByUuid.put(details.uuid, details);
+        if (old != null && !old.name.equals(details.name)) {
+            uuidsByName.remove(old.name);
+        }
+        uuidsByName.put(details.name, details.uuid);
+        generation++;
+    }
+
+    public synchronized List<ComputerDetails> getAllComputers() {
+        ArrayList<ComputerDetails> computers = new ArrayList<>(computersByUuid.size());
+        for (ComputerDetails details : computersByUuid.values()) {
+            computers.add(copyPersistentFields(details));
+        }
+        return computers;
+    }
+
+    public synchronized ComputerDetails getComputerByName(String name) {
+        UUID uuid = uuidsByName.get(name);
+        return uuid != null ? copyPersistentFields(computersByUuid.get(uuid)) : null;
+    }
+
+    public synchronized ComputerDetails getComputerByUuid(UUID uuid) {
+        ComputerDetails details = computersByUuid.get(uuid);
+        return details != null ? copyPersistentFields(details) : null;
+    }
+
+    public boolean updateComputer(ComputerDetails details) {
+        if (details.name == null || details.uuid == null || details.localIp == null ||
+                details.remoteIp == null || details.macAddress == null) {
+            return false;
+        }
+
+        synchronized (this) {
+            updatesRequested++;
+
+            ComputerDetails existing = computersByUuid.get(details.uuid);
+            if (existing != null && samePersistentFields(existing, details)) {
+                // Nothing to write
+                return true;
+            }
+
+            put(copyPersistentFields(details));
+            scheduleWrite();
+        }
+        return true;
+    }
+
+    public synchronized void deleteComputer(String name) {
+        UUID uuid = uuidsByName.remove(name);
+        if (uuid != null) {
+            computersByUuid.remove(uuid);
+            generation++;
+            scheduleWrite();
+        }
+    }
+
+    // Must be called with this held
+    private void scheduleWrite() {
+        if (writeScheduled || closed) {
+            return;
+        }
+
+        writeScheduled = true;
+        writer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ComputerStore.this) {
+                    writeScheduled = false;
+                }
+
+                try {
+                    writeSnapshot();
+                } catch (IOException e) {
+                    LimeLog.severe("DB: Failed to write computer snapshot: "+e.getMessage());
+                }
+            }
+        }, WRITE_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void writeSnapshot() throws IOException {
+        synchronized (writeLock) {
+            ArrayList<ComputerDetails> computers;
+            long snapshotGeneration;
+            synchronized (this) {
+                if (generation == writtenGeneration) {
+                    // Already written by an earlier batch
+                    return;
+                }
+
+                // The entries are replaced rather than modified, so they can be used outside the lock
+                computers = new ArrayList<>(computersByUuid.values());
+                snapshotGeneration = generation;
+            }
+
+            // Write a new file and swap it in so a crash never leaves a partial snapshot
+            File tempFile = new File(snapshotFile.getPath() + ".tmp");
+            FileOutputStream fileOut = new FileOutputStream(tempFile);
+            try {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeInt(SNAPSHOT_VERSION);
+                out.writeInt(computers.size());
+                for (ComputerDetails details : computers) {
+                    out.writeUTF(details.name);
+                    out.writeLong(details.uuid.getMostSignificantBits());
+                    out.writeLong(details.uuid.getLeastSignificantBits());
+                    writeAddress(out, details.localIp);
+                    writeAddress(out, details.remoteIp);
+                    out.writeUTF(details.macAddress);
+                }
+                out.flush();
+
+                // The data has to be durable before the rename, or a crash could leave
+                // the new name pointing at an empty file on some filesystems
+                fileOut.getFD().sync();
+            } finally {
+                fileOut.close();
+            }
+
+            if (!tempFile.renameTo(snapshotFile)) {
+                tempFile.delete();
+                throw new IOException("Unable to replace "+snapshotFile);
+            }
+
+            synchronized (this) {
+                writtenGeneration = snapshotGeneration;
+                snapshotsWritten++;
+            }
+        }
+    }
+
+    // Writes any pending changes and waits until they're on disk
+    public void flush() throws IOException {
+        writeSnapshot();
+    }
+
+    // Flushes and stops the writer. The store can still be read afterwards.
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+
+        try {
+            flush();
+        } catch (IOException e) {
+            LimeLog.severe("DB: Failed to flush computer snapshot: "+e.getMessage());
+        }
+        writer.shutdown();
+
+        LimeLog.info("DB: "+getStats());
+    }
+
+    synchronized long getSnapshotsWritten() {
+        return snapshotsWritten;
+    }
+
+    public synchronized String getStats() {
+        return updatesRequested + " updates requested, " + snapshotsWritten + " snapshots written";
+    }
+}
@@ -0,0 +1,108 @@
+package com.limelight.computers;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+// Speculatively detects a running GFE server by opening TCP connections to
+// several addresses at once. The connects are non-blocking and share one
+// selector, so this doesn't need a thread per address.
+public class FastPoller {
+
+    // Returns the index of the first address in the array that accepted a connection,
+    // or -1 if none did within the timeout. We return as soon as every address before
+    // the winner has failed, so a reachable first choice never waits on the others.
+    // If preferred addresses are still pending at the timeout, the best one that did
+    // connect wins.
+    public static int connectFirst(InetAddress[] addrs, int port, int timeoutMs) throws InterruptedException {
+        SocketChannel[] channels = new SocketChannel[addrs.length];
+
+        // 0 = pending, 1 = connected, -1 = failed
+        int[] results = new int[addrs.length];
+
+        Selector selector = null;
+        try {
+            selector = Selector.open();
+
+            for (int i = 0; i < addrs.length; i++) {
+                try {
+                    channels[i] = SocketChannel.open();
+                    channels[i].configureBlocking(false);
+                    if (channels[i].connect(new InetSocketAddress(addrs[i], port))) {
+                        results[i] = 1;
+                    }
+                    else {
+                        channels[i].register(selector, SelectionKey.OP_CONNECT, i);
+                    }
+                } catch (IOException e) {
+                    results[i] = -1;
+                }
+            }
+
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            for (;;) {
+                // Check whether the most preferred reachable address is known
+                int pending = 0;
+                for (int i = 0; i < results.length; i++) {
+                    if (results[i] == 1 && pending == 0) {
+                        return i;
+                    }
+                    else if (results[i] == 0) {
+                        pending++;
+                    }
+                }
+                if (pending == 0) {
+                    return -1;
+                }
+
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    for (int i = 0; i < results.length; i++) {
+                        if (results[i] == 1) {
+                            return i;
+                        }
+                    }
+                    return -1;
+                }
+
+                selector.select(remaining);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    int i = (Integer) key.attachment();
+                    try {
+                        results[i] = ((SocketChannel) key.channel()).finishConnect() ? 1 : 0;
+                    } catch (IOException e) {
+                        results[i] = -1;
+                    }
+
+                    if (results[i] != 0) {
+                        key.cancel();
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            for (SocketChannel channel : channels) {
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {}
+                }
+            }
+
+            if (selector != null) {
+                try {
+                    selector.close();
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.limelight.computers;
+
+import android.content.Context;
+
+import com.limelight.binding.PlatformBinding;
+import com.limelight.nvstream.http.LimelightCryptoProvider;
+import com.limelight.nvstream.http.NvHTTP;
+
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Shares one NvHTTP client per host address between the pollers and the asset
+// loader instead of building a new client, HTTP stack and crypto provider for
+// every request. All clients use the same crypto provider so the client
+// certificate and key are only loaded once.
+public class NvHttpPool {
+    private static final int MAX_CLIENTS = 16;
+
+    private static LimelightCryptoProvider cryptoProvider;
+    private static String clientUniqueId;
+
+    private static long clientsCreated;
+    private static long clientsReused;
+
+    // Access ordered so the least recently used client is dropped first
+    private static final LinkedHashMap<InetAddress, NvHTTP> clients =
+            new LinkedHashMap<InetAddress, NvHTTP>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<InetAddress, NvHTTP> eldest) {
+                    return size() > MAX_CLIENTS;
+                }
+            };
+
+    public static synchronized NvHTTP get(Context context, InetAddress addr, String uniqueId) {
+        if (!uniqueId.equals(clientUniqueId)) {
+            // Clients are bound to the ID they were created with
+            clients.clear();
+            clientUniqueId = uniqueId;
+        }
+
+        NvHTTP http = clients.get(addr);
+        if (http != null) {
+            clientsReused++;
+            return http;
+        }
+
+        if (cryptoProvider == null) {
+            cryptoProvider = PlatformBinding.getCryptoProvider(context.getApplicationContext());
+        }
+
+        http = new NvHTTP(addr, uniqueId, null, cryptoProvider);
+        clients.put(addr, http);
+        clientsCreated++;
+        return http;
+    }
+
+    public static synchronized String getStats() {
+        return "HTTP clients: " + clientsCreated + " created, " + clientsReused + " reused, " +
+                clients.size() + " pooled";
+    }
+}
@@ -0,0 +1,213 @@
+package com.limelight.computers;
+
+import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs the serverinfo polls for every host on one small pool instead of a thread
+// per host. Each host is rescheduled when its previous poll completes, so there's
+// never more than one poll in flight for a host. Hosts are polled quickly right
+// after they change and more slowly once they've been stable for a while. Hosts
+// that stay offline are polled less and less often.
+//
+// This doesn't know anything about NvHTTP so it can be driven by a fake poll
+// task on a plain JVM.
+public class PollScheduler {
+
+    public interface PollTask {
+        int POLL_OFFLINE = 0;
+        int POLL_UNCHANGED = 1;
+        int POLL_CHANGED = 2;
+
+        // Polls the host once and returns one of the POLL_ values
+        int poll() throws InterruptedException;
+    }
+
+    // Idle pool threads exit after this long
+    private static final long THREAD_KEEP_ALIVE_MS = 10000;
+
+    // Maximum doublings of the polling period for offline hosts
+    private static final int MAX_BACKOFF_SHIFT = 16;
+
+    private final ScheduledThreadPoolExecutor executor;
+    private final long fastPeriodMs;
+    private final long slowPeriodMs;
+    private final int stableThreshold;
+    private final long maxPeriodMs;
+    private final int backoffThreshold;
+    private final Random random = new Random();
+
+    // An online host is polled every fastPeriodMs until stableThreshold polls in a row have
+    // found nothing new, then every slowPeriodMs. Once a host has failed more than
+    // backoffThreshold polls in a row, the interval doubles from fastPeriodMs with each
+    // further failure up to maxPeriodMs.
+    public PollScheduler(int threads, long fastPeriodMs, long slowPeriodMs, int stableThreshold,
+                         long maxPeriodMs, int backoffThreshold) {
+        this.fastPeriodMs = fastPeriodMs;
+        this.slowPeriodMs = slowPeriodMs;
+        this.stableThreshold = stableThreshold;
+        this.maxPeriodMs = maxPeriodMs;
+        this.backoffThreshold = backoffThreshold;
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                t.setName("Polling thread " + threadCount.incrementAndGet());
+                return t;
+            }
+        });
+        executor.setKeepAliveTime(THREAD_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS);
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    // Starts polling a host right away. Polling continues until the handle is cancelled.
+    public Handle schedule(PollTask task) {
+        Handle handle = new Handle(task);
+        handle.scheduleNext(0);
+        return handle;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    long getNextDelayMs(int consecutiveFailures, int stablePolls) {
+        long delay;
+        if (consecutiveFailures > backoffThreshold) {
+            int shift = Math.min(consecutiveFailures - backoffThreshold, MAX_BACKOFF_SHIFT);
+            delay = Math.min(fastPeriodMs << shift, maxPeriodMs);
+        }
+        else if (consecutiveFailures == 0 && stablePolls >= stableThreshold) {
+            delay = slowPeriodMs;
+        }
+        else {
+            delay = fastPeriodMs;
+        }
+
+        // Spread the hosts out by +/- 10% so they don't all wake up together
+        long jitter = delay / 10;
+        return delay - jitter + (long) (random.nextDouble() * 2 * jitter);
+    }
+
+    public class Handle implements Runnable {
+        private final PollTask task;
+        private volatile boolean cancelled;
+
+        // Guarded by this
+        private ScheduledFuture<?> future;
+        private boolean running;
+        private boolean expedited;
+        private int consecutiveFailures;
+        private int stablePolls;
+
+        private Handle(PollTask task) {
+            this.task = task;
+        }
+
+        private synchronized void scheduleNext(long delayMs) {
+            if (!cancelled) {
+                try {
+                    future = executor.schedule(this, delayMs, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // The scheduler has been shut down
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                else if (running) {
+                    // An expedite raced with this poll starting. Leave the extra
+                    // poll to the one in progress so there's only one in flight.
+                    expedited = true;
+                    return;
+                }
+                running = true;
+            }
+
+            int result;
+            try {
+                result = task.poll();
+            } catch (InterruptedException e) {
+                // We were cancelled in the middle of the poll
+                synchronized (this) {
+                    running = false;
+                }
+                return;
+            }
+
+            synchronized (this) {
+                running = false;
+
+                switch (result) {
+                    case PollTask.POLL_OFFLINE:
+                        consecutiveFailures++;
+                        stablePolls = 0;
+                        break;
+                    case PollTask.POLL_UNCHANGED:
+                        consecutiveFailures = 0;
+                        stablePolls++;
+                        break;
+                    default:
+                        consecutiveFailures = 0;
+                        stablePolls = 0;
+                        break;
+                }
+
+                if (expedited) {
+                    // Someone asked for a poll while this one was running
+                    expedited = false;
+                    scheduleNext(0);
+                }
+                else {
+                    scheduleNext(getNextDelayMs(consecutiveFailures, stablePolls));
+                }
+            }
+        }
+
+        // Polls again right away and returns to the fast polling period. This is for
+        // when the user is interacting with the host and wants to see changes quickly.
+        public synchronized void expedite() {
+            stablePolls = 0;
+            consecutiveFailures = 0;
+
+            if (running) {
+                // Starting another poll now would put two in flight for this host.
+                // The poll in progress will schedule the next one right away instead.
+                expedited = true;
+            }
+            else if (future != null && future.cancel(false)) {
+                // The next poll was still queued, so run it now instead
+                scheduleNext(0);
+            }
+        }
+
+        public synchronized int getConsecutiveFailures() {
+            return consecutiveFailures;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        // Stops polling. A poll in progress is interrupted.
+        public void cancel() {
+            cancelled = true;
+            synchronized (this) {
+                if (future != null) {
+                    future.cancel(true);
+                }
+            }
+        }
+    }
+}
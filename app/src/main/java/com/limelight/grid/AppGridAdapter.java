@@ -2,6 +2,8 @@ package com.limelight.grid;
 
 import android.app.Activity;
 import android.graphics.BitmapFactory;
+import android.view.View;
+import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.ProgressBar;
 import android.widget.TextView;
@@ -14,9 +16,14 @@ import com.limelight.grid.assets.DiskAssetLoader;
 import com.limelight.grid.assets.MemoryAssetLoader;
 import com.limelight.grid.assets.NetworkAssetLoader;
 import com.limelight.nvstream.http.ComputerDetails;
+import com.limelight.nvstream.http.NvApp;
+import com.limelight.utils.AppListDiff;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
 
 @SuppressWarnings("unchecked")
 public class AppGridAdapter extends GenericGridAdapter<AppView.AppObject> {
@@ -24,7 +31,11 @@ public class AppGridAdapter extends GenericGridAdapter<AppView.AppObject> {
     private static final int SMALL_WIDTH_DP = 100;
     private static final int LARGE_WIDTH_DP = 150;
 
+    // Number of apps past the one being displayed to load into memory ahead of time
+    private static final int PREFETCH_DISTANCE = 6;
+
     private final CachedAppAssetLoader loader;
+    private final HashMap<Integer, AppView.AppObject> appsById = new HashMap<>();
 
     public AppGridAdapter(Activity activity, boolean listMode, boolean small, ComputerDetails computer, String uniqueId) {
         super(activity, listMode ? R.layout.simple_row : (small ? R.layout.app_grid_item_small : R.layout.app_grid_item));
@@ -56,31 +67,88 @@ public class AppGridAdapter extends GenericGridAdapter<AppView.AppObject> {
     }
 
     public void cancelQueuedOperations() {
+        LimeLog.info("Box art cache statistics:\n" + loader.getCacheStats());
+
         loader.cancelForegroundLoads();
         loader.cancelBackgroundLoads();
-        loader.freeCacheMemory();
+        loader.trimCacheMemory();
     }
 
-    private void sortList() {
-        Collections.sort(itemList, new Comparator<AppView.AppObject>() {
-            @Override
-            public int compare(AppView.AppObject lhs, AppView.AppObject rhs) {
-                return lhs.app.getAppName().compareTo(rhs.app.getAppName());
-            }
-        });
+    private static final Comparator<AppView.AppObject> appComparator = new Comparator<AppView.AppObject>() {
+        @Override
+        public int compare(AppView.AppObject lhs, AppView.AppObject rhs) {
+            return AppListDiff.compareApps(lhs.app, rhs.app);
+        }
+    };
+
+    // Fetches any box art that isn't cached yet for these apps
+    public void prefetchBoxArt(List<NvApp> apps) {
+        loader.prefetchAll(apps);
     }
 
     public void addApp(AppView.AppObject app) {
-        // Queue a request to fetch this bitmap into cache
-        loader.queueCacheLoad(app.app);
-
-        // Add the app to our sorted list
-        itemList.add(app);
-        sortList();
+        // Insert the app at its position in our sorted list
+        AppListDiff.insertSorted(itemList, app, appComparator);
+        appsById.put(app.app.getAppId(), app);
     }
 
     public void removeApp(AppView.AppObject app) {
-        itemList.remove(app);
+        int index = Collections.binarySearch(itemList, app, appComparator);
+        if (index >= 0 && itemList.get(index) == app) {
+            itemList.remove(index);
+        }
+        else {
+            // The list wasn't sorted when this was added
+            itemList.remove(app);
+        }
+        appsById.remove(app.app.getAppId());
+    }
+
+    public AppView.AppObject getApp(int appId) {
+        return appsById.get(appId);
+    }
+
+    public List<NvApp> getApps() {
+        ArrayList<NvApp> apps = new ArrayList<>(itemList.size());
+        for (AppView.AppObject app : itemList) {
+            apps.add(app.app);
+        }
+        return apps;
+    }
+
+    // Applies a new name and running state to an app that's already in the list
+    public void updateApp(NvApp newApp) {
+        AppView.AppObject app = appsById.get(newApp.getAppId());
+        if (app == null) {
+            return;
+        }
+
+        app.app.setIsRunning(newApp.getIsRunning());
+
+        if (!app.app.getAppName().equals(newApp.getAppName())) {
+            // The name determines its position, so take it out while renaming
+            removeApp(app);
+            app.app.setAppName(newApp.getAppName());
+            addApp(app);
+        }
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        appsById.clear();
+    }
+
+    @Override
+    public View getView(int i, View convertView, ViewGroup viewGroup) {
+        View view = super.getView(i, convertView, viewGroup);
+
+        // Get the next few apps ready in case the grid keeps scrolling this way
+        for (int j = i + 1; j <= i + PREFETCH_DISTANCE && j < itemList.size(); j++) {
+            loader.queuePrefetch(itemList.get(j).app);
+        }
+
+        return view;
     }
 
     @Override
@@ -0,0 +1,62 @@
+package com.limelight.grid.assets;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Hit/miss and lookup latency counters for one tier of the box art cache.
+// These are updated from the loader threads and read from the UI thread.
+public class AssetCacheStats {
+    private final String name;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong totalHitTimeUs = new AtomicLong();
+    private final AtomicLong maxHitTimeUs = new AtomicLong();
+
+    public AssetCacheStats(String name) {
+        this.name = name;
+    }
+
+    public static long getTimeUs() {
+        return System.nanoTime() / 1000;
+    }
+
+    public void hit(long startTimeUs) {
+        long elapsedUs = getTimeUs() - startTimeUs;
+
+        hits.incrementAndGet();
+        totalHitTimeUs.addAndGet(elapsedUs);
+
+        long max;
+        while (elapsedUs > (max = maxHitTimeUs.get())) {
+            if (maxHitTimeUs.compareAndSet(max, elapsedUs)) {
+                break;
+            }
+        }
+    }
+
+    public void miss() {
+        misses.incrementAndGet();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getAverageHitTimeUs() {
+        long hitCount = hits.get();
+        return hitCount == 0 ? 0 : totalHitTimeUs.get() / hitCount;
+    }
+
+    public long getMaxHitTimeUs() {
+        return maxHitTimeUs.get();
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + getHits() + " hits, " + getMisses() + " misses, " +
+                getAverageHitTimeUs() + " us avg, " + getMaxHitTimeUs() + " us max";
+    }
+}
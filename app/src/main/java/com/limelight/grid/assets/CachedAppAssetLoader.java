@@ -1,50 +1,61 @@
 package com.limelight.grid.assets;
 
-import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.drawable.BitmapDrawable;
-import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import android.view.View;
 import android.widget.ImageView;
 import android.widget.ProgressBar;
 
+import com.limelight.LimeLog;
+import com.limelight.computers.NvHttpPool;
 import com.limelight.nvstream.http.ComputerDetails;
 import com.limelight.nvstream.http.NvApp;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.WeakReference;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.WeakHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 public class CachedAppAssetLoader {
     private static final int MAX_CONCURRENT_DISK_LOADS = 3;
     private static final int MAX_CONCURRENT_NETWORK_LOADS = 3;
-    private static final int MAX_CONCURRENT_CACHE_LOADS = 1;
 
-    private static final int MAX_PENDING_CACHE_LOADS = 100;
-    private static final int MAX_PENDING_NETWORK_LOADS = 40;
-    private static final int MAX_PENDING_DISK_LOADS = 40;
+    // Load priorities, most urgent first. A load runs at the most urgent
+    // priority of anything waiting for it.
+    private static final int PRIORITY_VISIBLE = 0;
+    private static final int PRIORITY_PREFETCH = 1;
+    private static final int PRIORITY_BACKGROUND = 2;
+    private static final int PRIORITY_NONE = 3;
 
-    private final ThreadPoolExecutor cacheExecutor = new ThreadPoolExecutor(
-            MAX_CONCURRENT_CACHE_LOADS, MAX_CONCURRENT_CACHE_LOADS,
-            Long.MAX_VALUE, TimeUnit.DAYS,
-            new LinkedBlockingQueue<Runnable>(MAX_PENDING_CACHE_LOADS),
-            new ThreadPoolExecutor.DiscardOldestPolicy());
+    private static final int STAGE_DISK = 0;
+    private static final int STAGE_NETWORK = 1;
+
+    // Each load tries the network this many times. Failed attempts go back in the
+    // queue behind first attempts instead of sleeping on a network thread.
+    private static final int MAX_NETWORK_ATTEMPTS = 3;
+
+    // Log prefetch progress after this many results
+    private static final int PREFETCH_PROGRESS_INTERVAL = 10;
 
-    private final ThreadPoolExecutor foregroundExecutor = new ThreadPoolExecutor(
+    // The queues only ever hold PendingLoads, which order themselves by priority.
+    // They are bounded by the number of apps since there's one load per tuple.
+    private final ThreadPoolExecutor diskExecutor = new ThreadPoolExecutor(
             MAX_CONCURRENT_DISK_LOADS, MAX_CONCURRENT_DISK_LOADS,
             Long.MAX_VALUE, TimeUnit.DAYS,
-            new LinkedBlockingQueue<Runnable>(MAX_PENDING_DISK_LOADS),
-            new ThreadPoolExecutor.DiscardOldestPolicy());
+            new PriorityBlockingQueue<Runnable>());
 
     private final ThreadPoolExecutor networkExecutor = new ThreadPoolExecutor(
             MAX_CONCURRENT_NETWORK_LOADS, MAX_CONCURRENT_NETWORK_LOADS,
             Long.MAX_VALUE, TimeUnit.DAYS,
-            new LinkedBlockingQueue<Runnable>(MAX_PENDING_NETWORK_LOADS),
-            new ThreadPoolExecutor.DiscardOldestPolicy());
+            new PriorityBlockingQueue<Runnable>());
 
     private final ComputerDetails computer;
     private final double scalingDivider;
@@ -52,6 +63,20 @@ public class CachedAppAssetLoader {
     private final MemoryAssetLoader memoryLoader;
     private final DiskAssetLoader diskLoader;
     private final Bitmap placeholderBitmap;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    // Every tuple being loaded, so concurrent requests share one load. A cancelled load
+    // stays here until it stops running, so a new request picks it back up instead of
+    // starting a second fetch of the same file. Guarded by itself.
+    private final HashMap<LoaderTuple, PendingLoad> pendingLoads = new HashMap<>();
+    private long nextSequence;
+    private long loadsStarted;
+    private long dedupHits;
+    private int maxQueueDepth;
+    private PrefetchBatch currentBatch;
+
+    // The tuple each image view is waiting for. Only touched on the main thread.
+    private final WeakHashMap<ImageView, LoaderTuple> viewBindings = new WeakHashMap<>();
 
     public CachedAppAssetLoader(ComputerDetails computer, double scalingDivider,
                                 NetworkAssetLoader networkLoader, MemoryAssetLoader memoryLoader,
@@ -65,21 +90,30 @@ public class CachedAppAssetLoader {
     }
 
     public void cancelBackgroundLoads() {
-        Runnable r;
-        while ((r = cacheExecutor.getQueue().poll()) != null) {
-            cacheExecutor.remove(r);
+        synchronized (pendingLoads) {
+            if (currentBatch != null && !currentBatch.isDone()) {
+                // Whatever is missing will be planned again next time
+                LimeLog.info("Box art prefetch interrupted: " + currentBatch);
+            }
+            currentBatch = null;
+
+            for (PendingLoad load : new ArrayList<>(pendingLoads.values())) {
+                load.background = false;
+                updatePriority(load);
+            }
         }
     }
 
     public void cancelForegroundLoads() {
-        Runnable r;
-
-        while ((r = foregroundExecutor.getQueue().poll()) != null) {
-            foregroundExecutor.remove(r);
-        }
-
-        while ((r = networkExecutor.getQueue().poll()) != null) {
-            networkExecutor.remove(r);
+        // Nothing is waiting on behalf of these views anymore
+        viewBindings.clear();
+
+        synchronized (pendingLoads) {
+            for (PendingLoad load : new ArrayList<>(pendingLoads.values())) {
+                load.waiters.clear();
+                load.prefetch = false;
+                updatePriority(load);
+            }
         }
     }
 
@@ -87,223 +121,488 @@ public class CachedAppAssetLoader {
         memoryLoader.clearCache();
     }
 
-    private Bitmap doNetworkAssetLoad(LoaderTuple tuple, LoaderTask task) {
-        // Try 3 times
-        for (int i = 0; i < 3; i++) {
-            // Check again whether we've been cancelled or the image view is gone
-            if (task != null && (task.isCancelled() || task.imageViewRef.get() == null)) {
-                return null;
-            }
+    public void trimCacheMemory() {
+        memoryLoader.trimInactiveHosts();
+    }
 
-            InputStream in = networkLoader.getBitmapStream(tuple);
-            if (in != null) {
-                // Write the stream straight to disk
-                diskLoader.populateCacheWithStream(tuple, in);
+    public String getCacheStats() {
+        String loaderStats;
+        synchronized (pendingLoads) {
+            loaderStats = "Loader: " + loadsStarted + " loads, " + dedupHits + " deduplicated, " +
+                    "queue depth " + diskExecutor.getQueue().size() + " disk, " +
+                    networkExecutor.getQueue().size() + " network (max " + maxQueueDepth + ")";
+        }
 
-                // Close the network input stream
-                try {
-                    in.close();
-                } catch (IOException ignored) {}
+        return memoryLoader.getStats() + "\n" +
+                diskLoader.getScaledStats() + "\n" +
+                diskLoader.getOriginalStats() + "\n" +
+                networkLoader.getStats() + "\n" +
+                NvHttpPool.getStats() + "\n" +
+                loaderStats;
+    }
 
-                // If there's a task associated with this load, we should return the bitmap
-                if (task != null) {
-                    // If the cached bitmap is valid, return it. Otherwise, we'll try the load again
-                    Bitmap bmp = diskLoader.loadBitmapFromCache(tuple, (int) scalingDivider);
-                    if (bmp != null) {
-                        return bmp;
-                    }
-                }
-                else {
-                    // Otherwise it's a background load and we return nothing
-                    return null;
-                }
-            }
+    // Makes one attempt to fetch the asset. Returns the size of the asset if it's now on disk or -1.
+    private long doNetworkAssetLoad(PendingLoad load) {
+        load.networkAttempts++;
 
-            // Wait 1 second with a bit of fuzz
-            try {
-                Thread.sleep((int) (1000 + (Math.random() * 500)));
-            } catch (InterruptedException e) {
-                return null;
-            }
+        InputStream in = networkLoader.getBitmapStream(load.tuple);
+        if (in == null) {
+            return -1;
         }
 
-        return null;
+        // Write the stream straight to disk, unless nobody wants it anymore
+        if (!abandonIfCancelled(load)) {
+            diskLoader.populateCacheWithStream(load.tuple, in);
+        }
+
+        // Close the network input stream
+        try {
+            in.close();
+        } catch (IOException ignored) {}
+
+        // The file is deleted if it couldn't be written completely
+        return diskLoader.getCacheSize(load.tuple);
     }
 
-    private class LoaderTask extends AsyncTask<LoaderTuple, Void, Bitmap> {
-        private final WeakReference<ImageView> imageViewRef;
-        private final WeakReference<ProgressBar> progressViewRef;
-        private final boolean diskOnly;
+    // Tracks one pass of warming the disk cache for a host's app list
+    private static class PrefetchBatch {
+        final long startTime = System.currentTimeMillis();
 
-        private LoaderTuple tuple;
+        // Guarded by pendingLoads
+        int planned;
+        int cached;
+        int fetched;
+        int failed;
+        long bytesFetched;
 
-        public LoaderTask(ImageView imageView, ProgressBar prgView, boolean diskOnly) {
+        boolean isDone() {
+            return cached + fetched + failed >= planned;
+        }
+
+        void recordResult(int cachedDelta, int fetchedDelta, int failedDelta, long bytes) {
+            cached += cachedDelta;
+            fetched += fetchedDelta;
+            failed += failedDelta;
+            bytesFetched += bytes;
+
+            int done = cached + fetched + failed;
+            if (isDone()) {
+                LimeLog.info("Box art prefetch complete: " + this);
+            }
+            else if (done % PREFETCH_PROGRESS_INTERVAL == 0) {
+                LimeLog.info("Box art prefetch progress: " + this);
+            }
+        }
+
+        @Override
+        public String toString() {
+            long elapsedMs = Math.max(System.currentTimeMillis() - startTime, 1);
+            return (cached + fetched + failed) + "/" + planned + " done (" +
+                    cached + " already cached, " + fetched + " fetched, " + failed + " failed), " +
+                    (bytesFetched / 1024) + " KB in " + elapsedMs + " ms (" +
+                    (bytesFetched * 1000 / 1024 / elapsedMs) + " KB/s)";
+        }
+    }
+
+    private static class Waiter {
+        final WeakReference<ImageView> imageViewRef;
+        final WeakReference<ProgressBar> progressViewRef;
+
+        Waiter(ImageView imageView, ProgressBar prgView) {
             this.imageViewRef = new WeakReference<>(imageView);
             this.progressViewRef = new WeakReference<>(prgView);
-            this.diskOnly = diskOnly;
+        }
+    }
+
+    private class PendingLoad implements Runnable, Comparable<PendingLoad> {
+        final LoaderTuple tuple;
+
+        // Reasons this load is wanted. Guarded by pendingLoads.
+        final ArrayList<Waiter> waiters = new ArrayList<>();
+        boolean prefetch;
+        boolean background;
+        PrefetchBatch batch;
+
+        int stage = STAGE_DISK;
+        int networkAttempts;
+
+        // Set when nothing wants this load anymore. If it's running, it stops at its next
+        // check unless a new request clears this first. Guarded by pendingLoads.
+        boolean cancelled;
+
+        // Sort key while queued. These must not change while the load is in a queue.
+        int queuedPriority;
+        long queuedSequence;
+
+        PendingLoad(LoaderTuple tuple) {
+            this.tuple = tuple;
+        }
+
+        int getPriority() {
+            if (!waiters.isEmpty()) {
+                return PRIORITY_VISIBLE;
+            }
+            else if (prefetch) {
+                return PRIORITY_PREFETCH;
+            }
+            else if (background) {
+                return PRIORITY_BACKGROUND;
+            }
+            else {
+                return PRIORITY_NONE;
+            }
         }
 
         @Override
-        protected Bitmap doInBackground(LoaderTuple... params) {
-            tuple = params[0];
-
-            // Check whether it has been cancelled or the views are gone
-            if (isCancelled() || imageViewRef.get() == null || progressViewRef.get() == null) {
-                return null;
-            }
-
-            Bitmap bmp = diskLoader.loadBitmapFromCache(tuple, (int) scalingDivider);
-            if (bmp == null) {
-                if (!diskOnly) {
-                    // Try to load the asset from the network
-                    bmp = doNetworkAssetLoad(tuple, this);
-                } else {
-                    // Report progress to display the placeholder and spin
-                    // off the network-capable task
-                    publishProgress();
-                }
+        public int compareTo(PendingLoad other) {
+            if (queuedPriority != other.queuedPriority) {
+                return queuedPriority < other.queuedPriority ? -1 : 1;
             }
 
-            // Cache the bitmap
-            if (bmp != null) {
-                memoryLoader.populateCache(tuple, bmp);
+            // Retries wait for first attempts
+            if (networkAttempts != other.networkAttempts) {
+                return networkAttempts < other.networkAttempts ? -1 : 1;
             }
 
-            return bmp;
+            // Within a priority, the newest request goes first since it's the
+            // closest to what's on screen now
+            return queuedSequence > other.queuedSequence ? -1 : (queuedSequence == other.queuedSequence ? 0 : 1);
         }
 
         @Override
-        protected void onProgressUpdate(Void... nothing) {
-            // Do nothing if cancelled
-            if (isCancelled()) {
-                return;
+        public void run() {
+            int priority;
+            synchronized (pendingLoads) {
+                if (abandonIfCancelled(this)) {
+                    return;
+                }
+                priority = getPriority();
             }
 
-            // If the current loader task for this view isn't us, do nothing
-            final ImageView imageView = imageViewRef.get();
-            final ProgressBar prgView = progressViewRef.get();
-            if (getLoaderTask(imageView) == this) {
-                // Now display the progress bar since we have to hit the network
-                if (prgView != null) {
-                    prgView.setVisibility(View.VISIBLE);
+            if (stage == STAGE_DISK) {
+                if (priority == PRIORITY_BACKGROUND) {
+                    // Nobody needs the bitmap, so just make sure it's on disk
+                    if (diskLoader.checkCacheExists(tuple)) {
+                        recordPrefetchResult(this, 1, 0, 0, 0);
+                        complete(this, null, false);
+                        return;
+                    }
                 }
+                else {
+                    Bitmap bmp = diskLoader.loadBitmapFromCache(tuple, (int) scalingDivider);
+                    if (bmp != null) {
+                        memoryLoader.populateCache(tuple, bmp);
+                        recordPrefetchResult(this, 1, 0, 0, 0);
+                        complete(this, bmp, true);
+                        return;
+                    }
 
-                // Set off another loader task on the network executor
-                LoaderTask task = new LoaderTask(imageView, prgView, false);
-                AsyncDrawable asyncDrawable = new AsyncDrawable(imageView.getResources(), placeholderBitmap, task);
-                imageView.setVisibility(View.VISIBLE);
-                imageView.setImageDrawable(asyncDrawable);
-                task.executeOnExecutor(networkExecutor, tuple);
-            }
-        }
+                    // We have to hit the network, so display the progress bars
+                    showProgress(this);
+                }
 
-        @Override
-        protected void onPostExecute(Bitmap bitmap) {
-            // Do nothing if cancelled
-            if (isCancelled()) {
-                return;
+                synchronized (pendingLoads) {
+                    if (!abandonIfCancelled(this)) {
+                        stage = STAGE_NETWORK;
+                        enqueue(this);
+                    }
+                }
             }
-
-            final ImageView imageView = imageViewRef.get();
-            final ProgressBar prgView = progressViewRef.get();
-            if (getLoaderTask(imageView) == this) {
-                // Set the bitmap
-                if (bitmap != null) {
-                    imageView.setImageBitmap(bitmap);
+            else {
+                if (abandonIfCancelled(this)) {
+                    return;
                 }
 
-                // Hide the progress bar
-                if (prgView != null) {
-                    prgView.setVisibility(View.INVISIBLE);
+                long bytes = doNetworkAssetLoad(this);
+                if (bytes < 0) {
+                    synchronized (pendingLoads) {
+                        if (abandonIfCancelled(this)) {
+                            return;
+                        }
+                        if (networkAttempts < MAX_NETWORK_ATTEMPTS) {
+                            // Try again once the other loads have had their turn
+                            enqueue(this);
+                            return;
+                        }
+                    }
+
+                    recordPrefetchResult(this, 0, 0, 1, 0);
+                    complete(this, null, true);
+                    return;
                 }
 
-                // Show the view
-                imageView.setVisibility(View.VISIBLE);
+                recordPrefetchResult(this, 0, 1, 0, bytes);
+
+                if (priority <= PRIORITY_PREFETCH) {
+                    Bitmap bmp = diskLoader.loadBitmapFromCache(tuple, (int) scalingDivider);
+                    if (bmp != null) {
+                        memoryLoader.populateCache(tuple, bmp);
+                    }
+                    complete(this, bmp, true);
+                }
+                else {
+                    complete(this, null, false);
+                }
             }
         }
     }
 
-    static class AsyncDrawable extends BitmapDrawable {
-        private final WeakReference<LoaderTask> loaderTaskReference;
-
-        public AsyncDrawable(Resources res, Bitmap bitmap,
-                             LoaderTask loaderTask) {
-            super(res, bitmap);
-            loaderTaskReference = new WeakReference<>(loaderTask);
+    private void recordPrefetchResult(PendingLoad load, int cached, int fetched, int failed, long bytes) {
+        synchronized (pendingLoads) {
+            // Only count results for the batch that's still running
+            if (load.batch != null && load.batch == currentBatch && !load.cancelled) {
+                load.batch.recordResult(cached, fetched, failed, bytes);
+            }
+            load.batch = null;
         }
+    }
+
+    // Called by a running load at each point where it can stop. A cancelled load is
+    // dropped here rather than when it was cancelled, so it can't be started twice.
+    private boolean abandonIfCancelled(PendingLoad load) {
+        synchronized (pendingLoads) {
+            if (!load.cancelled) {
+                return false;
+            }
 
-        public LoaderTask getLoaderTask() {
-            return loaderTaskReference.get();
+            if (pendingLoads.get(load.tuple) == load) {
+                pendingLoads.remove(load.tuple);
+            }
+            return true;
         }
     }
 
-    private static LoaderTask getLoaderTask(ImageView imageView) {
-        if (imageView == null) {
-            return null;
-        }
+    // Must be called with pendingLoads held
+    private void enqueue(PendingLoad load) {
+        load.queuedPriority = load.getPriority();
+        load.queuedSequence = nextSequence++;
 
-        final Drawable drawable = imageView.getDrawable();
+        ThreadPoolExecutor executor = load.stage == STAGE_DISK ? diskExecutor : networkExecutor;
+        executor.execute(load);
 
-        // If our drawable is in play, get the loader task
-        if (drawable instanceof AsyncDrawable) {
-            final AsyncDrawable asyncDrawable = (AsyncDrawable) drawable;
-            return asyncDrawable.getLoaderTask();
+        maxQueueDepth = Math.max(maxQueueDepth, executor.getQueue().size());
+    }
+
+    // Must be called with pendingLoads held
+    private void updatePriority(PendingLoad load) {
+        int priority = load.getPriority();
+        ThreadPoolExecutor executor = load.stage == STAGE_DISK ? diskExecutor : networkExecutor;
+
+        if (priority == PRIORITY_NONE) {
+            // Nothing wants this anymore. If it's still queued, drop it now. If it's
+            // running, it stays pending until it stops at its next check.
+            load.cancelled = true;
+            if (executor.remove(load)) {
+                pendingLoads.remove(load.tuple);
+            }
         }
+        else if (priority != load.queuedPriority && executor.remove(load)) {
+            // Still queued, so put it back in the right place
+            enqueue(load);
+        }
+    }
 
-        return null;
+    private void requestLoad(LoaderTuple tuple, int priority, Waiter waiter) {
+        requestLoad(tuple, priority, waiter, null);
     }
 
-    private static boolean cancelPendingLoad(LoaderTuple tuple, ImageView imageView) {
-        final LoaderTask loaderTask = getLoaderTask(imageView);
+    private void requestLoad(LoaderTuple tuple, int priority, Waiter waiter, PrefetchBatch batch) {
+        synchronized (pendingLoads) {
+            PendingLoad load = pendingLoads.get(tuple);
+            boolean newLoad = load == null;
+            if (newLoad) {
+                load = new PendingLoad(tuple);
+                pendingLoads.put(tuple, load);
+                loadsStarted++;
+            }
+            else {
+                dedupHits++;
 
-        // Check if any task was pending for this image view
-        if (loaderTask != null && !loaderTask.isCancelled()) {
-            final LoaderTuple taskTuple = loaderTask.tuple;
+                // A running load that was cancelled carries on for this request
+                load.cancelled = false;
+            }
 
-            // Cancel the task if it's not already loading the same data
-            if (taskTuple == null || !taskTuple.equals(tuple)) {
-                loaderTask.cancel(true);
-            } else {
-                // It's already loading what we want
-                return false;
+            switch (priority) {
+                case PRIORITY_VISIBLE:
+                    load.waiters.add(waiter);
+                    break;
+                case PRIORITY_PREFETCH:
+                    load.prefetch = true;
+                    break;
+                case PRIORITY_BACKGROUND:
+                    load.background = true;
+                    load.batch = batch;
+                    break;
+            }
+
+            if (newLoad) {
+                enqueue(load);
+            }
+            else {
+                updatePriority(load);
             }
         }
+    }
+
+    // Called on the main thread when an image view is reused for something else
+    private void removeWaiter(LoaderTuple tuple, ImageView imageView) {
+        synchronized (pendingLoads) {
+            PendingLoad load = pendingLoads.get(tuple);
+            if (load == null) {
+                return;
+            }
+
+            Iterator<Waiter> i = load.waiters.iterator();
+            while (i.hasNext()) {
+                ImageView waitingView = i.next().imageViewRef.get();
+                if (waitingView == null || waitingView == imageView) {
+                    i.remove();
+                }
+            }
 
-        // Allow the load to proceed
-        return true;
+            updatePriority(load);
+        }
     }
 
-    public void queueCacheLoad(NvApp app) {
-        final LoaderTuple tuple = new LoaderTuple(computer, app);
+    // decoded is false if the load finished without trying to produce a bitmap
+    private void complete(PendingLoad load, final Bitmap bmp, boolean decoded) {
+        final ArrayList<Waiter> waiters;
+        synchronized (pendingLoads) {
+            if (abandonIfCancelled(load)) {
+                return;
+            }
 
-        if (memoryLoader.loadBitmapFromCache(tuple) != null) {
-            // It's in memory which means it must also be on disk
+            // Something that wants the bitmap joined while we were only warming the disk cache
+            if (!decoded && load.getPriority() <= PRIORITY_PREFETCH) {
+                load.stage = STAGE_DISK;
+                enqueue(load);
+                return;
+            }
+
+            pendingLoads.remove(load.tuple);
+            waiters = new ArrayList<>(load.waiters);
+        }
+
+        if (waiters.isEmpty()) {
             return;
         }
 
-        // Queue a fetch in the cache executor
-        cacheExecutor.execute(new Runnable() {
+        final LoaderTuple tuple = load.tuple;
+        mainHandler.post(new Runnable() {
             @Override
             public void run() {
-                // Check if the image is cached on disk
-                if (diskLoader.checkCacheExists(tuple)) {
-                    return;
+                for (Waiter waiter : waiters) {
+                    ImageView imageView = waiter.imageViewRef.get();
+                    ProgressBar prgView = waiter.progressViewRef.get();
+
+                    // Skip views that have moved on to another app
+                    if (imageView == null || !tuple.equals(viewBindings.get(imageView))) {
+                        continue;
+                    }
+                    viewBindings.remove(imageView);
+
+                    // Set the bitmap
+                    if (bmp != null) {
+                        imageView.setImageBitmap(bmp);
+                    }
+
+                    // Hide the progress bar
+                    if (prgView != null) {
+                        prgView.setVisibility(View.INVISIBLE);
+                    }
+
+                    // Show the view
+                    imageView.setVisibility(View.VISIBLE);
                 }
+            }
+        });
+    }
 
-                // Try to load the asset from the network and cache result on disk
-                doNetworkAssetLoad(tuple, null);
+    private void showProgress(PendingLoad load) {
+        final ArrayList<Waiter> waiters;
+        synchronized (pendingLoads) {
+            waiters = new ArrayList<>(load.waiters);
+        }
+
+        if (waiters.isEmpty()) {
+            return;
+        }
+
+        final LoaderTuple tuple = load.tuple;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Waiter waiter : waiters) {
+                    ImageView imageView = waiter.imageViewRef.get();
+                    ProgressBar prgView = waiter.progressViewRef.get();
+
+                    if (imageView == null || !tuple.equals(viewBindings.get(imageView))) {
+                        continue;
+                    }
+
+                    // Now display the progress bar since we have to hit the network
+                    if (prgView != null) {
+                        prgView.setVisibility(View.VISIBLE);
+                    }
+                    imageView.setVisibility(View.VISIBLE);
+                }
             }
         });
     }
 
+    // Makes sure the box art for all of these apps is on disk. Everything that isn't already
+    // in memory is queued in one batch behind the visible and prefetch loads and fetched over
+    // the network pool. Since the plan is made from what's on disk, a batch that's interrupted
+    // picks up where it left off the next time it's started.
+    public void prefetchAll(Collection<NvApp> apps) {
+        PrefetchBatch batch = new PrefetchBatch();
+        ArrayList<LoaderTuple> tuples = new ArrayList<>(apps.size());
+        for (NvApp app : apps) {
+            LoaderTuple tuple = new LoaderTuple(computer, app);
+
+            // If it's in memory, it must also be on disk
+            if (memoryLoader.loadBitmapFromCache(tuple) == null) {
+                tuples.add(tuple);
+            }
+        }
+
+        if (tuples.isEmpty()) {
+            return;
+        }
+
+        synchronized (pendingLoads) {
+            batch.planned = tuples.size();
+            currentBatch = batch;
+            for (LoaderTuple tuple : tuples) {
+                requestLoad(tuple, PRIORITY_BACKGROUND, null, batch);
+            }
+        }
+    }
+
+    public void queuePrefetch(NvApp app) {
+        LoaderTuple tuple = new LoaderTuple(computer, app);
+
+        if (memoryLoader.loadBitmapFromCache(tuple) != null) {
+            return;
+        }
+
+        // Load it into memory ahead of it being displayed
+        requestLoad(tuple, PRIORITY_PREFETCH, null);
+    }
+
     public boolean populateImageView(NvApp app, ImageView imgView, ProgressBar prgView) {
         LoaderTuple tuple = new LoaderTuple(computer, app);
 
-        // If there's already a task in progress for this view,
-        // cancel it. If the task is already loading the same image,
-        // we return and let that load finish.
-        if (!cancelPendingLoad(tuple, imgView)) {
-            return true;
+        // If this view is already waiting for the same image, let that load finish.
+        // Otherwise, stop waiting for whatever it was loading before.
+        LoaderTuple oldTuple = viewBindings.get(imgView);
+        if (oldTuple != null) {
+            if (oldTuple.equals(tuple)) {
+                return true;
+            }
+
+            viewBindings.remove(imgView);
+            removeWaiter(oldTuple, imgView);
         }
 
         // Hide the progress bar always on initial load
@@ -318,15 +617,12 @@ public class CachedAppAssetLoader {
             return true;
         }
 
-        // If it's not in memory, create an async task to load it. This task will be attached
-        // via AsyncDrawable to this view.
-        final LoaderTask task = new LoaderTask(imgView, prgView, true);
-        final AsyncDrawable asyncDrawable = new AsyncDrawable(imgView.getResources(), placeholderBitmap, task);
+        // If it's not in memory, load it and hide the old image until it arrives
+        viewBindings.put(imgView, tuple);
         imgView.setVisibility(View.INVISIBLE);
-        imgView.setImageDrawable(asyncDrawable);
+        imgView.setImageBitmap(placeholderBitmap);
 
-        // Run the task on our foreground executor
-        task.executeOnExecutor(foregroundExecutor, tuple);
+        requestLoad(tuple, PRIORITY_VISIBLE, new Waiter(imgView, prgView));
         return false;
     }
 
@@ -349,6 +645,11 @@ public class CachedAppAssetLoader {
             return computer.uuid.equals(other.computer.uuid) && app.getAppId() == other.app.getAppId();
         }
 
+        @Override
+        public int hashCode() {
+            return computer.uuid.hashCode() * 31 + app.getAppId();
+        }
+
         @Override
         public String toString() {
             return "("+computer.uuid+", "+app.getAppId()+")";
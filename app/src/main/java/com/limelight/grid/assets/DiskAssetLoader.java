@@ -10,36 +10,100 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 public class DiskAssetLoader {
     // 5 MB
     private final long MAX_ASSET_SIZE = 5 * 1024 * 1024;
 
+    // Everything under boxart/ (original images and scaled bitmaps) is kept below this
+    private static final long DISK_CACHE_BUDGET = 64 * 1024 * 1024;
+
+    // The only config stored in a ScaledBitmapFile
+    private static final Bitmap.Config SCALED_CONFIG = Bitmap.Config.RGB_565;
+
+    // This is shared by every loader since they all use the same directory
+    private static final DiskCacheIndex diskIndex = new DiskCacheIndex(DISK_CACHE_BUDGET);
+
+    private static final AssetCacheStats scaledStats = new AssetCacheStats("Disk (scaled)");
+    private static final AssetCacheStats originalStats = new AssetCacheStats("Disk (original)");
+
     private final File cacheDir;
 
     public DiskAssetLoader(File cacheDir) {
         this.cacheDir = cacheDir;
     }
 
+    private static String getOriginalFileName(CachedAppAssetLoader.LoaderTuple tuple) {
+        return tuple.app.getAppId() + ".png";
+    }
+
+    private static String getScaledFileName(CachedAppAssetLoader.LoaderTuple tuple, int sampleSize) {
+        return tuple.app.getAppId() + "_" + sampleSize + ".bmp";
+    }
+
+    private File getHostDir(CachedAppAssetLoader.LoaderTuple tuple) {
+        return new File(new File(cacheDir, "boxart"), tuple.computer.uuid.toString());
+    }
+
+    private File getCacheFile(CachedAppAssetLoader.LoaderTuple tuple, String fileName) {
+        return new File(getHostDir(tuple), fileName);
+    }
+
     public boolean checkCacheExists(CachedAppAssetLoader.LoaderTuple tuple) {
-        return CacheHelper.cacheFileExists(cacheDir, "boxart", tuple.computer.uuid.toString(), tuple.app.getAppId() + ".png");
+        return CacheHelper.cacheFileExists(cacheDir, "boxart", tuple.computer.uuid.toString(), getOriginalFileName(tuple));
+    }
+
+    // Returns the size of the original image or -1 if it isn't cached
+    public long getCacheSize(CachedAppAssetLoader.LoaderTuple tuple) {
+        File file = getCacheFile(tuple, getOriginalFileName(tuple));
+        return file.exists() ? file.length() : -1;
     }
 
     public Bitmap loadBitmapFromCache(CachedAppAssetLoader.LoaderTuple tuple, int sampleSize) {
+        long startTimeUs = AssetCacheStats.getTimeUs();
+
+        // Try the pre-scaled copy first
+        Bitmap bmp = loadScaledBitmap(tuple, sampleSize);
+        if (bmp != null) {
+            scaledStats.hit(startTimeUs);
+            LimeLog.info("Disk cache hit for tuple: "+tuple);
+            return bmp;
+        }
+        scaledStats.miss();
+
+        // Fall back to decoding the original image
+        bmp = decodeOriginalBitmap(tuple, sampleSize);
+        if (bmp != null) {
+            originalStats.hit(startTimeUs);
+            LimeLog.info("Disk cache hit for tuple: "+tuple);
+
+            // Save the scaled copy so we don't decode this again
+            storeScaledBitmap(tuple, sampleSize, bmp);
+        }
+        else {
+            originalStats.miss();
+        }
+
+        return bmp;
+    }
+
+    private Bitmap decodeOriginalBitmap(CachedAppAssetLoader.LoaderTuple tuple, int sampleSize) {
+        String fileName = getOriginalFileName(tuple);
         InputStream in = null;
         Bitmap bmp = null;
         try {
             // Make sure the cached asset doesn't exceed the maximum size
-            if (CacheHelper.getFileSize(cacheDir, "boxart", tuple.computer.uuid.toString(), tuple.app.getAppId() + ".png") > MAX_ASSET_SIZE) {
+            if (CacheHelper.getFileSize(cacheDir, "boxart", tuple.computer.uuid.toString(), fileName) > MAX_ASSET_SIZE) {
                 LimeLog.warning("Removing cached tuple exceeding size threshold: "+tuple);
-                CacheHelper.deleteCacheFile(cacheDir, "boxart", tuple.computer.uuid.toString(), tuple.app.getAppId() + ".png");
+                deleteCacheFile(getCacheFile(tuple, fileName));
                 return null;
             }
 
-            in = CacheHelper.openCacheFileForInput(cacheDir, "boxart", tuple.computer.uuid.toString(), tuple.app.getAppId() + ".png");
+            in = CacheHelper.openCacheFileForInput(cacheDir, "boxart", tuple.computer.uuid.toString(), fileName);
             BitmapFactory.Options options = new BitmapFactory.Options();
             options.inSampleSize = sampleSize;
-            options.inPreferredConfig = Bitmap.Config.RGB_565;
+            options.inPreferredConfig = SCALED_CONFIG;
             bmp = BitmapFactory.decodeStream(in, null, options);
         } catch (IOException ignored) {
         } finally {
@@ -51,19 +115,72 @@ public class DiskAssetLoader {
         }
 
         if (bmp != null) {
-            LimeLog.info("Disk cache hit for tuple: "+tuple);
+            touchCacheFile(getCacheFile(tuple, fileName));
         }
 
         return bmp;
     }
 
+    private Bitmap loadScaledBitmap(CachedAppAssetLoader.LoaderTuple tuple, int sampleSize) {
+        File file = getCacheFile(tuple, getScaledFileName(tuple, sampleSize));
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            ScaledBitmapFile scaled = ScaledBitmapFile.read(file);
+            Bitmap bmp = Bitmap.createBitmap(scaled.width, scaled.height, SCALED_CONFIG);
+            if (scaled.pixels.remaining() != bmp.getByteCount()) {
+                bmp.recycle();
+                throw new IOException("Unexpected pixel data size");
+            }
+
+            bmp.copyPixelsFromBuffer(scaled.pixels);
+            touchCacheFile(file);
+            return bmp;
+        } catch (IOException | IllegalArgumentException e) {
+            LimeLog.warning("Removing invalid scaled box art for tuple "+tuple+": "+e.getMessage());
+            deleteCacheFile(file);
+            return null;
+        }
+    }
+
+    private void storeScaledBitmap(CachedAppAssetLoader.LoaderTuple tuple, int sampleSize, Bitmap bmp) {
+        if (bmp.getConfig() != SCALED_CONFIG ||
+                bmp.getByteCount() != bmp.getWidth() * bmp.getHeight() * ScaledBitmapFile.BYTES_PER_PIXEL) {
+            // The decoder may ignore our preferred config, and we only store one format
+            return;
+        }
+
+        File file = getCacheFile(tuple, getScaledFileName(tuple, sampleSize));
+        ByteBuffer buffer = ScaledBitmapFile.allocate(bmp.getWidth(), bmp.getHeight());
+        bmp.copyPixelsToBuffer(buffer);
+
+        try {
+            ScaledBitmapFile.write(file, buffer);
+        } catch (IOException e) {
+            e.printStackTrace();
+            LimeLog.warning("Unable to store scaled box art for tuple: "+tuple);
+            return;
+        }
+
+        addCacheFile(file);
+    }
+
     public void populateCacheWithStream(CachedAppAssetLoader.LoaderTuple tuple, InputStream input) {
+        String fileName = getOriginalFileName(tuple);
+        File file = getCacheFile(tuple, fileName);
+        File tempFile = new File(file.getPath() + ".tmp");
         OutputStream out = null;
         boolean success = false;
         try {
-            out = CacheHelper.openCacheFileForOutput(cacheDir, "boxart", tuple.computer.uuid.toString(), tuple.app.getAppId() + ".png");
+            // Write to a temporary file first so a reader never decodes a partial image
+            out = CacheHelper.openCacheFileForOutput(cacheDir, "boxart", tuple.computer.uuid.toString(), tempFile.getName());
             CacheHelper.writeInputStreamToOutputStream(input, out, MAX_ASSET_SIZE);
-            success = true;
+            out.close();
+            out = null;
+
+            success = tempFile.renameTo(file);
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
@@ -75,8 +192,46 @@ public class DiskAssetLoader {
 
             if (!success) {
                 LimeLog.warning("Unable to populate cache with tuple: "+tuple);
-                CacheHelper.deleteCacheFile(cacheDir, "boxart", tuple.computer.uuid.toString(), tuple.app.getAppId() + ".png");
+                tempFile.delete();
+                deleteCacheFile(file);
+            }
+        }
+
+        if (success) {
+            // The scaled copies were made from the old image
+            File[] scaledFiles = getHostDir(tuple).listFiles();
+            if (scaledFiles != null) {
+                String prefix = tuple.app.getAppId() + "_";
+                for (File f : scaledFiles) {
+                    if (f.getName().startsWith(prefix)) {
+                        deleteCacheFile(f);
+                    }
+                }
             }
+
+            addCacheFile(file);
         }
     }
+
+    private void addCacheFile(File file) {
+        diskIndex.load(new File(cacheDir, "boxart"));
+        diskIndex.add(file);
+    }
+
+    private void touchCacheFile(File file) {
+        diskIndex.load(new File(cacheDir, "boxart"));
+        diskIndex.touch(file);
+    }
+
+    private void deleteCacheFile(File file) {
+        diskIndex.delete(file);
+    }
+
+    public AssetCacheStats getScaledStats() {
+        return scaledStats;
+    }
+
+    public AssetCacheStats getOriginalStats() {
+        return originalStats;
+    }
 }
@@ -0,0 +1,144 @@
+package com.limelight.grid.assets;
+
+import com.limelight.LimeLog;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Keeps the files under a cache directory within a size budget by deleting the least
+// recently used ones. The LRU order is held in memory and seeded from the files'
+// modification times, which are bumped as they're used.
+//
+// This only deals with plain files so it can be tested on a JVM.
+class DiskCacheIndex {
+    // How stale a file's mtime can get before a use refreshes it
+    private static final long MTIME_UPDATE_INTERVAL_MS = 60 * 60 * 1000;
+
+    private final long budgetBytes;
+
+    // Files in least recently used order, with their sizes
+    private final LinkedHashMap<File, Long> files = new LinkedHashMap<>(64, 0.75f, true);
+    private long totalBytes;
+    private boolean loaded;
+
+    DiskCacheIndex(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    // Indexes the files in each subdirectory of rootDir. Only the first call does anything.
+    synchronized void load(File rootDir) {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+
+        File[] subDirs = rootDir.listFiles();
+        if (subDirs == null) {
+            return;
+        }
+
+        final ArrayList<File> allFiles = new ArrayList<>();
+        for (File subDir : subDirs) {
+            File[] subDirFiles = subDir.listFiles();
+            if (subDirFiles != null) {
+                allFiles.addAll(Arrays.asList(subDirFiles));
+            }
+        }
+
+        final long[] lastModified = new long[allFiles.size()];
+        Integer[] order = new Integer[allFiles.size()];
+        for (int i = 0; i < order.length; i++) {
+            lastModified[i] = allFiles.get(i).lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                // Long.compare() needs API 19
+                return lastModified[lhs] < lastModified[rhs] ? -1 : (lastModified[lhs] == lastModified[rhs] ? 0 : 1);
+            }
+        });
+
+        for (Integer i : order) {
+            File f = allFiles.get(i);
+            if (f.getName().endsWith(".tmp")) {
+                // Left behind by an interrupted write
+                f.delete();
+                continue;
+            }
+
+            long size = f.length();
+            files.put(f, size);
+            totalBytes += size;
+        }
+
+        LimeLog.info("Box art disk cache: "+files.size()+" files, "+(totalBytes / 1024)+" KB");
+        trim();
+    }
+
+    // Records a new or rewritten file as the most recently used
+    synchronized void add(File file) {
+        long size = file.length();
+        Long oldSize = files.put(file, size);
+        if (oldSize != null) {
+            totalBytes -= oldSize;
+        }
+        totalBytes += size;
+
+        trim();
+    }
+
+    // Records a use of a file
+    void touch(File file) {
+        synchronized (this) {
+            // Moves it to the most recently used end
+            if (files.get(file) == null) {
+                long size = file.length();
+                files.put(file, size);
+                totalBytes += size;
+            }
+        }
+
+        // Persist the access order for the next time the index is loaded. The order only
+        // matters across launches, so skip the metadata write if it was touched recently.
+        long now = System.currentTimeMillis();
+        if (now - file.lastModified() > MTIME_UPDATE_INTERVAL_MS) {
+            file.setLastModified(now);
+        }
+    }
+
+    void delete(File file) {
+        synchronized (this) {
+            Long size = files.remove(file);
+            if (size != null) {
+                totalBytes -= size;
+            }
+        }
+
+        file.delete();
+    }
+
+    synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    synchronized int getFileCount() {
+        return files.size();
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<File, Long>> i = files.entrySet().iterator();
+        while (totalBytes > budgetBytes && i.hasNext()) {
+            Map.Entry<File, Long> entry = i.next();
+            LimeLog.info("Evicting box art from disk cache: "+entry.getKey());
+            entry.getKey().delete();
+            totalBytes -= entry.getValue();
+            i.remove();
+        }
+    }
+}
@@ -5,33 +5,122 @@ import android.util.LruCache;
 
 import com.limelight.LimeLog;
 
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 public class MemoryAssetLoader {
     private static final int maxMemory = (int) (Runtime.getRuntime().maxMemory() / 1024);
-    private static final LruCache<String, Bitmap> memoryCache = new LruCache<String, Bitmap>(maxMemory / 16) {
-        @Override
-        protected int sizeOf(String key, Bitmap bitmap) {
-            // Sizeof returns kilobytes
-            return bitmap.getByteCount() / 1024;
+
+    // The host being browsed gets the whole budget. Hosts browsed before it are
+    // trimmed to a fraction of it so switching back doesn't start from nothing.
+    private static final int ACTIVE_HOST_BUDGET_KB = maxMemory / 16;
+    private static final int INACTIVE_HOST_BUDGET_KB = ACTIVE_HOST_BUDGET_KB / 4;
+    private static final int MAX_INACTIVE_HOSTS = 2;
+
+    // Per-host caches, least recently used host first
+    private static final LinkedHashMap<String, LruCache<String, Bitmap>> hostCaches =
+            new LinkedHashMap<>(4, 0.75f, true);
+    private static String activeHost;
+
+    private static final AssetCacheStats stats = new AssetCacheStats("Memory");
+
+    private static LruCache<String, Bitmap> createHostCache() {
+        return new LruCache<String, Bitmap>(ACTIVE_HOST_BUDGET_KB) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                // Sizeof returns kilobytes
+                return bitmap.getByteCount() / 1024;
+            }
+        };
+    }
+
+    private static LruCache<String, Bitmap> getHostCache(CachedAppAssetLoader.LoaderTuple tuple, boolean create) {
+        String host = tuple.computer.uuid.toString();
+
+        synchronized (hostCaches) {
+            LruCache<String, Bitmap> cache = hostCaches.get(host);
+            if (cache == null) {
+                if (!create) {
+                    return null;
+                }
+
+                cache = createHostCache();
+                hostCaches.put(host, cache);
+            }
+
+            if (!host.equals(activeHost)) {
+                activeHost = host;
+
+                // Shrink the other hosts' caches and forget the oldest ones entirely
+                int inactiveHosts = hostCaches.size() - 1;
+                Iterator<Map.Entry<String, LruCache<String, Bitmap>>> i = hostCaches.entrySet().iterator();
+                while (i.hasNext()) {
+                    Map.Entry<String, LruCache<String, Bitmap>> entry = i.next();
+                    if (entry.getKey().equals(host)) {
+                        continue;
+                    }
+
+                    if (inactiveHosts > MAX_INACTIVE_HOSTS) {
+                        entry.getValue().evictAll();
+                        i.remove();
+                        inactiveHosts--;
+                    }
+                    else {
+                        entry.getValue().trimToSize(INACTIVE_HOST_BUDGET_KB);
+                    }
+                }
+            }
+
+            return cache;
         }
-    };
+    }
 
     private static String constructKey(CachedAppAssetLoader.LoaderTuple tuple) {
         return tuple.computer.uuid.toString()+"-"+tuple.app.getAppId();
     }
 
     public Bitmap loadBitmapFromCache(CachedAppAssetLoader.LoaderTuple tuple) {
-        Bitmap bmp = memoryCache.get(constructKey(tuple));
+        long startTimeUs = AssetCacheStats.getTimeUs();
+
+        LruCache<String, Bitmap> cache = getHostCache(tuple, false);
+        Bitmap bmp = cache != null ? cache.get(constructKey(tuple)) : null;
         if (bmp != null) {
+            stats.hit(startTimeUs);
             LimeLog.info("Memory cache hit for tuple: "+tuple);
         }
+        else {
+            stats.miss();
+        }
         return bmp;
     }
 
     public void populateCache(CachedAppAssetLoader.LoaderTuple tuple, Bitmap bitmap) {
-        memoryCache.put(constructKey(tuple), bitmap);
+        getHostCache(tuple, true).put(constructKey(tuple), bitmap);
     }
 
     public void clearCache() {
-        memoryCache.evictAll();
+        synchronized (hostCaches) {
+            for (LruCache<String, Bitmap> cache : hostCaches.values()) {
+                cache.evictAll();
+            }
+            hostCaches.clear();
+            activeHost = null;
+        }
+    }
+
+    // Shrinks every host's cache to the inactive budget. This keeps a little of each host's
+    // art around so reopening the app list isn't cold.
+    public void trimInactiveHosts() {
+        synchronized (hostCaches) {
+            for (LruCache<String, Bitmap> cache : hostCaches.values()) {
+                cache.trimToSize(INACTIVE_HOST_BUDGET_KB);
+            }
+            activeHost = null;
+        }
+    }
+
+    public AssetCacheStats getStats() {
+        return stats;
     }
 }
@@ -3,7 +3,7 @@ package com.limelight.grid.assets;
 import android.content.Context;
 
 import com.limelight.LimeLog;
-import com.limelight.binding.PlatformBinding;
+import com.limelight.computers.NvHttpPool;
 import com.limelight.nvstream.http.ComputerDetails;
 import com.limelight.nvstream.http.NvHTTP;
 
@@ -15,13 +15,16 @@ public class NetworkAssetLoader {
     private final Context context;
     private final String uniqueId;
 
+    private static final AssetCacheStats stats = new AssetCacheStats("Network");
+
     public NetworkAssetLoader(Context context, String uniqueId) {
         this.context = context;
         this.uniqueId = uniqueId;
     }
 
     public InputStream getBitmapStream(CachedAppAssetLoader.LoaderTuple tuple) {
-        NvHTTP http = new NvHTTP(getCurrentAddress(tuple.computer), uniqueId, null, PlatformBinding.getCryptoProvider(context));
+        long startTimeUs = AssetCacheStats.getTimeUs();
+        NvHTTP http = NvHttpPool.get(context, getCurrentAddress(tuple.computer), uniqueId);
 
         InputStream in = null;
         try {
@@ -29,15 +32,21 @@ public class NetworkAssetLoader {
         } catch (IOException ignored) {}
 
         if (in != null) {
+            stats.hit(startTimeUs);
             LimeLog.info("Network asset load complete: " + tuple);
         }
         else {
+            stats.miss();
             LimeLog.info("Network asset load failed: " + tuple);
         }
 
         return in;
     }
 
+    public AssetCacheStats getStats() {
+        return stats;
+    }
+
     private static InetAddress getCurrentAddress(ComputerDetails computer) {
         if (computer.reachability == ComputerDetails.Reachability.LOCAL) {
             return computer.localIp;
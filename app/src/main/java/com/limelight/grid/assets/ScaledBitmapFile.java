@@ -0,0 +1,102 @@
+package com.limelight.grid.assets;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Scaled box art is stored as a small header followed by the raw RGB_565 pixels, so it
+// can be mapped and copied straight into a Bitmap without decoding the PNG again.
+// This only handles the bytes so it can be tested on a JVM.
+class ScaledBitmapFile {
+    static final int MAGIC = 0x4D4C4258; // 'MLBX'
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int BYTES_PER_PIXEL = 2;
+
+    final int width;
+    final int height;
+    // Positioned at the start of the pixel data
+    final ByteBuffer pixels;
+
+    private ScaledBitmapFile(int width, int height, ByteBuffer pixels) {
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+    }
+
+    // Returns a buffer with the header filled in, positioned for the caller to add the pixels
+    static ByteBuffer allocate(int width, int height) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + width * height * BYTES_PER_PIXEL);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(width);
+        buffer.putInt(height);
+        return buffer;
+    }
+
+    // Writes a buffer from allocate() once the pixels have been added. It's written to a
+    // temporary file first so a reader never maps a partial bitmap.
+    static void write(File file, ByteBuffer buffer) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        RandomAccessFile raf = null;
+        boolean success = false;
+        try {
+            raf = new RandomAccessFile(tempFile, "rw");
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            raf.close();
+            raf = null;
+
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Unable to rename "+tempFile);
+            }
+            success = true;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException ignored) {}
+            }
+
+            if (!success) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    static ScaledBitmapFile read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long length = channel.size();
+            if (length < HEADER_SIZE) {
+                throw new IOException("Truncated header");
+            }
+
+            // The mapping stays valid after the file is closed
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            int magic = buffer.getInt();
+            int version = buffer.getInt();
+            int width = buffer.getInt();
+            int height = buffer.getInt();
+            if (magic != MAGIC || version != VERSION || width <= 0 || height <= 0) {
+                throw new IOException("Bad header");
+            }
+            if (length - HEADER_SIZE != (long) width * height * BYTES_PER_PIXEL) {
+                throw new IOException("Unexpected pixel data size");
+            }
+
+            return new ScaledBitmapFile(width, height, buffer);
+        } finally {
+            try {
+                raf.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
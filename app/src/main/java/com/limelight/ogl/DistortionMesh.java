@@ -0,0 +1,174 @@
+/*
+By Ahmed Hilali
+
+A derivative work based on: http://github.com/izacus/AndroidOpenGLVideoDemo/
+See LICENSE.txt
+ */
+
+package com.limelight.ogl;
+
+/**
+ * Builds the side-by-side view as a grid mesh whose texture coordinates have the barrel distortion baked in.
+ * This replaces evaluating Warp() in the fragment shader for every pixel of both eyes.
+ *
+ * This has no GL dependencies so the math can be checked against the shader on a plain JVM.
+ */
+public class DistortionMesh
+{
+    // Quads along each side of each eye. Between vertices the warp is interpolated linearly.
+    public static final int GRID_SIZE = 64;
+
+    // Each vertex is x, y position within the eye's viewport, u, v sample coordinate and the
+    // unwarped eye-local texture coordinate
+    public static final int FLOATS_PER_VERTEX = 6;
+    public static final int POSITION_OFFSET = 0;
+    public static final int SAMPLE_COORDINATE_OFFSET = 2;
+    public static final int TEXTURE_COORDINATE_OFFSET = 4;
+
+    // Past this fraction of the way to the pole the mesh error exceeds ~2 pixels at 1080p
+    private static final float MAX_POLE_PROXIMITY = 0.4f;
+
+    private static final int VERTICES_PER_EYE = (GRID_SIZE + 1) * (GRID_SIZE + 1);
+    private static final int INDICES_PER_EYE = GRID_SIZE * GRID_SIZE * 6;
+
+    /**
+     * Port of the original fragment shader's Warp() function. Returns the sample coordinate for an eye-local
+     * coordinate in [0, 1].
+     */
+    public static void warp(float x, float y, float zoomFactor, float distFactor, float[] out)
+    {
+        float c = -distFactor / 10.0f;
+        float zoomU = zoomFactor * 0.75f;
+        float u = x * zoomU - (zoomU / 2.0f);
+        float v = y * zoomFactor - (zoomFactor / 2.0f);
+        float newX = c * u / (v * v + c);
+        float newY = c * v / (u * u + c);
+        out[0] = (newX + 1.0f) * 0.5f;
+        out[1] = (newY + 1.0f) * 0.5f;
+    }
+
+    /**
+     * Returns true if the warp has a pole inside or near the eye. Its output blows up and changes sign at the pole
+     * and curves too sharply near it to interpolate between vertices, so the warp has to be evaluated per pixel.
+     */
+    public static boolean needsPerPixelWarp(float zoomFactor, float distFactor, boolean singleView)
+    {
+        if (singleView)
+        {
+            return false;
+        }
+
+        // The denominators are v^2 + c and u^2 + c, with the pole where they reach 0. |v| goes up to
+        // zoomFactor / 2, which is always larger than the zoomFactor * 0.75 / 2 that |u| reaches.
+        float minusC = distFactor / 10.0f;
+        float maxV = zoomFactor / 2.0f;
+        return maxV * maxV >= minusC * MAX_POLE_PROXIMITY;
+    }
+
+    /**
+     * Port of the original fragment shader's main(). Maps a screen texture coordinate (after the SurfaceTexture
+     * transform) to the coordinate sampled from the video.
+     */
+    public static void sampleCoordinate(float x, float y, float zoomFactor, float distFactor,
+                                        boolean singleView, float[] out)
+    {
+        if (singleView)
+        {
+            float squeezeFactor = distFactor / 100.0f;
+            out[0] = x;
+            out[1] = y * squeezeFactor - (squeezeFactor * 0.5f);
+        }
+        else
+        {
+            float eyeX = x < 0.5f ? x * 2.0f : (x - 0.5f) * 2.0f;
+            warp(eyeX, y, zoomFactor, distFactor, out);
+        }
+    }
+
+    public static int getVertexCount()
+    {
+        return VERTICES_PER_EYE * 2;
+    }
+
+    /**
+     * Number of indices to draw for one eye. The left eye's indices come first.
+     */
+    public static int getIndexCountPerEye()
+    {
+        return INDICES_PER_EYE;
+    }
+
+    /**
+     * Fills the vertex array for both eyes. Each eye is a separate grid that covers its own viewport, so the
+     * seam between them stays sharp and no per-pixel test is needed to pick the eye.
+     *
+     * @param texTransform SurfaceTexture transform matrix, applied to screen coordinates before the warp
+     * @param vertices Destination of getVertexCount() * FLOATS_PER_VERTEX floats
+     */
+    public static void buildVertices(float zoomFactor, float distFactor, boolean singleView,
+                                     float[] texTransform, float[] vertices)
+    {
+        float[] sample = new float[2];
+        int offset = 0;
+
+        for (int eye = 0; eye < 2; eye++)
+        {
+            for (int row = 0; row <= GRID_SIZE; row++)
+            {
+                float screenY = row / (float)GRID_SIZE;
+
+                for (int col = 0; col <= GRID_SIZE; col++)
+                {
+                    float screenX = (eye + col / (float)GRID_SIZE) * 0.5f;
+
+                    // Same as (textureTransform * vTexCoordinate).xy in the vertex shader
+                    float tx = texTransform[0] * screenX + texTransform[4] * screenY + texTransform[12];
+                    float ty = texTransform[1] * screenX + texTransform[5] * screenY + texTransform[13];
+
+                    // Keep the seam vertices on the side of the eye they belong to
+                    if (!singleView)
+                    {
+                        tx = eye == 0 ? Math.min(tx, 0.5f - 1e-6f) : Math.max(tx, 0.5f);
+                    }
+
+                    sampleCoordinate(tx, ty, zoomFactor, distFactor, singleView, sample);
+
+                    vertices[offset++] = col / (float)GRID_SIZE * 2.0f - 1.0f;
+                    vertices[offset++] = screenY * 2.0f - 1.0f;
+                    vertices[offset++] = sample[0];
+                    vertices[offset++] = sample[1];
+                    vertices[offset++] = singleView ? tx : (tx < 0.5f ? tx * 2.0f : (tx - 0.5f) * 2.0f);
+                    vertices[offset++] = ty;
+                }
+            }
+        }
+    }
+
+    public static short[] buildIndices()
+    {
+        short[] indices = new short[2 * INDICES_PER_EYE];
+        int offset = 0;
+
+        for (int eye = 0; eye < 2; eye++)
+        {
+            int base = eye * VERTICES_PER_EYE;
+            for (int row = 0; row < GRID_SIZE; row++)
+            {
+                for (int col = 0; col < GRID_SIZE; col++)
+                {
+                    int topLeft = base + row * (GRID_SIZE + 1) + col;
+                    int bottomLeft = topLeft + GRID_SIZE + 1;
+
+                    indices[offset++] = (short)topLeft;
+                    indices[offset++] = (short)bottomLeft;
+                    indices[offset++] = (short)(bottomLeft + 1);
+                    indices[offset++] = (short)topLeft;
+                    indices[offset++] = (short)(bottomLeft + 1);
+                    indices[offset++] = (short)(topLeft + 1);
+                }
+            }
+        }
+
+        return indices;
+    }
+}
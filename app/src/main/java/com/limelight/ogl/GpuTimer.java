@@ -0,0 +1,138 @@
+/*
+By Ahmed Hilali
+
+A derivative work based on: http://github.com/izacus/AndroidOpenGLVideoDemo/
+See LICENSE.txt
+ */
+
+package com.limelight.ogl;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+
+/**
+ * Measures GPU time for sections of a frame using EXT_disjoint_timer_query. Results are read back a few frames
+ * later so the CPU never waits on the GPU. Must only be used on the rendering thread.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class GpuTimer
+{
+    private static final int GL_TIME_ELAPSED_EXT = 0x88BF;
+    private static final int GL_GPU_DISJOINT_EXT = 0x8FBB;
+
+    // Queries are recycled after this many frames
+    private static final int FRAMES_IN_FLIGHT = 4;
+
+    private final int sections;
+    private final int[] queries;
+    private final boolean[] queryIssued;
+    private final long[] averageNs;
+    private final int[] disjoint = new int[1];
+    private final int[] result = new int[1];
+    private int frameSlot;
+
+    /**
+     * Returns true if the current context can time GPU work. Timer queries need an ES 3 context for the
+     * glBeginQuery() entry points as well as the extension itself.
+     */
+    public static boolean isSupported(int glesVersion)
+    {
+        if (glesVersion < 3 || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2)
+        {
+            return false;
+        }
+
+        String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+        return extensions != null && extensions.contains("GL_EXT_disjoint_timer_query");
+    }
+
+    public GpuTimer(int sections)
+    {
+        this.sections = sections;
+        this.queries = new int[sections * FRAMES_IN_FLIGHT];
+        this.queryIssued = new boolean[queries.length];
+        this.averageNs = new long[sections];
+        GLES30.glGenQueries(queries.length, queries, 0);
+
+        // Clear any disjoint event that happened before we started
+        GLES20.glGetIntegerv(GL_GPU_DISJOINT_EXT, disjoint, 0);
+    }
+
+    public void begin(int section)
+    {
+        int index = frameSlot * sections + section;
+
+        // Skip this sample rather than wait if the GPU hasn't finished with the query
+        if (queryIssued[index])
+        {
+            return;
+        }
+
+        GLES30.glBeginQuery(GL_TIME_ELAPSED_EXT, queries[index]);
+    }
+
+    public void end(int section)
+    {
+        int index = frameSlot * sections + section;
+        if (queryIssued[index])
+        {
+            return;
+        }
+
+        GLES30.glEndQuery(GL_TIME_ELAPSED_EXT);
+        queryIssued[index] = true;
+    }
+
+    /**
+     * Call once per frame after the last section ends. Collects any results that are ready.
+     */
+    public void endFrame()
+    {
+        frameSlot = (frameSlot + 1) % FRAMES_IN_FLIGHT;
+
+        // Results from around a disjoint event (e.g. a GPU frequency change) are meaningless
+        GLES20.glGetIntegerv(GL_GPU_DISJOINT_EXT, disjoint, 0);
+        boolean discard = disjoint[0] != 0;
+
+        for (int section = 0; section < sections; section++)
+        {
+            int index = frameSlot * sections + section;
+            if (!queryIssued[index])
+            {
+                continue;
+            }
+
+            GLES30.glGetQueryObjectuiv(queries[index], GLES30.GL_QUERY_RESULT_AVAILABLE, result, 0);
+            if (result[0] == 0)
+            {
+                continue;
+            }
+
+            GLES30.glGetQueryObjectuiv(queries[index], GLES30.GL_QUERY_RESULT, result, 0);
+            queryIssued[index] = false;
+
+            if (!discard)
+            {
+                // The result is an unsigned 32-bit nanosecond count
+                long elapsedNs = result[0] & 0xFFFFFFFFL;
+                long average = averageNs[section];
+                averageNs[section] = average == 0 ? elapsedNs : average + (elapsedNs - average) / 16;
+            }
+        }
+    }
+
+    /**
+     * Smoothed GPU time of a section in nanoseconds, or 0 if nothing has been measured yet
+     */
+    public long getAverageNs(int section)
+    {
+        return averageNs[section];
+    }
+
+    public void delete()
+    {
+        GLES30.glDeleteQueries(queries.length, queries, 0);
+    }
+}
@@ -9,16 +9,21 @@ package com.limelight.ogl;
 
 import android.graphics.SurfaceTexture;
 
+import com.limelight.binding.video.ChoreographerVsyncClock;
+
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.egl.EGLContext;
 import javax.microedition.khronos.egl.EGLDisplay;
 import javax.microedition.khronos.egl.EGLSurface;
 
 import android.opengl.GLUtils;
+import android.os.Build;
 import android.util.Log;
 
 import javax.microedition.khronos.egl.EGL10;
 
+import java.util.concurrent.locks.LockSupport;
+
 /**
  * Renderer which initializes OpenGL 2.0 context on a passed surface and starts a rendering thread
  *
@@ -27,17 +32,38 @@ import javax.microedition.khronos.egl.EGL10;
 public abstract class TextureSurfaceRenderer implements Runnable
 {
     private static final int EGL_OPENGL_ES2_BIT = 4;
+    private static final int EGL_OPENGL_ES3_BIT_KHR = 0x40;
     private static final int EGL_CONTEXT_CLIENT_VERSION = 0x3098;
     private static final String LOG_TAG = "SurfaceTest.GL";
+
+    // Render as soon as a new frame arrives
+    public static final int RENDER_MODE_ON_FRAME = 0;
+    // Render the newest frame just before each vsync
+    public static final int RENDER_MODE_VSYNC = 1;
+
+    // How long before vsync to start drawing in vsync mode, as a fraction of the frame period
+    private static final int VSYNC_RENDER_MARGIN_DIVISOR = 4;
+    // How often to wake up and check if we've been paused while waiting for a frame
+    private static final long FRAME_WAIT_TIMEOUT_MS = 100;
     protected final SurfaceTexture texture;
     private EGL10 egl;
     private EGLDisplay eglDisplay;
     private EGLContext eglContext;
     private EGLSurface eglSurface;
+    private int glesVersion;
 
     protected int width;
     protected int height;
-    private boolean running;
+    private volatile boolean running;
+
+    private final Object frameSignal = new Object();
+    private boolean frameSignaled;
+
+    private volatile int renderMode = RENDER_MODE_ON_FRAME;
+    private volatile long targetFramePeriodNs;
+    private ChoreographerVsyncClock vsyncClock;
+    // The vsync the last frame was drawn for in vsync mode
+    private long lastTargetVsyncNs;
 
     OnGlReadyListener onGlReadyListener;
 
@@ -69,37 +95,146 @@ public abstract class TextureSurfaceRenderer implements Runnable
             this.onGlReadyListener.onGlReady();
         }
 
+        long lastDrawNs = 0;
         while (running)
         {
-            long loopStart = System.currentTimeMillis();
+            // Sleep until the subclass tells us there's something new to draw
+            if (!waitForFrame())
+            {
+                continue;
+            }
+
+            if (renderMode == RENDER_MODE_VSYNC)
+            {
+                // Latch the newest frame as late as we can before the display needs it
+                waitForVsync();
+            }
+            else if (targetFramePeriodNs > 0)
+            {
+                // Don't draw faster than the configured refresh rate
+                sleepUntil(lastDrawNs + targetFramePeriodNs);
+            }
+
+            lastDrawNs = System.nanoTime();
             pingFps();
 
             if (draw())
             {
                 egl.eglSwapBuffers(eglDisplay, eglSurface);
             }
+        }
+
+        if (vsyncClock != null)
+        {
+            vsyncClock.stop();
+            vsyncClock = null;
+        }
+
+        deinitGLComponents();
+        deinitGL();
+    }
+
+    /**
+     * Wakes up the rendering thread to draw a new frame. Subclasses call this when new content is available,
+     * e.g. from SurfaceTexture.OnFrameAvailableListener. It's safe to call from any thread.
+     */
+    protected void signalFrameAvailable()
+    {
+        synchronized (frameSignal)
+        {
+            frameSignaled = true;
+            frameSignal.notifyAll();
+        }
+    }
 
-            long waitDelta = 16 - (System.currentTimeMillis() - loopStart);    // Targeting 60 fps, no need for faster
-            if (waitDelta > 0)
+    private boolean waitForFrame()
+    {
+        synchronized (frameSignal)
+        {
+            if (!frameSignaled)
             {
                 try
                 {
-                    Thread.sleep(waitDelta);
+                    frameSignal.wait(FRAME_WAIT_TIMEOUT_MS);
                 }
                 catch (InterruptedException e)
                 {
-                    continue;
+                    return false;
                 }
             }
+
+            boolean signaled = frameSignaled;
+            frameSignaled = false;
+            return signaled;
         }
+    }
 
-        deinitGLComponents();
-        deinitGL();
+    private void waitForVsync()
+    {
+        if (vsyncClock == null)
+        {
+            vsyncClock = new ChoreographerVsyncClock();
+        }
+
+        long lastVsyncNs = vsyncClock.getLastVsyncNs();
+        long periodNs = vsyncClock.getVsyncPeriodNs();
+        if (lastVsyncNs == 0 || periodNs <= 0)
+        {
+            // No vsync seen yet, so just draw now
+            lastTargetVsyncNs = 0;
+            return;
+        }
+
+        long now = System.nanoTime();
+        long targetVsyncNs = lastVsyncNs + ((now - lastVsyncNs) / periodNs + 1) * periodNs;
+
+        // A target refresh rate below the display's is drawn every Nth vsync, so frames
+        // still land on vsync boundaries instead of drifting against them
+        long vsyncInterval = targetFramePeriodNs > 0 ?
+                Math.max(1, Math.round((double) targetFramePeriodNs / periodNs)) : 1;
+        if (vsyncInterval > 1 && lastTargetVsyncNs != 0)
+        {
+            long earliestVsyncNs = lastTargetVsyncNs + vsyncInterval * periodNs;
+            if (targetVsyncNs < earliestVsyncNs - periodNs / 2)
+            {
+                targetVsyncNs = earliestVsyncNs;
+            }
+        }
+        lastTargetVsyncNs = targetVsyncNs;
+
+        // If we're already inside the margin, drawing right away is the best we can do
+        sleepUntil(targetVsyncNs - periodNs / VSYNC_RENDER_MARGIN_DIVISOR);
+    }
+
+    private void sleepUntil(long deadlineNs)
+    {
+        long remainingNs;
+        while (running && (remainingNs = deadlineNs - System.nanoTime()) > 0)
+        {
+            LockSupport.parkNanos(remainingNs);
+        }
+    }
+
+    /**
+     * Selects when frames are drawn. See RENDER_MODE_ON_FRAME and RENDER_MODE_VSYNC.
+     */
+    public void setRenderMode(int renderMode)
+    {
+        this.renderMode = renderMode;
+    }
+
+    /**
+     * Sets the refresh rate to render at. In vsync mode this is rounded to a whole number of display refreshes,
+     * otherwise it caps how often frames are drawn. Pass 0 to follow the display.
+     */
+    public void setTargetRefreshRate(float refreshRate)
+    {
+        this.targetFramePeriodNs = refreshRate > 0 ? (long)(1000000000L / refreshRate) : 0;
     }
 
     /**
-     * Main draw function, subclass this and add custom drawing code here. The rendering thread will attempt to limit
-     * FPS to 60 to keep CPU usage low.
+     * Main draw function, subclass this and add custom drawing code here. This is called on the rendering thread
+     * each time signalFrameAvailable() wakes it up.
      */
     protected abstract boolean draw();
 
@@ -134,6 +269,9 @@ public abstract class TextureSurfaceRenderer implements Runnable
     public void onPause()
     {
         running = false;
+
+        // Wake the rendering thread so it can exit
+        signalFrameAvailable();
     }
 
 
@@ -145,8 +283,33 @@ public abstract class TextureSurfaceRenderer implements Runnable
         int[] version = new int[2];
         egl.eglInitialize(eglDisplay, version);
 
-        EGLConfig eglConfig = chooseEglConfig();
-        eglContext = createContext(egl, eglDisplay, eglConfig);
+        // Prefer an ES 3 context so subclasses can use timer queries, but the
+        // shaders only need ES 2, so fall back if the driver won't give us one
+        EGLConfig eglConfig = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2)
+        {
+            try
+            {
+                eglConfig = chooseEglConfig(EGL_OPENGL_ES3_BIT_KHR);
+            }
+            catch (IllegalArgumentException e)
+            {
+                // Older EGL implementations reject the ES 3 bit outright
+            }
+
+            if (eglConfig != null)
+            {
+                eglContext = createContext(egl, eglDisplay, eglConfig, 3);
+                glesVersion = 3;
+            }
+        }
+        if (eglContext == null || eglContext == EGL10.EGL_NO_CONTEXT)
+        {
+            eglConfig = chooseEglConfig(EGL_OPENGL_ES2_BIT);
+            eglContext = createContext(egl, eglDisplay, eglConfig, 2);
+            glesVersion = 2;
+        }
+        Log.d(LOG_TAG, "Created OpenGL ES " + glesVersion + " context");
 
         eglSurface = egl.eglCreateWindowSurface(eglDisplay, eglConfig, texture, null);
 
@@ -170,17 +333,25 @@ public abstract class TextureSurfaceRenderer implements Runnable
         Log.d(LOG_TAG, "OpenGL deinit OK.");
     }
 
-    private EGLContext createContext(EGL10 egl, EGLDisplay eglDisplay, EGLConfig eglConfig)
+    /**
+     * Major version of the OpenGL ES context, either 2 or 3. Only valid on the rendering thread after initialization.
+     */
+    protected int getGlesVersion()
+    {
+        return glesVersion;
+    }
+
+    private EGLContext createContext(EGL10 egl, EGLDisplay eglDisplay, EGLConfig eglConfig, int clientVersion)
     {
-        int[] attribList = { EGL_CONTEXT_CLIENT_VERSION, 2, EGL10.EGL_NONE };
+        int[] attribList = { EGL_CONTEXT_CLIENT_VERSION, clientVersion, EGL10.EGL_NONE };
         return egl.eglCreateContext(eglDisplay, eglConfig, EGL10.EGL_NO_CONTEXT, attribList);
     }
 
-    private EGLConfig chooseEglConfig()
+    private EGLConfig chooseEglConfig(int renderableType)
     {
         int[] configsCount = new int[1];
         EGLConfig[] configs = new EGLConfig[1];
-        int[] configSpec = getConfig();
+        int[] configSpec = getConfig(renderableType);
 
         if (!egl.eglChooseConfig(eglDisplay, configSpec, configs, 1, configsCount))
         {
@@ -194,10 +365,10 @@ public abstract class TextureSurfaceRenderer implements Runnable
         return null;
     }
 
-    private int[] getConfig()
+    private int[] getConfig(int renderableType)
     {
         return new int[] {
-                EGL10.EGL_RENDERABLE_TYPE, EGL_OPENGL_ES2_BIT,
+                EGL10.EGL_RENDERABLE_TYPE, renderableType,
                 EGL10.EGL_RED_SIZE, 8,
                 EGL10.EGL_GREEN_SIZE, 8,
                 EGL10.EGL_BLUE_SIZE, 8,
@@ -12,33 +12,67 @@ import android.graphics.*;
 import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
 import android.opengl.GLUtils;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.util.Log;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.Locale;
 
 public class VideoTextureRenderer extends TextureSurfaceRenderer implements SurfaceTexture.OnFrameAvailableListener
 {
     private static final String vertexShaderCode =
             "attribute vec4 vPosition;" +
-                    "attribute vec4 vTexCoordinate;" +
-                    "uniform mat4 textureTransform;" +
+                    "attribute vec2 vSampleCoordinate;" +
+                    "attribute vec2 vTexCoordinate;" +
+                    "varying vec2 v_SampleCoordinate;" +
                     "varying vec2 v_TexCoordinate;" +
                     "void main() {" +
-                    "   v_TexCoordinate = (textureTransform * vTexCoordinate).xy;" +
+                    "   v_SampleCoordinate = vSampleCoordinate;" +
+                    "   v_TexCoordinate = vTexCoordinate;" +
                     "   gl_Position = vPosition;" +
                     "}";
 
-    private static final String fragmentShaderCode =
+    // The barrel distortion is baked into the mesh by DistortionMesh, so all that's left per
+    // pixel is the lookup and blacking out samples outside the video. The border test is done
+    // with step() and mix() so every pixel runs the same instructions.
+    private static final String meshFragmentShaderCode =
+            "#extension GL_OES_EGL_image_external : require\n" +
+                    "precision highp float;" +
+                    "uniform samplerExternalOES texture;" +
+                    "uniform float clampToBorder;" +
+                    "varying vec2 v_SampleCoordinate;" +
+                    "void main () {"
+                    + "     vec2 borderStep = step(0.0, v_SampleCoordinate) * step(v_SampleCoordinate, vec2(1.0, 1.0));"
+                    + "     float visible = mix(1.0, borderStep.x * borderStep.y, clampToBorder);"
+                    + "     gl_FragColor = texture2D(texture, v_SampleCoordinate) * visible;"
+                    + "}";
+
+    // Single view is never warped or clamped
+    private static final String singleViewFragmentShaderCode =
+            "#extension GL_OES_EGL_image_external : require\n" +
+                    "precision highp float;" +
+                    "uniform samplerExternalOES texture;" +
+                    "varying vec2 v_SampleCoordinate;" +
+                    "void main () {"
+                    + "     gl_FragColor = texture2D(texture, v_SampleCoordinate);"
+                    + "}";
+
+    // Only used when the warp has a pole inside the eye, which the mesh can't represent.
+    // The texture coordinate is already local to the eye being drawn.
+    private static final String warpFragmentShaderCode =
             "#extension GL_OES_EGL_image_external : require\n" +
                     "precision highp float;" +
                     "uniform samplerExternalOES texture;" +
                     "uniform float zoomFactor;" +
                     "uniform float distFactor;" +
-                    "uniform float wrapEnabled;" +
-                    "uniform float singleView;" +
+                    "uniform float clampToBorder;" +
                     "varying vec2 v_TexCoordinate;"
                     + " 		vec2 Warp(vec2 Tex)"
                     + " 		{ "
@@ -47,67 +81,86 @@ public class VideoTextureRenderer extends TextureSurfaceRenderer implements Surf
                     + " 		  float zoomU = zoomFactor * 0.75;"
                     + " 		  float u = Tex.x*zoomU - (zoomU / 2.0);"
                     + " 		  float v = Tex.y*zoomFactor - (zoomFactor / 2.0);"
-                    + " 		  newPos.x = c*u/(pow(v, 2.0) + c);"
-                    + " 		  newPos.y = c*v/(pow(u, 2.0) + c);"
+                    + " 		  newPos.x = c*u/(v*v + c);"
+                    + " 		  newPos.y = c*v/(u*u + c);"
                     + " 		    newPos.x = (newPos.x + 1.0)*0.5;"
                     + " 		    newPos.y = (newPos.y + 1.0)*0.5;"
                     + " 		  return newPos; "
                     + " 		} "  +
 
                     "void main () {"
-                    + " 			if(singleView < 0.5) {"
-                    + " 			    vec2 newPos = v_TexCoordinate; "
-                    + " 			    if(newPos.x < 0.5) {"
-                    + " 			    	newPos.x = newPos.x * 2.0;"
-                    + " 			    } else { "
-                    + " 			    	newPos.x = (newPos.x - 0.5) * 2.0;"
-                    + " 			    } "
-                    + "                 newPos = Warp(newPos);"
-                    + "                 vec4 color = texture2D(texture, newPos);"
-                    + " 		        if(wrapEnabled < 0.5) {"
-                    + "                     vec2 borderStep = step(0.0, newPos) * step(newPos, vec2(1.0, 1.0));"
-                    + " 		            color *= borderStep.x * borderStep.y;"
-                    + " 		        }"
-                    + "                 gl_FragColor = color;"
-                    + "             } else {"
-                    + "                 float squeezeFactor = (distFactor / 100.0);"
-                    + "                 gl_FragColor = texture2D(texture, vec2(v_TexCoordinate.x, v_TexCoordinate.y * squeezeFactor - (squeezeFactor * 0.5)));"
-                    + "             }"
+                    + "     vec2 newPos = Warp(v_TexCoordinate);"
+                    + "     vec2 borderStep = step(0.0, newPos) * step(newPos, vec2(1.0, 1.0));"
+                    + "     float visible = mix(1.0, borderStep.x * borderStep.y, clampToBorder);"
+                    + "     gl_FragColor = texture2D(texture, newPos) * visible;"
+                    + "}";
+
+    // Stretches the reduced resolution render target over the whole surface
+    private static final String upscaleVertexShaderCode =
+            "attribute vec4 vPosition;" +
+                    "varying vec2 v_SampleCoordinate;" +
+                    "void main() {" +
+                    "   v_SampleCoordinate = vPosition.xy * 0.5 + 0.5;" +
+                    "   gl_Position = vPosition;" +
+                    "}";
+
+    private static final String upscaleFragmentShaderCode =
+            "precision mediump float;" +
+                    "uniform sampler2D texture;" +
+                    "varying vec2 v_SampleCoordinate;" +
+                    "void main () {"
+                    + "     gl_FragColor = texture2D(texture, v_SampleCoordinate);"
                     + "}";
 
-    private static float squareSize = 1.0f;
-    private static float squareCoords[] = { -squareSize,  squareSize, 0.0f,   // top left
-            -squareSize, -squareSize, 0.0f,   // bottom left
-            squareSize, -squareSize, 0.0f,   // bottom right
-            squareSize,  squareSize, 0.0f }; // top right
+    private static final float[] upscaleQuadCoords = { -1.0f, -1.0f, 1.0f, -1.0f, -1.0f, 1.0f, 1.0f, 1.0f };
 
-    private static short drawOrder[] = { 0, 1, 2, 0, 2, 3};
+    // GPU timer sections
+    private static final int GPU_TIMER_LEFT_EYE = 0;
+    private static final int GPU_TIMER_RIGHT_EYE = 1;
+    private static final int GPU_TIMER_UPSCALE = 2;
 
     private Context ctx;
 
-    // Texture to be shown in backgrund
-    private FloatBuffer textureBuffer;
-    private float textureCoords[] = { 0.0f, 1.0f, 0.0f, 1.0f,
-            0.0f, 0.0f, 0.0f, 1.0f,
-            1.0f, 0.0f, 0.0f, 1.0f,
-            1.0f, 1.0f, 0.0f, 1.0f };
     private int[] textures = new int[1];
 
-    private int vertexShaderHandle;
-    private int fragmentShaderHandle;
-    private int shaderProgram;
+    private ShaderProgram meshProgram;
+    private ShaderProgram warpProgram;
+    private ShaderProgram singleViewProgram;
+    private ShaderProgram upscaleProgram;
     private FloatBuffer vertexBuffer;
     private ShortBuffer drawListBuffer;
+    private FloatBuffer upscaleQuadBuffer;
+
+    // Reduced resolution render target, only allocated when the render scale is below 1
+    private volatile float renderScale = 1.0f;
+    private float framebufferScale = 1.0f;
+    private int[] framebuffer = new int[1];
+    private int[] framebufferTexture = new int[1];
+
+    // Viewport covering both eyes, letterboxed to the video's aspect ratio
+    private int viewportX, viewportY, viewportWidth, viewportHeight;
+
+    private GpuTimer gpuTimer;
+    private long lastGpuTimeOutput;
+    private volatile String gpuTimeSummary = "";
+
+    private boolean perPixelWarp;
 
-    private float zoomFactor = 3.2f;
-    private float distortionFactor = 81.0f;
-    private float wrapEnabled = 1.0f;
-    private float singleView = 0.0f;
-    private boolean zoomedIn = false;
+    private volatile float zoomFactor = 3.2f;
+    private volatile float distortionFactor = 81.0f;
+    private volatile boolean wrapEnabled = true;
+    private volatile boolean singleView = false;
+    private volatile boolean zoomedIn = false;
+
+    // Set when the mesh needs to be rebuilt with new distortion parameters
+    private volatile boolean meshDirty = true;
+    private float[] meshVertices;
+    private float[] meshTextureTransform = new float[16];
 
     private SurfaceTexture videoTexture;
     private float[] videoTextureTransform;
-    private boolean frameAvailable = false;
+    private int pendingFrames = 0;
+    private HandlerThread frameAvailableThread;
 
     private int videoWidth;
     private int videoHeight;
@@ -121,31 +174,88 @@ public class VideoTextureRenderer extends TextureSurfaceRenderer implements Surf
     }
 
 
-    private void loadShaders()
+    // A linked program and its uniform/attribute locations, which are looked up once
+    private class ShaderProgram
     {
-        vertexShaderHandle = GLES20.glCreateShader(GLES20.GL_VERTEX_SHADER);
-        GLES20.glShaderSource(vertexShaderHandle, vertexShaderCode);
-        GLES20.glCompileShader(vertexShaderHandle);
-        checkGlError("Vertex shader compile");
-
-        fragmentShaderHandle = GLES20.glCreateShader(GLES20.GL_FRAGMENT_SHADER);
-        GLES20.glShaderSource(fragmentShaderHandle, fragmentShaderCode);
-        GLES20.glCompileShader(fragmentShaderHandle);
-        checkGlError("Pixel shader compile");
-
-        shaderProgram = GLES20.glCreateProgram();
-        GLES20.glAttachShader(shaderProgram, vertexShaderHandle);
-        GLES20.glAttachShader(shaderProgram, fragmentShaderHandle);
-        GLES20.glLinkProgram(shaderProgram);
-        checkGlError("Shader program compile");
-
-        int[] status = new int[1];
-        GLES20.glGetProgramiv(shaderProgram, GLES20.GL_LINK_STATUS, status, 0);
-        if (status[0] != GLES20.GL_TRUE) {
-            String error = GLES20.glGetProgramInfoLog(shaderProgram);
-            Log.e("SurfaceTest", "Error while linking program:\n" + error);
+        final int vertexShaderHandle;
+        final int fragmentShaderHandle;
+        final int program;
+
+        final int textureParamHandle;
+        final int positionHandle;
+        final int sampleCoordinateHandle;
+        final int textureCoordinateHandle;
+        final int clampToBorderHandle;
+        final int zoomHandle;
+        final int distHandle;
+
+        ShaderProgram(String vertexShaderCode, String fragmentShaderCode)
+        {
+            vertexShaderHandle = GLES20.glCreateShader(GLES20.GL_VERTEX_SHADER);
+            GLES20.glShaderSource(vertexShaderHandle, vertexShaderCode);
+            GLES20.glCompileShader(vertexShaderHandle);
+            checkGlError("Vertex shader compile");
+
+            fragmentShaderHandle = GLES20.glCreateShader(GLES20.GL_FRAGMENT_SHADER);
+            GLES20.glShaderSource(fragmentShaderHandle, fragmentShaderCode);
+            GLES20.glCompileShader(fragmentShaderHandle);
+            checkGlError("Pixel shader compile");
+
+            program = GLES20.glCreateProgram();
+            GLES20.glAttachShader(program, vertexShaderHandle);
+            GLES20.glAttachShader(program, fragmentShaderHandle);
+            GLES20.glLinkProgram(program);
+            checkGlError("Shader program compile");
+
+            int[] status = new int[1];
+            GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, status, 0);
+            if (status[0] != GLES20.GL_TRUE) {
+                String error = GLES20.glGetProgramInfoLog(program);
+                Log.e("SurfaceTest", "Error while linking program:\n" + error);
+            }
+
+            // Locations the program doesn't use come back as -1
+            textureParamHandle = GLES20.glGetUniformLocation(program, "texture");
+            positionHandle = GLES20.glGetAttribLocation(program, "vPosition");
+            sampleCoordinateHandle = GLES20.glGetAttribLocation(program, "vSampleCoordinate");
+            textureCoordinateHandle = GLES20.glGetAttribLocation(program, "vTexCoordinate");
+            clampToBorderHandle = GLES20.glGetUniformLocation(program, "clampToBorder");
+            zoomHandle = GLES20.glGetUniformLocation(program, "zoomFactor");
+            distHandle = GLES20.glGetUniformLocation(program, "distFactor");
+        }
+
+        void enableAttribute(int handle, FloatBuffer buffer, int offset, int stride)
+        {
+            if (handle < 0) {
+                return;
+            }
+
+            buffer.position(offset);
+            GLES20.glEnableVertexAttribArray(handle);
+            GLES20.glVertexAttribPointer(handle, 2, GLES20.GL_FLOAT, false, stride * 4, buffer);
+        }
+
+        void disableAttribute(int handle)
+        {
+            if (handle >= 0) {
+                GLES20.glDisableVertexAttribArray(handle);
+            }
         }
 
+        void delete()
+        {
+            GLES20.glDeleteProgram(program);
+            GLES20.glDeleteShader(vertexShaderHandle);
+            GLES20.glDeleteShader(fragmentShaderHandle);
+        }
+    }
+
+    private void loadShaders()
+    {
+        meshProgram = new ShaderProgram(vertexShaderCode, meshFragmentShaderCode);
+        warpProgram = new ShaderProgram(vertexShaderCode, warpFragmentShaderCode);
+        singleViewProgram = new ShaderProgram(vertexShaderCode, singleViewFragmentShaderCode);
+        upscaleProgram = new ShaderProgram(upscaleVertexShaderCode, upscaleFragmentShaderCode);
     }
 
     public boolean isZoomedIn() {
@@ -154,36 +264,49 @@ public class VideoTextureRenderer extends TextureSurfaceRenderer implements Surf
 
     public void setZoomedIn(boolean zoomedIn1) {
         this.zoomedIn = zoomedIn1;
+        meshDirty = true;
     }
 
     private void setupVertexBuffer()
     {
         // Draw list buffer
-        ByteBuffer dlb = ByteBuffer.allocateDirect(drawOrder. length * 2);
+        short[] drawOrder = DistortionMesh.buildIndices();
+        ByteBuffer dlb = ByteBuffer.allocateDirect(drawOrder.length * 2);
         dlb.order(ByteOrder.nativeOrder());
         drawListBuffer = dlb.asShortBuffer();
         drawListBuffer.put(drawOrder);
         drawListBuffer.position(0);
 
-        // Initialize the texture holder
-        ByteBuffer bb = ByteBuffer.allocateDirect(squareCoords.length * 4);
-        bb.order(ByteOrder.nativeOrder());
+        ByteBuffer qb = ByteBuffer.allocateDirect(upscaleQuadCoords.length * 4);
+        qb.order(ByteOrder.nativeOrder());
+        upscaleQuadBuffer = qb.asFloatBuffer();
+        upscaleQuadBuffer.put(upscaleQuadCoords);
+        upscaleQuadBuffer.position(0);
 
+        // The vertices are filled in by rebuildMesh() before the first draw
+        meshVertices = new float[DistortionMesh.getVertexCount() * DistortionMesh.FLOATS_PER_VERTEX];
+        ByteBuffer bb = ByteBuffer.allocateDirect(meshVertices.length * 4);
+        bb.order(ByteOrder.nativeOrder());
         vertexBuffer = bb.asFloatBuffer();
-        vertexBuffer.put(squareCoords);
+    }
+
+    private void rebuildMesh()
+    {
+        float realZoomFactor = zoomedIn ? (zoomFactor * 1.8f) : zoomFactor;
+        perPixelWarp = DistortionMesh.needsPerPixelWarp(realZoomFactor, distortionFactor, singleView);
+        DistortionMesh.buildVertices(realZoomFactor, distortionFactor, singleView,
+                videoTextureTransform, meshVertices);
+
         vertexBuffer.position(0);
+        vertexBuffer.put(meshVertices);
+        vertexBuffer.position(0);
+
+        System.arraycopy(videoTextureTransform, 0, meshTextureTransform, 0, 16);
     }
 
 
     private void setupTexture(Context context)
     {
-        ByteBuffer texturebb = ByteBuffer.allocateDirect(textureCoords.length * 4);
-        texturebb.order(ByteOrder.nativeOrder());
-
-        textureBuffer = texturebb.asFloatBuffer();
-        textureBuffer.put(textureCoords);
-        textureBuffer.position(0);
-
         // Generate the actual texture
         GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
         GLES20.glGenTextures(1, textures, 0);
@@ -193,83 +316,260 @@ public class VideoTextureRenderer extends TextureSurfaceRenderer implements Surf
         checkGlError("Texture bind");
 
         videoTexture = new SurfaceTexture(textures[0]);
-        videoTexture.setOnFrameAvailableListener(this);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+        {
+            // Without a handler, the callbacks go through the main looper and wait behind UI work
+            frameAvailableThread = new HandlerThread("Video - Frame available", Process.THREAD_PRIORITY_DISPLAY);
+            frameAvailableThread.start();
+            videoTexture.setOnFrameAvailableListener(this, new Handler(frameAvailableThread.getLooper()));
+        }
+        else
+        {
+            videoTexture.setOnFrameAvailableListener(this);
+        }
     }
 
     @Override
     protected boolean draw()
     {
+        int framesToLatch;
         synchronized (this)
         {
-            if (frameAvailable)
-            {
-                videoTexture.updateTexImage();
-                videoTexture.getTransformMatrix(videoTextureTransform);
-                frameAvailable = false;
-            }
-            else
-            {
-                return false;
-            }
+            framesToLatch = pendingFrames;
+            pendingFrames = 0;
+        }
 
+        if (framesToLatch == 0)
+        {
+            return false;
         }
 
+        // Each call latches the next queued frame, so skip ahead to the newest one
+        for (int i = 0; i < framesToLatch; i++)
+        {
+            videoTexture.updateTexImage();
+        }
+        videoTexture.getTransformMatrix(videoTextureTransform);
+
         if (adjustViewport)
             adjustViewport();
 
+        // The SurfaceTexture transform is baked into the mesh too, so rebuild if it ever changes
+        if (meshDirty || !Arrays.equals(videoTextureTransform, meshTextureTransform))
+        {
+            meshDirty = false;
+            rebuildMesh();
+        }
+
+        if (renderScale != framebufferScale)
+        {
+            setupFramebuffer(renderScale);
+        }
+
+        boolean useFramebuffer = framebufferScale < 1.0f;
+        if (useFramebuffer)
+        {
+            GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer[0]);
+        }
+
         GLES20.glClearColor(1.0f, 0.0f, 0.0f, 0.0f);
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
 
-        // Draw texture
-        GLES20.glUseProgram(shaderProgram);
-        int textureParamHandle = GLES20.glGetUniformLocation(shaderProgram, "texture");
-        int textureCoordinateHandle = GLES20.glGetAttribLocation(shaderProgram, "vTexCoordinate");
-        int positionHandle = GLES20.glGetAttribLocation(shaderProgram, "vPosition");
-        int textureTranformHandle = GLES20.glGetUniformLocation(shaderProgram, "textureTransform");
-        int zoomHandle = GLES20.glGetUniformLocation(shaderProgram, "zoomFactor");
-        int distHandle = GLES20.glGetUniformLocation(shaderProgram, "distFactor");
-        int wrapHandle = GLES20.glGetUniformLocation(shaderProgram, "wrapEnabled");
-        int singleHandle = GLES20.glGetUniformLocation(shaderProgram, "singleView");
+        // Each variant is its own program so none of them branch per pixel
+        ShaderProgram program = singleView ? singleViewProgram : (perPixelWarp ? warpProgram : meshProgram);
+        GLES20.glUseProgram(program.program);
 
-        GLES20.glEnableVertexAttribArray(positionHandle);
-        GLES20.glVertexAttribPointer(positionHandle, 3, GLES20.GL_FLOAT, false, 4 * 3, vertexBuffer);
+        program.enableAttribute(program.positionHandle, vertexBuffer,
+                DistortionMesh.POSITION_OFFSET, DistortionMesh.FLOATS_PER_VERTEX);
+        program.enableAttribute(program.sampleCoordinateHandle, vertexBuffer,
+                DistortionMesh.SAMPLE_COORDINATE_OFFSET, DistortionMesh.FLOATS_PER_VERTEX);
+        program.enableAttribute(program.textureCoordinateHandle, vertexBuffer,
+                DistortionMesh.TEXTURE_COORDINATE_OFFSET, DistortionMesh.FLOATS_PER_VERTEX);
 
-        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textures[0]);
         GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        GLES20.glUniform1i(textureParamHandle, 0);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textures[0]);
+        GLES20.glUniform1i(program.textureParamHandle, 0);
+
+        if (program != singleViewProgram) {
+            GLES20.glUniform1f(program.clampToBorderHandle, wrapEnabled ? 0.0f : 1.0f);
+        }
 
-        GLES20.glEnableVertexAttribArray(textureCoordinateHandle);
-        GLES20.glVertexAttribPointer(textureCoordinateHandle, 4, GLES20.GL_FLOAT, false, 0, textureBuffer);
+        if (program == warpProgram) {
+            GLES20.glUniform1f(program.zoomHandle, zoomedIn ? (zoomFactor * 1.8f) : zoomFactor);
+            GLES20.glUniform1f(program.distHandle, distortionFactor);
+        }
 
-        GLES20.glUniformMatrix4fv(textureTranformHandle, 1, false, videoTextureTransform, 0);
+        // Draw each eye into its own half of the viewport
+        float scale = useFramebuffer ? framebufferScale : 1.0f;
+        int eyeWidth = viewportWidth / 2;
+        for (int eye = 0; eye < 2; eye++)
+        {
+            GLES20.glViewport((int)((viewportX + eye * eyeWidth) * scale), (int)(viewportY * scale),
+                    (int)(eyeWidth * scale), (int)(viewportHeight * scale));
 
-        float realZoomFactor = zoomedIn ? (zoomFactor * 1.8f) : zoomFactor;
-        GLES20.glUniform1f(zoomHandle, realZoomFactor);
-        GLES20.glUniform1f(distHandle, distortionFactor);
-        GLES20.glUniform1f(wrapHandle, wrapEnabled);
-        GLES20.glUniform1f(singleHandle, singleView);
+            if (gpuTimer != null)
+                gpuTimer.begin(eye == 0 ? GPU_TIMER_LEFT_EYE : GPU_TIMER_RIGHT_EYE);
 
-        GLES20.glDrawElements(GLES20.GL_TRIANGLES, drawOrder.length, GLES20.GL_UNSIGNED_SHORT, drawListBuffer);
-        GLES20.glDisableVertexAttribArray(positionHandle);
-        GLES20.glDisableVertexAttribArray(textureCoordinateHandle);
+            drawListBuffer.position(eye * DistortionMesh.getIndexCountPerEye());
+            GLES20.glDrawElements(GLES20.GL_TRIANGLES, DistortionMesh.getIndexCountPerEye(),
+                    GLES20.GL_UNSIGNED_SHORT, drawListBuffer);
+
+            if (gpuTimer != null)
+                gpuTimer.end(eye == 0 ? GPU_TIMER_LEFT_EYE : GPU_TIMER_RIGHT_EYE);
+        }
+
+        program.disableAttribute(program.positionHandle);
+        program.disableAttribute(program.sampleCoordinateHandle);
+        program.disableAttribute(program.textureCoordinateHandle);
+
+        if (useFramebuffer)
+        {
+            drawUpscale();
+        }
+
+        if (gpuTimer != null)
+        {
+            gpuTimer.endFrame();
+            updateGpuTimeSummary();
+        }
 
         return true;
     }
 
     public void setZoomFactor(float zoomFactor1) {
         this.zoomFactor = zoomFactor1 / 15.625f;
+        meshDirty = true;
     }
 
     public void setDistortionFactor(float distortionFactor1) {
         this.distortionFactor = distortionFactor1;
+        meshDirty = true;
     }
 
     public void setWrapEnabled(boolean enabled) {
-        this.wrapEnabled = enabled ? 1.0f : 0.0f;
+        this.wrapEnabled = enabled;
     }
 
     public void setSingleView(boolean enabled) {
-        this.singleView = enabled ? 1.0f : 0.0f;
+        this.singleView = enabled;
+        meshDirty = true;
+    }
+
+    private void drawUpscale()
+    {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GLES20.glViewport(0, 0, width, height);
+
+        if (gpuTimer != null)
+            gpuTimer.begin(GPU_TIMER_UPSCALE);
+
+        GLES20.glUseProgram(upscaleProgram.program);
+        upscaleProgram.enableAttribute(upscaleProgram.positionHandle, upscaleQuadBuffer, 0, 2);
+
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, framebufferTexture[0]);
+        GLES20.glUniform1i(upscaleProgram.textureParamHandle, 0);
+
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        upscaleProgram.disableAttribute(upscaleProgram.positionHandle);
+
+        if (gpuTimer != null)
+            gpuTimer.end(GPU_TIMER_UPSCALE);
+    }
+
+    private void setupFramebuffer(float scale)
+    {
+        deleteFramebuffer();
+        framebufferScale = scale;
+
+        if (scale >= 1.0f)
+        {
+            return;
+        }
+
+        int fbWidth = Math.max(1, (int)(width * scale));
+        int fbHeight = Math.max(1, (int)(height * scale));
+
+        GLES20.glGenTextures(1, framebufferTexture, 0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, framebufferTexture[0]);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, fbWidth, fbHeight, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+
+        GLES20.glGenFramebuffers(1, framebuffer, 0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer[0]);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, framebufferTexture[0], 0);
+
+        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE)
+        {
+            Log.e("SurfaceTest", "Reduced resolution framebuffer incomplete: " + status);
+            deleteFramebuffer();
+            framebufferScale = 1.0f;
+            renderScale = 1.0f;
+        }
+        else
+        {
+            Log.d("SurfaceTest", "Rendering eyes at " + fbWidth + "x" + fbHeight);
+        }
+    }
+
+    private void deleteFramebuffer()
+    {
+        if (framebuffer[0] != 0)
+        {
+            GLES20.glDeleteFramebuffers(1, framebuffer, 0);
+            GLES20.glDeleteTextures(1, framebufferTexture, 0);
+            framebuffer[0] = 0;
+            framebufferTexture[0] = 0;
+        }
+    }
+
+    private void updateGpuTimeSummary()
+    {
+        long now = System.currentTimeMillis();
+        if (now - lastGpuTimeOutput < 1000)
+        {
+            return;
+        }
+        lastGpuTimeOutput = now;
+
+        String variant = singleView ? "single" : (perPixelWarp ? "per-pixel warp" : "mesh");
+        if (framebufferScale < 1.0f)
+        {
+            variant += " @ " + (int)(framebufferScale * 100) + "%";
+        }
+
+        gpuTimeSummary = String.format(Locale.US, "GPU (%s): L %.2f ms, R %.2f ms, upscale %.2f ms",
+                variant,
+                gpuTimer.getAverageNs(GPU_TIMER_LEFT_EYE) / 1000000.0,
+                gpuTimer.getAverageNs(GPU_TIMER_RIGHT_EYE) / 1000000.0,
+                gpuTimer.getAverageNs(GPU_TIMER_UPSCALE) / 1000000.0);
+        Log.d("SurfaceTest", gpuTimeSummary);
+    }
+
+    /**
+     * Per-eye GPU time of the current render variant, or an empty string if the device can't measure it
+     */
+    public String getGpuTimeSummary()
+    {
+        return gpuTimeSummary;
+    }
+
+    /**
+     * Renders the eyes at a fraction of the surface resolution and then stretches the result to fill the surface.
+     * This is cheaper on weak GPUs at the expense of sharpness. Pass 1 to render at full resolution.
+     */
+    public void setRenderScale(float scale)
+    {
+        this.renderScale = Math.max(0.25f, Math.min(scale, 1.0f));
     }
 
     private void adjustViewport()
@@ -282,14 +582,20 @@ public class VideoTextureRenderer extends TextureSurfaceRenderer implements Surf
             float heightRatio = height / (float)videoHeight;
             int newWidth = (int)(videoWidth * heightRatio);
             int xOffset = (newWidth - width) / 2;
-            GLES20.glViewport(-xOffset, 0, newWidth, height);
+            viewportX = -xOffset;
+            viewportY = 0;
+            viewportWidth = newWidth;
+            viewportHeight = height;
         }
         else
         {
             float widthRatio = width / (float)videoWidth;
             int newHeight = (int)(videoHeight * widthRatio);
             int yOffset = (newHeight - height) / 2;
-            GLES20.glViewport(0, -yOffset, width, newHeight);
+            viewportX = 0;
+            viewportY = -yOffset;
+            viewportWidth = width;
+            viewportHeight = newHeight;
         }
 
         adjustViewport = false;
@@ -301,15 +607,42 @@ public class VideoTextureRenderer extends TextureSurfaceRenderer implements Surf
         setupVertexBuffer();
         setupTexture(ctx);
         loadShaders();
+
+        // Until we know the video size, fill the surface
+        viewportWidth = width;
+        viewportHeight = height;
+
+        if (GpuTimer.isSupported(getGlesVersion()))
+        {
+            gpuTimer = new GpuTimer(3);
+        }
+        else
+        {
+            Log.d("SurfaceTest", "GPU timer queries not available");
+        }
     }
 
     @Override
     protected void deinitGLComponents()
     {
         GLES20.glDeleteTextures(1, textures, 0);
-        GLES20.glDeleteProgram(shaderProgram);
+        meshProgram.delete();
+        warpProgram.delete();
+        singleViewProgram.delete();
+        upscaleProgram.delete();
+        deleteFramebuffer();
+
+        if (gpuTimer != null)
+        {
+            gpuTimer.delete();
+        }
         videoTexture.release();
         videoTexture.setOnFrameAvailableListener(null);
+
+        if (frameAvailableThread != null)
+        {
+            frameAvailableThread.quit();
+        }
     }
 
     public void setVideoSize(int width, int height)
@@ -337,7 +670,9 @@ public class VideoTextureRenderer extends TextureSurfaceRenderer implements Surf
     {
         synchronized (this)
         {
-            frameAvailable = true;
+            pendingFrames++;
         }
+
+        signalFrameAvailable();
     }
 }
\ No newline at end of file
@@ -23,6 +23,13 @@ public class PreferenceConfiguration {
     private static final String USB_DRIVER_PREF_SRING = "checkbox_usb_driver";
     private static final String VIDEO_FORMAT_PREF_STRING = "video_format";
     private static final String ONSCREEN_CONTROLLER_PREF_STRING = "checkbox_show_onscreen_controls";
+    private static final String DECODER_MODE_PREF_STRING = "list_decoder_mode";
+    private static final String PERF_OVERLAY_PREF_STRING = "checkbox_enable_perf_overlay";
+    private static final String FRAME_PACING_PREF_STRING = "list_frame_pacing";
+    private static final String VR_RENDER_MODE_PREF_STRING = "list_vr_render_mode";
+    private static final String VR_REFRESH_RATE_PREF_STRING = "list_vr_refresh_rate";
+    private static final String VR_RENDER_SCALE_PREF_STRING = "list_vr_render_scale";
+    private static final String STICK_RESAMPLING_PREF_STRING = "list_stick_resampling";
 
     private static final int BITRATE_DEFAULT_720_30 = 5;
     private static final int BITRATE_DEFAULT_720_60 = 10;
@@ -45,19 +52,50 @@ public class PreferenceConfiguration {
     private static final boolean DEFAULT_USB_DRIVER = true;
     private static final String DEFAULT_VIDEO_FORMAT = "auto";
     private static final boolean ONSCREEN_CONTROLLER_DEFAULT = false;
+    private static final String DEFAULT_DECODER_MODE = "auto";
+    private static final boolean DEFAULT_PERF_OVERLAY = false;
+    private static final String DEFAULT_FRAME_PACING = "latency";
+    private static final String DEFAULT_VR_RENDER_MODE = "frame";
+    private static final String DEFAULT_VR_REFRESH_RATE = "0";
+    private static final String DEFAULT_VR_RENDER_SCALE = "100";
+    private static final String DEFAULT_STICK_RESAMPLING = "newest";
 
     public static final int FORCE_H265_ON = -1;
     public static final int AUTOSELECT_H265 = 0;
     public static final int FORCE_H265_OFF = 1;
 
+    public static final int DECODER_MODE_AUTO = 0;
+    public static final int DECODER_MODE_LEGACY = 1;
+    public static final int DECODER_MODE_DIRECT_SUBMIT = 2;
+    public static final int DECODER_MODE_ASYNC = 3;
+
+    public static final int FRAME_PACING_LOWEST_LATENCY = 0;
+    public static final int FRAME_PACING_VSYNC = 1;
+    public static final int FRAME_PACING_BALANCED = 2;
+
+    public static final int VR_RENDER_MODE_ON_FRAME = 0;
+    public static final int VR_RENDER_MODE_VSYNC = 1;
+
+    // These match the AxisResampler modes
+    public static final int STICK_RESAMPLING_NEWEST = 0;
+    public static final int STICK_RESAMPLING_PREDICT = 1;
+    public static final int STICK_RESAMPLING_ALIGNED = 2;
+
     public int width, height, fps;
     public int bitrate;
     public int videoFormat;
+    public int decoderMode;
+    public int framePacing;
+    public int vrRenderMode;
+    public int vrRefreshRate;
+    public int vrRenderScale;
     public int deadzonePercentage;
+    public int stickResampling;
     public boolean stretchVideo, enableSops, playHostAudio, disableWarnings;
     public String language;
     public boolean listMode, smallIconMode, multiController, enable51Surround, usbDriver;
     public boolean onscreenController;
+    public boolean enablePerfOverlay;
 
     public static int getDefaultBitrate(String resFpsString) {
         if (resFpsString.equals("720p30")) {
@@ -128,6 +166,66 @@ public class PreferenceConfiguration {
         }
     }
 
+    private static int getDecoderModeValue(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+
+        String str = prefs.getString(DECODER_MODE_PREF_STRING, DEFAULT_DECODER_MODE);
+        if (str.equals("auto")) {
+            return DECODER_MODE_AUTO;
+        }
+        else if (str.equals("legacy")) {
+            return DECODER_MODE_LEGACY;
+        }
+        else if (str.equals("directsubmit")) {
+            return DECODER_MODE_DIRECT_SUBMIT;
+        }
+        else if (str.equals("async")) {
+            return DECODER_MODE_ASYNC;
+        }
+        else {
+            // Should never get here
+            return DECODER_MODE_AUTO;
+        }
+    }
+
+    private static int getFramePacingValue(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+
+        String str = prefs.getString(FRAME_PACING_PREF_STRING, DEFAULT_FRAME_PACING);
+        if (str.equals("latency")) {
+            return FRAME_PACING_LOWEST_LATENCY;
+        }
+        else if (str.equals("vsync")) {
+            return FRAME_PACING_VSYNC;
+        }
+        else if (str.equals("balanced")) {
+            return FRAME_PACING_BALANCED;
+        }
+        else {
+            // Should never get here
+            return FRAME_PACING_LOWEST_LATENCY;
+        }
+    }
+
+    private static int getStickResamplingValue(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+
+        String str = prefs.getString(STICK_RESAMPLING_PREF_STRING, DEFAULT_STICK_RESAMPLING);
+        if (str.equals("newest")) {
+            return STICK_RESAMPLING_NEWEST;
+        }
+        else if (str.equals("predict")) {
+            return STICK_RESAMPLING_PREDICT;
+        }
+        else if (str.equals("aligned")) {
+            return STICK_RESAMPLING_ALIGNED;
+        }
+        else {
+            // Should never get here
+            return STICK_RESAMPLING_NEWEST;
+        }
+    }
+
     public static PreferenceConfiguration readPreferences(Context context) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         PreferenceConfiguration config = new PreferenceConfiguration();
@@ -172,8 +270,16 @@ public class PreferenceConfiguration {
         }
 
         config.videoFormat = getVideoFormatValue(context);
+        config.decoderMode = getDecoderModeValue(context);
+        config.framePacing = getFramePacingValue(context);
+
+        config.vrRenderMode = prefs.getString(VR_RENDER_MODE_PREF_STRING, DEFAULT_VR_RENDER_MODE).equals("vsync") ?
+                VR_RENDER_MODE_VSYNC : VR_RENDER_MODE_ON_FRAME;
+        config.vrRefreshRate = Integer.parseInt(prefs.getString(VR_REFRESH_RATE_PREF_STRING, DEFAULT_VR_REFRESH_RATE));
+        config.vrRenderScale = Integer.parseInt(prefs.getString(VR_RENDER_SCALE_PREF_STRING, DEFAULT_VR_RENDER_SCALE));
 
         config.deadzonePercentage = prefs.getInt(DEADZONE_PREF_STRING, DEFAULT_DEADZONE);
+        config.stickResampling = getStickResamplingValue(context);
 
         config.language = prefs.getString(LANGUAGE_PREF_STRING, DEFAULT_LANGUAGE);
 
@@ -188,6 +294,7 @@ public class PreferenceConfiguration {
         config.enable51Surround = prefs.getBoolean(ENABLE_51_SURROUND_PREF_STRING, DEFAULT_ENABLE_51_SURROUND);
         config.usbDriver = prefs.getBoolean(USB_DRIVER_PREF_SRING, DEFAULT_USB_DRIVER);
         config.onscreenController = prefs.getBoolean(ONSCREEN_CONTROLLER_PREF_STRING, ONSCREEN_CONTROLLER_DEFAULT);
+        config.enablePerfOverlay = prefs.getBoolean(PERF_OVERLAY_PREF_STRING, DEFAULT_PERF_OVERLAY);
 
         return config;
     }
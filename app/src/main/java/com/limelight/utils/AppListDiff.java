@@ -0,0 +1,89 @@
+package com.limelight.utils;
+
+import com.limelight.nvstream.http.NvApp;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+// The differences between two app lists, matched up by app ID
+public class AppListDiff {
+    // Apps only in the new list
+    public final List<NvApp> added = new ArrayList<>();
+
+    // Apps only in the old list
+    public final List<NvApp> removed = new ArrayList<>();
+
+    // Apps from the new list whose name or running state differs from the old list
+    public final List<NvApp> changed = new ArrayList<>();
+
+    private AppListDiff() {}
+
+    public static AppListDiff compute(Collection<NvApp> oldApps, Collection<NvApp> newApps) {
+        AppListDiff diff = new AppListDiff();
+
+        HashMap<Integer, NvApp> oldById = new HashMap<>();
+        for (NvApp app : oldApps) {
+            oldById.put(app.getAppId(), app);
+        }
+
+        for (NvApp app : newApps) {
+            NvApp oldApp = oldById.remove(app.getAppId());
+            if (oldApp == null) {
+                diff.added.add(app);
+            }
+            else if (oldApp.getIsRunning() != app.getIsRunning() ||
+                    !oldApp.getAppName().equals(app.getAppName())) {
+                diff.changed.add(app);
+            }
+        }
+
+        // Whatever wasn't matched is gone
+        diff.removed.addAll(oldById.values());
+
+        return diff;
+    }
+
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return added.size() + " added, " + removed.size() + " removed, " + changed.size() + " changed";
+    }
+
+    // The order the app grid keeps apps in: by name, with the app ID breaking ties so
+    // every app has exactly one position
+    public static int compareApps(NvApp lhs, NvApp rhs) {
+        int result = lhs.getAppName().compareTo(rhs.getAppName());
+        if (result == 0) {
+            result = lhs.getAppId() < rhs.getAppId() ? -1 : (lhs.getAppId() == rhs.getAppId() ? 0 : 1);
+        }
+        return result;
+    }
+
+    // Inserts an item at its position in a list that's already sorted and returns the index
+    public static <T> int insertSorted(List<T> list, T item, Comparator<? super T> comparator) {
+        int index = Collections.binarySearch(list, item, comparator);
+        if (index < 0) {
+            index = -(index + 1);
+        }
+        list.add(index, item);
+        return index;
+    }
+
+    // 64-bit FNV-1a hash of the raw app list XML. This lets the poller tell that a list
+    // hasn't changed without parsing it.
+    public static long hashRawAppList(String rawAppList) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < rawAppList.length(); i++) {
+            hash ^= rawAppList.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
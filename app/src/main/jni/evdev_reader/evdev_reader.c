@@ -1,23 +1,39 @@
 #include <stdlib.h>
 #include <stdio.h>
 #include <string.h>
+#include <stdint.h>
 
 #include <sys/types.h>
 #include <sys/socket.h>
 #include <sys/stat.h>
+#include <sys/ioctl.h>
+#include <sys/time.h>
+#include <time.h>
 #include <fcntl.h>
 #include <linux/input.h>
 #include <unistd.h>
 #include <poll.h>
 #include <errno.h>
 #include <dirent.h>
-#include <pthread.h>
 #include <netinet/in.h>
 #include <netinet/tcp.h>
+#include <arpa/inet.h>
 
+#ifdef __ANDROID__
 #include <android/log.h>
-
-#define EVDEV_MAX_EVENT_SIZE 24
+#define LOGI(...) __android_log_print(ANDROID_LOG_INFO, "EvdevReader", __VA_ARGS__)
+#define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, "EvdevReader", __VA_ARGS__)
+#else
+// Plain Linux build for replaying recorded streams
+#define LOGI(...) (fprintf(stderr, __VA_ARGS__), fputc('\n', stderr))
+#define LOGE(...) (fprintf(stderr, __VA_ARGS__), fputc('\n', stderr))
+#endif
+
+// Newer kernel headers hide the timeval on 32-bit platforms with 64-bit time
+#ifndef input_event_sec
+#define input_event_sec time.tv_sec
+#define input_event_usec time.tv_usec
+#endif
 
 #define REL_X 0x00
 #define REL_Y 0x01
@@ -25,17 +41,52 @@
 #define BTN_LEFT 0x110
 #define BTN_GAMEPAD 0x130
 
+// Protocol v2: after connecting, we send a hello of the magic and version.
+// Then each frame is a 32-bit event count followed by that many events.
+// A frame holds every event a device reported up to and including its
+// EV_SYN, so the client sees each input report as a unit. Everything is
+// in native byte order since both ends run on the same device.
+#define EVDEV_PROTOCOL_MAGIC 0x32445645 // 'EVD2'
+#define EVDEV_PROTOCOL_VERSION 2
+
+// Frames are sent early if a device reports more than this before an EV_SYN.
+// This must match EvdevReader.MAX_FRAME_EVENTS.
+#define MAX_FRAME_EVENTS 64
+
+#define MAX_DEVICES 32
+
+// Events read from a device with one read() call
+#define READ_BATCH_EVENTS 64
+
+// How often we look for new devices
+#define ENUMERATION_PERIOD_MS 1000
+
+struct FrameEvent {
+    int64_t timestampUs;
+    uint16_t type;
+    uint16_t code;
+    int32_t value;
+};
+
+// The events are 8-byte aligned, so the count sits in the 4 bytes right before
+// them. That way the count and events go out with one send() and no padding.
+struct Frame {
+    uint32_t reserved;
+    uint32_t eventCount;
+    struct FrameEvent events[MAX_FRAME_EVENTS];
+};
+
 struct DeviceEntry {
-    struct DeviceEntry *next;
-    pthread_t thread;
     int fd;
+    int grabbable;
     char devName[128];
+    struct Frame frame;
 };
 
-static struct DeviceEntry *DeviceListHead;
+// Only the main thread touches these
+static struct DeviceEntry *Devices[MAX_DEVICES];
+static int DeviceCount;
 static int grabbing = 1;
-static pthread_mutex_t DeviceListLock = PTHREAD_MUTEX_INITIALIZER;
-static pthread_mutex_t SocketSendLock = PTHREAD_MUTEX_INITIALIZER;
 static int sock;
 
 // This is a small executable that runs in a root shell. It reads input
@@ -43,6 +94,9 @@ static int sock;
 // Moonlight to read input devices without having to muck with changing
 // device permissions or modifying SELinux policy (which is prevented in
 // Marshmallow anyway).
+//
+// All devices and the socket are serviced by one poll() loop, so there's
+// a single writer and no locking.
 
 #define test_bit(bit, array)    (array[bit/8] & (1<<(bit%8)))
 
@@ -62,114 +116,131 @@ static int hasKey(int fd, short key) {
     return test_bit(key, keyBitmask);
 }
 
-static void outputEvdevData(char *data, int dataSize) {
-    char packetBuffer[EVDEV_MAX_EVENT_SIZE + sizeof(dataSize)];
+static int sendAll(const void *data, size_t size) {
+    const char *buf = data;
 
-    // Copy the full packet into our buffer
-    memcpy(packetBuffer, &dataSize, sizeof(dataSize));
-    memcpy(&packetBuffer[sizeof(dataSize)], data, dataSize);
+    while (size > 0) {
+        ssize_t ret = send(sock, buf, size, MSG_NOSIGNAL);
+        if (ret < 0) {
+            if (errno == EINTR) {
+                continue;
+            }
+            LOGE("send() failed: %d", errno);
+            return -1;
+        }
 
-    // Lock to prevent other threads from sending at the same time
-    pthread_mutex_lock(&SocketSendLock);
-    send(sock, packetBuffer, dataSize + sizeof(dataSize), 0);
-    pthread_mutex_unlock(&SocketSendLock);
-}
+        buf += ret;
+        size -= ret;
+    }
 
-void* pollThreadFunc(void* context) {
-    struct DeviceEntry *device = context;
-    struct pollfd pollinfo;
-    int pollres, ret;
-    char data[EVDEV_MAX_EVENT_SIZE];
+    return 0;
+}
 
-    __android_log_print(ANDROID_LOG_INFO, "EvdevReader", "Polling /dev/input/%s", device->devName);
+static int flushFrame(struct DeviceEntry *device) {
+    struct Frame *frame = &device->frame;
+    int ret = 0;
 
-    if (grabbing) {
-        // Exclusively grab the input device (required to make the Android cursor disappear)
-        if (ioctl(device->fd, EVIOCGRAB, 1) < 0) {
-            __android_log_print(ANDROID_LOG_ERROR, "EvdevReader",
-                                "EVIOCGRAB failed for %s: %d", device->devName, errno);
-            goto cleanup;
-        }
+    // Events are dropped while the devices are released to Android
+    if (frame->eventCount != 0 && grabbing) {
+        ret = sendAll(&frame->eventCount, sizeof(frame->eventCount) + frame->eventCount * sizeof(struct FrameEvent));
     }
 
-    for (;;) {
-        do {
-            // Unwait every 250 ms to return to caller if the fd is closed
-            pollinfo.fd = device->fd;
-            pollinfo.events = POLLIN;
-            pollinfo.revents = 0;
-            pollres = poll(&pollinfo, 1, 250);
-        }
-        while (pollres == 0);
-
-        if (pollres > 0 && (pollinfo.revents & POLLIN)) {
-            // We'll have data available now
-            ret = read(device->fd, data, EVDEV_MAX_EVENT_SIZE);
-            if (ret < 0) {
-                __android_log_print(ANDROID_LOG_ERROR, "EvdevReader",
-                                    "read() failed: %d", errno);
-                goto cleanup;
-            }
-            else if (ret == 0) {
-                __android_log_print(ANDROID_LOG_ERROR, "EvdevReader",
-                                    "read() graceful EOF");
-                goto cleanup;
-            }
-            else if (grabbing) {
-                // Write out the data to our client
-                outputEvdevData(data, ret);
-            }
-        }
-        else {
-            if (pollres < 0) {
-                __android_log_print(ANDROID_LOG_ERROR, "EvdevReader",
-                                    "poll() failed: %d", errno);
-            }
-            else {
-                __android_log_print(ANDROID_LOG_ERROR, "EvdevReader",
-                                    "Unexpected revents: %d", pollinfo.revents);
-            }
+    frame->eventCount = 0;
+    return ret;
+}
 
-            // Terminate this thread
-            goto cleanup;
-        }
+static int queueEvent(struct DeviceEntry *device, struct input_event *ev) {
+    struct Frame *frame = &device->frame;
+    struct FrameEvent *out = &frame->events[frame->eventCount++];
+
+    out->timestampUs = (int64_t)ev->input_event_sec * 1000000 + ev->input_event_usec;
+    out->type = ev->type;
+    out->code = ev->code;
+    out->value = ev->value;
+
+    // Send the frame at the end of each report or when it's full
+    if (ev->type == EV_SYN || frame->eventCount == MAX_FRAME_EVENTS) {
+        return flushFrame(device);
     }
 
-cleanup:
-    __android_log_print(ANDROID_LOG_INFO, "EvdevReader", "Closing /dev/input/%s", device->devName);
+    return 0;
+}
+
+static void removeDevice(int index) {
+    struct DeviceEntry *device = Devices[index];
 
-    // Remove the context from the linked list
-    {
-        struct DeviceEntry *lastEntry;
+    LOGI("Closing %s", device->devName);
+
+    if (device->grabbable) {
+        ioctl(device->fd, EVIOCGRAB, 0);
+    }
+    close(device->fd);
+    free(device);
+
+    // Keep the array packed
+    Devices[index] = Devices[--DeviceCount];
+    Devices[DeviceCount] = NULL;
+}
 
-        // Lock the device list
-        pthread_mutex_lock(&DeviceListLock);
+// Returns 0 if the device is still usable, 1 if it should be removed, or -1
+// if the socket failed.
+static int readDevice(struct DeviceEntry *device) {
+    struct input_event events[READ_BATCH_EVENTS];
+    ssize_t ret;
+    int i;
 
-        if (DeviceListHead == device) {
-            DeviceListHead = device->next;
+    ret = read(device->fd, events, sizeof(events));
+    if (ret < 0) {
+        if (errno == EINTR || errno == EAGAIN) {
+            return 0;
         }
-        else {
-            lastEntry = DeviceListHead;
-            while (lastEntry->next != NULL) {
-                if (lastEntry->next == device) {
-                    lastEntry->next = device->next;
-                    break;
-                }
+        LOGE("read() failed: %d", errno);
+        return 1;
+    }
+    else if (ret == 0) {
+        LOGI("read() graceful EOF");
+        return 1;
+    }
 
-                lastEntry = lastEntry->next;
-            }
+    for (i = 0; i < ret / (ssize_t)sizeof(struct input_event); i++) {
+        if (queueEvent(device, &events[i]) < 0) {
+            return -1;
         }
+    }
 
-        // Unlock device list
-        pthread_mutex_unlock(&DeviceListLock);
+    return 0;
+}
+
+static int addDevice(int fd, const char *name, int grabbable) {
+    struct DeviceEntry *entry;
+
+    if (DeviceCount == MAX_DEVICES) {
+        LOGE("Too many devices to poll %s", name);
+        return -1;
     }
 
-    // Free the context
-    ioctl(device->fd, EVIOCGRAB, 0);
-    close(device->fd);
-    free(device);
+    entry = malloc(sizeof(*entry));
+    if (entry == NULL) {
+        return -1;
+    }
+
+    entry->fd = fd;
+    entry->grabbable = grabbable;
+    entry->frame.eventCount = 0;
+    snprintf(entry->devName, sizeof(entry->devName), "%s", name);
+
+    if (grabbable && grabbing) {
+        // Exclusively grab the input device (required to make the Android cursor disappear)
+        if (ioctl(fd, EVIOCGRAB, 1) < 0) {
+            LOGE("EVIOCGRAB failed for %s: %d", name, errno);
+            free(entry);
+            return -1;
+        }
+    }
 
-    return NULL;
+    LOGI("Polling %s", name);
+    Devices[DeviceCount++] = entry;
+    return 0;
 }
 
 static int precheckDeviceForPolling(int fd) {
@@ -192,65 +263,46 @@ static int precheckDeviceForPolling(int fd) {
 }
 
 static void startPollForDevice(char* deviceName) {
-    struct DeviceEntry *currentEntry;
-    char fullPath[256];
+    char fullPath[sizeof(((struct DeviceEntry *)0)->devName)];
     int fd;
+    int i;
 
-    // Lock the device list
-    pthread_mutex_lock(&DeviceListLock);
+    snprintf(fullPath, sizeof(fullPath), "/dev/input/%s", deviceName);
 
     // Check if the device is already being polled
-    currentEntry = DeviceListHead;
-    while (currentEntry != NULL) {
-        if (strcmp(currentEntry->devName, deviceName) == 0) {
-            // Already polling this device
-            goto unlock;
+    for (i = 0; i < DeviceCount; i++) {
+        if (strcmp(Devices[i]->devName, fullPath) == 0) {
+            return;
         }
-
-        currentEntry = currentEntry->next;
     }
 
     // Open the device
-    sprintf(fullPath, "/dev/input/%s", deviceName);
-    fd = open(fullPath, O_RDWR);
+    fd = open(fullPath, O_RDWR | O_NONBLOCK);
     if (fd < 0) {
-        __android_log_print(ANDROID_LOG_ERROR, "EvdevReader", "Couldn't open %s: %d", fullPath, errno);
-        goto unlock;
-    }
-
-    // Allocate a context
-    currentEntry = malloc(sizeof(*currentEntry));
-    if (currentEntry == NULL) {
-        close(fd);
-        goto unlock;
+        LOGE("Couldn't open %s: %d", fullPath, errno);
+        return;
     }
 
-    // Populate context
-    currentEntry->fd = fd;
-    strcpy(currentEntry->devName, deviceName);
-
     // Check if we support polling this device
     if (!precheckDeviceForPolling(fd)) {
-        // Nope, get out
-        free(currentEntry);
         close(fd);
-        goto unlock;
+        return;
     }
 
-    // Start the polling thread
-    if (pthread_create(&currentEntry->thread, NULL, pollThreadFunc, currentEntry) != 0) {
-        free(currentEntry);
-        close(fd);
-        goto unlock;
+#ifdef EVIOCSCLOCKID
+    // Stamp events with CLOCK_MONOTONIC instead of wall time so the client
+    // can compare them with System.nanoTime() to measure input latency
+    {
+        int clockId = CLOCK_MONOTONIC;
+        if (ioctl(fd, EVIOCSCLOCKID, &clockId) < 0) {
+            LOGE("EVIOCSCLOCKID failed for %s: %d", fullPath, errno);
+        }
     }
+#endif
 
-    // Queue this onto the device list
-    currentEntry->next = DeviceListHead;
-    DeviceListHead = currentEntry;
-
-unlock:
-    // Unlock and return
-    pthread_mutex_unlock(&DeviceListLock);
+    if (addDevice(fd, fullPath, 1) < 0) {
+        close(fd);
+    }
 }
 
 static int enumerateDevices(void) {
@@ -259,7 +311,7 @@ static int enumerateDevices(void) {
 
     inputDir = opendir("/dev/input");
     if (!inputDir) {
-        __android_log_print(ANDROID_LOG_ERROR, "EvdevReader", "Couldn't open /dev/input: %d", errno);
+        LOGE("Couldn't open /dev/input: %d", errno);
         return -1;
     }
 
@@ -289,7 +341,7 @@ static int connectSocket(int port) {
 
     sock = socket(AF_INET, SOCK_STREAM, IPPROTO_TCP);
     if (sock < 0) {
-        __android_log_print(ANDROID_LOG_ERROR, "EvdevReader", "socket() failed: %d", errno);
+        LOGE("socket() failed: %d", errno);
         return -1;
     }
 
@@ -299,35 +351,99 @@ static int connectSocket(int port) {
     saddr.sin_addr.s_addr = inet_addr("127.0.0.1");
     ret = connect(sock, (struct sockaddr*)&saddr, sizeof(saddr));
     if (ret < 0) {
-        __android_log_print(ANDROID_LOG_ERROR, "EvdevReader", "connect() failed: %d", errno);
+        LOGE("connect() failed: %d", errno);
         return -1;
     }
 
     val = 1;
     ret = setsockopt(sock, IPPROTO_TCP, TCP_NODELAY, (char*)&val, sizeof(val));
     if (ret < 0) {
-        __android_log_print(ANDROID_LOG_ERROR, "EvdevReader", "setsockopt() failed: %d", errno);
+        LOGE("setsockopt() failed: %d", errno);
         // We can continue anyways
     }
 
-    __android_log_print(ANDROID_LOG_INFO, "EvdevReader", "Connection established to port %d", port);
+    LOGI("Connection established to port %d", port);
 
     return 0;
 }
 
+static int sendHello(void) {
+    uint32_t hello[2];
+
+    hello[0] = EVDEV_PROTOCOL_MAGIC;
+    hello[1] = EVDEV_PROTOCOL_VERSION;
+    return sendAll(hello, sizeof(hello));
+}
+
+// Monotonic so the enumeration timer isn't thrown off by wall clock changes
+static long long getTimeMs(void) {
+    struct timespec ts;
+
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (long long)ts.tv_sec * 1000 + ts.tv_nsec / 1000000;
+}
+
 #define UNGRAB_REQ 1
 #define REGRAB_REQ 2
 
+// Returns 0 on success or -1 if the connection should be closed
+static int handleRequest(void) {
+    unsigned char requestId;
+    int ret;
+    int i;
+
+    ret = recv(sock, &requestId, sizeof(requestId), 0);
+    if (ret < (int)sizeof(requestId)) {
+        LOGE("Short read on socket");
+        return -1;
+    }
+
+    if (requestId != UNGRAB_REQ && requestId != REGRAB_REQ) {
+        LOGE("Unknown request");
+        return -1;
+    }
+
+    // Update state for future devices
+    grabbing = (requestId == REGRAB_REQ);
+
+    // Carry out the requested action on each device
+    for (i = 0; i < DeviceCount; i++) {
+        if (Devices[i]->grabbable) {
+            ioctl(Devices[i]->fd, EVIOCGRAB, grabbing);
+        }
+
+        // Don't deliver half a report from before the change
+        Devices[i]->frame.eventCount = 0;
+    }
+
+    LOGI("New grab status is: %s", grabbing ? "enabled" : "disabled");
+    return 0;
+}
+
 int main(int argc, char* argv[]) {
+    struct pollfd pollinfo[MAX_DEVICES + 1];
+    const char *replayFile = NULL;
+    long long nextEnumerationTime;
     int ret;
-    int pollres;
-    struct pollfd pollinfo;
+    int i;
     int port;
 
-    __android_log_print(ANDROID_LOG_INFO, "EvdevReader", "Entered main()");
+    LOGI("Entered main()");
+
+    if (argc < 2) {
+        LOGE("Usage: %s <port> [--replay <recorded evdev stream>]", argv[0]);
+        return -1;
+    }
 
     port = atoi(argv[1]);
-    __android_log_print(ANDROID_LOG_INFO, "EvdevReader", "Requested port number: %d", port);
+    LOGI("Requested port number: %d", port);
+
+    // Replay mode reads raw input_events recorded from a device (with
+    // cat /dev/input/eventN > file) instead of the real devices. This lets
+    // the protocol be exercised on plain Linux.
+    if (argc >= 4 && strcmp(argv[2], "--replay") == 0) {
+        replayFile = argv[3];
+    }
 
     // Connect to the app's socket
     ret = connectSocket(port);
@@ -335,76 +451,97 @@ int main(int argc, char* argv[]) {
         return ret;
     }
 
-    // Perform initial enumeration
-    ret = enumerateDevices();
+    ret = sendHello();
     if (ret < 0) {
         return ret;
     }
 
-    // Wait for requests from the client
+    if (replayFile != NULL) {
+        int fd = open(replayFile, O_RDONLY);
+        if (fd < 0 || addDevice(fd, replayFile, 0) < 0) {
+            LOGE("Couldn't open %s: %d", replayFile, errno);
+            return -1;
+        }
+    }
+    else {
+        // Perform initial enumeration
+        ret = enumerateDevices();
+        if (ret < 0) {
+            return ret;
+        }
+    }
+
+    nextEnumerationTime = getTimeMs() + ENUMERATION_PERIOD_MS;
     for (;;) {
-        unsigned char requestId;
-
-        do {
-            // Every second we poll again for new devices if
-            // we haven't received any new events
-            pollinfo.fd = sock;
-            pollinfo.events = POLLIN;
-            pollinfo.revents = 0;
-            pollres = poll(&pollinfo, 1, 1000);
-            if (pollres == 0) {
-                // Timeout, re-enumerate devices
+        long long now;
+        int timeout;
+        int pollres;
+
+        // Look for new devices periodically even while input is flowing
+        now = getTimeMs();
+        if (now >= nextEnumerationTime) {
+            if (replayFile == NULL) {
                 enumerateDevices();
             }
+            nextEnumerationTime = now + ENUMERATION_PERIOD_MS;
+        }
+        timeout = (int)(nextEnumerationTime - now);
+
+        // The socket is always first, followed by each device
+        pollinfo[0].fd = sock;
+        pollinfo[0].events = POLLIN;
+        pollinfo[0].revents = 0;
+        for (i = 0; i < DeviceCount; i++) {
+            pollinfo[i + 1].fd = Devices[i]->fd;
+            pollinfo[i + 1].events = POLLIN;
+            pollinfo[i + 1].revents = 0;
         }
-        while (pollres == 0);
-
-        if (pollres > 0 && (pollinfo.revents & POLLIN)) {
-            // We'll have data available now
-            ret = recv(sock, &requestId, sizeof(requestId), 0);
-            if (ret < sizeof(requestId)) {
-                __android_log_print(ANDROID_LOG_ERROR, "EvdevReader", "Short read on socket");
-                return errno;
-            }
 
-            if (requestId != UNGRAB_REQ && requestId != REGRAB_REQ) {
-                __android_log_print(ANDROID_LOG_ERROR, "EvdevReader", "Unknown request");
-                return requestId;
+        pollres = poll(pollinfo, DeviceCount + 1, timeout);
+        if (pollres < 0) {
+            if (errno == EINTR) {
+                continue;
             }
+            LOGE("poll() failed: %d", errno);
+            return -1;
+        }
+        else if (pollres == 0) {
+            continue;
+        }
 
-            {
-                struct DeviceEntry *currentEntry;
-
-                pthread_mutex_lock(&DeviceListLock);
+        if (pollinfo[0].revents & POLLIN) {
+            if (handleRequest() < 0) {
+                return -1;
+            }
+        }
+        else if (pollinfo[0].revents != 0) {
+            LOGE("Socket poll unexpected revents: %d", pollinfo[0].revents);
+            return -1;
+        }
 
-                // Update state for future devices
-                grabbing = (requestId == REGRAB_REQ);
+        // Walk backwards so removing a device doesn't disturb the ones we haven't checked
+        for (i = DeviceCount - 1; i >= 0; i--) {
+            short revents = pollinfo[i + 1].revents;
 
-                // Carry out the requested action on each device
-                currentEntry = DeviceListHead;
-                while (currentEntry != NULL) {
-                    ioctl(currentEntry->fd, EVIOCGRAB, grabbing);
-                    currentEntry = currentEntry->next;
+            if (revents & POLLIN) {
+                ret = readDevice(Devices[i]);
+                if (ret < 0) {
+                    return -1;
+                }
+                else if (ret > 0) {
+                    removeDevice(i);
                 }
-
-                pthread_mutex_unlock(&DeviceListLock);
-
-                __android_log_print(ANDROID_LOG_INFO, "EvdevReader", "New grab status is: %s",
-                    grabbing ? "enabled" : "disabled");
-            }
-        }
-        else {
-            // Terminate this thread
-            if (pollres < 0) {
-                __android_log_print(ANDROID_LOG_ERROR, "EvdevReader",
-                                    "Socket recv poll() failed: %d", errno);
             }
-            else {
-                __android_log_print(ANDROID_LOG_ERROR, "EvdevReader",
-                                    "Socket poll unexpected revents: %d", pollinfo.revents);
+            else if (revents != 0) {
+                LOGE("Unexpected revents: %d", revents);
+                removeDevice(i);
             }
+        }
 
-            return -1;
+        if (replayFile != NULL && DeviceCount == 0) {
+            // Finished replaying
+            LOGI("Replay complete");
+            return 0;
         }
     }
-}
\ No newline at end of file
+}
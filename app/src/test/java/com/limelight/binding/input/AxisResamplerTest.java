@@ -0,0 +1,203 @@
+package com.limelight.binding.input;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AxisResamplerTest {
+
+    // What ControllerHandler uses
+    private static final long MAX_RESAMPLE_LATENCY_MS = 8;
+
+    // Two stick axes and one hat axis
+    private static final int AXIS_COUNT = 3;
+    private static final int CONTINUOUS_AXES = 2;
+
+    private static final float EPSILON = 1e-4f;
+
+    private static AxisResampler newResampler(int mode) {
+        return new AxisResampler(mode, AXIS_COUNT, CONTINUOUS_AXES, MAX_RESAMPLE_LATENCY_MS);
+    }
+
+    // A stick moving at a constant 0.01 per ms on the first axis
+    private static void addRamp(AxisResampler resampler, long fromMs, long toMs, long stepMs) {
+        for (long t = fromMs; t <= toMs; t += stepMs) {
+            resampler.addSample(t, new float[] {0.01f * t, -0.5f, 1.0f});
+        }
+    }
+
+    @Test
+    public void newestModeSendsOnlyNewestSample() {
+        AxisResampler resampler = newResampler(AxisResampler.MODE_NEWEST);
+        float[] out = new float[AXIS_COUNT];
+
+        assertFalse(resampler.poll(0, out));
+        assertEquals(-1, resampler.getTimeUntilNextMs(0));
+
+        addRamp(resampler, 0, 16, 4);
+        assertEquals(0, resampler.getTimeUntilNextMs(30));
+        assertTrue(resampler.poll(30, out));
+        assertEquals(0.16f, out[0], EPSILON);
+        assertEquals(-0.5f, out[1], EPSILON);
+        assertEquals(16, resampler.getLastOutputTimeMs());
+
+        // Nothing new to send
+        assertFalse(resampler.poll(31, out));
+        assertEquals(-1, resampler.getTimeUntilNextMs(31));
+    }
+
+    @Test
+    public void predictExtrapolatesVelocity() {
+        AxisResampler resampler = newResampler(AxisResampler.MODE_PREDICT);
+        float[] out = new float[AXIS_COUNT];
+
+        addRamp(resampler, 0, 16, 2);
+        assertTrue(resampler.poll(20, out));
+
+        // 4 ms past the newest sample at 0.01 per ms
+        assertEquals(0.20f, out[0], EPSILON);
+
+        // A stick that isn't moving stays put, and the hat is never extrapolated
+        assertEquals(-0.5f, out[1], EPSILON);
+        assertEquals(1.0f, out[2], EPSILON);
+        assertEquals(16, resampler.getLastOutputTimeMs());
+    }
+
+    @Test
+    public void predictLooksNoFurtherAheadThanLatencyBudget() {
+        AxisResampler resampler = newResampler(AxisResampler.MODE_PREDICT);
+        float[] out = new float[AXIS_COUNT];
+
+        addRamp(resampler, 0, 16, 2);
+        assertTrue(resampler.poll(100, out));
+        assertEquals(0.16f + 0.01f * MAX_RESAMPLE_LATENCY_MS, out[0], EPSILON);
+    }
+
+    @Test
+    public void predictStaysInRange() {
+        AxisResampler resampler = newResampler(AxisResampler.MODE_PREDICT);
+        float[] out = new float[AXIS_COUNT];
+
+        resampler.addSample(0, new float[] {0.90f, -0.90f, 0});
+        resampler.addSample(2, new float[] {0.95f, -0.95f, 0});
+        resampler.addSample(4, new float[] {1.00f, -1.00f, 0});
+        assertTrue(resampler.poll(12, out));
+        assertEquals(1.0f, out[0], 0);
+        assertEquals(-1.0f, out[1], 0);
+    }
+
+    @Test
+    public void predictWithSingleSampleSendsItUnchanged() {
+        AxisResampler resampler = newResampler(AxisResampler.MODE_PREDICT);
+        float[] out = new float[AXIS_COUNT];
+
+        resampler.addSample(10, new float[] {0.3f, 0.4f, 0});
+        assertTrue(resampler.poll(18, out));
+        assertEquals(0.3f, out[0], 0);
+        assertEquals(0.4f, out[1], 0);
+    }
+
+    @Test
+    public void predictWithZeroTimeDeltaSendsNewestUnchanged() {
+        AxisResampler resampler = newResampler(AxisResampler.MODE_PREDICT);
+        float[] out = new float[AXIS_COUNT];
+
+        // Same timestamp, and one going backwards which is treated as the same time
+        resampler.addSample(10, new float[] {0.1f, 0, 0});
+        resampler.addSample(10, new float[] {0.2f, 0, 0});
+        resampler.addSample(9, new float[] {0.3f, 0, 0});
+        assertTrue(resampler.poll(18, out));
+        assertEquals(0.3f, out[0], 0);
+        assertEquals(10, resampler.getLastOutputTimeMs());
+    }
+
+    @Test
+    public void alignedReplaysBatchWithOriginalSpacing() {
+        AxisResampler resampler = newResampler(AxisResampler.MODE_ALIGNED);
+        float[] out = new float[AXIS_COUNT];
+
+        // A batch arriving 3 ms after its oldest sample
+        resampler.addSample(10, new float[] {0.1f, 0, 0});
+        resampler.addSample(12, new float[] {0.2f, 0, 0});
+        resampler.addSample(14, new float[] {0.3f, 0, 0});
+
+        assertEquals(0, resampler.getTimeUntilNextMs(13));
+        assertTrue(resampler.poll(13, out));
+        assertEquals(0.1f, out[0], 0);
+
+        // Each sample goes out 3 ms after it was taken
+        assertEquals(2, resampler.getTimeUntilNextMs(13));
+        assertFalse(resampler.poll(14, out));
+        assertTrue(resampler.poll(15, out));
+        assertEquals(0.2f, out[0], 0);
+        assertEquals(2, resampler.getTimeUntilNextMs(15));
+        assertTrue(resampler.poll(17, out));
+        assertEquals(0.3f, out[0], 0);
+        assertEquals(14, resampler.getLastOutputTimeMs());
+        assertEquals(-1, resampler.getTimeUntilNextMs(17));
+    }
+
+    @Test
+    public void alignedDelayIsClampedToLatencyBudget() {
+        AxisResampler resampler = newResampler(AxisResampler.MODE_ALIGNED);
+        float[] out = new float[AXIS_COUNT];
+
+        // The batch is 20 ms late, but we only add up to the budget
+        addRamp(resampler, 0, 16, 4);
+        long nowMs = 20;
+        assertTrue(resampler.poll(nowMs, out));
+
+        // Samples due by now collapse into the newest of them
+        assertEquals(nowMs - MAX_RESAMPLE_LATENCY_MS, resampler.getLastOutputTimeMs());
+        assertEquals(16 + MAX_RESAMPLE_LATENCY_MS - nowMs, resampler.getTimeUntilNextMs(nowMs));
+
+        nowMs = 16 + MAX_RESAMPLE_LATENCY_MS;
+        assertTrue(resampler.poll(nowMs, out));
+        assertEquals(0.16f, out[0], EPSILON);
+        assertTrue(resampler.toString(), resampler.toString().endsWith("added latency 8 ms average"));
+    }
+
+    @Test
+    public void alignedNeverAddsMoreThanLatencyBudget() {
+        AxisResampler resampler = newResampler(AxisResampler.MODE_ALIGNED);
+        float[] out = new float[AXIS_COUNT];
+
+        // A 1000 Hz stick delivered in 16 ms batches, 2 ms after the newest sample
+        long nowMs = 0;
+        int outputs = 0;
+        for (long batchEnd = 15; batchEnd < 1000; batchEnd += 16) {
+            long arrivalMs = batchEnd + 2;
+
+            // Poll whenever something is due until the next batch arrives
+            long untilNextMs;
+            while ((untilNextMs = resampler.getTimeUntilNextMs(nowMs)) >= 0 && nowMs + untilNextMs < arrivalMs) {
+                nowMs += untilNextMs;
+                assertTrue(resampler.poll(nowMs, out));
+                assertTrue(nowMs - resampler.getLastOutputTimeMs() <= MAX_RESAMPLE_LATENCY_MS);
+                outputs++;
+            }
+
+            nowMs = arrivalMs;
+            addRamp(resampler, batchEnd - 15, batchEnd, 1);
+        }
+
+        // The samples later than the budget go out together when the batch arrives,
+        // and the last 6 of each batch are replayed one by one
+        assertEquals(62 * 7, outputs, 10);
+    }
+
+    @Test
+    public void overflowDropsOldestSamples() {
+        AxisResampler resampler = newResampler(AxisResampler.MODE_NEWEST);
+        float[] out = new float[AXIS_COUNT];
+
+        for (int i = 0; i < 70; i++) {
+            resampler.addSample(i, new float[] {i / 100.0f, 0, 0});
+        }
+        assertTrue(resampler.poll(70, out));
+        assertEquals(0.69f, out[0], EPSILON);
+        assertTrue(resampler.toString(), resampler.toString().contains("6 dropped"));
+    }
+}
@@ -0,0 +1,56 @@
+package com.limelight.binding.input;
+
+import java.io.IOException;
+import java.util.List;
+
+// Times ControllerFusionEngine on the recorded gamepad trace. This isn't a test,
+// so it's only run by hand with the test classes and resources on the classpath:
+// java com.limelight.binding.input.ControllerFusionEngineBenchmark
+public class ControllerFusionEngineBenchmark {
+    private static final int WARMUP_ROUNDS = 200;
+    private static final int ROUNDS = 200;
+
+    private static final ControllerFusionEngine.Sink DISCARD = new ControllerFusionEngine.Sink() {
+        @Override
+        public void sendControllerInput(short controllerNumber, short inputMap,
+                                        byte leftTrigger, byte rightTrigger,
+                                        short leftStickX, short leftStickY,
+                                        short rightStickX, short rightStickY) {
+        }
+    };
+
+    // Returns the number of packets sent
+    private static long replay(List<ControllerFusionEngineTest.Event> trace) {
+        ControllerFusionEngine engine = new ControllerFusionEngine(DISCARD,
+                ControllerFusionEngineTest.BATCH_TICK_MS, null);
+        ControllerFusionEngine.Source[][] sources = ControllerFusionEngineTest.attachAll(engine);
+
+        for (ControllerFusionEngineTest.Event event : trace) {
+            long nowMs = event.timeMs + ControllerFusionEngineTest.DELIVERY_DELAY_MS;
+            engine.flush(nowMs);
+            ControllerFusionEngineTest.update(engine, sources[event.controller][event.source],
+                    event.state, event.timeMs, nowMs);
+        }
+        engine.flushAll(Long.MAX_VALUE / 2);
+        return engine.getPacketsSent();
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<ControllerFusionEngineTest.Event> trace = ControllerFusionEngineTest.loadTrace("gamepad.trace");
+
+        // Let the JIT compile the engine first
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            replay(trace);
+        }
+
+        long packets = 0;
+        long start = System.nanoTime();
+        for (int round = 0; round < ROUNDS; round++) {
+            packets = replay(trace);
+        }
+        long elapsedNs = System.nanoTime() - start;
+
+        System.out.println("Controller fusion: " + trace.size() + " events sent as " + packets +
+                " packets, " + elapsedNs / ((long) ROUNDS * trace.size()) + " ns per event");
+    }
+}
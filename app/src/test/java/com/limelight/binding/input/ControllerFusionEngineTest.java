@@ -0,0 +1,290 @@
+package com.limelight.binding.input;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class ControllerFusionEngineTest {
+
+    static final long BATCH_TICK_MS = 4;
+
+    // How long an event takes to reach the input handler
+    static final long DELIVERY_DELAY_MS = 1;
+
+    private static final int SOURCES_PER_CONTROLLER = 2;
+
+    // inputMap, left/right trigger, left stick x/y, right stick x/y
+    private static final int STATE_FIELDS = 7;
+
+    static class Event {
+        final long timeMs;
+        final int controller;
+        final int source;
+        final int[] state;
+
+        Event(long timeMs, int controller, int source, int[] state) {
+            this.timeMs = timeMs;
+            this.controller = controller;
+            this.source = source;
+            this.state = state;
+        }
+    }
+
+    static List<Event> loadTrace(String name) throws IOException {
+        InputStream in = ControllerFusionEngineTest.class.getResourceAsStream(name);
+        assertNotNull("Missing trace " + name, in);
+
+        ArrayList<Event> events = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split(" ");
+                int[] state = new int[STATE_FIELDS];
+                for (int i = 0; i < STATE_FIELDS; i++) {
+                    state[i] = Integer.parseInt(fields[3 + i]);
+                }
+                events.add(new Event(Long.parseLong(fields[0]), Integer.parseInt(fields[1]),
+                        Integer.parseInt(fields[2]), state));
+            }
+        } finally {
+            reader.close();
+        }
+        return events;
+    }
+
+    private static class Packet {
+        final long timeMs;
+        // Index of the controller's last event handled before this was sent
+        final int lastEvent;
+        final int[] state;
+
+        Packet(long timeMs, int lastEvent, int[] state) {
+            this.timeMs = timeMs;
+            this.lastEvent = lastEvent;
+            this.state = state;
+        }
+    }
+
+    private static class RecordingSink implements ControllerFusionEngine.Sink {
+        long nowMs;
+        final int[] eventsHandled = new int[ControllerFusionEngine.MAX_CONTROLLERS];
+        final List<List<Packet>> packets = new ArrayList<>();
+
+        RecordingSink() {
+            for (int i = 0; i < ControllerFusionEngine.MAX_CONTROLLERS; i++) {
+                packets.add(new ArrayList<Packet>());
+            }
+        }
+
+        @Override
+        public void sendControllerInput(short controllerNumber, short inputMap,
+                                        byte leftTrigger, byte rightTrigger,
+                                        short leftStickX, short leftStickY,
+                                        short rightStickX, short rightStickY) {
+            packets.get(controllerNumber).add(new Packet(nowMs, eventsHandled[controllerNumber] - 1, new int[] {
+                    inputMap & 0xFFFF, leftTrigger & 0xFF, rightTrigger & 0xFF,
+                    leftStickX, leftStickY, rightStickX, rightStickY}));
+        }
+    }
+
+    // The fused state the host should see, computed independently of the engine
+    private static int[] fuse(int[][] sources) {
+        int[] fused = new int[STATE_FIELDS];
+        for (int[] source : sources) {
+            fused[0] |= source[0];
+            fused[1] = Math.max(fused[1], source[1]);
+            fused[2] = Math.max(fused[2], source[2]);
+            for (int i = 3; i < STATE_FIELDS; i++) {
+                if (Math.abs(source[i]) > Math.abs(fused[i])) {
+                    fused[i] = source[i];
+                }
+            }
+        }
+        return fused;
+    }
+
+    static ControllerFusionEngine.Source[][] attachAll(ControllerFusionEngine engine) {
+        ControllerFusionEngine.Source[][] sources = new ControllerFusionEngine.Source[2][SOURCES_PER_CONTROLLER];
+        for (short c = 0; c < 2; c++) {
+            for (int s = 0; s < SOURCES_PER_CONTROLLER; s++) {
+                sources[c][s] = engine.attach(c, InputStats.SOURCE_GAMEPAD);
+            }
+        }
+        return sources;
+    }
+
+    static long update(ControllerFusionEngine engine, ControllerFusionEngine.Source source,
+                               int[] state, long eventTimeMs, long nowMs) {
+        return engine.update(source, (short) state[0], (byte) state[1], (byte) state[2],
+                (short) state[3], (short) state[4], (short) state[5], (short) state[6],
+                eventTimeMs, nowMs);
+    }
+
+    @Test
+    public void recordedTraceIsFusedWithinOneTick() throws IOException {
+        List<Event> trace = loadTrace("gamepad.trace");
+        RecordingSink sink = new RecordingSink();
+        ControllerFusionEngine engine = new ControllerFusionEngine(sink, BATCH_TICK_MS, null);
+        ControllerFusionEngine.Source[][] sources = attachAll(engine);
+
+        int[][][] sourceStates = new int[2][SOURCES_PER_CONTROLLER][STATE_FIELDS];
+        // Per controller: the expected fused state after each event and when it happened
+        List<List<int[]>> expectedStates = new ArrayList<>();
+        List<List<Long>> expectedTimes = new ArrayList<>();
+        for (int c = 0; c < 2; c++) {
+            expectedStates.add(new ArrayList<int[]>());
+            expectedTimes.add(new ArrayList<Long>());
+        }
+
+        // Replays the trace like ControllerHandler: the flush runs when it's due
+        long nextFlushMs = -1;
+        for (Event event : trace) {
+            long arrivalMs = event.timeMs + DELIVERY_DELAY_MS;
+            while (nextFlushMs >= 0 && nextFlushMs <= arrivalMs) {
+                sink.nowMs = nextFlushMs;
+                long delay = engine.flush(sink.nowMs);
+                nextFlushMs = delay < 0 ? -1 : sink.nowMs + delay;
+            }
+
+            sink.nowMs = arrivalMs;
+            sink.eventsHandled[event.controller]++;
+            sourceStates[event.controller][event.source] = event.state;
+            long delay = update(engine, sources[event.controller][event.source], event.state,
+                    event.timeMs, sink.nowMs);
+            nextFlushMs = delay < 0 ? -1 : sink.nowMs + delay;
+
+            expectedStates.get(event.controller).add(fuse(sourceStates[event.controller]));
+            expectedTimes.get(event.controller).add(arrivalMs);
+        }
+        while (nextFlushMs >= 0) {
+            sink.nowMs = nextFlushMs;
+            long delay = engine.flush(sink.nowMs);
+            nextFlushMs = delay < 0 ? -1 : sink.nowMs + delay;
+        }
+
+        int totalPackets = 0;
+        for (int c = 0; c < 2; c++) {
+            List<Packet> packets = sink.packets.get(c);
+            List<int[]> states = expectedStates.get(c);
+            List<Long> times = expectedTimes.get(c);
+            totalPackets += packets.size();
+
+            // The host ends up with the final state
+            assertArrayEquals(states.get(states.size() - 1), packets.get(packets.size() - 1).state);
+
+            // Every packet carries the state as of the last event handled, never an older one
+            for (Packet packet : packets) {
+                assertArrayEquals(states.get(packet.lastEvent), packet.state);
+            }
+
+            // The host starts out with everything released and centered
+            int p = 0;
+            int[] lastSent = new int[STATE_FIELDS];
+            for (int i = 0; i < states.size(); i++) {
+                while (p < packets.size() && packets.get(p).lastEvent < i) {
+                    lastSent = packets.get(p++).state;
+                }
+                if (Arrays.equals(lastSent, states.get(i))) {
+                    // Nothing for the host to learn
+                    continue;
+                }
+
+                // A newer state must go out within a tick, or right away if a button changed
+                assertTrue("Controller " + c + " event " + i + " was never sent", p < packets.size());
+                long delayMs = packets.get(p).timeMs - times.get(i);
+                boolean buttonChange = lastSent[0] != states.get(i)[0];
+                assertTrue("Controller " + c + " event " + i + " sent after " + delayMs + " ms",
+                        delayMs <= (buttonChange ? 0 : BATCH_TICK_MS));
+            }
+
+            // Consecutive packets without a button change are at least a tick apart
+            for (int i = 1; i < packets.size(); i++) {
+                if (packets.get(i).state[0] == packets.get(i - 1).state[0]) {
+                    assertTrue(packets.get(i).timeMs - packets.get(i - 1).timeMs >= BATCH_TICK_MS);
+                }
+                assertTrue(!Arrays.equals(packets.get(i).state, packets.get(i - 1).state));
+            }
+        }
+
+        assertEquals(totalPackets, engine.getPacketsSent());
+        assertTrue(totalPackets * 2 < trace.size());
+    }
+
+    @Test
+    public void sourcesOfOneControllerAreFused() {
+        RecordingSink sink = new RecordingSink();
+        ControllerFusionEngine engine = new ControllerFusionEngine(sink, BATCH_TICK_MS, null);
+        ControllerFusionEngine.Source buttons = engine.attach((short) 0, InputStats.SOURCE_GAMEPAD);
+        ControllerFusionEngine.Source sticks = engine.attach((short) 0, InputStats.SOURCE_GAMEPAD);
+
+        update(engine, buttons, new int[] {0x1000, 200, 0, 0, 0, 0, 0}, 0, 0);
+        update(engine, sticks, new int[] {0x0001, 100, 0, -20000, 5, 0, 0}, 0, 10);
+
+        List<Packet> packets = sink.packets.get(0);
+        assertArrayEquals(new int[] {0x1001, 200, 0, -20000, 5, 0, 0}, packets.get(packets.size() - 1).state);
+    }
+
+    @Test
+    public void unchangedStateIsNotSent() {
+        RecordingSink sink = new RecordingSink();
+        ControllerFusionEngine engine = new ControllerFusionEngine(sink, BATCH_TICK_MS, null);
+        ControllerFusionEngine.Source outer = engine.attach((short) 0, InputStats.SOURCE_GAMEPAD);
+        ControllerFusionEngine.Source inner = engine.attach((short) 0, InputStats.SOURCE_GAMEPAD);
+
+        update(engine, outer, new int[] {0, 0, 0, 30000, 0, 0, 0}, 0, 0);
+        for (int i = 1; i <= 100; i++) {
+            // Hidden behind the other source's stick, and repeated
+            update(engine, inner, new int[] {0, 0, 0, 1000, 0, 0, 0}, i * 10, i * 10);
+            update(engine, outer, new int[] {0, 0, 0, 30000, 0, 0, 0}, i * 10, i * 10);
+        }
+
+        assertEquals(1, engine.getPacketsSent());
+    }
+
+    @Test
+    public void detachReleasesHeldButtons() {
+        RecordingSink sink = new RecordingSink();
+        ControllerFusionEngine engine = new ControllerFusionEngine(sink, BATCH_TICK_MS, null);
+        ControllerFusionEngine.Source source = engine.attach((short) 1, InputStats.SOURCE_USB_GAMEPAD);
+
+        update(engine, source, new int[] {0x0010, 255, 0, 0, 0, 0, 0}, 0, 0);
+        engine.detach(source, 1);
+
+        // Updates after the detach are ignored
+        update(engine, source, new int[] {0x0020, 0, 0, 0, 0, 0, 0}, 2, 2);
+
+        List<Packet> packets = sink.packets.get(1);
+        assertEquals(2, packets.size());
+        assertArrayEquals(new int[STATE_FIELDS], packets.get(1).state);
+    }
+
+    @Test
+    public void flushAllSendsDeferredChanges() {
+        RecordingSink sink = new RecordingSink();
+        ControllerFusionEngine engine = new ControllerFusionEngine(sink, BATCH_TICK_MS, null);
+        ControllerFusionEngine.Source source = engine.attach((short) 0, InputStats.SOURCE_GAMEPAD);
+
+        update(engine, source, new int[] {0, 0, 0, 100, 0, 0, 0}, 0, 0);
+        long delay = update(engine, source, new int[] {0, 0, 0, 200, 0, 0, 0}, 1, 1);
+        assertEquals(BATCH_TICK_MS - 1, delay);
+
+        engine.flushAll(1);
+        assertEquals(200, sink.packets.get(0).get(1).state[3]);
+        assertEquals(-1, engine.getTimeUntilFlushMs(1));
+    }
+}
@@ -0,0 +1,194 @@
+package com.limelight.binding.input.evdev;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class MouseMotionAggregatorTest {
+
+    // How long a report takes to get from the kernel to the capture thread
+    private static final long DELIVERY_DELAY_US = 300;
+
+    private static class Report {
+        final long timestampUs;
+        final int deltaX, deltaY, scroll;
+
+        Report(long timestampUs, int deltaX, int deltaY, int scroll) {
+            this.timestampUs = timestampUs;
+            this.deltaX = deltaX;
+            this.deltaY = deltaY;
+            this.scroll = scroll;
+        }
+    }
+
+    private static List<Report> loadTrace(String name) throws IOException {
+        InputStream in = MouseMotionAggregatorTest.class.getResourceAsStream(name);
+        assertNotNull("Missing trace " + name, in);
+
+        ArrayList<Report> reports = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split(" ");
+                reports.add(new Report(Long.parseLong(fields[0]), Integer.parseInt(fields[1]),
+                        Integer.parseInt(fields[2]), Integer.parseInt(fields[3])));
+            }
+        } finally {
+            reader.close();
+        }
+        return reports;
+    }
+
+    // Totals everything sent and checks each send against the current time
+    private static class RecordingSink implements MouseMotionAggregator.Sink {
+        long nowUs;
+        long totalX, totalY, totalScroll;
+        int motionPackets, scrollPackets;
+        long maxLatencyUs;
+
+        @Override
+        public void sendMotion(int deltaX, int deltaY, long timestampUs) {
+            assertTrue(deltaX >= Short.MIN_VALUE && deltaX <= Short.MAX_VALUE);
+            assertTrue(deltaY >= Short.MIN_VALUE && deltaY <= Short.MAX_VALUE);
+            totalX += deltaX;
+            totalY += deltaY;
+            motionPackets++;
+            maxLatencyUs = Math.max(maxLatencyUs, nowUs - timestampUs);
+        }
+
+        @Override
+        public void sendScroll(byte amount, long timestampUs) {
+            totalScroll += amount;
+            scrollPackets++;
+            maxLatencyUs = Math.max(maxLatencyUs, nowUs - timestampUs);
+        }
+    }
+
+    // Replays a trace like the capture loop does: wait for the next report or
+    // until pending motion is due, whichever comes first
+    private static MouseMotionAggregator replay(List<Report> trace, RecordingSink sink,
+                                                long flushIntervalUs, long maxLatencyUs) {
+        MouseMotionAggregator aggregator = new MouseMotionAggregator(sink, flushIntervalUs, maxLatencyUs);
+
+        for (Report report : trace) {
+            long arrivalUs = report.timestampUs + DELIVERY_DELAY_US;
+
+            long untilFlushUs;
+            while ((untilFlushUs = aggregator.getTimeUntilFlushUs(sink.nowUs)) >= 0 &&
+                    sink.nowUs + untilFlushUs <= arrivalUs) {
+                sink.nowUs += untilFlushUs;
+                aggregator.flush(sink.nowUs);
+            }
+
+            sink.nowUs = arrivalUs;
+            aggregator.addReport(report.deltaX, report.deltaY, report.scroll, report.timestampUs, sink.nowUs);
+        }
+
+        // Let the last motion go out
+        long untilFlushUs = aggregator.getTimeUntilFlushUs(sink.nowUs);
+        if (untilFlushUs >= 0) {
+            sink.nowUs += untilFlushUs;
+            aggregator.flush(sink.nowUs);
+        }
+        return aggregator;
+    }
+
+    private static void checkRecordedTrace(long flushIntervalUs, long maxLatencyUs) throws IOException {
+        List<Report> trace = loadTrace("mouse-1000hz.trace");
+        RecordingSink sink = new RecordingSink();
+        MouseMotionAggregator aggregator = replay(trace, sink, flushIntervalUs, maxLatencyUs);
+
+        // No motion or scrolling is lost
+        long expectedX = 0, expectedY = 0, expectedScroll = 0;
+        for (Report report : trace) {
+            expectedX += report.deltaX;
+            expectedY += report.deltaY;
+            expectedScroll += report.scroll;
+        }
+        assertEquals(expectedX, sink.totalX);
+        assertEquals(expectedY, sink.totalY);
+        assertEquals(expectedScroll, sink.totalScroll);
+        assertEquals(trace.size(), aggregator.getReportCount());
+
+        // Nothing waits longer than the latency bound
+        assertTrue("Max latency " + sink.maxLatencyUs + " us", sink.maxLatencyUs <= maxLatencyUs);
+
+        // While the mouse moves there's at most one send per latency bound, plus up
+        // to two around each pause (the first movement and the last partial batch)
+        long activeUs = 0;
+        int bursts = 1;
+        for (int i = 1; i < trace.size(); i++) {
+            long gapUs = trace.get(i).timestampUs - trace.get(i - 1).timestampUs;
+            if (gapUs > maxLatencyUs) {
+                bursts++;
+            }
+            else {
+                activeUs += gapUs;
+            }
+        }
+        long maxSends = activeUs / Math.min(flushIntervalUs, maxLatencyUs) + 2 * bursts;
+        assertTrue(aggregator.getSendCount() + " sends, expected at most " + maxSends,
+                aggregator.getSendCount() <= maxSends);
+        assertTrue(sink.motionPackets + sink.scrollPackets >= aggregator.getSendCount());
+        assertTrue(aggregator.getSendCount() * 4 < trace.size());
+    }
+
+    @Test
+    public void recordedTraceAt60Fps() throws IOException {
+        // What EvdevCaptureProvider uses for a 60 FPS stream
+        checkRecordedTrace(16666, 8000);
+    }
+
+    @Test
+    public void recordedTraceAt120Fps() throws IOException {
+        checkRecordedTrace(8333, 8000);
+    }
+
+    @Test
+    public void idleMouseSendsFirstMovementImmediately() {
+        RecordingSink sink = new RecordingSink();
+        MouseMotionAggregator aggregator = new MouseMotionAggregator(sink, 16666, 8000);
+
+        sink.nowUs = 1000000;
+        aggregator.addReport(5, -3, 0, 999800, sink.nowUs);
+
+        assertEquals(1, sink.motionPackets);
+        assertEquals(-1, aggregator.getTimeUntilFlushUs(sink.nowUs));
+
+        // The next report waits for the flush interval
+        sink.nowUs += 1000;
+        aggregator.addReport(1, 0, 0, sink.nowUs - 200, sink.nowUs);
+        assertEquals(1, sink.motionPackets);
+        assertEquals(8000 - 200, aggregator.getTimeUntilFlushUs(sink.nowUs));
+    }
+
+    @Test
+    public void overflowingDeltasAreSplit() {
+        RecordingSink sink = new RecordingSink();
+        MouseMotionAggregator aggregator = new MouseMotionAggregator(sink, 1000000, 1000000);
+
+        // More than a packet can hold accumulates well within the flush interval
+        for (int i = 1; i <= 10; i++) {
+            aggregator.addReport(30000, -30000, 100, i, i);
+        }
+        aggregator.flush(11);
+
+        assertEquals(300000, sink.totalX);
+        assertEquals(-300000, sink.totalY);
+        assertEquals(1000, sink.totalScroll);
+        assertEquals(10, sink.motionPackets);
+    }
+}
@@ -0,0 +1,202 @@
+package com.limelight.binding.video;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AsyncDecodePipelineTest {
+
+    // Records what the pipeline does with each unit and buffer
+    private static class FakeCodec implements AsyncDecodePipeline.Codec<Integer> {
+        final List<Integer> submittedUnits = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Integer> submittedBuffers = Collections.synchronizedList(new ArrayList<Integer>());
+        final ConcurrentLinkedQueue<Integer> discardedUnits = new ConcurrentLinkedQueue<>();
+        final List<Integer> renderedBuffers = Collections.synchronizedList(new ArrayList<Integer>());
+        volatile int failOnUnit = -1;
+
+        @Override
+        public void submitInput(int inputBufferIndex, Integer unit, long unitEnqueueTimeNs) {
+            if (unit == failOnUnit) {
+                throw new IllegalStateException("codec released");
+            }
+            submittedBuffers.add(inputBufferIndex);
+            submittedUnits.add(unit);
+        }
+
+        @Override
+        public void renderOutput(int outputBufferIndex, long presentationTimeUs) {
+            renderedBuffers.add(outputBufferIndex);
+        }
+
+        @Override
+        public void discardUnit(Integer unit) {
+            discardedUnits.add(unit);
+        }
+    }
+
+    @Test
+    public void unitsWaitForBuffersInOrder() {
+        FakeCodec codec = new FakeCodec();
+        AsyncDecodePipeline<Integer> pipeline = new AsyncDecodePipeline<>(codec);
+
+        pipeline.submitUnit(1);
+        pipeline.submitUnit(2);
+        assertEquals(2, pipeline.getPendingUnitCount());
+        assertTrue(codec.submittedUnits.isEmpty());
+
+        pipeline.onInputBufferAvailable(10);
+        pipeline.onInputBufferAvailable(11);
+        pipeline.onInputBufferAvailable(12);
+        pipeline.submitUnit(3);
+
+        assertEquals(Integer.valueOf(1), codec.submittedUnits.get(0));
+        assertEquals(Integer.valueOf(2), codec.submittedUnits.get(1));
+        assertEquals(Integer.valueOf(3), codec.submittedUnits.get(2));
+        assertEquals(Integer.valueOf(10), codec.submittedBuffers.get(0));
+        assertEquals(Integer.valueOf(12), codec.submittedBuffers.get(2));
+        assertEquals(0, pipeline.getPendingUnitCount());
+        assertEquals(3, pipeline.getUnitsSubmitted());
+    }
+
+    @Test
+    public void outputsAreRendered() {
+        FakeCodec codec = new FakeCodec();
+        AsyncDecodePipeline<Integer> pipeline = new AsyncDecodePipeline<>(codec);
+
+        pipeline.onOutputBufferAvailable(4, 1000);
+        pipeline.onOutputBufferAvailable(5, 2000);
+
+        assertEquals(2, codec.renderedBuffers.size());
+        assertEquals(2, pipeline.getFramesRendered());
+    }
+
+    @Test
+    public void stopDiscardsPendingUnits() {
+        FakeCodec codec = new FakeCodec();
+        AsyncDecodePipeline<Integer> pipeline = new AsyncDecodePipeline<>(codec);
+
+        pipeline.submitUnit(1);
+        pipeline.submitUnit(2);
+        pipeline.stop();
+        pipeline.submitUnit(3);
+        pipeline.onInputBufferAvailable(0);
+
+        assertTrue(codec.submittedUnits.isEmpty());
+        assertEquals(3, codec.discardedUnits.size());
+    }
+
+    @Test
+    public void failedSubmitDiscardsUnitsAndStops() {
+        FakeCodec codec = new FakeCodec();
+        AsyncDecodePipeline<Integer> pipeline = new AsyncDecodePipeline<>(codec);
+        codec.failOnUnit = 2;
+
+        pipeline.submitUnit(1);
+        pipeline.submitUnit(2);
+        pipeline.submitUnit(3);
+        pipeline.onInputBufferAvailable(0);
+        try {
+            pipeline.onInputBufferAvailable(1);
+            fail("The codec's exception should reach the caller");
+        } catch (IllegalStateException expected) {
+        }
+
+        pipeline.submitUnit(4);
+        pipeline.onInputBufferAvailable(2);
+
+        assertEquals(Collections.singletonList(1), codec.submittedUnits);
+        List<Integer> discarded = new ArrayList<>(codec.discardedUnits);
+        Collections.sort(discarded);
+        assertEquals(3, discarded.size());
+        assertEquals(Integer.valueOf(2), discarded.get(0));
+        assertEquals(Integer.valueOf(4), discarded.get(2));
+    }
+
+    @Test
+    public void concurrentProducersKeepEveryUnit() throws Exception {
+        final FakeCodec codec = new FakeCodec();
+        final AsyncDecodePipeline<Integer> pipeline = new AsyncDecodePipeline<>(codec);
+        final int units = 200000;
+        final CountDownLatch start = new CountDownLatch(1);
+
+        Thread receiver = new Thread() {
+            @Override
+            public void run() {
+                awaitQuietly(start);
+                for (int i = 0; i < units; i++) {
+                    pipeline.submitUnit(i);
+                }
+            }
+        };
+        Thread callbacks = new Thread() {
+            @Override
+            public void run() {
+                awaitQuietly(start);
+                for (int i = 0; i < units; i++) {
+                    pipeline.onInputBufferAvailable(i);
+                }
+            }
+        };
+
+        receiver.start();
+        callbacks.start();
+        start.countDown();
+        receiver.join();
+        callbacks.join();
+
+        // Units keep their order and each buffer is used once
+        assertEquals(units, codec.submittedUnits.size());
+        for (int i = 0; i < units; i++) {
+            assertEquals(Integer.valueOf(i), codec.submittedUnits.get(i));
+            assertEquals(Integer.valueOf(i), codec.submittedBuffers.get(i));
+        }
+    }
+
+    @Test
+    public void stopRacingSubmitLosesNothing() throws Exception {
+        for (int round = 0; round < 200; round++) {
+            final FakeCodec codec = new FakeCodec();
+            final AsyncDecodePipeline<Integer> pipeline = new AsyncDecodePipeline<>(codec);
+            final AtomicInteger submitted = new AtomicInteger();
+            final CountDownLatch start = new CountDownLatch(1);
+
+            Thread receiver = new Thread() {
+                @Override
+                public void run() {
+                    awaitQuietly(start);
+                    for (int i = 0; i < 2000; i++) {
+                        pipeline.submitUnit(i);
+                        submitted.incrementAndGet();
+                    }
+                }
+            };
+
+            receiver.start();
+            start.countDown();
+            pipeline.onInputBufferAvailable(0);
+            pipeline.stop();
+            receiver.join();
+
+            // Every unit was either given to the codec or handed back, exactly once
+            assertEquals(submitted.get(), codec.submittedUnits.size() + codec.discardedUnits.size());
+            assertEquals(0, pipeline.getPendingUnitCount());
+        }
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
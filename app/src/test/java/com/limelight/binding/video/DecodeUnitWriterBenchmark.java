@@ -0,0 +1,45 @@
+package com.limelight.binding.video;
+
+import com.limelight.nvstream.av.ByteBufferDescriptor;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+// Compares DecodeUnitWriter's bulk copy with one put() per descriptor. This isn't
+// a test, so it's only run by hand with the test classes on the classpath:
+// java com.limelight.binding.video.DecodeUnitWriterBenchmark
+public class DecodeUnitWriterBenchmark {
+    private static final int WARMUP_ROUNDS = 20000;
+    private static final int ROUNDS = 20000;
+
+    public static void main(String[] args) {
+        // A 4K frame's worth of small adjacent descriptors
+        Random random = new Random(2);
+        ByteBufferDescriptor head = DecodeUnitWriterTest.randomChain(random, 600);
+        ByteBuffer buf = ByteBuffer.allocateDirect(DecodeUnitWriterTest.chainLength(head));
+
+        // Let the JIT compile both copies first
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            buf.clear();
+            DecodeUnitWriterTest.writePerDescriptor(head, buf);
+            buf.clear();
+            DecodeUnitWriter.writeDescriptorChain(head, buf);
+        }
+
+        long perDescriptorNs = 0, bulkNs = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            buf.clear();
+            long start = System.nanoTime();
+            DecodeUnitWriterTest.writePerDescriptor(head, buf);
+            perDescriptorNs += System.nanoTime() - start;
+
+            buf.clear();
+            start = System.nanoTime();
+            DecodeUnitWriter.writeDescriptorChain(head, buf);
+            bulkNs += System.nanoTime() - start;
+        }
+
+        System.out.println("Decode unit copy: " + perDescriptorNs / ROUNDS + " ns with a put() per descriptor, " +
+                bulkNs / ROUNDS + " ns bulk");
+    }
+}
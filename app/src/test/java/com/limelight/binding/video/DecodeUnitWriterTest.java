@@ -0,0 +1,95 @@
+package com.limelight.binding.video;
+
+import com.limelight.nvstream.av.ByteBufferDescriptor;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class DecodeUnitWriterTest {
+
+    // The copy DecodeUnitWriter replaced: one put() per descriptor
+    static void writePerDescriptor(ByteBufferDescriptor head, ByteBuffer buf) {
+        for (ByteBufferDescriptor desc = head; desc != null; desc = desc.nextDescriptor) {
+            buf.put(desc.data, desc.offset, desc.length);
+        }
+    }
+
+    // Builds a chain like the depacketizer does: runs of descriptors that are
+    // adjacent in a packet's array, switching arrays at random
+    static ByteBufferDescriptor randomChain(Random random, int descriptors) {
+        ByteBufferDescriptor head = null, tail = null;
+        byte[] data = null;
+        int offset = 0;
+
+        for (int i = 0; i < descriptors; i++) {
+            int length = 1 + random.nextInt(1400);
+            if (data == null || offset + length > data.length || random.nextInt(4) == 0) {
+                data = new byte[length + random.nextInt(4000)];
+                random.nextBytes(data);
+                offset = 0;
+            }
+            else if (random.nextInt(4) == 0) {
+                // Leave a gap so the descriptors aren't adjacent
+                offset = Math.min(offset + 1, data.length - length);
+            }
+
+            ByteBufferDescriptor desc = new ByteBufferDescriptor(data, offset, length);
+            offset += length;
+
+            if (head == null) {
+                head = desc;
+            }
+            else {
+                tail.nextDescriptor = desc;
+            }
+            tail = desc;
+        }
+
+        return head;
+    }
+
+    static int chainLength(ByteBufferDescriptor head) {
+        int length = 0;
+        for (ByteBufferDescriptor desc = head; desc != null; desc = desc.nextDescriptor) {
+            length += desc.length;
+        }
+        return length;
+    }
+
+    @Test
+    public void matchesPerDescriptorCopy() {
+        Random random = new Random(1);
+        for (int i = 0; i < 2000; i++) {
+            ByteBufferDescriptor head = randomChain(random, 1 + random.nextInt(40));
+            int length = chainLength(head);
+
+            ByteBuffer expected = ByteBuffer.allocate(length);
+            writePerDescriptor(head, expected);
+
+            ByteBuffer actual = ByteBuffer.allocate(length);
+            assertEquals(length, DecodeUnitWriter.writeDescriptorChain(head, actual));
+
+            assertArrayEquals(expected.array(), actual.array());
+        }
+    }
+
+    @Test
+    public void writesAtBufferPosition() {
+        byte[] data = {1, 2, 3, 4, 5};
+        ByteBufferDescriptor head = new ByteBufferDescriptor(data, 0, 2);
+        head.nextDescriptor = new ByteBufferDescriptor(data, 2, 3);
+
+        ByteBuffer buf = ByteBuffer.allocate(8);
+        buf.put((byte) 9);
+        DecodeUnitWriter.writeDescriptorChain(head, buf);
+
+        assertEquals(6, buf.position());
+        assertArrayEquals(new byte[] {9, 1, 2, 3, 4, 5}, Arrays.copyOf(buf.array(), 6));
+    }
+}
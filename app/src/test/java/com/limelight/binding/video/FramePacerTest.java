@@ -0,0 +1,249 @@
+package com.limelight.binding.video;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class FramePacerTest {
+
+    private static final long PERIOD_NS = 16666667;
+    private static final long FIRST_VSYNC_NS = 1000000000L;
+
+    // A display whose vsync time is set by the test
+    private static class FakeClock implements FramePacer.VsyncClock {
+        long nowNs;
+        long lastVsyncNs;
+        long periodNs;
+
+        // Moves to a point within the given vsync interval
+        void at(long vsync, long offsetNs) {
+            lastVsyncNs = FIRST_VSYNC_NS + vsync * periodNs;
+            nowNs = lastVsyncNs + offsetNs;
+        }
+
+        @Override
+        public long nanoTime() {
+            return nowNs;
+        }
+
+        @Override
+        public long getLastVsyncNs() {
+            return lastVsyncNs;
+        }
+
+        @Override
+        public long getVsyncPeriodNs() {
+            return periodNs;
+        }
+    }
+
+    private static class FakeOutput implements FramePacer.Output {
+        final List<Integer> rendered = new ArrayList<>();
+        final List<Long> renderTimes = new ArrayList<>();
+        final List<Integer> discarded = new ArrayList<>();
+
+        @Override
+        public void renderFrame(int outputBufferIndex, long renderTimeNs) {
+            rendered.add(outputBufferIndex);
+            renderTimes.add(renderTimeNs);
+        }
+
+        @Override
+        public void discardFrame(int outputBufferIndex) {
+            discarded.add(outputBufferIndex);
+        }
+    }
+
+    private static FakeClock displayClock() {
+        FakeClock clock = new FakeClock();
+        clock.periodNs = PERIOD_NS;
+        return clock;
+    }
+
+    private static void present(FramePacer pacer, int index) {
+        pacer.frameDecoded(index, index * 1000L);
+        pacer.flush();
+    }
+
+    @Test
+    public void lowestLatencyWithoutClockRendersNewestImmediately() {
+        FakeOutput output = new FakeOutput();
+        FramePacer pacer = new FramePacer(FramePacer.POLICY_LOWEST_LATENCY, 60, null, output, null);
+
+        pacer.frameDecoded(1, 1000);
+        pacer.frameDecoded(2, 2000);
+        pacer.frameDecoded(3, 3000);
+        pacer.flush();
+
+        assertEquals(1, output.rendered.size());
+        assertEquals(Integer.valueOf(3), output.rendered.get(0));
+        assertEquals(Long.valueOf(-1), output.renderTimes.get(0));
+        assertEquals(2, output.discarded.size());
+        assertEquals(2, pacer.getFramesDropped());
+        assertEquals(1, pacer.getFramesPresented());
+    }
+
+    @Test
+    public void rendersImmediatelyUntilVsyncIsKnown() {
+        FakeOutput output = new FakeOutput();
+        FramePacer pacer = new FramePacer(FramePacer.POLICY_VSYNC, 60, new FakeClock(), output, null);
+
+        present(pacer, 1);
+
+        assertEquals(Long.valueOf(-1), output.renderTimes.get(0));
+    }
+
+    @Test
+    public void steadyStreamTargetsEachNextVsync() {
+        FakeClock clock = displayClock();
+        FakeOutput output = new FakeOutput();
+        FramePacer pacer = new FramePacer(FramePacer.POLICY_VSYNC, 60, clock, output, null);
+
+        for (int i = 0; i < 600; i++) {
+            clock.at(i, PERIOD_NS / 2);
+            present(pacer, i);
+            assertEquals(Long.valueOf(FIRST_VSYNC_NS + (i + 1) * PERIOD_NS), output.renderTimes.get(i));
+        }
+
+        assertEquals(600, pacer.getFramesPresented());
+        assertEquals(0, pacer.getFramesDropped());
+        assertEquals(0, pacer.getFramesDuplicated());
+    }
+
+    @Test
+    public void staleVsyncStillTargetsTheFuture() {
+        FakeClock clock = displayClock();
+        FakeOutput output = new FakeOutput();
+        FramePacer pacer = new FramePacer(FramePacer.POLICY_VSYNC, 60, clock, output, null);
+
+        // The clock thread missed three callbacks
+        clock.at(0, 3 * PERIOD_NS + PERIOD_NS / 4);
+        present(pacer, 1);
+
+        assertEquals(Long.valueOf(FIRST_VSYNC_NS + 4 * PERIOD_NS), output.renderTimes.get(0));
+    }
+
+    @Test
+    public void missedFramesCountAsDuplicates() {
+        FakeClock clock = displayClock();
+        FakeOutput output = new FakeOutput();
+        FramePacer pacer = new FramePacer(FramePacer.POLICY_VSYNC, 60, clock, output, null);
+
+        clock.at(0, PERIOD_NS / 2);
+        present(pacer, 1);
+
+        // Two vsyncs go by without a new frame
+        clock.at(3, PERIOD_NS / 2);
+        present(pacer, 2);
+
+        assertEquals(2, pacer.getFramesDuplicated());
+    }
+
+    @Test
+    public void slowStreamIsNotCountedAsDuplicates() {
+        FakeClock clock = displayClock();
+        FakeOutput output = new FakeOutput();
+        FramePacer pacer = new FramePacer(FramePacer.POLICY_VSYNC, 30, clock, output, null);
+
+        // A 30 FPS stream on a 60 Hz display shows each frame twice
+        for (int i = 0; i < 100; i++) {
+            clock.at(i * 2, PERIOD_NS / 2);
+            present(pacer, i);
+        }
+
+        assertEquals(0, pacer.getFramesDuplicated());
+        assertEquals(0, pacer.getFramesDropped());
+    }
+
+    // Frames arriving two at a time, then a vsync with nothing
+    private static FramePacer runBurstyTrace(int policy, FakeOutput output) {
+        FakeClock clock = displayClock();
+        FramePacer pacer = new FramePacer(policy, 60, clock, output, null);
+
+        for (int i = 0; i < 100; i += 2) {
+            clock.at(i, PERIOD_NS / 2);
+            present(pacer, i);
+            clock.at(i, PERIOD_NS / 2 + 1000000);
+            present(pacer, i + 1);
+        }
+        return pacer;
+    }
+
+    @Test
+    public void balancedAbsorbsBurstyArrival() {
+        FakeOutput output = new FakeOutput();
+        FramePacer pacer = runBurstyTrace(FramePacer.POLICY_BALANCED, output);
+
+        assertEquals(0, pacer.getFramesDropped());
+        assertEquals(0, pacer.getFramesDuplicated());
+        for (int i = 0; i < 100; i++) {
+            // Every frame gets its own vsync
+            assertEquals(Long.valueOf(FIRST_VSYNC_NS + (i + 1) * PERIOD_NS), output.renderTimes.get(i));
+        }
+    }
+
+    @Test
+    public void vsyncReplacesFramesFromBurstyArrival() {
+        FakeOutput output = new FakeOutput();
+        FramePacer pacer = runBurstyTrace(FramePacer.POLICY_VSYNC, output);
+
+        // The second frame of each burst replaces the first on the same vsync
+        assertEquals(50, pacer.getFramesDropped());
+        assertEquals(output.renderTimes.get(0), output.renderTimes.get(1));
+    }
+
+    @Test
+    public void balancedQueueHoldsOnlyOneFrame() {
+        FakeClock clock = displayClock();
+        FakeOutput output = new FakeOutput();
+        FramePacer pacer = new FramePacer(FramePacer.POLICY_BALANCED, 60, clock, output, null);
+
+        clock.at(0, PERIOD_NS / 2);
+        present(pacer, 1);
+        present(pacer, 2);
+        present(pacer, 3);
+
+        assertEquals(Long.valueOf(FIRST_VSYNC_NS + 2 * PERIOD_NS), output.renderTimes.get(2));
+        assertEquals(1, pacer.getFramesDropped());
+    }
+
+    @Test
+    public void flushKeepsNewestFramesPerPolicy() {
+        FakeClock clock = displayClock();
+        clock.at(0, PERIOD_NS / 2);
+
+        FakeOutput vsyncOutput = new FakeOutput();
+        FramePacer vsync = new FramePacer(FramePacer.POLICY_VSYNC, 60, clock, vsyncOutput, null);
+        FakeOutput balancedOutput = new FakeOutput();
+        FramePacer balanced = new FramePacer(FramePacer.POLICY_BALANCED, 60, clock, balancedOutput, null);
+        for (int i = 0; i < 3; i++) {
+            vsync.frameDecoded(i, i);
+            balanced.frameDecoded(i, i);
+        }
+        vsync.flush();
+        balanced.flush();
+
+        assertEquals(2, vsyncOutput.discarded.size());
+        assertEquals(Integer.valueOf(2), vsyncOutput.rendered.get(0));
+        assertEquals(1, balancedOutput.discarded.size());
+        assertEquals(Integer.valueOf(1), balancedOutput.rendered.get(0));
+        assertEquals(Integer.valueOf(2), balancedOutput.rendered.get(1));
+    }
+
+    @Test
+    public void heldFramesAreBounded() {
+        FakeOutput output = new FakeOutput();
+        FramePacer pacer = new FramePacer(FramePacer.POLICY_VSYNC, 60, displayClock(), output, null);
+
+        for (int i = 0; i < 20; i++) {
+            pacer.frameDecoded(i, i);
+        }
+
+        // The oldest frames are released as soon as the pacer is full
+        assertEquals(12, output.discarded.size());
+        assertEquals(Integer.valueOf(0), output.discarded.get(0));
+    }
+}
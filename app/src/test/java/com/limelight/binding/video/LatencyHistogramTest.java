@@ -0,0 +1,142 @@
+package com.limelight.binding.video;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    // The last bucket catches everything past it
+    private static final int OVERFLOW_BUCKET = 175;
+
+    @Test
+    public void smallValuesHaveTheirOwnBuckets() {
+        for (int i = 0; i < 8; i++) {
+            assertEquals(i, LatencyHistogram.bucketForValue(i));
+            assertEquals(i, LatencyHistogram.bucketUpperBound(i));
+        }
+
+        // Each power of two after that is split into 8
+        assertEquals(8, LatencyHistogram.bucketForValue(8));
+        assertEquals(15, LatencyHistogram.bucketForValue(15));
+        assertEquals(16, LatencyHistogram.bucketForValue(16));
+        assertEquals(16, LatencyHistogram.bucketForValue(17));
+        assertEquals(17, LatencyHistogram.bucketForValue(18));
+        assertEquals(17, LatencyHistogram.bucketUpperBound(16));
+        assertEquals(1023, LatencyHistogram.bucketUpperBound(LatencyHistogram.bucketForValue(1000)));
+    }
+
+    @Test
+    public void bucketsAreContiguous() {
+        // Every value falls in the bucket whose range covers it, to within 12.5%
+        int lastBucket = 0;
+        for (long value = 1; value < 1 << 22; value += 1 + value / 64) {
+            int bucket = LatencyHistogram.bucketForValue(value);
+            assertTrue(bucket >= lastBucket);
+            assertTrue(value <= LatencyHistogram.bucketUpperBound(bucket));
+            assertTrue(value > LatencyHistogram.bucketUpperBound(bucket - 1));
+            assertTrue(LatencyHistogram.bucketUpperBound(bucket) - value <= value / 8);
+            lastBucket = bucket;
+        }
+
+        for (int bucket = 1; bucket <= OVERFLOW_BUCKET; bucket++) {
+            long lowerBound = LatencyHistogram.bucketUpperBound(bucket - 1) + 1;
+            assertEquals(bucket, LatencyHistogram.bucketForValue(lowerBound));
+            assertEquals(bucket, LatencyHistogram.bucketForValue(LatencyHistogram.bucketUpperBound(bucket)));
+        }
+    }
+
+    @Test
+    public void largeValuesGoInOverflowBucket() {
+        long lastBound = LatencyHistogram.bucketUpperBound(OVERFLOW_BUCKET);
+        assertEquals(OVERFLOW_BUCKET, LatencyHistogram.bucketForValue(lastBound));
+        assertEquals(OVERFLOW_BUCKET, LatencyHistogram.bucketForValue(lastBound + 1));
+        assertEquals(OVERFLOW_BUCKET, LatencyHistogram.bucketForValue(3600L * 1000000));
+        assertEquals(OVERFLOW_BUCKET, LatencyHistogram.bucketForValue(Long.MAX_VALUE));
+
+        // Percentiles in the overflow bucket report the largest value seen
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(100);
+        histogram.record(60L * 1000000);
+        assertEquals(60L * 1000000, histogram.getMaxUs());
+        assertEquals(60L * 1000000, histogram.getPercentileUs(99));
+        assertEquals(103, histogram.getPercentileUs(50));
+    }
+
+    @Test
+    public void negativeValuesCountAsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, LatencyHistogram.bucketForValue(-5));
+        histogram.record(-5);
+        assertEquals(1, histogram.getCount());
+        assertEquals(0, histogram.getMaxUs());
+        assertEquals(0, histogram.getPercentileUs(100));
+    }
+
+    @Test
+    public void percentilesOfUniformDistribution() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentileUs(50));
+
+        // 1 to 1000 us, once each
+        for (int i = 1000; i >= 1; i--) {
+            histogram.record(i);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMaxUs());
+
+        // The upper bounds of the buckets holding the 500th, 950th and 990th values
+        assertEquals(511, histogram.getPercentileUs(50));
+        assertEquals(959, histogram.getPercentileUs(95));
+        assertEquals(1000, histogram.getPercentileUs(99));
+
+        assertEquals(1, histogram.getPercentileUs(0));
+        assertEquals(1000, histogram.getPercentileUs(100));
+    }
+
+    @Test
+    public void percentilesOfSkewedDistribution() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        // 90% of frames at 2 ms, 9% at 10 ms and 1% at 50 ms
+        for (int i = 0; i < 900; i++) {
+            histogram.record(2000);
+        }
+        for (int i = 0; i < 90; i++) {
+            histogram.record(10000);
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(50000);
+        }
+
+        assertEquals(LatencyHistogram.bucketUpperBound(LatencyHistogram.bucketForValue(2000)),
+                histogram.getPercentileUs(50));
+        assertEquals(LatencyHistogram.bucketUpperBound(LatencyHistogram.bucketForValue(10000)),
+                histogram.getPercentileUs(95));
+        assertEquals(LatencyHistogram.bucketUpperBound(LatencyHistogram.bucketForValue(10000)),
+                histogram.getPercentileUs(99));
+        assertEquals(50000, histogram.getPercentileUs(99.5));
+    }
+
+    @Test
+    public void resetClearsEverything() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 100; i++) {
+            histogram.record(i * 1000);
+        }
+        histogram.record(60L * 1000000);
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxUs());
+        assertEquals(0, histogram.getPercentileUs(50));
+        assertEquals(0, histogram.getPercentileUs(100));
+
+        // Nothing from before the reset shows up afterwards
+        histogram.record(300);
+        assertEquals(1, histogram.getCount());
+        assertEquals(300, histogram.getMaxUs());
+        assertEquals(300, histogram.getPercentileUs(99));
+    }
+}
@@ -0,0 +1,72 @@
+package com.limelight.binding.video;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class SpsCacheTest {
+
+    private static byte[] sps(int variant) {
+        return new byte[] {0, 0, 0, 1, 0x67, 0x64, 0x00, 0x28, (byte) variant, 0x10};
+    }
+
+    @Test
+    public void returnsCachedOutputForSameBytes() {
+        SpsCache cache = new SpsCache();
+        byte[] output = {1, 2, 3};
+
+        assertNull(cache.get(sps(1), 0, 10));
+        cache.put(sps(1), 0, 10, output);
+
+        // A different array holding the same bytes at an offset still hits
+        byte[] padded = new byte[14];
+        System.arraycopy(sps(1), 0, padded, 4, 10);
+        assertSame(output, cache.get(padded, 4, 10));
+
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void inputIsCopiedOnPut() {
+        SpsCache cache = new SpsCache();
+        byte[] input = sps(1);
+        cache.put(input, 0, input.length, new byte[] {9});
+
+        // Changing the caller's array afterwards must not change the entry
+        input[8] = 2;
+        assertNull(cache.get(input, 0, input.length));
+        assertArrayEquals(new byte[] {9}, cache.get(sps(1), 0, 10));
+    }
+
+    @Test
+    public void differentBytesWithSameHashMiss() {
+        SpsCache cache = new SpsCache();
+
+        // 31 * a + b is the same for both of these
+        byte[] first = {1, 0};
+        byte[] second = {0, 31};
+        cache.put(first, 0, 2, new byte[] {1});
+
+        assertNull(cache.get(second, 0, 2));
+    }
+
+    @Test
+    public void oldestEntryIsReplaced() {
+        SpsCache cache = new SpsCache();
+        for (int i = 0; i < 5; i++) {
+            cache.put(sps(i), 0, 10, new byte[] {(byte) i});
+        }
+
+        assertNull(cache.get(sps(0), 0, 10));
+        for (int i = 1; i < 5; i++) {
+            assertArrayEquals(new byte[] {(byte) i}, cache.get(sps(i), 0, 10));
+        }
+
+        cache.clear();
+        assertNull(cache.get(sps(4), 0, 10));
+    }
+}
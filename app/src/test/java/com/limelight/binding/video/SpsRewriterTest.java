@@ -0,0 +1,390 @@
+package com.limelight.binding.video;
+
+import org.jcodec.codecs.h264.H264Utils;
+import org.jcodec.codecs.h264.io.model.AspectRatio;
+import org.jcodec.codecs.h264.io.model.HRDParameters;
+import org.jcodec.codecs.h264.io.model.SeqParameterSet;
+import org.jcodec.codecs.h264.io.model.VUIParameters;
+import org.jcodec.common.model.ColorSpace;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class SpsRewriterTest {
+
+    private static final int RANDOM_CASES = 20000;
+
+    // An SPS with random fields, written by jcodec
+    private static SeqParameterSet randomH264Sps(Random r) {
+        SeqParameterSet s = new SeqParameterSet();
+        s.profile_idc = r.nextBoolean() ? 100 : (r.nextBoolean() ? 77 : 66);
+        s.constraint_set_0_flag = r.nextBoolean();
+        s.constraint_set_1_flag = r.nextBoolean();
+        s.constraint_set_3_flag = r.nextBoolean();
+        s.constraint_set_4_flag = r.nextBoolean();
+        s.level_idc = 30 + r.nextInt(22);
+        s.seq_parameter_set_id = r.nextInt(3);
+        s.chroma_format_idc = ColorSpace.YUV420J;
+        s.log2_max_frame_num_minus4 = r.nextInt(12);
+        s.pic_order_cnt_type = r.nextInt(3);
+        s.log2_max_pic_order_cnt_lsb_minus4 = r.nextInt(12);
+        if (s.pic_order_cnt_type == 1) {
+            s.delta_pic_order_always_zero_flag = r.nextBoolean();
+            s.offset_for_non_ref_pic = r.nextInt(20) - 10;
+            s.offset_for_top_to_bottom_field = r.nextInt(20) - 10;
+            s.num_ref_frames_in_pic_order_cnt_cycle = r.nextInt(3);
+            s.offsetForRefFrame = new int[s.num_ref_frames_in_pic_order_cnt_cycle];
+            for (int i = 0; i < s.offsetForRefFrame.length; i++) {
+                s.offsetForRefFrame[i] = r.nextInt(9) - 4;
+            }
+        }
+        s.num_ref_frames = r.nextInt(16);
+        s.pic_width_in_mbs_minus1 = r.nextInt(240);
+        s.pic_height_in_map_units_minus1 = r.nextInt(135);
+        s.frame_mbs_only_flag = r.nextBoolean();
+        s.mb_adaptive_frame_field_flag = r.nextBoolean();
+        s.direct_8x8_inference_flag = r.nextBoolean();
+        s.frame_cropping_flag = r.nextBoolean();
+        if (s.frame_cropping_flag) {
+            s.frame_crop_bottom_offset = r.nextInt(10);
+            s.frame_crop_right_offset = r.nextInt(3);
+        }
+
+        VUIParameters v = new VUIParameters();
+        s.vuiParams = v;
+        v.aspect_ratio_info_present_flag = r.nextBoolean();
+        if (v.aspect_ratio_info_present_flag) {
+            v.aspect_ratio = r.nextBoolean() ? AspectRatio.Extended_SAR : AspectRatio.fromValue(1);
+            v.sar_width = r.nextInt(65535);
+            v.sar_height = r.nextInt(100);
+        }
+        v.overscan_info_present_flag = r.nextBoolean();
+        v.overscan_appropriate_flag = r.nextBoolean();
+        v.video_signal_type_present_flag = r.nextBoolean();
+        v.video_format = r.nextInt(8);
+        v.colour_description_present_flag = r.nextBoolean();
+        v.colour_primaries = 1;
+        v.transfer_characteristics = 1;
+        v.matrix_coefficients = 1;
+        v.chroma_loc_info_present_flag = r.nextBoolean();
+        v.chroma_sample_loc_type_top_field = r.nextInt(5);
+        v.timing_info_present_flag = r.nextBoolean();
+        v.num_units_in_tick = 1 + r.nextInt(1000);
+        v.time_scale = r.nextInt(Integer.MAX_VALUE);
+        v.fixed_frame_rate_flag = r.nextBoolean();
+        if (r.nextInt(4) == 0) {
+            HRDParameters h = new HRDParameters();
+            h.cpb_cnt_minus1 = r.nextInt(3);
+            h.bit_rate_scale = r.nextInt(16);
+            h.cpb_size_scale = 4;
+            h.bit_rate_value_minus1 = new int[] {r.nextInt(1000000), r.nextInt(10), 0};
+            h.cpb_size_value_minus1 = new int[] {5, r.nextInt(1000000), 7};
+            h.cbr_flag = new boolean[] {true, false, r.nextBoolean()};
+            h.initial_cpb_removal_delay_length_minus1 = 23;
+            h.time_offset_length = 24;
+            v.nalHRDParams = h;
+            v.low_delay_hrd_flag = r.nextBoolean();
+        }
+        v.pic_struct_present_flag = r.nextBoolean();
+        if (r.nextBoolean()) {
+            VUIParameters.BitstreamRestriction b = new VUIParameters.BitstreamRestriction();
+            b.motion_vectors_over_pic_boundaries_flag = r.nextBoolean();
+            b.max_bytes_per_pic_denom = r.nextInt(5);
+            b.max_bits_per_mb_denom = r.nextInt(5);
+            b.log2_max_mv_length_horizontal = r.nextInt(16);
+            b.log2_max_mv_length_vertical = r.nextInt(16);
+            b.num_reorder_frames = r.nextInt(3);
+            b.max_dec_frame_buffering = r.nextInt(16);
+            v.bitstreamRestriction = b;
+        }
+
+        return s;
+    }
+
+    // Annex B NALU with a start code and NAL header
+    private static byte[] toNalu(SeqParameterSet sps) {
+        ByteBuffer escaped = H264Utils.writeSPS(sps, 256);
+        byte[] nalu = new byte[5 + escaped.remaining()];
+        nalu[3] = 1;
+        nalu[4] = 0x67;
+        escaped.get(nalu, 5, escaped.remaining());
+        return nalu;
+    }
+
+    @Test
+    public void h264FastPathMatchesJcodec() {
+        Random r = new Random(1);
+        for (int i = 0; i < RANDOM_CASES; i++) {
+            byte[] nalu = toNalu(randomH264Sps(r));
+
+            // Put the NALU in the middle of a larger array like a decode unit would
+            int offset = r.nextInt(16);
+            byte[] data = new byte[offset + nalu.length + r.nextInt(16)];
+            System.arraycopy(nalu, 0, data, offset, nalu.length);
+
+            SpsRewriter rewriter = new SpsRewriter();
+            rewriter.setH264LevelIdc(r.nextBoolean() ? -1 : 42);
+            rewriter.setBitstreamRestrictions(r.nextBoolean());
+            rewriter.setBaselineProfileHack(r.nextInt(4) == 0);
+            rewriter.setConstrainedHighProfile(r.nextBoolean());
+
+            byte[] expected = rewriter.rewriteH264SpsSlowPath(data, offset, nalu.length);
+            byte[] actual = rewriter.rewriteH264SpsFastPath(data, offset, nalu.length);
+            assertArrayEquals("Case " + i, expected, actual);
+        }
+    }
+
+    @Test
+    public void h264RewritesAreCached() {
+        byte[] nalu = toNalu(randomH264Sps(new Random(2)));
+        SpsRewriter rewriter = new SpsRewriter();
+
+        byte[] first = rewriter.rewriteH264Sps(nalu, 0, nalu.length);
+        assertSame(first, rewriter.rewriteH264Sps(nalu.clone(), 0, nalu.length));
+        assertEquals(1, rewriter.getCacheHits());
+        assertEquals(1, rewriter.getFastPathRewrites());
+
+        // Changing an option must not return the old result
+        rewriter.setBaselineProfileHack(true);
+        byte[] baseline = rewriter.rewriteH264Sps(nalu, 0, nalu.length);
+        assertEquals(66, baseline[5]);
+    }
+
+    // Writes an HEVC RBSP bit by bit and escapes it like an encoder would
+    private static class HevcWriter {
+        private final StringBuilder bits = new StringBuilder();
+
+        void u(long value, int count) {
+            for (int i = count - 1; i >= 0; i--) {
+                bits.append(((value >>> i) & 1) != 0 ? '1' : '0');
+            }
+        }
+
+        void ue(int value) {
+            long codeNum = value + 1L;
+            int length = 64 - Long.numberOfLeadingZeros(codeNum);
+            u(0, length - 1);
+            u(codeNum, length);
+        }
+
+        void randomBits(Random r, int count) {
+            for (int i = 0; i < count; i++) {
+                // Mostly zeros so emulation prevention gets exercised
+                bits.append(r.nextInt(4) == 0 ? '1' : '0');
+            }
+        }
+
+        byte[] toNalu(int nalType) {
+            u(1, 1);
+            while (bits.length() % 8 != 0) {
+                bits.append('0');
+            }
+
+            byte[] out = new byte[6 + bits.length() / 4];
+            out[3] = 1;
+            out[4] = (byte) (nalType << 1);
+            out[5] = 1;
+            int pos = 6;
+            int zeros = 0;
+            for (int i = 0; i < bits.length(); i += 8) {
+                int b = Integer.parseInt(bits.substring(i, i + 8), 2);
+                if (zeros >= 2 && b <= 3) {
+                    out[pos++] = 3;
+                    zeros = 0;
+                }
+                out[pos++] = (byte) b;
+                zeros = b == 0 ? zeros + 1 : 0;
+            }
+            return Arrays.copyOf(out, pos);
+        }
+    }
+
+    // Random fields for one HEVC parameter set, so the same set can be written
+    // with the original and the patched ordering values
+    private static class HevcParams {
+        final long seed;
+        final int maxSubLayersMinus1;
+        final boolean orderingInfoPresent;
+        final int[][] ordering;
+
+        HevcParams(Random r) {
+            seed = r.nextLong();
+            maxSubLayersMinus1 = r.nextInt(8);
+            orderingInfoPresent = r.nextBoolean();
+            ordering = new int[maxSubLayersMinus1 + 1][3];
+            for (int[] subLayer : ordering) {
+                subLayer[0] = r.nextInt(16);
+                subLayer[1] = r.nextInt(16);
+                subLayer[2] = r.nextInt(100);
+            }
+        }
+
+        void writeProfileTierLevel(HevcWriter w, Random r) {
+            w.randomBits(r, 88);
+            w.u(r.nextInt(256), 8);
+
+            boolean[] profilePresent = new boolean[maxSubLayersMinus1];
+            boolean[] levelPresent = new boolean[maxSubLayersMinus1];
+            for (int i = 0; i < maxSubLayersMinus1; i++) {
+                profilePresent[i] = r.nextBoolean();
+                levelPresent[i] = r.nextBoolean();
+                w.u(profilePresent[i] ? 1 : 0, 1);
+                w.u(levelPresent[i] ? 1 : 0, 1);
+            }
+            if (maxSubLayersMinus1 > 0) {
+                for (int i = maxSubLayersMinus1; i < 8; i++) {
+                    w.u(0, 2);
+                }
+            }
+            for (int i = 0; i < maxSubLayersMinus1; i++) {
+                if (profilePresent[i]) {
+                    w.randomBits(r, 88);
+                }
+                if (levelPresent[i]) {
+                    w.u(r.nextInt(256), 8);
+                }
+            }
+        }
+
+        void writeOrdering(HevcWriter w, boolean lowLatency) {
+            w.u(orderingInfoPresent ? 1 : 0, 1);
+            for (int i = orderingInfoPresent ? 0 : maxSubLayersMinus1; i <= maxSubLayersMinus1; i++) {
+                w.ue(lowLatency ? Math.min(ordering[i][0], 1) : ordering[i][0]);
+                w.ue(lowLatency ? 0 : ordering[i][1]);
+                w.ue(lowLatency ? 0 : ordering[i][2]);
+            }
+        }
+
+        byte[] vps(boolean lowLatency) {
+            Random r = new Random(seed);
+            HevcWriter w = new HevcWriter();
+            w.u(r.nextInt(16), 4);
+            w.u(3, 2);
+            w.u(0, 6);
+            w.u(maxSubLayersMinus1, 3);
+            w.u(r.nextInt(2), 1);
+            w.u(0xFFFF, 16);
+            writeProfileTierLevel(w, r);
+            writeOrdering(w, lowLatency);
+            w.randomBits(r, r.nextInt(200));
+            return w.toNalu(32);
+        }
+
+        byte[] sps(boolean lowLatency) {
+            Random r = new Random(seed);
+            HevcWriter w = new HevcWriter();
+            w.u(r.nextInt(16), 4);
+            w.u(maxSubLayersMinus1, 3);
+            w.u(r.nextInt(2), 1);
+            writeProfileTierLevel(w, r);
+            w.ue(r.nextInt(16));
+            int chromaFormatIdc = r.nextInt(4);
+            w.ue(chromaFormatIdc);
+            if (chromaFormatIdc == 3) {
+                w.u(r.nextInt(2), 1);
+            }
+            w.ue(r.nextInt(8192));
+            w.ue(r.nextInt(8192));
+            if (r.nextBoolean()) {
+                w.u(1, 1);
+                for (int i = 0; i < 4; i++) {
+                    w.ue(r.nextInt(64));
+                }
+            }
+            else {
+                w.u(0, 1);
+            }
+            w.ue(r.nextInt(3));
+            w.ue(r.nextInt(3));
+            w.ue(r.nextInt(13));
+            writeOrdering(w, lowLatency);
+            w.randomBits(r, r.nextInt(400));
+            return w.toNalu(33);
+        }
+    }
+
+    @Test
+    public void hevcRoundTripsUnchangedWithoutLowLatencyDpb() {
+        Random r = new Random(3);
+        for (int i = 0; i < RANDOM_CASES; i++) {
+            HevcParams params = new HevcParams(r);
+            SpsRewriter rewriter = new SpsRewriter();
+
+            byte[] vps = params.vps(false);
+            assertArrayEquals("VPS case " + i, vps, rewriter.rewriteHevcVps(vps, 0, vps.length));
+
+            byte[] sps = params.sps(false);
+            assertArrayEquals("SPS case " + i, sps, rewriter.rewriteHevcSps(sps, 0, sps.length));
+        }
+    }
+
+    @Test
+    public void hevcLowLatencyDpbPatchesOnlyOrdering() {
+        Random r = new Random(4);
+        for (int i = 0; i < RANDOM_CASES; i++) {
+            HevcParams params = new HevcParams(r);
+            SpsRewriter rewriter = new SpsRewriter();
+            rewriter.setHevcLowLatencyDpb(true);
+
+            byte[] vps = params.vps(false);
+            assertArrayEquals("VPS case " + i, params.vps(true), rewriter.rewriteHevcVps(vps, 0, vps.length));
+
+            byte[] sps = params.sps(false);
+            assertArrayEquals("SPS case " + i, params.sps(true), rewriter.rewriteHevcSps(sps, 0, sps.length));
+        }
+    }
+
+    private static byte[] hex(String s) {
+        String[] parts = s.split(" ");
+        byte[] nalu = new byte[parts.length + 4];
+        nalu[3] = 1;
+        for (int i = 0; i < parts.length; i++) {
+            nalu[i + 4] = (byte) Integer.parseInt(parts[i], 16);
+        }
+        return nalu;
+    }
+
+    @Test
+    public void hevcGfeParameterSets() {
+        // Parameter sets captured from a GFE 1080p stream
+        byte[] sps = hex("42 01 01 01 60 00 00 03 00 b0 00 00 03 00 00 03 00 5d a0 02 80 80 2d 16 " +
+                "36 b9 24 cb f0 08 00 00 03 00 08 00 00 03 01 e0 80");
+        byte[] vps = hex("40 01 0c 01 ff ff 01 60 00 00 03 00 b0 00 00 03 00 00 03 00 5d 95 c0 90");
+
+        SpsRewriter rewriter = new SpsRewriter();
+        assertArrayEquals(sps, rewriter.rewriteHevcSps(sps, 0, sps.length));
+        assertArrayEquals(vps, rewriter.rewriteHevcVps(vps, 0, vps.length));
+    }
+
+    @Test
+    public void truncatedHevcParameterSetsPassThrough() {
+        byte[] sps = hex("42 01 01 01 60 00 00 03 00 b0 00 00 03 00 00 03 00 5d a0 02 80 80 2d 16 " +
+                "36 b9 24 cb f0 08 00 00 03 00 08 00 00 03 01 e0 80");
+        byte[] vps = hex("40 01 0c 01 ff ff 01 60 00 00 03 00 b0 00 00 03 00 00 03 00 5d 95 c0 90");
+
+        SpsRewriter rewriter = new SpsRewriter();
+        rewriter.setHevcLowLatencyDpb(true);
+
+        // Cut off in the middle of the profile_tier_level
+        byte[] truncatedSps = Arrays.copyOf(sps, 16);
+        assertArrayEquals(truncatedSps, rewriter.rewriteHevcSps(truncatedSps, 0, truncatedSps.length));
+        byte[] truncatedVps = Arrays.copyOf(vps, 12);
+        assertArrayEquals(truncatedVps, rewriter.rewriteHevcVps(truncatedVps, 0, truncatedVps.length));
+        assertEquals(2, rewriter.getHevcPassThroughs());
+
+        // Repeats come from the cache instead of failing again
+        rewriter.rewriteHevcSps(truncatedSps, 0, truncatedSps.length);
+        assertEquals(2, rewriter.getHevcPassThroughs());
+        assertEquals(1, rewriter.getCacheHits());
+
+        // Complete parameter sets are still patched
+        rewriter.rewriteHevcSps(sps, 0, sps.length);
+        assertEquals(1, rewriter.getFastPathRewrites());
+    }
+}
@@ -0,0 +1,120 @@
+package com.limelight.binding.video;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class VsyncPeriodEstimatorTest {
+
+    private static final long PERIOD_60HZ_NS = 16666667;
+    private static final long PERIOD_30HZ_NS = 33333333;
+    private static final long PERIOD_90HZ_NS = 11111111;
+
+    // Within this of the true period once settled
+    private static final long TOLERANCE_NS = 100000;
+
+    // Feeds callbacks at the given period, with up to jitterNs of noise on each timestamp
+    private static long feed(VsyncPeriodEstimator estimator, long startNs, long periodNs,
+                             int count, long jitterNs, Random random) {
+        long vsyncNs = startNs;
+        for (int i = 0; i < count; i++) {
+            vsyncNs += periodNs;
+            long noiseNs = jitterNs > 0 ? (long) ((random.nextDouble() * 2 - 1) * jitterNs) : 0;
+            estimator.onVsync(vsyncNs + noiseNs);
+        }
+        return vsyncNs;
+    }
+
+    @Test
+    public void firstIntervalSeedsPeriod() {
+        VsyncPeriodEstimator estimator = new VsyncPeriodEstimator();
+        assertEquals(0, estimator.onVsync(1000000000L));
+        assertEquals(PERIOD_60HZ_NS, estimator.onVsync(1000000000L + PERIOD_60HZ_NS));
+    }
+
+    @Test
+    public void jitterIsSmoothed() {
+        VsyncPeriodEstimator estimator = new VsyncPeriodEstimator();
+        feed(estimator, 1000000000L, PERIOD_60HZ_NS, 600, 1000000, new Random(1));
+        assertEquals(PERIOD_60HZ_NS, estimator.getPeriodNs(), TOLERANCE_NS * 5);
+    }
+
+    @Test
+    public void missedCallbacksAreIgnored() {
+        VsyncPeriodEstimator estimator = new VsyncPeriodEstimator();
+        long nowNs = feed(estimator, 1000000000L, PERIOD_60HZ_NS, 60, 0, null);
+
+        // Skipping one or a few vsyncs now and then doesn't change the period
+        for (int i = 0; i < 20; i++) {
+            nowNs = feed(estimator, nowNs, PERIOD_60HZ_NS * (2 + i % 3), 1, 0, null);
+            nowNs = feed(estimator, nowNs, PERIOD_60HZ_NS, 3, 0, null);
+        }
+        assertEquals(PERIOD_60HZ_NS, estimator.getPeriodNs(), TOLERANCE_NS);
+
+        // Neither does the thread being descheduled for a while
+        feed(estimator, nowNs, 200000000, 1, 0, null);
+        assertEquals(PERIOD_60HZ_NS, estimator.getPeriodNs(), TOLERANCE_NS);
+    }
+
+    @Test
+    public void shortRunOfSlowIntervalsIsIgnored() {
+        VsyncPeriodEstimator estimator = new VsyncPeriodEstimator();
+        long nowNs = feed(estimator, 1000000000L, PERIOD_60HZ_NS, 60, 0, null);
+
+        nowNs = feed(estimator, nowNs, PERIOD_30HZ_NS, VsyncPeriodEstimator.SWITCH_SAMPLES - 1, 0, null);
+        assertEquals(PERIOD_60HZ_NS, estimator.getPeriodNs(), TOLERANCE_NS);
+
+        // Getting back to normal starts the count over
+        nowNs = feed(estimator, nowNs, PERIOD_60HZ_NS, 1, 0, null);
+        feed(estimator, nowNs, PERIOD_30HZ_NS, VsyncPeriodEstimator.SWITCH_SAMPLES - 1, 0, null);
+        assertEquals(PERIOD_60HZ_NS, estimator.getPeriodNs(), TOLERANCE_NS);
+    }
+
+    @Test
+    public void refreshRateDropIsFollowed() {
+        Random random = new Random(2);
+        VsyncPeriodEstimator estimator = new VsyncPeriodEstimator();
+        long nowNs = feed(estimator, 1000000000L, PERIOD_60HZ_NS, 120, 500000, random);
+        assertEquals(PERIOD_60HZ_NS, estimator.getPeriodNs(), TOLERANCE_NS * 5);
+
+        // The display drops to 30 Hz, like a power saving mode
+        nowNs = feed(estimator, nowNs, PERIOD_30HZ_NS, VsyncPeriodEstimator.SWITCH_SAMPLES, 500000, random);
+        assertEquals(PERIOD_30HZ_NS, estimator.getPeriodNs(), TOLERANCE_NS * 5);
+
+        // And it keeps tracking the new rate
+        feed(estimator, nowNs, PERIOD_30HZ_NS, 120, 0, random);
+        assertEquals(PERIOD_30HZ_NS, estimator.getPeriodNs(), TOLERANCE_NS);
+    }
+
+    @Test
+    public void drop90To60IsFollowed() {
+        VsyncPeriodEstimator estimator = new VsyncPeriodEstimator();
+        long nowNs = feed(estimator, 1000000000L, PERIOD_90HZ_NS, 90, 0, null);
+        assertEquals(PERIOD_90HZ_NS, estimator.getPeriodNs(), TOLERANCE_NS);
+
+        feed(estimator, nowNs, PERIOD_60HZ_NS, VsyncPeriodEstimator.SWITCH_SAMPLES, 0, null);
+        assertEquals(PERIOD_60HZ_NS, estimator.getPeriodNs(), TOLERANCE_NS);
+    }
+
+    @Test
+    public void refreshRateRiseIsFollowed() {
+        VsyncPeriodEstimator estimator = new VsyncPeriodEstimator();
+        long nowNs = feed(estimator, 1000000000L, PERIOD_60HZ_NS, 60, 0, null);
+
+        // 60 to 90 Hz is too big a jump to be jitter
+        feed(estimator, nowNs, PERIOD_90HZ_NS, VsyncPeriodEstimator.SWITCH_SAMPLES, 0, null);
+        assertEquals(PERIOD_90HZ_NS, estimator.getPeriodNs(), TOLERANCE_NS);
+    }
+
+    @Test
+    public void timestampsGoingBackwardsAreIgnored() {
+        VsyncPeriodEstimator estimator = new VsyncPeriodEstimator();
+        long nowNs = feed(estimator, 1000000000L, PERIOD_60HZ_NS, 10, 0, null);
+        estimator.onVsync(nowNs - 5000000);
+        estimator.onVsync(nowNs - 5000000);
+        assertEquals(PERIOD_60HZ_NS, estimator.getPeriodNs());
+        assertEquals(PERIOD_60HZ_NS, estimator.onVsync(nowNs - 5000000 + PERIOD_60HZ_NS));
+    }
+}
@@ -0,0 +1,166 @@
+package com.limelight.computers;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AddressRacerTest {
+
+    private static final long STAGGER_MS = 100;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final AddressRacer racer = new AddressRacer(executor, STAGGER_MS);
+
+    private static final InetAddress LOCAL = address(192, 168, 1, 10);
+    private static final InetAddress REMOTE = address(203, 0, 113, 10);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private static InetAddress address(int a, int b, int c, int d) {
+        try {
+            return InetAddress.getByAddress(new byte[] {(byte) a, (byte) b, (byte) c, (byte) d});
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    // Answers after a fixed delay per address. A negative delay means it never verifies.
+    private static class FakeVerifier implements AddressRacer.Verifier<String> {
+        final Map<InetAddress, Long> delays = new ConcurrentHashMap<>();
+
+        @Override
+        public String verify(InetAddress addr) throws InterruptedException {
+            long delay = delays.get(addr);
+            Thread.sleep(Math.abs(delay));
+            return delay >= 0 ? addr.getHostAddress() : null;
+        }
+    }
+
+    @Test
+    public void firstVerifiedAddressWins() throws Exception {
+        FakeVerifier verifier = new FakeVerifier();
+        verifier.delays.put(LOCAL, -10L);
+        verifier.delays.put(REMOTE, 10L);
+
+        AddressRacer.Result<String> result = racer.race(Arrays.asList(LOCAL, REMOTE), verifier, null);
+        assertEquals(REMOTE, result.address);
+    }
+
+    @Test
+    public void nothingVerified() throws Exception {
+        FakeVerifier verifier = new FakeVerifier();
+        verifier.delays.put(LOCAL, -10L);
+        verifier.delays.put(REMOTE, -10L);
+
+        assertNull(racer.race(Arrays.asList(LOCAL, REMOTE), verifier, null));
+    }
+
+    @Test
+    public void favoredAddressTakesOverWithinStagger() throws Exception {
+        AddressPreference preference = new AddressPreference();
+        FakeVerifier verifier = new FakeVerifier();
+        verifier.delays.put(LOCAL, 40L);
+        verifier.delays.put(REMOTE, 5L);
+
+        // The remote address has worked before, so it's tried first and answers first
+        preference.recordSuccess(REMOTE, 5);
+        List<InetAddress> candidates = preference.getCandidates(false, LOCAL, REMOTE);
+        assertEquals(REMOTE, candidates.get(0));
+
+        AddressRacer.Result<String> result = racer.race(candidates, verifier, preference, LOCAL);
+        assertEquals(LOCAL, result.address);
+
+        // It keeps winning on later polls even though the remote address answers faster
+        for (int i = 0; i < 3; i++) {
+            candidates = preference.getCandidates(false, LOCAL, REMOTE);
+            assertEquals(LOCAL, racer.race(candidates, verifier, preference, LOCAL).address);
+        }
+    }
+
+    @Test
+    public void slowFavoredAddressDoesNotHoldUpWinnerForLong() throws Exception {
+        FakeVerifier verifier = new FakeVerifier();
+        verifier.delays.put(LOCAL, 5000L);
+        verifier.delays.put(REMOTE, 5L);
+
+        long start = System.currentTimeMillis();
+        AddressRacer.Result<String> result = racer.race(Arrays.asList(REMOTE, LOCAL), verifier, null, LOCAL);
+
+        assertEquals(REMOTE, result.address);
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("Took " + elapsed + " ms", elapsed < STAGGER_MS * 3);
+    }
+
+    @Test
+    public void failedFavoredAddressReturnsWinnerRightAway() throws Exception {
+        AddressPreference preference = new AddressPreference();
+        FakeVerifier verifier = new FakeVerifier();
+        verifier.delays.put(LOCAL, -10L);
+        verifier.delays.put(REMOTE, 5L);
+
+        AddressRacer.Result<String> result = racer.race(Arrays.asList(REMOTE, LOCAL), verifier, preference, LOCAL);
+
+        assertEquals(REMOTE, result.address);
+
+        // The failure was recorded, so the local address goes last
+        assertEquals(REMOTE, preference.getCandidates(false, LOCAL, REMOTE).get(0));
+    }
+
+    @Test
+    public void favoredAddressThatFailedInRaceIsNotWaitedFor() throws Exception {
+        AddressPreference preference = new AddressPreference();
+        FakeVerifier verifier = new FakeVerifier();
+        verifier.delays.put(LOCAL, -5L);
+        verifier.delays.put(REMOTE, 20L);
+
+        // The local address fails fast, so the remote one is started right after
+        long start = System.currentTimeMillis();
+        AddressRacer.Result<String> result = racer.race(Arrays.asList(LOCAL, REMOTE), verifier, preference, LOCAL);
+
+        assertEquals(REMOTE, result.address);
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("Took " + elapsed + " ms", elapsed < 20 + STAGGER_MS / 2);
+    }
+
+    @Test
+    public void unreachableFavoredAddressOnlyDelaysFirstRace() throws Exception {
+        AddressPreference preference = new AddressPreference();
+        FakeVerifier verifier = new FakeVerifier();
+        verifier.delays.put(LOCAL, 5000L);
+        verifier.delays.put(REMOTE, 5L);
+
+        // The first race waits the stagger delay for the local address, then gives up on it
+        assertEquals(REMOTE, racer.race(Arrays.asList(REMOTE, LOCAL), verifier, preference, LOCAL).address);
+        assertTrue(preference.isFailing(LOCAL));
+
+        // Like a host only reachable by its WAN address, later races don't wait for it
+        for (int i = 0; i < 3; i++) {
+            long start = System.currentTimeMillis();
+            List<InetAddress> candidates = preference.getCandidates(false, LOCAL, REMOTE);
+            assertEquals(REMOTE, racer.race(candidates, verifier, preference, LOCAL).address);
+            long elapsed = System.currentTimeMillis() - start;
+            assertTrue("Took " + elapsed + " ms", elapsed < STAGGER_MS / 2);
+        }
+
+        // Once the local address works again, a background probe notices and it wins again
+        verifier.delays.put(LOCAL, 5L);
+        racer.race(preference.getCandidates(false, LOCAL, REMOTE), verifier, preference, LOCAL);
+        Thread.sleep(50);
+        assertTrue(!preference.isFailing(LOCAL));
+        assertEquals(LOCAL, racer.race(preference.getCandidates(false, LOCAL, REMOTE), verifier, preference, LOCAL).address);
+    }
+}
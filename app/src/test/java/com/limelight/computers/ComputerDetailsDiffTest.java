@@ -0,0 +1,152 @@
+package com.limelight.computers;
+
+import com.limelight.nvstream.http.ComputerDetails;
+import com.limelight.nvstream.http.PairingManager;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ComputerDetailsDiffTest {
+
+    private static ComputerDetails onlineComputer() throws Exception {
+        ComputerDetails details = new ComputerDetails();
+        details.state = ComputerDetails.State.ONLINE;
+        details.reachability = ComputerDetails.Reachability.LOCAL;
+        details.name = "PC";
+        details.uuid = new UUID(0, 1);
+        details.localIp = InetAddress.getByAddress(new byte[] {(byte) 192, (byte) 168, 1, 10});
+        details.remoteIp = InetAddress.getByAddress(new byte[] {(byte) 203, 0, 113, 10});
+        details.pairState = PairingManager.PairState.PAIRED;
+        details.macAddress = "00:11:22:33:44:55";
+        details.runningGameId = 0;
+        details.rawAppList = "<root/>";
+        return details;
+    }
+
+    @Test
+    public void copyHasNoChanges() throws Exception {
+        ComputerDetails before = onlineComputer();
+        assertEquals(0, ComputerDetailsDiff.diff(before, new ComputerDetails(before)));
+        assertEquals("none", ComputerDetailsDiff.toString(0));
+    }
+
+    @Test
+    public void eachFieldIsReported() throws Exception {
+        ComputerDetails before = onlineComputer();
+
+        ComputerDetails after = new ComputerDetails(before);
+        after.state = ComputerDetails.State.OFFLINE;
+        after.reachability = ComputerDetails.Reachability.OFFLINE;
+        assertEquals(ComputerDetailsDiff.STATE | ComputerDetailsDiff.REACHABILITY,
+                ComputerDetailsDiff.diff(before, after));
+
+        after = new ComputerDetails(before);
+        after.pairState = PairingManager.PairState.NOT_PAIRED;
+        assertEquals(ComputerDetailsDiff.PAIR_STATE, ComputerDetailsDiff.diff(before, after));
+
+        after = new ComputerDetails(before);
+        after.runningGameId = 123;
+        assertEquals(ComputerDetailsDiff.RUNNING_GAME, ComputerDetailsDiff.diff(before, after));
+
+        after = new ComputerDetails(before);
+        after.remoteIp = InetAddress.getByAddress(new byte[] {(byte) 203, 0, 113, 11});
+        assertEquals(ComputerDetailsDiff.ADDRESSES, ComputerDetailsDiff.diff(before, after));
+
+        after = new ComputerDetails(before);
+        after.macAddress = null;
+        assertEquals(ComputerDetailsDiff.MAC_ADDRESS, ComputerDetailsDiff.diff(before, after));
+
+        after = new ComputerDetails(before);
+        after.name = "Renamed";
+        assertEquals(ComputerDetailsDiff.IDENTITY, ComputerDetailsDiff.diff(before, after));
+        assertEquals("identity", ComputerDetailsDiff.toString(ComputerDetailsDiff.IDENTITY));
+    }
+
+    @Test
+    public void appListIsIgnored() throws Exception {
+        ComputerDetails before = onlineComputer();
+        ComputerDetails after = new ComputerDetails(before);
+        after.rawAppList = "<root><App/></root>";
+        assertEquals(0, ComputerDetailsDiff.diff(before, after));
+    }
+
+    @Test
+    public void missingFieldsCompareEqual() {
+        assertEquals(0, ComputerDetailsDiff.diff(new ComputerDetails(), new ComputerDetails()));
+    }
+
+    @Test
+    public void toStringListsAllChanges() {
+        assertEquals("state, running game, MAC address",
+                ComputerDetailsDiff.toString(ComputerDetailsDiff.STATE |
+                        ComputerDetailsDiff.RUNNING_GAME | ComputerDetailsDiff.MAC_ADDRESS));
+    }
+
+    @Test
+    public void pollResults() throws Exception {
+        ComputerDetails before = onlineComputer();
+
+        ComputerDetails after = new ComputerDetails(before);
+        assertEquals(PollScheduler.PollTask.POLL_UNCHANGED, ComputerDetailsDiff.getPollResult(true, before, after));
+
+        after.runningGameId = 123;
+        assertEquals(PollScheduler.PollTask.POLL_CHANGED, ComputerDetailsDiff.getPollResult(true, before, after));
+
+        after.state = ComputerDetails.State.OFFLINE;
+        assertEquals(PollScheduler.PollTask.POLL_OFFLINE, ComputerDetailsDiff.getPollResult(true, before, after));
+    }
+
+    @Test
+    public void failedPollInGraceWindowIsOffline() throws Exception {
+        // The host is still reported online while it has tries left, and nothing changed
+        ComputerDetails before = onlineComputer();
+        ComputerDetails after = new ComputerDetails(before);
+
+        assertEquals(PollScheduler.PollTask.POLL_OFFLINE, ComputerDetailsDiff.getPollResult(false, before, after));
+    }
+
+    @Test
+    public void failedPollsOfStableHostAreRetriedQuickly() throws Exception {
+        final ComputerDetails details = onlineComputer();
+        final AtomicInteger polls = new AtomicInteger();
+        final AtomicLong firstFailureMs = new AtomicLong();
+        final AtomicInteger pollsAfterFailure = new AtomicInteger();
+
+        // Like ComputerManagerService, the host stays online while it has tries left
+        PollScheduler scheduler = new PollScheduler(1, 20, 500, 3, 10000, 5);
+        PollScheduler.Handle handle = scheduler.schedule(new PollScheduler.PollTask() {
+            @Override
+            public int poll() {
+                ComputerDetails before = new ComputerDetails(details);
+                boolean polled = polls.incrementAndGet() <= 3;
+                if (!polled) {
+                    if (firstFailureMs.get() == 0) {
+                        firstFailureMs.set(System.currentTimeMillis());
+                    }
+                    else if (System.currentTimeMillis() - firstFailureMs.get() <= 300) {
+                        pollsAfterFailure.incrementAndGet();
+                    }
+                }
+                return ComputerDetailsDiff.getPollResult(polled, before, details);
+            }
+        });
+
+        try {
+            // Three unchanged polls make the host stable, so the first failure waits for
+            // the slow period. After that, the failures are retried at the fast period.
+            Thread.sleep(1000);
+            assertTrue(firstFailureMs.get() != 0);
+            assertTrue(pollsAfterFailure.get() + " polls after the first failure", pollsAfterFailure.get() >= 3);
+        } finally {
+            handle.cancel();
+            scheduler.shutdown();
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.limelight.computers;
+
+import com.limelight.nvstream.http.ComputerDetails;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ComputerStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File snapshotFile;
+    private ComputerStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        snapshotFile = new File(folder.getRoot(), "computers.snapshot");
+        store = new ComputerStore(snapshotFile);
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+    }
+
+    private static ComputerDetails computer(String name, int id) throws IOException {
+        ComputerDetails details = new ComputerDetails();
+        details.name = name;
+        details.uuid = new UUID(0, id);
+        details.localIp = InetAddress.getByAddress(new byte[] {(byte) 192, (byte) 168, 1, (byte) id});
+        details.remoteIp = InetAddress.getByAddress(new byte[] {(byte) 203, 0, 113, (byte) id});
+        details.macAddress = "00:11:22:33:44:" + String.format("%02x", id);
+        return details;
+    }
+
+    private ComputerStore reopen() {
+        store.close();
+        store = new ComputerStore(snapshotFile);
+        return store;
+    }
+
+    @Test
+    public void burstOfChangesIsOneWrite() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            assertTrue(store.updateComputer(computer("PC " + i, i)));
+        }
+
+        // Nothing is written until the burst is over
+        assertEquals(0, store.getSnapshotsWritten());
+        Thread.sleep(1500);
+        assertEquals(1, store.getSnapshotsWritten());
+
+        // Unchanged updates don't write anything
+        for (int i = 0; i < 100; i++) {
+            store.updateComputer(computer("PC " + i, i));
+        }
+        store.flush();
+        assertEquals(1, store.getSnapshotsWritten());
+    }
+
+    @Test
+    public void incompleteComputersAreRejected() throws Exception {
+        ComputerDetails details = computer("PC", 1);
+        details.macAddress = null;
+
+        assertFalse(store.updateComputer(details));
+        assertTrue(store.getAllComputers().isEmpty());
+    }
+
+    @Test
+    public void lookupsReturnCopies() throws Exception {
+        store.updateComputer(computer("PC", 1));
+
+        ComputerDetails copy = store.getComputerByName("PC");
+        assertEquals(ComputerDetails.State.UNKNOWN, copy.state);
+        copy.name = "Changed";
+
+        assertNotNull(store.getComputerByName("PC"));
+        assertEquals("PC", store.getComputerByUuid(new UUID(0, 1)).name);
+    }
+
+    @Test
+    public void renameUpdatesNameIndex() throws Exception {
+        store.updateComputer(computer("Old name", 1));
+        store.updateComputer(computer("New name", 1));
+
+        assertNull(store.getComputerByName("Old name"));
+        assertEquals(new UUID(0, 1), store.getComputerByName("New name").uuid);
+        assertEquals(1, store.getAllComputers().size());
+    }
+
+    @Test
+    public void newComputerWithSameNameReplacesOld() throws Exception {
+        store.updateComputer(computer("PC", 1));
+        store.updateComputer(computer("PC", 2));
+
+        // Names are unique, like the old table's primary key
+        assertNull(store.getComputerByUuid(new UUID(0, 1)));
+        assertEquals(new UUID(0, 2), store.getComputerByName("PC").uuid);
+        assertEquals(1, store.getAllComputers().size());
+    }
+
+    @Test
+    public void deleteRemovesBothIndexes() throws Exception {
+        store.updateComputer(computer("PC", 1));
+        store.deleteComputer("PC");
+        store.deleteComputer("Not there");
+
+        assertNull(store.getComputerByName("PC"));
+        assertNull(store.getComputerByUuid(new UUID(0, 1)));
+        assertTrue(reopen().load());
+        assertTrue(store.getAllComputers().isEmpty());
+    }
+
+    @Test
+    public void reloadKeepsEveryField() throws Exception {
+        ComputerDetails ipv6 = computer("IPv6 PC", 2);
+        ipv6.remoteIp = InetAddress.getByName("2001:db8::1");
+        store.updateComputer(computer("PC", 1));
+        store.updateComputer(ipv6);
+
+        // close() writes the pending change without waiting for the write delay
+        assertTrue(reopen().load());
+
+        ComputerDetails loaded = store.getComputerByName("IPv6 PC");
+        assertEquals(ipv6.uuid, loaded.uuid);
+        assertEquals(ipv6.localIp, loaded.localIp);
+        assertEquals(ipv6.remoteIp, loaded.remoteIp);
+        assertEquals(ipv6.macAddress, loaded.macAddress);
+        assertEquals(2, store.getAllComputers().size());
+
+        // A freshly loaded store has nothing to write
+        store.flush();
+        assertEquals(0, store.getSnapshotsWritten());
+    }
+
+    @Test
+    public void missingSnapshotLoadsNothing() {
+        assertFalse(store.load());
+        assertTrue(store.getAllComputers().isEmpty());
+    }
+
+    @Test
+    public void corruptSnapshotIsDiscarded() throws Exception {
+        FileOutputStream out = new FileOutputStream(snapshotFile);
+        out.write("not a snapshot".getBytes("UTF-8"));
+        out.close();
+
+        assertFalse(store.load());
+        assertFalse(snapshotFile.exists());
+        assertTrue(store.getAllComputers().isEmpty());
+    }
+
+    @Test
+    public void truncatedSnapshotIsDiscardedEntirely() throws Exception {
+        store.updateComputer(computer("PC 1", 1));
+        store.updateComputer(computer("PC 2", 2));
+        store.flush();
+
+        RandomAccessFile file = new RandomAccessFile(snapshotFile, "rw");
+        file.setLength(file.length() - 4);
+        file.close();
+
+        // Half a snapshot isn't kept, even the computers that were read fully
+        assertFalse(reopen().load());
+        assertTrue(store.getAllComputers().isEmpty());
+        assertFalse(snapshotFile.exists());
+    }
+
+    @Test
+    public void migrationKeepsTableOrderAndIsDurableAfterFlush() throws Exception {
+        // Rows are added in table order, then flushed before the old database is deleted
+        for (int i = 0; i < 10; i++) {
+            store.updateComputer(computer("PC " + i, i));
+        }
+        store.flush();
+        assertTrue(snapshotFile.exists());
+        assertFalse(new File(snapshotFile.getPath() + ".tmp").exists());
+
+        // Read the file with a second store while the first is still open
+        ComputerStore reader = new ComputerStore(snapshotFile);
+        try {
+            assertTrue(reader.load());
+            List<ComputerDetails> computers = reader.getAllComputers();
+            assertEquals(10, computers.size());
+            for (int i = 0; i < 10; i++) {
+                assertEquals("PC " + i, computers.get(i).name);
+            }
+        } finally {
+            reader.close();
+        }
+
+        // Later updates keep a computer's position
+        store.updateComputer(computer("Renamed", 3));
+        assertTrue(reopen().load());
+        assertEquals("Renamed", store.getAllComputers().get(3).name);
+    }
+}
@@ -0,0 +1,122 @@
+package com.limelight.computers;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Uses several loopback addresses on one port: one that accepts, one whose accept
+// queue is full so connects hang, and one with nothing listening so connects are refused
+public class FastPollerTest {
+
+    private InetAddress listening;
+    private InetAddress hanging;
+    private InetAddress refused;
+    private int port;
+
+    private ServerSocket listeningServer;
+    private ServerSocket hangingServer;
+    private final List<Socket> backlogFillers = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        listening = InetAddress.getByName("127.0.0.1");
+        hanging = InetAddress.getByName("127.0.0.2");
+        refused = InetAddress.getByName("127.0.0.3");
+
+        hangingServer = new ServerSocket(0, 1, hanging);
+        port = hangingServer.getLocalPort();
+        listeningServer = new ServerSocket(port, 50, listening);
+
+        // Nobody accepts on the hanging server, so once its queue is full further SYNs are dropped
+        for (int i = 0; i < 2; i++) {
+            Socket s = new Socket();
+            s.connect(new InetSocketAddress(hanging, port), 1000);
+            backlogFillers.add(s);
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (Socket s : backlogFillers) {
+            s.close();
+        }
+        hangingServer.close();
+        listeningServer.close();
+    }
+
+    @Test
+    public void connectsToListeningAddress() throws Exception {
+        assertEquals(0, FastPoller.connectFirst(new InetAddress[] {listening}, port, 1000));
+    }
+
+    @Test
+    public void refusedAddressesAreSkipped() throws Exception {
+        assertEquals(1, FastPoller.connectFirst(new InetAddress[] {refused, listening}, port, 1000));
+    }
+
+    @Test
+    public void noReachableAddressFailsWithoutWaiting() throws Exception {
+        long start = System.currentTimeMillis();
+        assertEquals(-1, FastPoller.connectFirst(new InetAddress[] {refused, refused}, port, 5000));
+        assertTrue(System.currentTimeMillis() - start < 1000);
+    }
+
+    @Test
+    public void reachableFirstChoiceDoesNotWaitForOthers() throws Exception {
+        long start = System.currentTimeMillis();
+        assertEquals(0, FastPoller.connectFirst(new InetAddress[] {listening, hanging}, port, 5000));
+        assertTrue(System.currentTimeMillis() - start < 1000);
+    }
+
+    @Test
+    public void pendingPreferredAddressIsWaitedFor() throws Exception {
+        long start = System.currentTimeMillis();
+        assertEquals(1, FastPoller.connectFirst(new InetAddress[] {hanging, listening}, port, 300));
+
+        // The later address connected right away, but we held out for the preferred one
+        assertTrue(System.currentTimeMillis() - start >= 300);
+    }
+
+    @Test
+    public void timeoutWithNothingReachable() throws Exception {
+        long start = System.currentTimeMillis();
+        assertEquals(-1, FastPoller.connectFirst(new InetAddress[] {hanging}, port, 300));
+        assertTrue(System.currentTimeMillis() - start >= 300);
+    }
+
+    @Test
+    public void interruptStopsWaiting() throws Exception {
+        final AtomicReference<Throwable> thrown = new AtomicReference<>();
+        Thread poller = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    FastPoller.connectFirst(new InetAddress[] {hanging}, port, 10000);
+                } catch (Throwable t) {
+                    thrown.set(t);
+                }
+            }
+        };
+
+        long start = System.currentTimeMillis();
+        poller.start();
+        Thread.sleep(100);
+        poller.interrupt();
+        poller.join(5000);
+
+        assertTrue(thrown.get() instanceof InterruptedException);
+        assertTrue(System.currentTimeMillis() - start < 2000);
+    }
+}
@@ -0,0 +1,275 @@
+package com.limelight.computers;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PollSchedulerTest {
+
+    private static final long FAST_PERIOD_MS = 100;
+    private static final long SLOW_PERIOD_MS = 1000;
+    private static final int STABLE_THRESHOLD = 3;
+    private static final long MAX_PERIOD_MS = 5000;
+    private static final int BACKOFF_THRESHOLD = 2;
+
+    private PollScheduler scheduler;
+
+    @After
+    public void tearDown() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+
+    private static PollScheduler newScheduler(long fastPeriodMs) {
+        return new PollScheduler(4, fastPeriodMs, fastPeriodMs, STABLE_THRESHOLD,
+                fastPeriodMs, BACKOFF_THRESHOLD);
+    }
+
+    // Counts polls and how many ran at once
+    private static class CountingTask implements PollScheduler.PollTask {
+        final AtomicInteger polls = new AtomicInteger();
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        volatile int result = POLL_UNCHANGED;
+        volatile long pollTimeMs;
+
+        @Override
+        public int poll() throws InterruptedException {
+            int now = running.incrementAndGet();
+            while (now > maxRunning.get()) {
+                maxRunning.compareAndSet(maxRunning.get(), now);
+            }
+            try {
+                if (pollTimeMs > 0) {
+                    Thread.sleep(pollTimeMs);
+                }
+                polls.incrementAndGet();
+                return result;
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+    }
+
+    private static void assertDelayNear(long expectedMs, long actualMs) {
+        // The delay is jittered by up to 10% either way
+        assertTrue("Expected ~" + expectedMs + " but was " + actualMs,
+                actualMs >= expectedMs - expectedMs / 10 && actualMs <= expectedMs + expectedMs / 10);
+    }
+
+    @Test
+    public void delayFollowsHostState() {
+        scheduler = new PollScheduler(1, FAST_PERIOD_MS, SLOW_PERIOD_MS, STABLE_THRESHOLD,
+                MAX_PERIOD_MS, BACKOFF_THRESHOLD);
+
+        for (int i = 0; i < 100; i++) {
+            // Online and changing
+            assertDelayNear(FAST_PERIOD_MS, scheduler.getNextDelayMs(0, 0));
+            assertDelayNear(FAST_PERIOD_MS, scheduler.getNextDelayMs(0, STABLE_THRESHOLD - 1));
+
+            // Online and stable
+            assertDelayNear(SLOW_PERIOD_MS, scheduler.getNextDelayMs(0, STABLE_THRESHOLD));
+
+            // A few failures don't slow us down yet
+            assertDelayNear(FAST_PERIOD_MS, scheduler.getNextDelayMs(BACKOFF_THRESHOLD, 0));
+
+            // Then the period doubles with each failure
+            assertDelayNear(FAST_PERIOD_MS * 2, scheduler.getNextDelayMs(BACKOFF_THRESHOLD + 1, 0));
+            assertDelayNear(FAST_PERIOD_MS * 4, scheduler.getNextDelayMs(BACKOFF_THRESHOLD + 2, 0));
+            assertDelayNear(FAST_PERIOD_MS * 32, scheduler.getNextDelayMs(BACKOFF_THRESHOLD + 5, 0));
+
+            // Up to the maximum, even after a very long time offline
+            assertDelayNear(MAX_PERIOD_MS, scheduler.getNextDelayMs(BACKOFF_THRESHOLD + 6, 0));
+            assertDelayNear(MAX_PERIOD_MS, scheduler.getNextDelayMs(Integer.MAX_VALUE, 0));
+        }
+    }
+
+    @Test
+    public void onlyOnePollPerHostAtATime() throws Exception {
+        scheduler = newScheduler(1);
+        CountingTask task = new CountingTask();
+        task.pollTimeMs = 5;
+
+        PollScheduler.Handle handle = scheduler.schedule(task);
+        Thread.sleep(100);
+        handle.cancel();
+
+        assertTrue(task.polls.get() > 5);
+        assertEquals(1, task.maxRunning.get());
+    }
+
+    @Test
+    public void expediteDuringPollKeepsOnePollInFlight() throws Exception {
+        scheduler = newScheduler(1);
+        CountingTask task = new CountingTask();
+        task.pollTimeMs = 5;
+
+        PollScheduler.Handle handle = scheduler.schedule(task);
+        for (int i = 0; i < 100; i++) {
+            handle.expedite();
+            Thread.sleep(1);
+        }
+        handle.cancel();
+
+        assertTrue(task.polls.get() > 5);
+        assertEquals(1, task.maxRunning.get());
+    }
+
+    @Test
+    public void expediteDuringPollPollsAgainRightAfter() throws Exception {
+        scheduler = newScheduler(10000);
+        final CountDownLatch firstStarted = new CountDownLatch(1);
+        final CountDownLatch releaseFirst = new CountDownLatch(1);
+        final CountDownLatch secondStarted = new CountDownLatch(1);
+        final AtomicInteger polls = new AtomicInteger();
+
+        PollScheduler.Handle handle = scheduler.schedule(new PollScheduler.PollTask() {
+            @Override
+            public int poll() throws InterruptedException {
+                if (polls.incrementAndGet() == 1) {
+                    firstStarted.countDown();
+                    releaseFirst.await();
+                }
+                else {
+                    secondStarted.countDown();
+                }
+                return POLL_UNCHANGED;
+            }
+        });
+
+        assertTrue(firstStarted.await(5, TimeUnit.SECONDS));
+        handle.expedite();
+        Thread.sleep(50);
+        assertEquals(1, polls.get());
+
+        // The expedited poll runs as soon as the first finishes, not a period later
+        releaseFirst.countDown();
+        assertTrue(secondStarted.await(1, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertEquals(2, polls.get());
+        handle.cancel();
+    }
+
+    @Test
+    public void expediteRunsQueuedPollNow() throws Exception {
+        scheduler = newScheduler(10000);
+        CountingTask task = new CountingTask();
+
+        PollScheduler.Handle handle = scheduler.schedule(task);
+        Thread.sleep(100);
+        assertEquals(1, task.polls.get());
+
+        handle.expedite();
+        Thread.sleep(100);
+        assertEquals(2, task.polls.get());
+        handle.cancel();
+    }
+
+    @Test
+    public void hostsArePolledInParallel() throws Exception {
+        scheduler = newScheduler(10);
+        final CountDownLatch allRunning = new CountDownLatch(3);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        for (int i = 0; i < 3; i++) {
+            scheduler.schedule(new PollScheduler.PollTask() {
+                @Override
+                public int poll() throws InterruptedException {
+                    allRunning.countDown();
+                    release.await();
+                    return POLL_UNCHANGED;
+                }
+            });
+        }
+
+        // A slow host doesn't hold up the others
+        assertTrue(allRunning.await(5, TimeUnit.SECONDS));
+        release.countDown();
+    }
+
+    @Test
+    public void offlineHostBacksOff() throws Exception {
+        scheduler = new PollScheduler(1, 20, 20, STABLE_THRESHOLD, 10000, 0);
+        CountingTask task = new CountingTask();
+        task.result = PollScheduler.PollTask.POLL_OFFLINE;
+
+        PollScheduler.Handle handle = scheduler.schedule(task);
+        Thread.sleep(1000);
+        handle.cancel();
+
+        // 20, 40, 80, 160, 320 ms... gets at most 6 polls into the first second
+        assertTrue(task.polls.get() <= 6);
+        assertTrue(handle.getConsecutiveFailures() >= 4);
+    }
+
+    @Test
+    public void successResetsBackoff() throws Exception {
+        scheduler = new PollScheduler(1, 20, 20, STABLE_THRESHOLD, 10000, 0);
+        CountingTask task = new CountingTask();
+        task.result = PollScheduler.PollTask.POLL_OFFLINE;
+
+        PollScheduler.Handle handle = scheduler.schedule(task);
+        Thread.sleep(200);
+        task.result = PollScheduler.PollTask.POLL_CHANGED;
+        handle.expedite();
+        Thread.sleep(100);
+
+        assertEquals(0, handle.getConsecutiveFailures());
+        handle.cancel();
+    }
+
+    @Test
+    public void cancelInterruptsRunningPoll() throws Exception {
+        scheduler = newScheduler(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final AtomicInteger polls = new AtomicInteger();
+
+        PollScheduler.Handle handle = scheduler.schedule(new PollScheduler.PollTask() {
+            @Override
+            public int poll() throws InterruptedException {
+                polls.incrementAndGet();
+                started.countDown();
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                    throw e;
+                }
+                return POLL_UNCHANGED;
+            }
+        });
+
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        handle.cancel();
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        assertTrue(handle.isCancelled());
+
+        // Nothing runs after the cancel
+        Thread.sleep(100);
+        assertEquals(1, polls.get());
+    }
+
+    @Test
+    public void cancelStopsQueuedPolls() throws Exception {
+        scheduler = newScheduler(50);
+        CountingTask task = new CountingTask();
+
+        PollScheduler.Handle handle = scheduler.schedule(task);
+        Thread.sleep(20);
+        handle.cancel();
+        int polls = task.polls.get();
+        Thread.sleep(200);
+
+        assertEquals(polls, task.polls.get());
+        assertFalse(task.running.get() > 0);
+    }
+}
@@ -0,0 +1,247 @@
+package com.limelight.grid.assets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DiskAssetLoaderTest {
+
+    private static final long KB = 1024;
+    private static final long MB = 1024 * KB;
+
+    // What DiskAssetLoader uses
+    private static final long DISK_CACHE_BUDGET = 64 * MB;
+
+    private File rootDir;
+    private File hostDir;
+
+    @Before
+    public void setUp() throws IOException {
+        rootDir = File.createTempFile("boxart", "");
+        assertTrue(rootDir.delete());
+        hostDir = new File(rootDir, "host");
+        assertTrue(hostDir.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(rootDir);
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    // Sparse files, so the 64 MB budget doesn't need 64 MB of disk
+    private File createFile(String name, long size) throws IOException {
+        File file = new File(hostDir, name);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(size);
+        } finally {
+            raf.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void leastRecentlyUsedFilesAreEvictedFirst() throws IOException {
+        DiskCacheIndex index = new DiskCacheIndex(DISK_CACHE_BUDGET);
+        index.load(rootDir);
+
+        File a = createFile("1.png", 20 * MB);
+        File b = createFile("2.png", 20 * MB);
+        File c = createFile("3.png", 20 * MB);
+        index.add(a);
+        index.add(b);
+        index.add(c);
+        assertEquals(60 * MB, index.getTotalBytes());
+
+        // Using the oldest file makes the next one the eviction candidate
+        index.touch(a);
+
+        File d = createFile("4.png", 10 * MB);
+        index.add(d);
+        assertFalse(b.exists());
+        assertTrue(a.exists());
+        assertTrue(c.exists());
+        assertTrue(d.exists());
+        assertEquals(50 * MB, index.getTotalBytes());
+
+        // Going over again evicts from the old end until it fits
+        File e = createFile("5.png", 40 * MB);
+        index.add(e);
+        assertFalse(c.exists());
+        assertFalse(a.exists());
+        assertTrue(d.exists());
+        assertTrue(e.exists());
+        assertEquals(50 * MB, index.getTotalBytes());
+        assertEquals(2, index.getFileCount());
+    }
+
+    @Test
+    public void rewrittenFileReplacesItsOldSize() throws IOException {
+        DiskCacheIndex index = new DiskCacheIndex(DISK_CACHE_BUDGET);
+        index.load(rootDir);
+
+        File a = createFile("1.png", 10 * MB);
+        index.add(a);
+        createFile("1.png", 4 * MB);
+        index.add(a);
+        assertEquals(4 * MB, index.getTotalBytes());
+
+        index.delete(a);
+        assertFalse(a.exists());
+        assertEquals(0, index.getTotalBytes());
+    }
+
+    @Test
+    public void loadSeedsOrderFromModificationTimes() throws IOException {
+        long now = System.currentTimeMillis();
+        File oldest = createFile("1.png", 30 * MB);
+        File newest = createFile("2.png", 30 * MB);
+        File middle = createFile("3_1.bmp", 30 * MB);
+        File partial = createFile("4.png.tmp", MB);
+        assertTrue(oldest.setLastModified(now - 3000000));
+        assertTrue(middle.setLastModified(now - 2000000));
+        assertTrue(newest.setLastModified(now - 1000000));
+
+        // The budget is already exceeded, so loading trims it
+        DiskCacheIndex index = new DiskCacheIndex(DISK_CACHE_BUDGET);
+        index.load(rootDir);
+        assertFalse(oldest.exists());
+        assertFalse(partial.exists());
+        assertTrue(middle.exists());
+        assertTrue(newest.exists());
+        assertEquals(60 * MB, index.getTotalBytes());
+
+        // Only the first load reads the directory
+        createFile("5.png", MB);
+        index.load(rootDir);
+        assertEquals(2, index.getFileCount());
+    }
+
+    @Test
+    public void touchRefreshesStaleModificationTime() throws IOException {
+        DiskCacheIndex index = new DiskCacheIndex(DISK_CACHE_BUDGET);
+        index.load(rootDir);
+
+        long now = System.currentTimeMillis();
+        File stale = createFile("1.png", KB);
+        File recent = createFile("2.png", KB);
+        assertTrue(stale.setLastModified(now - 2 * 60 * 60 * 1000));
+        assertTrue(recent.setLastModified(now - 60 * 1000));
+        long recentTime = recent.lastModified();
+
+        index.touch(stale);
+        index.touch(recent);
+        assertTrue(stale.lastModified() >= now - 1000);
+        assertEquals(recentTime, recent.lastModified());
+        assertEquals(2 * KB, index.getTotalBytes());
+    }
+
+    @Test
+    public void scaledBitmapRoundTrip() throws IOException {
+        int width = 13, height = 7;
+        ByteBuffer buffer = ScaledBitmapFile.allocate(width, height);
+        assertEquals(ScaledBitmapFile.HEADER_SIZE, buffer.position());
+        assertEquals(width * height * ScaledBitmapFile.BYTES_PER_PIXEL, buffer.remaining());
+        for (int i = 0; buffer.hasRemaining(); i++) {
+            buffer.put((byte) i);
+        }
+
+        File file = new File(hostDir, "1_2.bmp");
+        ScaledBitmapFile.write(file, buffer);
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+        assertEquals(ScaledBitmapFile.HEADER_SIZE + width * height * 2, file.length());
+
+        ScaledBitmapFile scaled = ScaledBitmapFile.read(file);
+        assertEquals(width, scaled.width);
+        assertEquals(height, scaled.height);
+        assertEquals(width * height * 2, scaled.pixels.remaining());
+        for (int i = 0; scaled.pixels.hasRemaining(); i++) {
+            assertEquals((byte) i, scaled.pixels.get());
+        }
+
+        // Header is 'MLBX', the version, width and height
+        ByteBuffer header = ByteBuffer.allocate(ScaledBitmapFile.HEADER_SIZE);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.getChannel().read(header);
+        } finally {
+            raf.close();
+        }
+        header.flip();
+        assertEquals(0x4D4C4258, header.getInt());
+        assertEquals(1, header.getInt());
+        assertEquals(width, header.getInt());
+        assertEquals(height, header.getInt());
+    }
+
+    private void assertInvalid(File file) {
+        try {
+            ScaledBitmapFile.read(file);
+            fail("Read invalid file " + file);
+        } catch (IOException expected) {
+        }
+    }
+
+    private File writeBytes(String name, ByteBuffer buffer) throws IOException {
+        File file = new File(hostDir, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(buffer.array(), 0, buffer.limit());
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void invalidScaledBitmapsAreRejected() throws IOException {
+        // Too short for a header
+        assertInvalid(writeBytes("short.bmp", ByteBuffer.allocate(8)));
+
+        // Wrong magic
+        ByteBuffer buffer = ScaledBitmapFile.allocate(2, 2);
+        buffer.putInt(0, 0x89504E47);
+        buffer.position(buffer.capacity());
+        buffer.flip();
+        assertInvalid(writeBytes("magic.bmp", buffer));
+
+        // Newer version
+        buffer = ScaledBitmapFile.allocate(2, 2);
+        buffer.putInt(4, 2);
+        buffer.position(buffer.capacity());
+        buffer.flip();
+        assertInvalid(writeBytes("version.bmp", buffer));
+
+        // Pixel data cut off
+        buffer = ScaledBitmapFile.allocate(2, 2);
+        buffer.position(buffer.capacity() - 1);
+        buffer.flip();
+        assertInvalid(writeBytes("truncated.bmp", buffer));
+
+        // Zero size
+        buffer = ScaledBitmapFile.allocate(0, 4);
+        buffer.flip();
+        assertInvalid(writeBytes("empty.bmp", buffer));
+    }
+}
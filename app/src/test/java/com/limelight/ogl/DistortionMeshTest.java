@@ -0,0 +1,186 @@
+package com.limelight.ogl;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DistortionMeshTest {
+
+    private static final float[] IDENTITY = {
+            1, 0, 0, 0,
+            0, 1, 0, 0,
+            0, 0, 1, 0,
+            0, 0, 0, 1
+    };
+
+    // Size of the video texture the error bound is measured against
+    private static final int VIDEO_WIDTH = 1920;
+    private static final int VIDEO_HEIGHT = 1080;
+
+    private static final float[] ZOOM_FACTORS = {1.0f, 2.0f, 3.2f, 3.2f * 1.8f, 5.0f};
+    private static final float[] DIST_FACTORS = {20.0f, 50.0f, 81.0f, 150.0f};
+
+    // The fragment shader this replaced, evaluated in double precision
+    private static double[] shaderMain(double x, double y, double zoomFactor, double distFactor,
+                                       boolean singleView) {
+        if (singleView) {
+            double squeezeFactor = distFactor / 100.0;
+            return new double[] {x, y * squeezeFactor - (squeezeFactor * 0.5)};
+        }
+
+        double texX = x < 0.5 ? x * 2.0 : (x - 0.5) * 2.0;
+        double c = -distFactor / 10.0;
+        double zoomU = zoomFactor * 0.75;
+        double u = texX * zoomU - (zoomU / 2.0);
+        double v = y * zoomFactor - (zoomFactor / 2.0);
+        double newX = c * u / (Math.pow(v, 2.0) + c);
+        double newY = c * v / (Math.pow(u, 2.0) + c);
+        return new double[] {(newX + 1.0) * 0.5, (newY + 1.0) * 0.5};
+    }
+
+    @Test
+    public void sampleCoordinateMatchesShader() {
+        Random r = new Random(1);
+        float[] out = new float[2];
+        for (float zoom : ZOOM_FACTORS) {
+            for (float dist : DIST_FACTORS) {
+                for (int i = 0; i < 10000; i++) {
+                    float x = r.nextFloat();
+                    float y = r.nextFloat();
+                    boolean singleView = r.nextBoolean();
+
+                    DistortionMesh.sampleCoordinate(x, y, zoom, dist, singleView, out);
+                    double[] expected = shaderMain(x, y, zoom, dist, singleView);
+                    if (expected[0] < -1 || expected[0] > 2 || expected[1] < -1 || expected[1] > 2) {
+                        // Far outside the video, and close enough to a pole that float
+                        // rounding dominates. The shader blacks these out anyway.
+                        continue;
+                    }
+                    assertEquals(expected[0], out[0], 1e-4);
+                    assertEquals(expected[1], out[1], 1e-4);
+                }
+            }
+        }
+    }
+
+    // Interpolates the mesh the way the rasterizer would at a screen coordinate
+    private static float[] interpolateMesh(float[] vertices, float screenX, float screenY) {
+        int n = DistortionMesh.GRID_SIZE;
+        int eye = screenX < 0.5f ? 0 : 1;
+        float gx = (screenX * 2 - eye) * n;
+        float gy = screenY * n;
+        int col = Math.min((int) gx, n - 1);
+        int row = Math.min((int) gy, n - 1);
+        float fx = gx - col;
+        float fy = gy - row;
+
+        int topLeft = eye * (n + 1) * (n + 1) + row * (n + 1) + col;
+        int bottomLeft = topLeft + n + 1;
+
+        float[] out = new float[2];
+        for (int i = 0; i < 2; i++) {
+            float tl = vertex(vertices, topLeft, i);
+            float tr = vertex(vertices, topLeft + 1, i);
+            float bl = vertex(vertices, bottomLeft, i);
+            float br = vertex(vertices, bottomLeft + 1, i);
+
+            // The two triangles of each quad, split along the top left to bottom right diagonal
+            if (fy >= fx) {
+                out[i] = tl + fy * (bl - tl) + fx * (br - bl);
+            }
+            else {
+                out[i] = tl + fx * (tr - tl) + fy * (br - tr);
+            }
+        }
+        return out;
+    }
+
+    private static float vertex(float[] vertices, int index, int component) {
+        return vertices[index * DistortionMesh.FLOATS_PER_VERTEX + DistortionMesh.SAMPLE_COORDINATE_OFFSET + component];
+    }
+
+    @Test
+    public void meshStaysCloseToShaderWhenAllowed() {
+        Random r = new Random(2);
+        float[] vertices = new float[DistortionMesh.getVertexCount() * DistortionMesh.FLOATS_PER_VERTEX];
+        int meshConfigs = 0;
+
+        for (float zoom : ZOOM_FACTORS) {
+            for (float dist : DIST_FACTORS) {
+                for (boolean singleView : new boolean[] {false, true}) {
+                    if (DistortionMesh.needsPerPixelWarp(zoom, dist, singleView)) {
+                        continue;
+                    }
+                    meshConfigs++;
+
+                    DistortionMesh.buildVertices(zoom, dist, singleView, IDENTITY, vertices);
+                    for (int i = 0; i < 20000; i++) {
+                        float x = r.nextFloat();
+                        float y = r.nextFloat();
+                        float[] actual = interpolateMesh(vertices, x, y);
+                        double[] expected = shaderMain(x, y, zoom, dist, singleView);
+
+                        String config = "zoom " + zoom + " dist " + dist + " at " + x + "," + y;
+                        assertEquals(config, expected[0] * VIDEO_WIDTH, actual[0] * VIDEO_WIDTH, 2.0);
+                        assertEquals(config, expected[1] * VIDEO_HEIGHT, actual[1] * VIDEO_HEIGHT, 2.0);
+                    }
+                }
+            }
+        }
+
+        // Make sure the interesting cases weren't all sent to the per-pixel path
+        assertTrue(meshConfigs > ZOOM_FACTORS.length * DIST_FACTORS.length);
+    }
+
+    @Test
+    public void perPixelWarpOnlyNearPoles() {
+        // The default VR settings use the mesh
+        assertFalse(DistortionMesh.needsPerPixelWarp(3.2f, 81.0f, false));
+        assertFalse(DistortionMesh.needsPerPixelWarp(100.0f, 1.0f, true));
+
+        // A pole inside the eye: v^2 + c reaches 0 at the top and bottom edges
+        assertTrue(DistortionMesh.needsPerPixelWarp(2.0f, 10.0f, false));
+    }
+
+    @Test
+    public void eyesCoverTheirOwnHalf() {
+        float[] vertices = new float[DistortionMesh.getVertexCount() * DistortionMesh.FLOATS_PER_VERTEX];
+        DistortionMesh.buildVertices(3.2f, 81.0f, false, IDENTITY, vertices);
+
+        int n = DistortionMesh.GRID_SIZE;
+        int perEye = (n + 1) * (n + 1);
+        for (int eye = 0; eye < 2; eye++) {
+            for (int row = 0; row <= n; row++) {
+                for (int col = 0; col <= n; col++) {
+                    int offset = (eye * perEye + row * (n + 1) + col) * DistortionMesh.FLOATS_PER_VERTEX;
+
+                    // Positions span the eye's whole viewport
+                    assertEquals(col / (float) n * 2 - 1, vertices[offset + DistortionMesh.POSITION_OFFSET], 1e-6);
+                    assertEquals(row / (float) n * 2 - 1, vertices[offset + DistortionMesh.POSITION_OFFSET + 1], 1e-6);
+
+                    // Both eyes see the same eye-local texture coordinates
+                    assertEquals(col / (float) n, vertices[offset + DistortionMesh.TEXTURE_COORDINATE_OFFSET], 1e-5);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void indicesStayWithinEachEye() {
+        short[] indices = DistortionMesh.buildIndices();
+        int perEye = DistortionMesh.getIndexCountPerEye();
+        int verticesPerEye = DistortionMesh.getVertexCount() / 2;
+
+        assertEquals(2 * perEye, indices.length);
+        for (int i = 0; i < indices.length; i++) {
+            int eye = i / perEye;
+            int index = indices[i] & 0xFFFF;
+            assertTrue(index >= eye * verticesPerEye);
+            assertTrue(index < (eye + 1) * verticesPerEye);
+        }
+    }
+}
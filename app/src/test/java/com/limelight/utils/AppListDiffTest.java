@@ -0,0 +1,156 @@
+package com.limelight.utils;
+
+import com.limelight.nvstream.http.NvApp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AppListDiffTest {
+
+    private static final Comparator<NvApp> APP_ORDER = new Comparator<NvApp>() {
+        @Override
+        public int compare(NvApp lhs, NvApp rhs) {
+            return AppListDiff.compareApps(lhs, rhs);
+        }
+    };
+
+    private static NvApp app(String name, int id) {
+        return new NvApp(name, id);
+    }
+
+    private static NvApp app(String name, int id, boolean running) {
+        NvApp app = new NvApp(name, id);
+        app.setIsRunning(running);
+        return app;
+    }
+
+    private static List<Integer> ids(List<NvApp> apps) {
+        ArrayList<Integer> ids = new ArrayList<>();
+        for (NvApp app : apps) {
+            ids.add(app.getAppId());
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    @Test
+    public void identicalListsHaveNoDifferences() {
+        List<NvApp> apps = Arrays.asList(app("Steam", 1), app("Desktop", 2));
+        AppListDiff diff = AppListDiff.compute(apps, Arrays.asList(app("Steam", 1), app("Desktop", 2)));
+
+        assertTrue(diff.isEmpty());
+        assertEquals("0 added, 0 removed, 0 changed", diff.toString());
+    }
+
+    @Test
+    public void addedAndRemovedAppsAreMatchedById() {
+        List<NvApp> oldApps = Arrays.asList(app("Steam", 1), app("Desktop", 2), app("Game", 3));
+        List<NvApp> newApps = Arrays.asList(app("Steam", 1), app("Game", 3), app("New game", 4), app("Other", 5));
+        AppListDiff diff = AppListDiff.compute(oldApps, newApps);
+
+        assertEquals(Arrays.asList(4, 5), ids(diff.added));
+        assertEquals(Arrays.asList(2), ids(diff.removed));
+        assertTrue(diff.changed.isEmpty());
+    }
+
+    @Test
+    public void renameAndRunningStateAreChanges() {
+        List<NvApp> oldApps = Arrays.asList(app("Steam", 1), app("Desktop", 2), app("Game", 3));
+        List<NvApp> newApps = Arrays.asList(app("Steam Big Picture", 1), app("Desktop", 2), app("Game", 3, true));
+        AppListDiff diff = AppListDiff.compute(oldApps, newApps);
+
+        assertEquals(Arrays.asList(1, 3), ids(diff.changed));
+        assertTrue(diff.added.isEmpty());
+        assertTrue(diff.removed.isEmpty());
+
+        // The changed apps come from the new list
+        for (NvApp app : diff.changed) {
+            assertTrue(newApps.contains(app));
+        }
+    }
+
+    @Test
+    public void reorderIsNotAChange() {
+        List<NvApp> oldApps = Arrays.asList(app("A", 1), app("B", 2), app("C", 3));
+        List<NvApp> newApps = Arrays.asList(app("C", 3), app("A", 1), app("B", 2));
+        assertTrue(AppListDiff.compute(oldApps, newApps).isEmpty());
+    }
+
+    @Test
+    public void emptyLists() {
+        List<NvApp> apps = Arrays.asList(app("A", 1), app("B", 2));
+        List<NvApp> none = Collections.emptyList();
+
+        assertEquals(2, AppListDiff.compute(none, apps).added.size());
+        assertEquals(2, AppListDiff.compute(apps, none).removed.size());
+        assertTrue(AppListDiff.compute(none, none).isEmpty());
+    }
+
+    @Test
+    public void unchangedListHashesTheSame() {
+        String xml = "<root status_code=\"200\"><App><AppTitle>Steam</AppTitle><ID>1</ID></App></root>";
+        String sameXml = new StringBuilder(xml).toString();
+
+        assertEquals(AppListDiff.hashRawAppList(xml), AppListDiff.hashRawAppList(sameXml));
+        assertNotEquals(AppListDiff.hashRawAppList(xml), AppListDiff.hashRawAppList(xml.replace("Steam", "Steem")));
+        assertNotEquals(AppListDiff.hashRawAppList(xml), AppListDiff.hashRawAppList(xml + " "));
+
+        // FNV-1a of nothing is the offset basis
+        assertEquals(0xcbf29ce484222325L, AppListDiff.hashRawAppList(""));
+    }
+
+    @Test
+    public void sortedInsertKeepsOrderWithDuplicateNames() {
+        Random random = new Random(1);
+        ArrayList<NvApp> list = new ArrayList<>();
+        ArrayList<NvApp> all = new ArrayList<>();
+
+        // Lots of apps sharing a few names, added in random order
+        for (int id = 0; id < 200; id++) {
+            all.add(app("Game " + random.nextInt(5), id));
+        }
+        Collections.shuffle(all, random);
+        for (NvApp app : all) {
+            int index = AppListDiff.insertSorted(list, app, APP_ORDER);
+            assertEquals(app, list.get(index));
+        }
+
+        ArrayList<NvApp> expected = new ArrayList<>(all);
+        Collections.sort(expected, APP_ORDER);
+        assertEquals(expected, list);
+
+        // Apps with the same name are ordered by ID
+        for (int i = 1; i < list.size(); i++) {
+            NvApp prev = list.get(i - 1), cur = list.get(i);
+            if (prev.getAppName().equals(cur.getAppName())) {
+                assertTrue(prev.getAppId() < cur.getAppId());
+            }
+        }
+    }
+
+    @Test
+    public void renameMovesAppToNewPosition() {
+        ArrayList<NvApp> list = new ArrayList<>();
+        for (NvApp app : Arrays.asList(app("B", 2), app("D", 4), app("A", 1), app("C", 3))) {
+            AppListDiff.insertSorted(list, app, APP_ORDER);
+        }
+
+        // Like AppGridAdapter.updateApp(): take it out, rename it, and put it back
+        NvApp renamed = list.remove(Collections.binarySearch(list, list.get(0), APP_ORDER));
+        renamed.setAppName("E");
+        assertEquals(3, AppListDiff.insertSorted(list, renamed, APP_ORDER));
+
+        assertEquals(Arrays.asList(2, 3, 4, 1), Arrays.asList(list.get(0).getAppId(), list.get(1).getAppId(),
+                list.get(2).getAppId(), list.get(3).getAppId()));
+    }
+}